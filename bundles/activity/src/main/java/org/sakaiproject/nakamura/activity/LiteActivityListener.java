@@ -23,7 +23,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.resource.JcrResourceConstants;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
@@ -37,11 +39,19 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.resource.lite.SparseWriteBatch;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import javax.jcr.RepositoryException;
 import javax.jms.Connection;
@@ -51,9 +61,47 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Topic;
 
-@Component(immediate = true)
+/**
+ * Copies activities into the feeds they are routed to. Activity messages are read from
+ * JMS in batches by a single consumer thread, which keeps one administrative session and
+ * writes the feed entries of the whole batch together. A batch is acknowledged once it has
+ * been written, so a failure leads to the batch being redelivered rather than lost, and
+ * redelivered activities only write the entries that are missing. After a batch fails its
+ * activities are retried one at a time, and an activity that still fails on its own after a
+ * number of attempts is logged and dropped so it cannot hold up the feed for ever. Failures
+ * of the repository are not held against the activities; they are retried after a pause
+ * that grows while the failures continue, as is reconnecting to JMS.
+ */
+@Component(immediate = true, metatype = true)
 public class LiteActivityListener implements MessageListener {
 
+  @Property(intValue = 50, label = "Batch Size",
+      description = "The most activities to deliver together.")
+  static final String BATCH_SIZE = "activity.delivery.batchsize";
+
+  @Property(intValue = 100, label = "Batch Wait",
+      description = "Milliseconds to wait for more activities to fill a batch.")
+  static final String BATCH_WAIT = "activity.delivery.batchwait";
+
+  @Property(intValue = 5, label = "Delivery Attempts",
+      description = "The number of failed deliveries after which an activity is dropped.")
+  static final String MAX_ATTEMPTS = "activity.delivery.maxattempts";
+
+  @Property(intValue = 1000, label = "Retry Delay",
+      description = "Milliseconds to wait before retrying after a failure, doubled for each "
+          + "further failure in a row up to a minute.")
+  static final String RETRY_DELAY = "activity.delivery.retrydelay";
+
+  /**
+   * The longest pause between retries.
+   */
+  private static final long MAX_RETRY_DELAY = 60000L;
+
+  /**
+   * The number of recently delivered activities remembered to spot redeliveries.
+   */
+  private static final int DELIVERED_KEYS = 10000;
+
   // References/properties need for JMS
   @Reference
   protected ConnectionFactoryService connFactoryService;
@@ -67,44 +115,276 @@ public class LiteActivityListener implements MessageListener {
   public static final Logger LOG = LoggerFactory
       .getLogger(LiteActivityListener.class);
 
-  private Connection connection = null;
+  private volatile Connection connection = null;
 
   /**
-   * Start a JMS connection.
+   * The JMS session and consumer of the connection, only touched by the thread reading
+   * activities once it has started.
+   */
+  private javax.jms.Session jmsSession;
+  private MessageConsumer jmsConsumer;
+
+  private Thread consumerThread;
+
+  private volatile boolean running;
+
+  private int batchSize = 50;
+
+  private long batchWait = 100;
+
+  private int maxAttempts = 5;
+
+  private long initialRetryDelay = 1000;
+
+  /**
+   * The pause before the next retry of a failed batch, only touched by the thread
+   * delivering batches.
+   */
+  private long retryDelay = 1000;
+
+  /**
+   * Administrative session reused from one batch to the next, only touched by the thread
+   * delivering a batch.
+   */
+  private Session adminSession;
+
+  /**
+   * Idempotency keys, the activity paths, of recently delivered activities.
+   */
+  private final Map<String, Boolean> delivered = new LinkedHashMap<String, Boolean>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+      return size() > DELIVERED_KEYS;
+    }
+  };
+
+  /**
+   * Failed delivery attempts of activities that have not been delivered yet.
+   */
+  private final Map<String, Integer> attempts = new LinkedHashMap<String, Integer>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+      return size() > DELIVERED_KEYS;
+    }
+  };
+
+  /**
+   * Start the thread that reads activities from JMS.
    */
   public void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> properties = componentContext.getProperties();
+    batchSize = Math.max(1, OsgiUtil.toInteger(properties.get(BATCH_SIZE), 50));
+    batchWait = Math.max(0, OsgiUtil.toInteger(properties.get(BATCH_WAIT), 100));
+    maxAttempts = Math.max(1, OsgiUtil.toInteger(properties.get(MAX_ATTEMPTS), 5));
+    initialRetryDelay = Math.max(0, OsgiUtil.toInteger(properties.get(RETRY_DELAY), 1000));
+    retryDelay = initialRetryDelay;
+    running = true;
     try {
-      connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      javax.jms.Session session = connection.createSession(false,
-          javax.jms.Session.AUTO_ACKNOWLEDGE);
-      Topic dest = session.createTopic(ActivityConstants.LITE_EVENT_TOPIC);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
-      connection.start();
+      connect();
     } catch (JMSException e) {
-      LOG.error(e.getMessage(), e);
-      if (connection != null) {
-        try {
-          connection.close();
-        } catch (JMSException e1) {
-        }
-      }
+      LOG.error("Could not connect the activity listener to JMS, it will keep trying.", e);
+      closeConnection();
     }
+    consumerThread = new Thread(new Runnable() {
+      public void run() {
+        consume();
+      }
+    }, "Activity Delivery");
+    consumerThread.setDaemon(true);
+    consumerThread.start();
   }
 
   /**
    * Close the JMS connection
    */
   protected void deactivate(ComponentContext ctx) {
-    if (connection != null) {
+    running = false;
+    closeConnection();
+    if (consumerThread != null) {
+      // in case it is waiting to retry.
+      consumerThread.interrupt();
+      try {
+        consumerThread.join(10000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Read activities until deactivated, connecting to JMS again whenever the connection
+   * fails.
+   */
+  private void consume() {
+    long reconnectDelay = initialRetryDelay;
+    while (running) {
       try {
-        connection.close();
+        if (connection == null) {
+          connect();
+          if (!running) {
+            // deactivated while connecting.
+            break;
+          }
+        }
+        reconnectDelay = initialRetryDelay;
+        consume(jmsSession, jmsConsumer);
+      } catch (JMSException e) {
+        if (running) {
+          LOG.error("Got a JMS exception in the activity listener, reconnecting.", e);
+        }
+      } finally {
+        closeConnection();
+        logout();
+      }
+      if (running) {
+        pause(reconnectDelay);
+        reconnectDelay = Math.min(MAX_RETRY_DELAY, reconnectDelay * 2);
+      }
+    }
+  }
+
+  private void connect() throws JMSException {
+    connection = connFactoryService.getDefaultConnectionFactory().createConnection();
+    jmsSession = connection.createSession(false, javax.jms.Session.CLIENT_ACKNOWLEDGE);
+    Topic dest = jmsSession.createTopic(ActivityConstants.LITE_EVENT_TOPIC);
+    jmsConsumer = jmsSession.createConsumer(dest);
+    connection.start();
+  }
+
+  private void closeConnection() {
+    Connection c = connection;
+    if (c != null) {
+      connection = null;
+      try {
+        c.close();
       } catch (JMSException e) {
         LOG.error("Cannot close the activity JMS connection.", e);
       }
     }
   }
 
+  /**
+   * Read activity messages in batches until deactivated.
+   *
+   * @throws JMSException
+   *           if the connection fails.
+   */
+  private void consume(javax.jms.Session session, MessageConsumer consumer)
+      throws JMSException {
+    // messages left to take one at a time after a batch failed.
+    int singles = 0;
+    while (running) {
+      Message first = consumer.receive(1000);
+      if (first == null) {
+        continue;
+      }
+      List<Message> batch = new ArrayList<Message>();
+      batch.add(first);
+      int limit = singles > 0 ? 1 : batchSize;
+      long deadline = System.currentTimeMillis() + batchWait;
+      while (batch.size() < limit) {
+        long wait = deadline - System.currentTimeMillis();
+        Message next = wait > 0 ? consumer.receive(wait) : consumer.receiveNoWait();
+        if (next == null) {
+          break;
+        }
+        batch.add(next);
+      }
+      if (deliverBatch(session, batch)) {
+        if (singles > 0) {
+          singles--;
+        }
+      } else if (batch.size() > 1) {
+        // so one bad activity only holds up itself when the batch comes round again.
+        singles = batch.size();
+      }
+    }
+  }
+
+  /**
+   * Deliver a batch and acknowledge it, or have it redelivered if anything goes wrong.
+   *
+   * @return true if the batch was delivered.
+   * @throws JMSException
+   */
+  boolean deliverBatch(javax.jms.Session session, List<Message> batch) throws JMSException {
+    try {
+      login();
+    } catch (StorageClientException e) {
+      return retry(session, batch, e, false);
+    } catch (AccessDeniedException e) {
+      return retry(session, batch, e, false);
+    }
+    try {
+      deliver(batch);
+      // acknowledges everything received by the session, which is this batch.
+      batch.get(batch.size() - 1).acknowledge();
+      retryDelay = initialRetryDelay;
+      return true;
+    } catch (StorageClientException e) {
+      // the repository failed, which is no fault of the activities.
+      return retry(session, batch, e, false);
+    } catch (AccessDeniedException e) {
+      return retry(session, batch, e, batch.size() == 1);
+    } catch (RuntimeException e) {
+      return retry(session, batch, e, batch.size() == 1);
+    }
+  }
+
+  /**
+   * Have a failed batch redelivered after a pause, which doubles with each failure in a
+   * row so an outage does not spin through the redeliveries.
+   *
+   * @param charge
+   *          true if the failure was down to the single activity in the batch, which then
+   *          counts as a failed attempt to deliver it.
+   * @return false
+   * @throws JMSException
+   */
+  private boolean retry(javax.jms.Session session, List<Message> batch, Exception e,
+      boolean charge) throws JMSException {
+    LOG.error("Failed to deliver activities, they will be redelivered.", e);
+    // start again with a fresh session.
+    logout();
+    if (charge) {
+      try {
+        String activityItemPath = batch.get(0).getStringProperty(
+            ActivityConstants.EVENT_PROP_PATH);
+        if (activityItemPath != null) {
+          synchronized (attempts) {
+            Integer n = attempts.get(activityItemPath);
+            attempts.put(activityItemPath, n == null ? 1 : n + 1);
+          }
+        }
+      } catch (JMSException e1) {
+        LOG.debug(e1.getMessage(), e1);
+      }
+    }
+    pause(retryDelay);
+    retryDelay = Math.min(MAX_RETRY_DELAY, retryDelay * 2);
+    session.recover();
+    return false;
+  }
+
+  /**
+   * Wait before retrying, cut short if the listener is deactivated.
+   */
+  void pause(long millis) {
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   /**
    * {@inheritDoc}
    *
@@ -112,40 +392,121 @@ public class LiteActivityListener implements MessageListener {
    */
   public void onMessage(Message message) {
     try {
-      final String activityItemPath = message
-          .getStringProperty(ActivityConstants.EVENT_PROP_PATH);
-      Session session = sparseRepository.loginAdministrative(); 
-      ContentManager contentManager = session.getContentManager();
-      try {
-        Content activity = contentManager.get(activityItemPath);
+      deliver(Collections.singletonList(message));
+    } catch (AccessDeniedException e) {
+      LOG.error("Got a repository exception in the activity listener.", e);
+    } catch (StorageClientException e) {
+      LOG.error("Got a repository exception in the activity listener.", e);
+    }
+  }
+
+  /**
+   * Deliver a batch of activity messages to all the feeds they are routed to. Each
+   * activity is delivered once however many times it appears in the batch, and feed
+   * entries are written together at the end.
+   *
+   * @param messages
+   * @return the number of feed entries written.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  protected synchronized int deliver(List<Message> messages) throws StorageClientException,
+      AccessDeniedException {
+    try {
+      login();
+      SparseWriteBatch writes = new SparseWriteBatch(adminSession.getContentManager(),
+          Integer.MAX_VALUE);
+      Set<String> batchKeys = new HashSet<String>();
+      for (Message message : messages) {
+        String activityItemPath = null;
+        boolean redelivered = false;
+        try {
+          activityItemPath = message.getStringProperty(ActivityConstants.EVENT_PROP_PATH);
+          redelivered = message.getJMSRedelivered();
+        } catch (JMSException e) {
+          LOG.error("Got a JMS exception in the activity listener.", e);
+          continue;
+        }
+        if (activityItemPath == null || !batchKeys.add(activityItemPath)) {
+          continue;
+        }
+        if (redelivered && isDelivered(activityItemPath)) {
+          LOG.debug("Activity {} has already been delivered", activityItemPath);
+          continue;
+        }
+        if (redelivered && getAttempts(activityItemPath) >= maxAttempts) {
+          LOG.error("Dropping activity {} after {} failed deliveries", activityItemPath,
+              maxAttempts);
+          continue;
+        }
+        Content activity = writes.get(activityItemPath);
         if (activity == null || !activity.hasProperty(PARAM_ACTOR_ID)) {
           // we must know the actor
-          throw new IllegalStateException(
-              "Could not determine actor of activity: " + activity);
+          LOG.error("Could not determine actor of activity: {}", activityItemPath);
+          continue;
         }
-  
+
         // Get all the routes for this activity.
         List<ActivityRoute> routes = activityRouterManager
-            .getActivityRoutes(activity, session);
-  
+            .getActivityRoutes(activity, adminSession);
+
         // Copy the activity items to each endpoint.
+        Map<String, Object> properties = getFeedProperties(activity);
+        String name = StorageClientUtils.getObjectName(activity.getPath());
         for (ActivityRoute route : routes) {
-          deliverActivityToFeed(session, activity, route.getDestination());
+          String deliveryPath = StorageClientUtils.newPath(route.getDestination(), name);
+          if (redelivered && writes.exists(deliveryPath)) {
+            continue;
+          }
+          writes.update(new Content(deliveryPath, properties));
         }
-      } finally {
-        try { 
-          session.logout(); 
-        } catch ( Exception e) {
-          LOG.warn("Failed to logout of administrative session {} ",e.getMessage());
+      }
+      int n = writes.flush();
+      synchronized (delivered) {
+        for (String key : batchKeys) {
+          delivered.put(key, Boolean.TRUE);
         }
       }
-
-    } catch (JMSException e) {
-      LOG.error("Got a JMS exception in the activity listener.", e);
-    } catch (AccessDeniedException e) {
-      LOG.error("Got a repository exception in the activity listener.", e);
+      synchronized (attempts) {
+        for (String key : batchKeys) {
+          attempts.remove(key);
+        }
+      }
+      return n;
     } catch (StorageClientException e) {
-      LOG.error("Got a repository exception in the activity listener.", e);
+      // start again with a fresh session.
+      logout();
+      throw e;
+    }
+  }
+
+  private boolean isDelivered(String key) {
+    synchronized (delivered) {
+      return delivered.containsKey(key);
+    }
+  }
+
+  private int getAttempts(String key) {
+    synchronized (attempts) {
+      Integer n = attempts.get(key);
+      return n == null ? 0 : n;
+    }
+  }
+
+  private synchronized void login() throws StorageClientException, AccessDeniedException {
+    if (adminSession == null) {
+      adminSession = sparseRepository.loginAdministrative();
+    }
+  }
+
+  private synchronized void logout() {
+    if (adminSession != null) {
+      try {
+        adminSession.logout();
+      } catch (Exception e) {
+        LOG.warn("Failed to logout of administrative session {} ",e.getMessage());
+      }
+      adminSession = null;
     }
   }
 
@@ -168,6 +529,14 @@ public class LiteActivityListener implements MessageListener {
     ContentManager contentManager = session.getContentManager();
     String deliveryPath = StorageClientUtils
         .newPath(activityFeedPath, StorageClientUtils.getObjectName(activity.getPath()));
+    Content content = new Content(deliveryPath, getFeedProperties(activity));
+    contentManager.update(content);
+  }
+
+  /**
+   * @return the properties of the entry an activity becomes in a feed.
+   */
+  private Map<String, Object> getFeedProperties(Content activity) {
     Builder<String, Object> contentProperties = ImmutableMap.builder();
     for ( Entry<String, Object> e : activity.getProperties().entrySet()) {
       if (!JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY.equals(e.getKey())) {
@@ -176,8 +545,7 @@ public class LiteActivityListener implements MessageListener {
     }
     contentProperties.put(JcrResourceConstants.SLING_RESOURCE_TYPE_PROPERTY,
         ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE);
-    Content content = new Content(deliveryPath, contentProperties.build());
-    contentManager.update(content);
+    return contentProperties.build();
   }
 
 }
@@ -33,13 +33,13 @@ import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
-import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
-import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.user.BulkAccessEvaluator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.List;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -60,6 +60,9 @@ public class ContactsActivityRouter implements ActivityRouter {
   @Reference
   protected ConnectionManager connectionManager;
 
+  @Reference
+  protected BulkAccessEvaluator bulkAccessEvaluator;
+
   private static final Logger LOGGER = LoggerFactory
       .getLogger(ContactsActivityRouter.class);
 
@@ -127,37 +130,27 @@ public class ContactsActivityRouter implements ActivityRouter {
 
   public void route(Content activity, List<ActivityRoute> routes, org.sakaiproject.nakamura.api.lite.Session adminSession) {
     try {
-      String activityFeedPath = null;
       String actor = (String) activity.getProperty(ActivityConstants.PARAM_ACTOR_ID);
       List<String> connections = connectionManager.getConnectedUsers(adminSession, actor,
           ConnectionState.ACCEPTED);
-      org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager accessControlManager = adminSession.getAccessControlManager();
-      AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
       if (connections != null && connections.size() > 0) {
-
-        String activityPath = activity.getPath();
-        for (String connection : connections) {
-          // Check if this connection has READ access on the path.
-          try {
-          Authorizable authorizable = authorizableManager.findAuthorizable(connection);
-          boolean allowCopy = accessControlManager.can(authorizable, Security.ZONE_CONTENT, activityPath, Permissions.CAN_READ);
-          if (allowCopy) {
-            // Get the activity feed for this contact and deliver it.
-            activityFeedPath = ActivityUtils.getUserFeed(connection);
-            ActivityRoute route = new AbstractActivityRoute(activityFeedPath) {
-            };
-            routes.add(route);
-          }
-          } catch ( StorageClientException e) {
-            LOGGER.error(e.getMessage(),e);            
-          } catch (AccessDeniedException e) {
-            LOGGER.error(e.getMessage(),e);
-          }
+        // Only the connections with READ access on the path get the activity.
+        Set<String> readers = bulkAccessEvaluator.filterPermitted(adminSession,
+            Security.ZONE_CONTENT, activity.getPath(), connections, Permissions.CAN_READ);
+        for (String connection : readers) {
+          // Get the activity feed for this contact and deliver it.
+          String activityFeedPath = ActivityUtils.getUserFeed(connection);
+          ActivityRoute route = new AbstractActivityRoute(activityFeedPath) {
+          };
+          routes.add(route);
         }
       }
     } catch (StorageClientException e) {
       LOGGER.error(
           "Exception when trying to deliver an activity to contacts feed.", e);
+    } catch (AccessDeniedException e) {
+      LOGGER.error(
+          "Exception when trying to deliver an activity to contacts feed.", e);
     }
   }
 
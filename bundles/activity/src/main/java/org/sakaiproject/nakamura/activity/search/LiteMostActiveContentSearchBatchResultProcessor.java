@@ -27,6 +27,7 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.sakaiproject.nakamura.activity.search.MostActiveContentTracker.ResourceCount;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
@@ -47,6 +48,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -63,9 +65,34 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
   private static final Logger LOG = LoggerFactory
       .getLogger(LiteMostActiveContentSearchBatchResultProcessor.class);
 
+  /**
+   * How long the count of readable content is kept for each user, in ms.
+   */
+  private static final long TOTAL_CAN_READ_TTL = 60000L;
+
+  private static final int MAX_CACHED_USERS = 1000;
+
   @Reference
   private SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  protected MostActiveContentTracker mostActiveContentTracker;
+
+  private final MostActiveContentPropertyProvider propertyProvider = new MostActiveContentPropertyProvider();
+
+  /**
+   * user id -> { readable content count, expiry time }.
+   */
+  private final Map<String, long[]> totalCanRead = new LinkedHashMap<String, long[]>(16,
+      0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+      return size() > MAX_CACHED_USERS;
+    }
+  };
+
   /**
    * 
    * {@inheritDoc}
@@ -75,10 +102,104 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public void writeResults(SlingHttpServletRequest request, JSONWriter write,
       Iterator<Result> iterator) throws JSONException {
-    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     final Session session = StorageClientUtils.adaptToSession(request
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
 
+    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
+    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
+    startpage = (startpage < 1) ? 1 : startpage;
+    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
+    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
+                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
+    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
+    final int beginPosition = (startpage * numitems) - numitems;
+
+    final List<ResourceActivity> page;
+    final int total;
+    if (mostActiveContentTracker.isReady()) {
+      final List<ResourceCount> ranking = mostActiveContentTracker
+          .getRanking(propertyProvider.deriveThen(request));
+      page = readPage(session, ranking, beginPosition, numitems);
+      total = ranking.size();
+    } else {
+      final List<ResourceActivity> resourceActivities = countActivity(session, iterator);
+      page = (beginPosition < resourceActivities.size()) ? resourceActivities.subList(
+          beginPosition, Math.min(resourceActivities.size(), beginPosition + numitems))
+          : Collections.<ResourceActivity> emptyList();
+      total = resourceActivities.size();
+    }
+
+    // write the most-used content to the JSONWriter
+    write.object();
+    write.key("totalCanRead");
+    write.value(getTotalCanRead(request));
+    write.key(SolrSearchConstants.TOTAL);
+    write.value(total);
+    write.key(STARTPAGE_PARAM);
+    write.value(startpage);
+    write.key(NUMITEMS_PARAM);
+    write.value(numitems);
+    write.key("content");
+    write.array();
+    for (ResourceActivity resourceActivity : page) {
+      write.object();
+      write.key("id");
+      write.value(resourceActivity.id);
+      write.key("name");
+      write.value(resourceActivity.name);
+      write.key("count");
+      write.value(Long.valueOf(resourceActivity.activityScore));
+      write.endObject();
+    }
+    write.endArray();
+    write.endObject();
+  }
+
+  /**
+   * Walk the ranking from the tracker, fetching only as much content as it takes to fill
+   * the requested page with items the current user can read.
+   */
+  protected List<ResourceActivity> readPage(Session session, List<ResourceCount> ranking,
+      int beginPosition, int numitems) {
+    final List<ResourceActivity> page = new ArrayList<ResourceActivity>(numitems);
+    int readable = 0;
+    for (ResourceCount resourceCount : ranking) {
+      if (page.size() >= numitems) {
+        break;
+      }
+      try {
+        final Content resourceNode = session.getContentManager().get(
+            resourceCount.getId());
+        if (resourceNode == null) {
+          // this can happen if this content is no longer public
+          continue;
+        }
+        if (readable++ < beginPosition) {
+          continue;
+        }
+        page.add(new ResourceActivity(resourceCount.getId(), resourceCount.getCount(),
+            (String) resourceNode.getProperty(FilesConstants.POOLED_CONTENT_FILENAME),
+            getLastModified(resourceNode)));
+      } catch (StorageClientException e) {
+        // if something is wrong with this particular resourceNode,
+        // we don't let it wreck the whole feed
+        continue;
+      } catch (AccessDeniedException e) {
+        continue;
+      }
+    }
+    return page;
+  }
+
+  /**
+   * Count the activity records returned by the search, used until the tracker has loaded
+   * the existing activity.
+   *
+   * @return every readable resource with activity, most active first.
+   */
+  protected List<ResourceActivity> countActivity(Session session,
+      Iterator<Result> iterator) {
+    final Map<String, ResourceActivity> resources = new HashMap<String, ResourceActivity>();
     // count all the activity
     LOG.debug("Computing the most active content feed.");
     while (iterator.hasNext()) {
@@ -97,7 +218,7 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
             final String resourceName = (String) resourceNode
                 .getProperty(FilesConstants.POOLED_CONTENT_FILENAME);
             resources.put(resourceId, new ResourceActivity(resourceId, 0, resourceName,
-                (Long) resourceNode.getProperty(FilesConstants.LAST_MODIFIED)));
+                getLastModified(resourceNode)));
           }
           // increment the count for this particular resource.
           resources.get(resourceId).activityScore++;
@@ -112,9 +233,26 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
         continue;
       }
     }
-    
-    // KERN-1724 determine how many content items the current user can read
-    long totalCanRead = 0L;
+    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
+        resources.values());
+    Collections.sort(resourceActivities, Collections.reverseOrder());
+    return resourceActivities;
+  }
+
+  /**
+   * KERN-1724 determine how many content items the current user can read. The count is
+   * kept per user for a short while as the feed is requested on every dashboard view.
+   */
+  private long getTotalCanRead(SlingHttpServletRequest request) {
+    final String userId = request.getRemoteUser();
+    final long now = System.currentTimeMillis();
+    synchronized (totalCanRead) {
+      final long[] cached = totalCanRead.get(userId);
+      if (cached != null && now < cached[1]) {
+        return cached[0];
+      }
+    }
+    long total = 0L;
     try {
       final String queryString = "resourceType:"
           + ClientUtils.escapeQueryChars(FilesConstants.POOLED_CONTENT_RT);
@@ -122,52 +260,21 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
       final SolrSearchResultSet rs = searchServiceFactory.getSearchResultSet(request,
           query);
       if (rs != null) {
-        totalCanRead = rs.getSize();
+        total = rs.getSize();
       }
     } catch (SolrSearchException e) {
       LOG.error(e.getLocalizedMessage(), e);
+      return total;
     }
-
-    // write the most-used content to the JSONWriter
-    final List<ResourceActivity> resourceActivities = new ArrayList<ResourceActivity>(
-        resources.values());
-    Collections.sort(resourceActivities, Collections.reverseOrder());
-    write.object();
-    write.key("totalCanRead");
-    write.value(totalCanRead);
-    write.key(SolrSearchConstants.TOTAL);
-    write.value(resources.size());
-    final RequestParameter startpageP = request.getRequestParameter(STARTPAGE_PARAM);
-    int startpage = (startpageP != null) ? Integer.valueOf(startpageP.getString()) : 1;
-    startpage = (startpage < 1) ? 1 : startpage;
-    write.key(STARTPAGE_PARAM);
-    write.value(startpage);
-    final RequestParameter numitemsP = request.getRequestParameter(NUMITEMS_PARAM);
-    int numitems = (numitemsP != null) ? Integer.valueOf(numitemsP.getString())
-                                      : SolrSearchConstants.DEFAULT_PAGED_ITEMS;
-    numitems = (numitems < 1) ? SolrSearchConstants.DEFAULT_PAGED_ITEMS : numitems;
-    write.key(NUMITEMS_PARAM);
-    write.value(numitems);
-    final int beginPosition = (startpage * numitems) - numitems;
-    write.key("content");
-    write.array();
-    if (beginPosition < resourceActivities.size()) {
-      int count = 0;
-      for (int i = beginPosition; i < resourceActivities.size() && count < numitems; i++) {
-        final ResourceActivity resourceActivity = resourceActivities.get(i);
-        write.object();
-        write.key("id");
-        write.value(resourceActivity.id);
-        write.key("name");
-        write.value(resourceActivity.name);
-        write.key("count");
-        write.value(Long.valueOf(resourceActivity.activityScore));
-        write.endObject();
-        count++;
-      }
+    synchronized (totalCanRead) {
+      totalCanRead.put(userId, new long[] { total, now + TOTAL_CAN_READ_TTL });
     }
-    write.endArray();
-    write.endObject();
+    return total;
+  }
+
+  private long getLastModified(Content resourceNode) {
+    final Object lastModified = resourceNode.getProperty(FilesConstants.LAST_MODIFIED);
+    return (lastModified instanceof Long) ? (Long) lastModified : 0L;
   }
 
   public class ResourceActivity implements Comparable<ResourceActivity> {
@@ -238,8 +345,22 @@ public class LiteMostActiveContentSearchBatchResultProcessor implements
    */
   public SolrSearchResultSet getSearchResultSet(SlingHttpServletRequest request,
       Query query) throws SolrSearchException {
-
+    if (mostActiveContentTracker.isReady()) {
+      // the ranking comes from the tracker, there is no need to pull every activity
+      // record in the window out of the index.
+      return EMPTY_RESULT_SET;
+    }
     return searchServiceFactory.getSearchResultSet(request, query);
   }
 
+  private static final SolrSearchResultSet EMPTY_RESULT_SET = new SolrSearchResultSet() {
+    public Iterator<Result> getResultSetIterator() {
+      return Collections.<Result> emptyList().iterator();
+    }
+
+    public long getSize() {
+      return 0;
+    }
+  };
+
 }
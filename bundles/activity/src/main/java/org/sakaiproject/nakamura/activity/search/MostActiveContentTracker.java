@@ -0,0 +1,400 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrQuery.ORDER;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps a running count of the activity on each content item in hourly buckets, so the
+ * most active content over any window up to {@link #MAXIMUM_HOURS} can be ranked without
+ * reading every activity record in the window.
+ * <p>
+ * Counts are fed by the content ADDED events for new resource update records below
+ * {@link #ACTIVITY_CONTENT_ROOT}. On activation the buckets are loaded in the background
+ * from the records already in the index, until that has finished {@link #isReady()} is
+ * false and callers should fall back to counting the records themselves.
+ * </p>
+ * <p>
+ * Content events are only delivered on the server the activity happened on. In a cluster
+ * each server's ranking holds the activity recorded anywhere up to its own activation and
+ * only its own activity after that, so rankings on different servers drift apart until
+ * the tracker is reactivated. Deployments that balance requests across servers and need
+ * the same ranking on each should set {@link #PROP_ENABLED} to false, the batch processor
+ * then counts the shared index per request as it did before.
+ * </p>
+ */
+@Component(immediate = true, metatype = true, label = "MostActiveContentTracker", description = "Tracks activity counts on content for the most active content feed")
+@Service(value = { MostActiveContentTracker.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = "org/sakaiproject/nakamura/lite/content/ADDED") })
+public class MostActiveContentTracker implements EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory
+      .getLogger(MostActiveContentTracker.class);
+
+  public static final String ACTIVITY_CONTENT_ROOT = "/activity/content/";
+
+  static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+  /**
+   * The oldest bucket kept, the property provider never asks for more than this.
+   */
+  static final long MAXIMUM_HOURS = MostActiveContentPropertyProvider.MAXIMUM_DAYS * 24;
+
+  @Property(intValue = 60)
+  public static final String PROP_RANKING_TTL = "mostactive.ranking.ttl";
+
+  @Property(boolValue = true, description = "Whether to keep counts on this server, turn off in a cluster that needs the same ranking on every server.")
+  public static final String PROP_ENABLED = "mostactive.tracker.enabled";
+
+  static final int BOOTSTRAP_PAGE_SIZE = 1000;
+
+  private static final int MAX_CACHED_RANKINGS = 16;
+
+  @Reference
+  protected SolrServerService solrServerService;
+
+  /**
+   * hour since the epoch -> resource id -> activity in that hour.
+   */
+  private final ConcurrentSkipListMap<Long, ConcurrentHashMap<String, AtomicInteger>> buckets = new ConcurrentSkipListMap<Long, ConcurrentHashMap<String, AtomicInteger>>();
+
+  /**
+   * Rankings keyed on the first hour of their window, reused until they expire.
+   */
+  private final Map<Long, Ranking> rankings = new LinkedHashMap<Long, Ranking>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Ranking> eldest) {
+      return size() > MAX_CACHED_RANKINGS;
+    }
+  };
+
+  private long rankingTtl = TimeUnit.SECONDS.toMillis(60);
+
+  private volatile boolean ready;
+
+  private volatile boolean enabled = true;
+
+  private Thread bootstrap;
+
+  @Activate
+  protected void activate(Map<?, ?> properties) {
+    rankingTtl = TimeUnit.SECONDS.toMillis(OsgiUtil.toInteger(
+        properties.get(PROP_RANKING_TTL), 60));
+    enabled = OsgiUtil.toBoolean(properties.get(PROP_ENABLED), true);
+    if (!enabled) {
+      LOGGER.info("Most active content is counted per request");
+      return;
+    }
+    // events may arrive while loading, only records older than this are loaded so
+    // nothing is counted twice.
+    final long loadBefore = System.currentTimeMillis();
+    bootstrap = new Thread(new Runnable() {
+      public void run() {
+        load(loadBefore);
+      }
+    }, "MostActiveContentTracker bootstrap");
+    bootstrap.setDaemon(true);
+    bootstrap.start();
+  }
+
+  @Deactivate
+  protected void deactivate() {
+    if (bootstrap != null) {
+      bootstrap.interrupt();
+      bootstrap = null;
+    }
+    ready = false;
+    buckets.clear();
+    synchronized (rankings) {
+      rankings.clear();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    // only local events arrive here, see the class comment for what that means in a
+    // cluster.
+    if (!enabled) {
+      return;
+    }
+    String resourceType = (String) event.getProperty("resourceType");
+    if (resourceType != null && !ActivityConstants.RESOURCE_UPDATE.equals(resourceType)) {
+      return;
+    }
+    String resourceId = getResourceId((String) event.getProperty("path"));
+    if (resourceId != null) {
+      record(resourceId, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return true once the counts held include all the activity already recorded.
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Count one activity on a resource.
+   *
+   * @param resourceId
+   * @param timestamp
+   *          when the activity happened, in milliseconds.
+   */
+  public void record(String resourceId, long timestamp) {
+    long hour = timestamp / HOUR_MS;
+    ConcurrentHashMap<String, AtomicInteger> bucket = buckets.get(hour);
+    if (bucket == null) {
+      bucket = new ConcurrentHashMap<String, AtomicInteger>();
+      ConcurrentHashMap<String, AtomicInteger> existing = buckets.putIfAbsent(hour, bucket);
+      if (existing != null) {
+        bucket = existing;
+      } else {
+        prune(System.currentTimeMillis() / HOUR_MS - MAXIMUM_HOURS);
+      }
+    }
+    AtomicInteger count = bucket.get(resourceId);
+    if (count == null) {
+      count = new AtomicInteger();
+      AtomicInteger existing = bucket.putIfAbsent(resourceId, count);
+      if (existing != null) {
+        count = existing;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Rank the resources by their activity since a point in time, most active first and
+   * most recently active first between equal counts. The window is widened to the start
+   * of the hour it begins in and the ranking may be up to the ranking ttl old.
+   *
+   * @param then
+   *          the start of the window in milliseconds.
+   * @return an unmodifiable list of every resource with activity in the window.
+   */
+  public List<ResourceCount> getRanking(long then) {
+    long firstHour = then / HOUR_MS;
+    long now = System.currentTimeMillis();
+    synchronized (rankings) {
+      Ranking ranking = rankings.get(firstHour);
+      if (ranking != null && now < ranking.expires) {
+        return ranking.resources;
+      }
+    }
+    List<ResourceCount> resources = rank(buckets.tailMap(firstHour, true));
+    synchronized (rankings) {
+      rankings.put(firstHour, new Ranking(resources, now + rankingTtl));
+    }
+    return resources;
+  }
+
+  private List<ResourceCount> rank(
+      ConcurrentNavigableMap<Long, ConcurrentHashMap<String, AtomicInteger>> window) {
+    Map<String, ResourceCount> totals = new HashMap<String, ResourceCount>();
+    for (Entry<Long, ConcurrentHashMap<String, AtomicInteger>> bucket : window.entrySet()) {
+      long hour = bucket.getKey();
+      for (Entry<String, AtomicInteger> count : bucket.getValue().entrySet()) {
+        ResourceCount total = totals.get(count.getKey());
+        if (total == null) {
+          total = new ResourceCount(count.getKey());
+          totals.put(count.getKey(), total);
+        }
+        total.count += count.getValue().get();
+        // buckets are walked in order, so this ends on the latest hour.
+        total.lastActiveHour = hour;
+      }
+    }
+    List<ResourceCount> ranked = new ArrayList<ResourceCount>(totals.values());
+    Collections.sort(ranked, Collections.reverseOrder());
+    return Collections.unmodifiableList(ranked);
+  }
+
+  private void prune(long oldestHour) {
+    while (!buckets.isEmpty() && buckets.firstKey() < oldestHour) {
+      buckets.pollFirstEntry();
+    }
+  }
+
+  /**
+   * Load the resource update records already in the index, a page at a time. Pages are
+   * found by timestamp rather than by a growing offset, which Solr would have to skip
+   * through on every page.
+   *
+   * @param before
+   *          only records older than this are loaded.
+   */
+  protected void load(long before) {
+    String baseQuery = "path:" + ClientUtils.escapeQueryChars("/activity/content")
+        + " AND resourceType:"
+        + ClientUtils.escapeQueryChars(ActivityConstants.RESOURCE_UPDATE);
+    long from = before - MAXIMUM_HOURS * HOUR_MS;
+    // records at the lower bound already loaded, they come first as ties are sorted on id.
+    int loadedAtFrom = 0;
+    long start = System.currentTimeMillis();
+    int loaded = 0;
+    try {
+      for (;;) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        SolrQuery solrQuery = new SolrQuery(baseQuery + " AND timestamp:[" + from + " TO "
+            + (before - 1) + "]").setStart(loadedAtFrom).setRows(BOOTSTRAP_PAGE_SIZE)
+            .setFields("id", "timestamp");
+        solrQuery.addSortField("timestamp", ORDER.asc);
+        solrQuery.addSortField("id", ORDER.asc);
+        SolrDocumentList results = solrServerService.getServer().query(solrQuery)
+            .getResults();
+        for (SolrDocument doc : results) {
+          Object timestamp = doc.getFirstValue("timestamp");
+          if (!(timestamp instanceof Number)) {
+            loadedAtFrom++;
+            continue;
+          }
+          long time = ((Number) timestamp).longValue();
+          if (time > from) {
+            from = time;
+            loadedAtFrom = 0;
+          }
+          loadedAtFrom++;
+          String resourceId = getResourceId((String) doc.getFirstValue("id"));
+          if (resourceId != null) {
+            record(resourceId, time);
+            loaded++;
+          }
+        }
+        if (results.size() < BOOTSTRAP_PAGE_SIZE) {
+          break;
+        }
+      }
+      ready = true;
+      LOGGER.info("Loaded {} activity records in {} ms", loaded,
+          System.currentTimeMillis() - start);
+    } catch (SolrServerException e) {
+      LOGGER.warn("Unable to load activity counts, most active content will be counted "
+          + "per request: {}", e.getMessage());
+      LOGGER.debug(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @param path
+   *          the path of an activity record, /activity/content/[resourceId]/[record].
+   * @return the id of the resource the record is about or null if the path is not a
+   *         content activity record.
+   */
+  static String getResourceId(String path) {
+    if (path == null || !path.startsWith(ACTIVITY_CONTENT_ROOT)) {
+      return null;
+    }
+    int slash = path.indexOf('/', ACTIVITY_CONTENT_ROOT.length());
+    if (slash <= ACTIVITY_CONTENT_ROOT.length() || slash == path.length() - 1
+        || path.indexOf('/', slash + 1) != -1) {
+      return null;
+    }
+    return path.substring(ACTIVITY_CONTENT_ROOT.length(), slash);
+  }
+
+  private static class Ranking {
+    private final List<ResourceCount> resources;
+    private final long expires;
+
+    Ranking(List<ResourceCount> resources, long expires) {
+      this.resources = resources;
+      this.expires = expires;
+    }
+  }
+
+  /**
+   * The activity on one resource over a window.
+   */
+  public static class ResourceCount implements Comparable<ResourceCount> {
+    private final String id;
+    private int count;
+    private long lastActiveHour;
+
+    ResourceCount(String id) {
+      this.id = id;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public int getCount() {
+      return count;
+    }
+
+    public int compareTo(ResourceCount other) {
+      if (count != other.count) {
+        return count < other.count ? -1 : 1;
+      }
+      if (lastActiveHour != other.lastActiveHour) {
+        return lastActiveHour < other.lastActiveHour ? -1 : 1;
+      }
+      // keep the order stable between requests.
+      return other.id.compareTo(id);
+    }
+
+    @Override
+    public String toString() {
+      return "ResourceCount(" + id + ", " + count + ")";
+    }
+  }
+}
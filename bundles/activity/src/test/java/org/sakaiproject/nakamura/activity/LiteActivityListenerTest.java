@@ -0,0 +1,349 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.component.ComponentContext;
+import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.activity.ActivityRoute;
+import org.sakaiproject.nakamura.api.activity.ActivityRouterManager;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Topic;
+
+/**
+ *
+ */
+public class LiteActivityListenerTest {
+  private static final int ROUTES = 20;
+
+  private ConcurrentHashMap<String, Content> store;
+  private AtomicInteger writes;
+  private AtomicInteger logins;
+  private Set<String> failing;
+  private AtomicInteger outage;
+  private List<Long> pauses;
+  private LiteActivityListener listener;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new ConcurrentHashMap<String, Content>();
+    writes = new AtomicInteger();
+    logins = new AtomicInteger();
+    failing = new HashSet<String>();
+    outage = new AtomicInteger();
+    pauses = new CopyOnWriteArrayList<Long>();
+
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        return store.get(invocation.getArguments()[0]);
+      }
+    });
+    when(contentManager.exists(anyString())).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return store.containsKey(invocation.getArguments()[0]);
+      }
+    });
+    Answer<Void> update = new Answer<Void>() {
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        Content content = (Content) invocation.getArguments()[0];
+        writes.incrementAndGet();
+        store.put(content.getPath(), content);
+        return null;
+      }
+    };
+    doAnswer(update).when(contentManager).update(any(Content.class));
+
+    final Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenAnswer(new Answer<Session>() {
+      public Session answer(InvocationOnMock invocation) throws Throwable {
+        if (outage.getAndDecrement() > 0) {
+          throw new StorageClientException("Repository unavailable");
+        }
+        logins.incrementAndGet();
+        return session;
+      }
+    });
+
+    ActivityRouterManager routerManager = mock(ActivityRouterManager.class);
+    final List<ActivityRoute> routes = new ArrayList<ActivityRoute>();
+    for (int i = 0; i < ROUTES; i++) {
+      final String destination = "a:user" + i + "/private/activityFeed";
+      routes.add(new ActivityRoute() {
+        public String getDestination() {
+          return destination;
+        }
+      });
+    }
+    when(routerManager.getActivityRoutes(any(Content.class), any(Session.class)))
+        .thenAnswer(new Answer<List<ActivityRoute>>() {
+          public List<ActivityRoute> answer(InvocationOnMock invocation) throws Throwable {
+            Content activity = (Content) invocation.getArguments()[0];
+            if (failing.contains(activity.getPath())) {
+              throw new IllegalStateException("No routes for " + activity.getPath());
+            }
+            return routes;
+          }
+        });
+
+    listener = new LiteActivityListener() {
+      @Override
+      void pause(long millis) {
+        pauses.add(millis);
+      }
+    };
+    listener.sparseRepository = repository;
+    listener.activityRouterManager = routerManager;
+  }
+
+  @Test
+  public void testBatchDeliversEachActivityOnce() throws Exception {
+    addActivity("a:actor/activity/1");
+    addActivity("a:actor/activity/2");
+    Message first = message("a:actor/activity/1", false);
+    Message second = message("a:actor/activity/2", false);
+
+    int written = listener.deliver(Arrays.asList(first, second, first));
+
+    assertEquals(2 * ROUTES, written);
+    assertEquals(2 * ROUTES, writes.get());
+    assertEquals(1, logins.get());
+    Content entry = store.get("a:user3/private/activityFeed/2");
+    assertEquals(ActivityConstants.ACTIVITY_ITEM_RESOURCE_TYPE,
+        entry.getProperty("sling:resourceType"));
+    assertEquals("actor", entry.getProperty(ActivityConstants.PARAM_ACTOR_ID));
+  }
+
+  @Test
+  public void testRedeliveryIsIdempotent() throws Exception {
+    addActivity("a:actor/activity/1");
+    listener.deliver(Arrays.asList(message("a:actor/activity/1", false)));
+    writes.set(0);
+
+    // redelivered after it was delivered, nothing to do.
+    assertEquals(0, listener.deliver(Arrays.asList(message("a:actor/activity/1", true))));
+
+    // redelivered after a partial write, only the missing entries are written.
+    addActivity("a:actor/activity/2");
+    store.put("a:user0/private/activityFeed/2", new Content("a:user0/private/activityFeed/2",
+        null));
+    assertEquals(ROUTES - 1, listener.deliver(Arrays.asList(message("a:actor/activity/2",
+        true))));
+    assertEquals(ROUTES - 1, writes.get());
+  }
+
+  @Test
+  public void testFailingActivityIsDropped() throws Exception {
+    addActivity("a:actor/activity/good");
+    addActivity("a:actor/activity/bad");
+    failing.add("a:actor/activity/bad");
+    javax.jms.Session session = mock(javax.jms.Session.class);
+
+    assertFalse(listener.deliverBatch(session, Arrays.asList(
+        message("a:actor/activity/good", false), message("a:actor/activity/bad", false))));
+    verify(session).recover();
+    assertEquals(0, writes.get());
+
+    // the activities come round again one at a time.
+    Message good = message("a:actor/activity/good", true);
+    assertTrue(listener.deliverBatch(session, Arrays.asList(good)));
+    verify(good).acknowledge();
+    assertEquals(ROUTES, writes.get());
+
+    // failing alongside another activity didn't count, failing on its own does.
+    Message bad = message("a:actor/activity/bad", true);
+    for (int i = 0; i < 5; i++) {
+      assertFalse(listener.deliverBatch(session, Arrays.asList(bad)));
+    }
+    verify(bad, never()).acknowledge();
+    assertTrue(listener.deliverBatch(session, Arrays.asList(bad)));
+    verify(bad).acknowledge();
+    verify(session, times(6)).recover();
+    assertEquals(ROUTES, writes.get());
+  }
+
+  @Test
+  public void testOutageBacksOffWithoutDroppingActivities() throws Exception {
+    addActivity("a:actor/activity/1");
+    javax.jms.Session session = mock(javax.jms.Session.class);
+    outage.set(10);
+
+    Message message = message("a:actor/activity/1", false);
+    for (int i = 0; i < 10; i++) {
+      assertFalse(listener.deliverBatch(session, Arrays.asList(message)));
+      message = message("a:actor/activity/1", true);
+    }
+    assertEquals(Arrays.asList(1000L, 2000L, 4000L, 8000L, 16000L, 32000L, 60000L, 60000L,
+        60000L, 60000L), pauses);
+    verify(session, times(10)).recover();
+
+    // the repository is back and the activity hasn't used up its attempts.
+    assertTrue(listener.deliverBatch(session, Arrays.asList(message)));
+    verify(message).acknowledge();
+    assertEquals(ROUTES, writes.get());
+
+    // and the next failure starts with a short pause again.
+    addActivity("a:actor/activity/bad");
+    failing.add("a:actor/activity/bad");
+    pauses.clear();
+    assertFalse(listener.deliverBatch(session, Arrays.asList(message("a:actor/activity/bad",
+        false))));
+    assertEquals(Arrays.asList(1000L), pauses);
+  }
+
+  @Test
+  public void testReconnectsAfterJmsFailure() throws Exception {
+    final ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(
+        "vm://activityreconnect?broker.persistent=false&broker.useJmx=false");
+    final List<Connection> connections = new CopyOnWriteArrayList<Connection>();
+    ConnectionFactory trackingFactory = mock(ConnectionFactory.class);
+    when(trackingFactory.createConnection()).thenAnswer(new Answer<Connection>() {
+      public Connection answer(InvocationOnMock invocation) throws Throwable {
+        Connection connection = connectionFactory.createConnection();
+        connections.add(connection);
+        return connection;
+      }
+    });
+    ConnectionFactoryService connectionFactoryService = mock(ConnectionFactoryService.class);
+    when(connectionFactoryService.getDefaultConnectionFactory()).thenReturn(trackingFactory);
+    listener.connFactoryService = connectionFactoryService;
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(new Hashtable<String, Object>());
+    // keeps the embedded broker up between the listener and the test.
+    Connection connection = connectionFactory.createConnection();
+    connection.start();
+    listener.activate(componentContext);
+    try {
+      // the listener's connection is lost.
+      connections.get(0).close();
+      verify(trackingFactory, timeout(60000).times(2)).createConnection();
+
+      addActivity("a:actor/activity/1");
+      javax.jms.Session session = connection.createSession(false,
+          javax.jms.Session.AUTO_ACKNOWLEDGE);
+      MessageProducer producer = session.createProducer(session
+          .createTopic(ActivityConstants.LITE_EVENT_TOPIC));
+      // sent until the new subscription picks it up.
+      long timeout = System.currentTimeMillis() + 60000;
+      while (writes.get() < ROUTES && System.currentTimeMillis() < timeout) {
+        Message message = session.createMessage();
+        message.setStringProperty(ActivityConstants.EVENT_PROP_PATH, "a:actor/activity/1");
+        producer.send(message);
+        Thread.sleep(100);
+      }
+      assertTrue(writes.get() >= ROUTES);
+      assertEquals(Arrays.asList(1000L), pauses);
+    } finally {
+      listener.deactivate(componentContext);
+      connection.close();
+    }
+  }
+
+  @Test
+  public void testDeliversFromTopic() throws Exception {
+    ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(
+        "vm://activitytest?broker.persistent=false&broker.useJmx=false");
+    ConnectionFactoryService connectionFactoryService = mock(ConnectionFactoryService.class);
+    when(connectionFactoryService.getDefaultConnectionFactory()).thenReturn(
+        connectionFactory);
+    listener.connFactoryService = connectionFactoryService;
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getProperties()).thenReturn(new Hashtable<String, Object>());
+    // keeps the embedded broker up between the listener and the test.
+    Connection connection = connectionFactory.createConnection();
+    connection.start();
+    listener.activate(componentContext);
+    try {
+      int activities = 200;
+      for (int i = 0; i < activities; i++) {
+        addActivity("a:actor/activity/" + i);
+      }
+      javax.jms.Session session = connection.createSession(false,
+          javax.jms.Session.AUTO_ACKNOWLEDGE);
+      Topic topic = session.createTopic(ActivityConstants.LITE_EVENT_TOPIC);
+      MessageProducer producer = session.createProducer(topic);
+      for (int i = 0; i < activities; i++) {
+        Message message = session.createMessage();
+        message.setStringProperty(ActivityConstants.EVENT_PROP_PATH, "a:actor/activity/" + i);
+        producer.send(message);
+      }
+      long timeout = System.currentTimeMillis() + 60000;
+      while (writes.get() < activities * ROUTES && System.currentTimeMillis() < timeout) {
+        Thread.sleep(10);
+      }
+      assertEquals(activities * ROUTES, writes.get());
+      assertTrue(logins.get() <= 1);
+    } finally {
+      listener.deactivate(componentContext);
+      connection.close();
+    }
+  }
+
+  private void addActivity(String path) {
+    store.put(path, new Content(path, ImmutableMap.of(ActivityConstants.PARAM_ACTOR_ID,
+        (Object) "actor", "sling:resourceType", "sakai/activity-item")));
+  }
+
+  private Message message(String path, boolean redelivered) throws Exception {
+    Message message = mock(Message.class);
+    when(message.getStringProperty(ActivityConstants.EVENT_PROP_PATH)).thenReturn(path);
+    when(message.getJMSRedelivered()).thenReturn(redelivered);
+    return message;
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.activity.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.SolrParams;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.activity.search.MostActiveContentTracker.ResourceCount;
+import org.sakaiproject.nakamura.api.activity.ActivityConstants;
+import org.sakaiproject.nakamura.api.solr.SolrServerService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ *
+ */
+public class MostActiveContentTrackerTest {
+  private static final long HOUR = MostActiveContentTracker.HOUR_MS;
+
+  @Test
+  public void testGetResourceId() {
+    assertEquals("abc", MostActiveContentTracker.getResourceId("/activity/content/abc/x1"));
+    // the tracking node itself and anything that is not content activity is ignored.
+    assertNull(MostActiveContentTracker.getResourceId("/activity/content/abc"));
+    assertNull(MostActiveContentTracker.getResourceId("/activity/content/abc/x1/y"));
+    assertNull(MostActiveContentTracker.getResourceId("/activity/group/abc/x1"));
+    assertNull(MostActiveContentTracker.getResourceId(null));
+  }
+
+  @Test
+  public void testRanking() {
+    MostActiveContentTracker tracker = new MostActiveContentTracker();
+    long now = System.currentTimeMillis();
+    record(tracker, "a", now, 3);
+    record(tracker, "b", now - 2 * HOUR, 5);
+    // same count as a, but less recent.
+    record(tracker, "c", now - 5 * HOUR, 3);
+
+    List<ResourceCount> ranking = tracker.getRanking(now - 24 * HOUR);
+    assertEquals(3, ranking.size());
+    assertEquals("b", ranking.get(0).getId());
+    assertEquals(5, ranking.get(0).getCount());
+    assertEquals("a", ranking.get(1).getId());
+    assertEquals("c", ranking.get(2).getId());
+  }
+
+  @Test
+  public void testWindow() {
+    MostActiveContentTracker tracker = new MostActiveContentTracker();
+    long now = System.currentTimeMillis();
+    record(tracker, "old", now - 10 * 24 * HOUR, 10);
+    record(tracker, "new", now, 1);
+
+    List<ResourceCount> ranking = tracker.getRanking(now - 24 * HOUR);
+    assertEquals(1, ranking.size());
+    assertEquals("new", ranking.get(0).getId());
+    assertEquals(2, tracker.getRanking(now - 30 * 24 * HOUR).size());
+  }
+
+  @Test
+  public void testPrune() {
+    MostActiveContentTracker tracker = new MostActiveContentTracker();
+    long now = System.currentTimeMillis();
+    record(tracker, "ancient", now - (MostActiveContentTracker.MAXIMUM_HOURS + 5) * HOUR, 1);
+    record(tracker, "new", now, 1);
+    assertEquals(1, tracker.getRanking(0).size());
+  }
+
+  @Test
+  public void testHandleEvent() {
+    MostActiveContentTracker tracker = new MostActiveContentTracker();
+    tracker.handleEvent(event("/activity/content/abc/x1", ActivityConstants.RESOURCE_UPDATE));
+    tracker.handleEvent(event("/activity/content/abc/x2", null));
+    tracker.handleEvent(event("/activity/content/abc", "sakai/resource-activity"));
+    tracker.handleEvent(event("/p/abc", "sakai/pooled-content"));
+
+    List<ResourceCount> ranking = tracker.getRanking(0);
+    assertEquals(1, ranking.size());
+    assertEquals(2, ranking.get(0).getCount());
+  }
+
+  @Test
+  public void testDisabled() {
+    MostActiveContentTracker tracker = new MostActiveContentTracker();
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(MostActiveContentTracker.PROP_ENABLED, false);
+    tracker.activate(properties);
+    tracker.handleEvent(event("/activity/content/abc/x1", ActivityConstants.RESOURCE_UPDATE));
+
+    assertFalse(tracker.isReady());
+    assertEquals(0, tracker.getRanking(0).size());
+  }
+
+  @Test
+  public void testLoadPagesByTimestamp() throws Exception {
+    long now = System.currentTimeMillis();
+    final List<SolrDocument> index = new ArrayList<SolrDocument>();
+    // more records share one timestamp than fit on a page.
+    int sameTime = MostActiveContentTracker.BOOTSTRAP_PAGE_SIZE + 10;
+    for (int i = 0; i < sameTime; i++) {
+      index.add(doc(String.format("/activity/content/busy/x%05d", i), now - 2 * HOUR));
+    }
+    for (int i = 0; i < 1500; i++) {
+      index.add(doc(String.format("/activity/content/r%d/x%05d", i % 3, i), now - HOUR + i));
+    }
+    final List<SolrQuery> queries = new ArrayList<SolrQuery>();
+    SolrServer server = mock(SolrServer.class);
+    when(server.query(any(SolrParams.class))).thenAnswer(new Answer<QueryResponse>() {
+      public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+        SolrQuery query = (SolrQuery) invocation.getArguments()[0];
+        queries.add(query);
+        Matcher range = Pattern.compile("timestamp:\\[(\\d+) TO (\\d+)\\]").matcher(
+            query.getQuery());
+        assertTrue(range.find());
+        long from = Long.parseLong(range.group(1));
+        long to = Long.parseLong(range.group(2));
+        SolrDocumentList matched = new SolrDocumentList();
+        for (SolrDocument doc : index) {
+          long timestamp = (Long) doc.getFirstValue("timestamp");
+          if (timestamp >= from && timestamp <= to) {
+            matched.add(doc);
+          }
+        }
+        SolrDocumentList page = new SolrDocumentList();
+        page.addAll(matched.subList(Math.min(query.getStart(), matched.size()),
+            Math.min(query.getStart() + query.getRows(), matched.size())));
+        page.setNumFound(matched.size());
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(page);
+        return response;
+      }
+    });
+    MostActiveContentTracker tracker = new MostActiveContentTracker();
+    tracker.solrServerService = mock(SolrServerService.class);
+    when(tracker.solrServerService.getServer()).thenReturn(server);
+
+    tracker.load(now);
+
+    assertTrue(tracker.isReady());
+    List<ResourceCount> ranking = tracker.getRanking(0);
+    assertEquals(4, ranking.size());
+    assertEquals("busy", ranking.get(0).getId());
+    assertEquals(sameTime, ranking.get(0).getCount());
+    assertEquals(500, ranking.get(1).getCount());
+    for (SolrQuery query : queries) {
+      // only ever skips the records sharing the lowest timestamp.
+      assertTrue(query.getStart() <= sameTime);
+    }
+  }
+
+  private SolrDocument doc(String id, long timestamp) {
+    SolrDocument doc = new SolrDocument();
+    doc.addField("id", id);
+    doc.addField("timestamp", timestamp);
+    return doc;
+  }
+
+  private void record(MostActiveContentTracker tracker, String resourceId, long timestamp,
+      int times) {
+    for (int i = 0; i < times; i++) {
+      tracker.record(resourceId, timestamp);
+    }
+  }
+
+  private Event event(String path, String resourceType) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put("path", path);
+    if (resourceType != null) {
+      properties.put("resourceType", resourceType);
+    }
+    return new Event("org/sakaiproject/nakamura/lite/content/ADDED", properties);
+  }
+}
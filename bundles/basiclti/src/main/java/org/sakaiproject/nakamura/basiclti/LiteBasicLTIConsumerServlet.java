@@ -202,6 +202,9 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
   @Reference
   protected transient LiteBasicLTIContextIdResolver contextIdResolver;
 
+  @Reference
+  protected transient LiteBasicLTISettingsCache settingsCache;
+
   // global properties used for every tool launch
   /**
    * See: {@link BasicLTIConstants#TOOL_CONSUMER_INSTANCE_CONTACT_EMAIL}
@@ -390,17 +393,7 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
         .getResourceResolver().adaptTo(javax.jcr.Session.class));
     // determine virtual toolId
     try {
-      // grab admin settings
-      final Map<String, Object> adminSettings = getAdminSettings(node, true);
-      // grab user settings
-      final Map<String, Object> userSettings = getLaunchSettings(node);
-
-      // merge admin and user properties
-      final Map<String, Object> effectiveSettings = new HashMap<String, Object>(Math.max(
-          adminSettings.size(), userSettings.size()));
-      for (final String setting : applicationSettings.keySet()) {
-        effectiveSetting(setting, effectiveSettings, adminSettings, userSettings);
-      }
+      final Map<String, Object> effectiveSettings = getEffectiveSettings(node);
 
       final Map<String, String> launchProps = new HashMap<String, String>();
 
@@ -564,6 +557,41 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
     response.setStatus(HttpServletResponse.SC_OK);
   }
 
+  /**
+   * The admin policy merged with the settings of the node, as used for a launch. Merged
+   * settings are cached until the node, its sensitive node or the policy changes.
+   * 
+   * @param node
+   * @return
+   * @throws RepositoryException
+   * @throws ClientPoolException
+   * @throws StorageClientException
+   * @throws org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException
+   */
+  private Map<String, Object> getEffectiveSettings(final Content node)
+      throws RepositoryException, ClientPoolException, StorageClientException,
+      org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException {
+    final String vtoolId = getVirtualToolId(node);
+    Map<String, Object> effectiveSettings = settingsCache.getEffectiveSettings(node,
+        vtoolId);
+    if (effectiveSettings != null) {
+      return effectiveSettings;
+    }
+    // grab admin settings
+    final Map<String, Object> adminSettings = getAdminSettings(vtoolId, true);
+    // grab user settings
+    final Map<String, Object> userSettings = getLaunchSettings(node);
+
+    // merge admin and user properties
+    effectiveSettings = new HashMap<String, Object>(Math.max(adminSettings.size(),
+        userSettings.size()));
+    for (final String setting : applicationSettings.keySet()) {
+      effectiveSetting(setting, effectiveSettings, adminSettings, userSettings);
+    }
+    settingsCache.putEffectiveSettings(node, vtoolId, effectiveSettings);
+    return effectiveSettings;
+  }
+
   /**
    * Intended for nodes of <code>sling:resourceType=sakai/basiclti</code> - i.e. not
    * sensitive nodes.
@@ -658,13 +686,14 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
   private Map<String, Object> getAdminSettings(final Content node,
       final boolean launchMode) throws RepositoryException {
     // grab admin settings from /var/basiclti/* if they exist...
-    String vtoolId = null;
+    return getAdminSettings(getVirtualToolId(node), launchMode);
+  }
+
+  private String getVirtualToolId(final Content node) {
     if (node.hasProperty(LTI_VTOOL_ID)) {
-      vtoolId = (String)node.getProperty(LTI_VTOOL_ID);
-    } else {
-      vtoolId = "basiclti";
+      return (String) node.getProperty(LTI_VTOOL_ID);
     }
-    return getAdminSettings(vtoolId, launchMode);
+    return "basiclti";
   }
 
   /**
@@ -780,6 +809,7 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
       if (canRemoveNode(node.getPath(), session)) {
         removeSensitiveNode(node);
         session.getContentManager().delete(node.getPath());
+        settingsCache.invalidate(node.getPath());
 
         // Send out an OSGi event that we removed a basic/lti node.
         Dictionary<String, String> properties = new Hashtable<String, String>();
@@ -863,6 +893,7 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
       }
       session.getContentManager().update(node);
       updateSensitiveNode(node, session, sensitiveData);
+      settingsCache.invalidate(node.getPath());
 
       // Send out an OSGi event that we changed a basic/lti node.
       Dictionary<String, String> properties = new Hashtable<String, String>();
@@ -999,31 +1030,8 @@ public class LiteBasicLTIConsumerServlet extends SlingAllMethodsServlet {
   private Map<String, String> readSensitiveNode(final Content parent)
       throws ClientPoolException, StorageClientException,
       org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException {
-    final String adminNodePath = parent.getPath() + "/" + LTI_ADMIN_NODE_NAME;
-    Map<String, String> settings = null;
-    // now let's elevate Privileges
-    Session adminSession = null;
-    try {
-      adminSession = sparseRepository.loginAdministrative();
-      if (adminSession.getContentManager().exists(adminNodePath)) {
-        final Content adminNode = adminSession.getContentManager().get(adminNodePath);
-        final Map<String, Object> properties = adminNode.getProperties();
-        settings = new HashMap<String, String>((int) properties.size());
-        for (Entry<String, Object> entry : properties.entrySet()) {
-          if (sensitiveKeys.contains(entry.getKey())) { // the ones we care about
-            settings.put(entry.getKey(), (String)entry.getValue());
-          }
-        }
-      } else {
-        LOG.warn("Could not find sensitiveContent: " + adminNodePath);
-        settings = new HashMap<String, String>(0);
-      }
-    } finally {
-      if (adminSession != null) {
-        adminSession.logout();
-      }
-    } // end admin elevation
-    return settings;
+    // elevated through a short lived admin session of the settings cache.
+    return settingsCache.readSensitiveNode(parent.getPath() + "/" + LTI_ADMIN_NODE_NAME);
   }
 
   /**
@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.basiclti;
+
+import static org.sakaiproject.nakamura.api.basiclti.BasicLTIAppConstants.ADMIN_CONFIG_PATH;
+import static org.sakaiproject.nakamura.basiclti.LiteBasicLTIServletUtils.sensitiveKeys;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.SlingConstants;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Holds the effective launch settings of <code>sakai/basiclti</code> nodes so that a
+ * launch does not have to elevate to admin and read the virtual tool policy and the
+ * sensitive node every time a page embedding the tool is viewed.
+ * <p>
+ * An entry is only used for the same virtual tool and the same last modified time of the
+ * settings node. Entries for a node are dropped when its settings are posted or deleted,
+ * and all entries are dropped when anything under <code>/var/basiclti</code> changes,
+ * which covers the virtual tool policies and the global settings. Settings hold LTI
+ * secrets, so they are kept in this process only.
+ * </p>
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { LiteBasicLTISettingsCache.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Caches effective Basic LTI launch settings."),
+    @Property(name = "event.topics", value = {
+        SlingConstants.TOPIC_RESOURCE_ADDED, SlingConstants.TOPIC_RESOURCE_CHANGED,
+        SlingConstants.TOPIC_RESOURCE_REMOVED }) })
+public class LiteBasicLTISettingsCache implements EventHandler {
+  private static final Logger LOG = LoggerFactory
+      .getLogger(LiteBasicLTISettingsCache.class);
+
+  @Property(intValue = 1000, label = "Maximum entries", description = "The maximum number of Basic LTI nodes to hold settings for.")
+  static final String MAX_ENTRIES = "basiclti.settings.cache.max.entries";
+
+  @Property(longValue = 300, label = "Time to live", description = "The maximum number of seconds settings are held, in case they are changed without an event.")
+  static final String TTL = "basiclti.settings.cache.ttl";
+
+  @Reference
+  protected transient Repository sparseRepository;
+
+  private volatile int maxEntries = 1000;
+
+  private final Map<String, CachedSettings> entries = new LinkedHashMap<String, CachedSettings>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedSettings> eldest) {
+      return size() > maxEntries;
+    }
+  };
+
+  private long ttl = 300000L;
+
+  private static final class CachedSettings {
+    private final String version;
+    private final Map<String, Object> settings;
+    private final long expires;
+
+    private CachedSettings(String version, Map<String, Object> settings, long expires) {
+      this.version = version;
+      this.settings = settings;
+      this.expires = expires;
+    }
+  }
+
+  protected void activate(ComponentContext context) {
+    @SuppressWarnings("rawtypes")
+    final Dictionary props = context.getProperties();
+    ttl = OsgiUtil.toLong(props.get(TTL), 300) * 1000L;
+    maxEntries = OsgiUtil.toInteger(props.get(MAX_ENTRIES), 1000);
+  }
+
+  protected void deactivate(ComponentContext context) {
+    clear();
+  }
+
+  /**
+   * @param node
+   *          the <code>sakai/basiclti</code> node.
+   * @param vtoolId
+   *          the virtual tool the node uses.
+   * @return the cached effective settings, or null if there are none for this version of
+   *         the node.
+   */
+  public Map<String, Object> getEffectiveSettings(Content node, String vtoolId) {
+    CachedSettings cached;
+    synchronized (entries) {
+      cached = entries.get(node.getPath());
+    }
+    if (cached == null || !cached.version.equals(getVersion(node, vtoolId))
+        || cached.expires < System.currentTimeMillis()) {
+      return null;
+    }
+    return cached.settings;
+  }
+
+  public void putEffectiveSettings(Content node, String vtoolId,
+      Map<String, Object> settings) {
+    CachedSettings cached = new CachedSettings(getVersion(node, vtoolId),
+        Collections.unmodifiableMap(new HashMap<String, Object>(settings)),
+        System.currentTimeMillis() + ttl);
+    synchronized (entries) {
+      entries.put(node.getPath(), cached);
+    }
+  }
+
+  /**
+   * Drop the settings of a node, after its settings or sensitive node have changed.
+   *
+   * @param path
+   */
+  public void invalidate(String path) {
+    synchronized (entries) {
+      entries.remove(path);
+    }
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /**
+   * Read the sensitive settings below a <code>sakai/basiclti</code> node with a short
+   * lived admin session. This is only needed when the settings are not cached, so
+   * concurrent misses each use their own session rather than queueing for a shared one.
+   *
+   * @param adminNodePath
+   *          the path of the sensitive node.
+   * @return the sensitive settings, empty if there are none.
+   * @throws ClientPoolException
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Map<String, String> readSensitiveNode(String adminNodePath)
+      throws ClientPoolException, StorageClientException, AccessDeniedException {
+    final Session adminSession = sparseRepository.loginAdministrative();
+    try {
+      final Content adminNode = adminSession.getContentManager().get(adminNodePath);
+      if (adminNode == null) {
+        LOG.warn("Could not find sensitiveContent: " + adminNodePath);
+        return new HashMap<String, String>(0);
+      }
+      final Map<String, Object> properties = adminNode.getProperties();
+      final Map<String, String> settings = new HashMap<String, String>(properties.size());
+      for (Entry<String, Object> entry : properties.entrySet()) {
+        if (sensitiveKeys.contains(entry.getKey())) { // the ones we care about
+          settings.put(entry.getKey(), (String) entry.getValue());
+        }
+      }
+      return settings;
+    } finally {
+      try {
+        adminSession.logout();
+      } catch (ClientPoolException e) {
+        LOG.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    final String path = (String) event.getProperty(SlingConstants.PROPERTY_PATH);
+    if (path != null && path.startsWith(ADMIN_CONFIG_PATH)) {
+      LOG.debug("Basic LTI policy changed at {}, dropping cached settings", path);
+      clear();
+    }
+  }
+
+  private static String getVersion(Content node, String vtoolId) {
+    return vtoolId + ":" + node.getProperty(Content.LASTMODIFIED_FIELD);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.basiclti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.sakaiproject.nakamura.api.basiclti.BasicLTIAppConstants.LTI_KEY;
+import static org.sakaiproject.nakamura.api.basiclti.BasicLTIAppConstants.LTI_SECRET;
+
+import org.apache.sling.api.SlingConstants;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+
+/**
+ *
+ */
+public class LiteBasicLTISettingsCacheTest {
+  private LiteBasicLTISettingsCache cache;
+  private Map<String, Object> settings;
+
+  @Before
+  public void setUp() {
+    cache = new LiteBasicLTISettingsCache();
+    ComponentContext context = mock(ComponentContext.class);
+    when(context.getProperties()).thenReturn(new Hashtable<String, Object>());
+    cache.activate(context);
+    settings = new HashMap<String, Object>();
+    settings.put("ltiurl", "http://lti.example.com/launch");
+  }
+
+  @Test
+  public void testHit() {
+    Content node = node("a:alice/page/lti", 1L);
+    assertNull(cache.getEffectiveSettings(node, "sakai.resources"));
+    cache.putEffectiveSettings(node, "sakai.resources", settings);
+
+    assertEquals(settings, cache.getEffectiveSettings(node, "sakai.resources"));
+    assertEquals(settings, cache.getEffectiveSettings(node("a:alice/page/lti", 1L),
+        "sakai.resources"));
+    // another virtual tool or a newer version of the node misses.
+    assertNull(cache.getEffectiveSettings(node, "sakai.gradebook"));
+    assertNull(cache.getEffectiveSettings(node("a:alice/page/lti", 2L), "sakai.resources"));
+  }
+
+  @Test
+  public void testInvalidateOnPostOrDelete() {
+    Content node = node("a:alice/page/lti", 1L);
+    Content other = node("a:bob/page/lti", 1L);
+    cache.putEffectiveSettings(node, "sakai.resources", settings);
+    cache.putEffectiveSettings(other, "sakai.resources", settings);
+
+    // what the consumer servlet does when settings are posted or the node is deleted.
+    cache.invalidate(node.getPath());
+
+    assertNull(cache.getEffectiveSettings(node, "sakai.resources"));
+    assertNotNull(cache.getEffectiveSettings(other, "sakai.resources"));
+  }
+
+  @Test
+  public void testPolicyChangeFlushes() {
+    Content node = node("a:alice/page/lti", 1L);
+    cache.putEffectiveSettings(node, "sakai.resources", settings);
+
+    cache.handleEvent(event("/content/elsewhere"));
+    assertNotNull(cache.getEffectiveSettings(node, "sakai.resources"));
+
+    cache.handleEvent(event("/var/basiclti/sakai.resources"));
+    assertNull(cache.getEffectiveSettings(node, "sakai.resources"));
+  }
+
+  @Test
+  public void testReadSensitiveNodeUsesSessionPerCall() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    Map<String, Object> keys = new HashMap<String, Object>();
+    keys.put(LTI_KEY, "key");
+    keys.put(LTI_SECRET, "secret");
+    keys.put("other", "ignored");
+    when(contentManager.get("a:alice/page/lti/ltiKeys")).thenReturn(
+        new Content("a:alice/page/lti/ltiKeys", keys));
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+    cache.sparseRepository = repository;
+
+    Map<String, String> sensitive = cache.readSensitiveNode("a:alice/page/lti/ltiKeys");
+    assertEquals(2, sensitive.size());
+    assertEquals("secret", sensitive.get(LTI_SECRET));
+    assertTrue(cache.readSensitiveNode("a:alice/page/lti/missing").isEmpty());
+
+    verify(repository, times(2)).loginAdministrative();
+    verify(session, times(2)).logout();
+  }
+
+  @Test
+  public void testReadSensitiveNodeLogsOutOnFailure() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.get("a:alice/page/lti/ltiKeys")).thenThrow(
+        new StorageClientException("down"));
+    Session session = mock(Session.class);
+    when(session.getContentManager()).thenReturn(contentManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(session);
+    cache.sparseRepository = repository;
+
+    try {
+      cache.readSensitiveNode("a:alice/page/lti/ltiKeys");
+      fail();
+    } catch (StorageClientException e) {
+      // expected
+    }
+    verify(session).logout();
+  }
+
+  private Content node(String path, long lastModified) {
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(Content.LASTMODIFIED_FIELD, lastModified);
+    return new Content(path, properties);
+  }
+
+  private Event event(String path) {
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(SlingConstants.PROPERTY_PATH, path);
+    return new Event(SlingConstants.TOPIC_RESOURCE_CHANGED, properties);
+  }
+}
@@ -17,6 +17,8 @@
  */
 package org.sakaiproject.nakamura.api.chat;
 
+import java.util.List;
+
 public interface ChatManagerService {
 
   /**
@@ -29,6 +31,51 @@ public interface ChatManagerService {
    */
   public void put(String userID, long time);
 
+  /**
+   * Adds a time for a user along with the path to the chat message that caused it, so
+   * that the message can be handed to the user's waiting chat update requests.
+   *
+   * @param userID
+   *          The ID of the user you wish to add.
+   * @param time
+   *          The timestamp (milliseconds)
+   * @param messagePath
+   *          The path to the user's copy of the message.
+   */
+  public void put(String userID, long time, String messagePath);
+
+  /**
+   * Gets the paths of the chat messages recently delivered to a user on this server.
+   *
+   * @param userID
+   * @param since
+   *          Only messages with a later timestamp are returned.
+   * @return The paths oldest first, which may not be all of the messages when they were
+   *         delivered on another server.
+   */
+  public List<String> getRecentMessages(String userID, long since);
+
+  /**
+   * Be told when a user gets a chat update later than a given time.
+   *
+   * @param userID
+   * @param since
+   *          The timestamp the caller has seen updates up to.
+   * @param callback
+   *          Run once, on the thread that made the update.
+   * @return false if the user already has a later update, in which case the callback is
+   *         not kept.
+   */
+  public boolean addUpdateCallback(String userID, long since, Runnable callback);
+
+  /**
+   * Stop waiting for an update.
+   *
+   * @param userID
+   * @param callback
+   */
+  public void removeUpdateCallback(String userID, Runnable callback);
+
   /**
    * Gets the last time a user had his chat messages updated.
    * 
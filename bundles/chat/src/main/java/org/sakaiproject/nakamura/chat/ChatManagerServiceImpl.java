@@ -17,15 +17,33 @@
  */
 package org.sakaiproject.nakamura.chat;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.chat.ChatManagerService;
 import org.sakaiproject.nakamura.api.memory.Cache;
 import org.sakaiproject.nakamura.api.memory.CacheManagerService;
 import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The <code>ChatManagerServiceImpl</code>
@@ -34,14 +52,72 @@ import org.sakaiproject.nakamura.api.memory.CacheScope;
 @Service(value = ChatManagerService.class)
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
-    @Property(name = "service.description", value = "Chat Manager Implementation") })
+    @Property(name = "service.description", value = "Chat Manager Implementation"),
+    @Property(name = ChatManagerServiceImpl.UPDATE_CHECK_INTERVAL, intValue = 5) })
 @Reference(name = "CacheManagerService", referenceInterface = CacheManagerService.class)
 public class ChatManagerServiceImpl implements ChatManagerService {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatManagerServiceImpl.class);
+
   private static final String CHAT_CACHE = "chat";
 
+  /**
+   * How often, in seconds, waiting users are checked against the cache for updates made
+   * on other servers in the cluster.
+   */
+  static final String UPDATE_CHECK_INTERVAL = "chat.update.check.interval";
+
+  /**
+   * The most recent messages kept for a user, and for how long.
+   */
+  private static final int RECENT_MAX = 20;
+  private static final long RECENT_TTL = 300000L;
+
   private CacheManagerService cacheManagerService;
 
+  /**
+   * userID -> callbacks waiting for an update to that user -> the time they have seen.
+   */
+  private final ConcurrentMap<String, ConcurrentMap<Runnable, Long>> waiting = new ConcurrentHashMap<String, ConcurrentMap<Runnable, Long>>();
+
+  /**
+   * userID -> messages recently delivered to that user on this server, oldest first.
+   */
+  private final ConcurrentMap<String, LinkedList<RecentMessage>> recent = new ConcurrentHashMap<String, LinkedList<RecentMessage>>();
+
+  private ScheduledExecutorService updateChecker;
+
+  @Activate
+  protected void activate(Map<?, ?> props) {
+    int interval = OsgiUtil.toInteger(props.get(UPDATE_CHECK_INTERVAL), 5);
+    if (interval > 0) {
+      updateChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Chat update checker");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      updateChecker.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            checkForUpdates();
+          } catch (Throwable t) {
+            LOGGER.warn("Failed to check waiting users for chat updates", t);
+          }
+        }
+      }, interval, interval, TimeUnit.SECONDS);
+    }
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    if (updateChecker != null) {
+      updateChecker.shutdownNow();
+      updateChecker = null;
+    }
+  }
+
   protected void bindCacheManagerService(CacheManagerService cacheManagerService) {
     this.cacheManagerService = cacheManagerService;
   }
@@ -89,6 +165,166 @@ public class ChatManagerServiceImpl implements ChatManagerService {
    */
   public void put(String userID, long time) {
     getCachedMap().put(userID, time);
+    notifyWaiting(userID, time);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#put(java.lang.String,
+   *      long, java.lang.String)
+   */
+  public void put(String userID, long time, String messagePath) {
+    LinkedList<RecentMessage> messages = recent.get(userID);
+    if (messages == null) {
+      LinkedList<RecentMessage> newMessages = new LinkedList<RecentMessage>();
+      messages = recent.putIfAbsent(userID, newMessages);
+      if (messages == null) {
+        messages = newMessages;
+      }
+    }
+    synchronized (messages) {
+      messages.add(new RecentMessage(time, messagePath));
+      while (messages.size() > RECENT_MAX) {
+        messages.removeFirst();
+      }
+    }
+    put(userID, time);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#getRecentMessages(java.lang.String,
+   *      long)
+   */
+  public List<String> getRecentMessages(String userID, long since) {
+    List<String> paths = new ArrayList<String>();
+    LinkedList<RecentMessage> messages = recent.get(userID);
+    if (messages != null) {
+      synchronized (messages) {
+        for (RecentMessage message : messages) {
+          if (message.time > since) {
+            paths.add(message.path);
+          }
+        }
+      }
+    }
+    return paths;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#addUpdateCallback(java.lang.String,
+   *      long, java.lang.Runnable)
+   */
+  public boolean addUpdateCallback(String userID, long since, Runnable callback) {
+    if (hasUpdate(userID, since)) {
+      return false;
+    }
+    for (;;) {
+      ConcurrentMap<Runnable, Long> callbacks = waiting.get(userID);
+      if (callbacks == null) {
+        ConcurrentMap<Runnable, Long> newCallbacks = new ConcurrentHashMap<Runnable, Long>();
+        callbacks = waiting.putIfAbsent(userID, newCallbacks);
+        if (callbacks == null) {
+          callbacks = newCallbacks;
+        }
+      }
+      callbacks.put(callback, since);
+      if (waiting.get(userID) != callbacks) {
+        // emptied and dropped by a concurrent remove, register again.
+        callbacks.remove(callback);
+        continue;
+      }
+      break;
+    }
+    // an update may have arrived while registering, in which case it may or may not
+    // have seen the callback.
+    if (hasUpdate(userID, since)) {
+      ConcurrentMap<Runnable, Long> callbacks = waiting.get(userID);
+      if (callbacks != null && callbacks.remove(callback) != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.chat.ChatManagerService#removeUpdateCallback(java.lang.String,
+   *      java.lang.Runnable)
+   */
+  public void removeUpdateCallback(String userID, Runnable callback) {
+    ConcurrentMap<Runnable, Long> callbacks = waiting.get(userID);
+    if (callbacks != null) {
+      callbacks.remove(callback);
+      if (callbacks.isEmpty()) {
+        waiting.remove(userID, callbacks);
+      }
+    }
+  }
+
+  /**
+   * @return the number of callbacks waiting for updates.
+   */
+  int getWaitingCount() {
+    int count = 0;
+    for (ConcurrentMap<Runnable, Long> callbacks : waiting.values()) {
+      count += callbacks.size();
+    }
+    return count;
+  }
+
+  /**
+   * Pick up updates made on other servers, which only arrive through the cache, and drop
+   * old recent messages.
+   */
+  void checkForUpdates() {
+    for (String userID : waiting.keySet()) {
+      Long time = get(userID);
+      if (time != null) {
+        notifyWaiting(userID, time);
+      }
+    }
+    long expired = System.currentTimeMillis() - RECENT_TTL;
+    for (Iterator<LinkedList<RecentMessage>> i = recent.values().iterator(); i.hasNext();) {
+      LinkedList<RecentMessage> messages = i.next();
+      synchronized (messages) {
+        while (!messages.isEmpty() && messages.getFirst().added < expired) {
+          messages.removeFirst();
+        }
+        if (messages.isEmpty()) {
+          i.remove();
+        }
+      }
+    }
+  }
+
+  private boolean hasUpdate(String userID, long since) {
+    Long time = get(userID);
+    return time != null && time > since;
+  }
+
+  private void notifyWaiting(String userID, long time) {
+    ConcurrentMap<Runnable, Long> callbacks = waiting.get(userID);
+    if (callbacks == null) {
+      return;
+    }
+    for (Entry<Runnable, Long> callback : callbacks.entrySet()) {
+      if (callback.getValue() < time && callbacks.remove(callback.getKey(), callback.getValue())) {
+        try {
+          callback.getKey().run();
+        } catch (RuntimeException e) {
+          LOGGER.warn("Chat update callback failed", e);
+        }
+      }
+    }
+    if (callbacks.isEmpty()) {
+      waiting.remove(userID, callbacks);
+    }
   }
 
   /**
@@ -101,4 +337,15 @@ public class ChatManagerServiceImpl implements ChatManagerService {
     getCachedMap().remove(userID);
   }
 
+  private static class RecentMessage {
+    private final long time;
+    private final String path;
+    private final long added = System.currentTimeMillis();
+
+    RecentMessage(long time, String path) {
+      this.time = time;
+      this.path = path;
+    }
+  }
+
 }
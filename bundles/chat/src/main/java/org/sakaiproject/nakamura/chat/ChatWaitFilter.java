@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.apache.felix.http.api.ExtHttpService;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Parks chat wait requests that have no update yet on a Jetty continuation, so that an
+ * idle chat client holds a connection but no thread. The request is dispatched again
+ * once the user gets a chat update or the wait times out, and the
+ * {@link ChatWaitServlet} then answers it.
+ * <p>
+ * This has to be done in front of Sling, which would treat the exception a continuation
+ * uses to give up the thread as an error.
+ * </p>
+ */
+@Component(immediate = true, metatype = true)
+@Properties(value = {
+    @Property(name = "service.description", value = "Nakamura Chat Wait Filter"),
+    @Property(name = "service.vendor", value = "The Sakai Foundation") })
+public class ChatWaitFilter implements Filter {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatWaitFilter.class);
+
+  /**
+   * Set on requests that passed through this filter, so the servlet knows it may ask
+   * for the request to be parked.
+   */
+  static final String FILTERED_ATTR = ChatWaitFilter.class.getName() + ".filtered";
+
+  /**
+   * Set on requests that have been parked.
+   */
+  static final String WAITER_ATTR = ChatWaitFilter.class.getName() + ".waiter";
+
+  /**
+   * Priority of this filter, higher number means sooner. It runs inside the QoS filter so
+   * that parked requests do not hold a QoS slot.
+   */
+  @Property(intValue = 9)
+  private static final String FILTER_PRIORITY_CONF = "filter.priority";
+
+  /**
+   * The longest time (ms) a request is parked for without an update.
+   */
+  @Property(longValue = 30000L)
+  private static final String WAIT_TIMEOUT_CONF = "chat.wait.timeout";
+
+  @Reference
+  protected ExtHttpService extHttpService;
+
+  @Reference
+  protected ChatManagerService chatManagerService;
+
+  private long waitTimeout;
+
+  private volatile boolean closed;
+
+  private final Set<Waiter> parked = Collections.newSetFromMap(
+      new ConcurrentHashMap<Waiter, Boolean>());
+
+  public void init(FilterConfig filterConfig) throws ServletException {
+  }
+
+  public void destroy() {
+  }
+
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    Waiter waiter = (Waiter) request.getAttribute(WAITER_ATTR);
+    if (waiter != null) {
+      // back after an update or the timeout, the servlet answers straight away.
+      waiter.done();
+      chain.doFilter(request, response);
+      return;
+    }
+
+    request.setAttribute(FILTERED_ATTR, Boolean.TRUE);
+    chain.doFilter(request, response);
+
+    String userID = (String) request.getAttribute(ChatWaitServlet.WAIT_USER_ATTR);
+    Long since = (Long) request.getAttribute(ChatWaitServlet.WAIT_SINCE_ATTR);
+    if (userID == null || since == null || response.isCommitted()) {
+      return;
+    }
+    Continuation continuation = ContinuationSupport.getContinuation(
+        (HttpServletRequest) request, null);
+    waiter = new Waiter(userID, continuation);
+    request.setAttribute(WAITER_ATTR, waiter);
+    if (!closed && waiter.park(since)) {
+      // with a non blocking connector this gives up the thread, and the request comes
+      // back through this filter from the start when resumed or timed out.
+      continuation.suspend(waitTimeout);
+    }
+    // a blocking connector waits above and carries on here.
+    waiter.done();
+    chain.doFilter(request, response);
+  }
+
+  /**
+   * @return the number of requests currently parked.
+   */
+  int getParkedCount() {
+    return parked.size();
+  }
+
+  @Activate
+  protected void activate(Map<?, ?> properties) throws ServletException {
+    waitTimeout = OsgiUtil.toLong(properties.get(WAIT_TIMEOUT_CONF), 30000L);
+    int filterPriority = OsgiUtil.toInteger(properties.get(FILTER_PRIORITY_CONF), 9);
+    closed = false;
+    extHttpService.registerFilter(this, ".*\\.chatwait(\\.json)?", null, filterPriority,
+        null);
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> properties) {
+    closed = true;
+    extHttpService.unregisterFilter(this);
+    // answer everything still parked.
+    for (Waiter waiter : parked) {
+      waiter.run();
+    }
+  }
+
+  /**
+   * A parked request, resumed when the user gets a chat update.
+   */
+  private class Waiter implements Runnable {
+    private final String userID;
+    private final Continuation continuation;
+
+    Waiter(String userID, Continuation continuation) {
+      this.userID = userID;
+      this.continuation = continuation;
+    }
+
+    /**
+     * @return false if there is already an update, and the request should not be parked.
+     */
+    boolean park(long since) {
+      parked.add(this);
+      if (!chatManagerService.addUpdateCallback(userID, since, this)) {
+        parked.remove(this);
+        return false;
+      }
+      return true;
+    }
+
+    void done() {
+      chatManagerService.removeUpdateCallback(userID, this);
+      parked.remove(this);
+    }
+
+    public void run() {
+      LOGGER.debug("Resuming chat wait for {}", userID);
+      continuation.resume();
+    }
+  }
+}
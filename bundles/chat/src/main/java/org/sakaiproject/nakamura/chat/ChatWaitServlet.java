@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import org.apache.commons.lang.time.FastDateFormat;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.sling.SlingServlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+import org.sakaiproject.nakamura.api.doc.BindingType;
+import org.sakaiproject.nakamura.api.doc.ServiceBinding;
+import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
+import org.sakaiproject.nakamura.api.doc.ServiceMethod;
+import org.sakaiproject.nakamura.api.doc.ServiceParameter;
+import org.sakaiproject.nakamura.api.doc.ServiceResponse;
+import org.sakaiproject.nakamura.api.doc.ServiceSelector;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.List;
+
+import javax.servlet.ServletException;
+
+/**
+ * Waits for a user to have chat updates, answering with the update and the new messages
+ * as soon as there is one. Requests without an update are parked by the
+ * {@link ChatWaitFilter} until there is one, or until the wait times out, so clients can
+ * hold one request open instead of polling {@link ChatServlet}.
+ */
+@SlingServlet(selectors = { "chatwait" }, resourceTypes = { "sakai/messagestore" }, generateComponent = true, methods = { "GET" })
+@Reference(referenceInterface = ChatManagerService.class, name = "ChatManagerService")
+@ServiceDocumentation(name = "ChatWaitServlet", okForVersion = "0.11",
+    shortDescription = "Wait for new chat messages.",
+    description = "Provides a mechanism to wait until the currently logged in user has new chat messages. The request is held open until there is an update or the wait times out.",
+    bindings = @ServiceBinding(type = BindingType.TYPE, bindings = "sakai/messagestore", selectors = @ServiceSelector(name = "chatwait")),
+    methods = {
+      @ServiceMethod(name = "GET",
+        description = {
+          "GETs to this servlet will produce a JSON object with 4 keys, once there is an update or the wait times out.",
+          "<ul><li>update: A boolean that states if there is a new chat message.</li><li>time: The time of the last update in milliseconds, to be passed back as t on the next request.</li><li>pulltime: The time in a JCR formatted date.</li><li>messages: The new messages delivered on this server, which may not be all of them when update is true.</li></ul>"
+        },
+        parameters = @ServiceParameter(name = "t", description = "This variable should hold the last time value retrieved from this servlet. If this variable is omitted the request returns straight away with the current time."),
+        response = {
+          @ServiceResponse(code = 200, description = "Normal retrieval."),
+          @ServiceResponse(code = 500, description = "Something went wrong trying to look for an update.")
+        })
+    })
+public class ChatWaitServlet extends SlingSafeMethodsServlet {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ChatWaitServlet.class);
+  private static final long serialVersionUID = 3616240427315431549L;
+
+  /**
+   * Set on the request when there is no update yet, for the {@link ChatWaitFilter} to
+   * park it.
+   */
+  static final String WAIT_USER_ATTR = ChatWaitServlet.class.getName() + ".user";
+  static final String WAIT_SINCE_ATTR = ChatWaitServlet.class.getName() + ".since";
+
+  private transient ChatManagerService chatManagerService;
+
+  // We use this format rather than ISO8601 because Jackrabbit uses a subset (8601:2000)
+  // See jsr170.pdf - 6.2.5.1
+  private final static FastDateFormat dateFormat;
+  static {
+    dateFormat = FastDateFormat.getInstance("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+  }
+
+  protected void bindChatManagerService(ChatManagerService chatManagerService) {
+    this.chatManagerService = chatManagerService;
+  }
+
+  protected void unbindChatManagerService(ChatManagerService chatManagerService) {
+    this.chatManagerService = null;
+  }
+
+  @Override
+  protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
+      throws ServletException, IOException {
+
+    String userID = request.getRemoteUser();
+    boolean hasUpdate = false;
+    RequestParameter timestampParam = request.getRequestParameter("t");
+
+    long time = System.currentTimeMillis();
+    Long lastUpdate = chatManagerService.get(userID);
+
+    if (lastUpdate == null) {
+      // This the first time (ever) the user poll's the chat update.
+      // Insert it.
+      chatManagerService.put(userID, time);
+      lastUpdate = time;
+      hasUpdate = true;
+    } else if (timestampParam != null) {
+      try {
+        time = Long.parseLong(timestampParam.getString());
+        if (time < lastUpdate) {
+          hasUpdate = true;
+        }
+      } catch (NumberFormatException e) {
+        hasUpdate = true;
+        LOGGER.info("User requested non-Long timestamp: {}", timestampParam.getString());
+      }
+    } else {
+      hasUpdate = true;
+    }
+
+    if (!hasUpdate && canWait(request, userID)) {
+      // nothing yet, have the filter park the request until there is.
+      request.setAttribute(WAIT_USER_ATTR, userID);
+      request.setAttribute(WAIT_SINCE_ATTR, time);
+      return;
+    }
+
+    long since = time;
+    if (hasUpdate) {
+      time = lastUpdate;
+    }
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeInMillis(time);
+
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+
+    JSONWriter write = new JSONWriter(response.getWriter());
+    try {
+      write.object();
+      write.key("update");
+      write.value(hasUpdate);
+      write.key("time");
+      write.value(time);
+      write.key("pulltime");
+      write.value(dateFormat.format(cal));
+      write.key("messages");
+      write.array();
+      if (hasUpdate && timestampParam != null) {
+        writeMessages(request, userID, since, write);
+      }
+      write.endArray();
+      write.endObject();
+    } catch (JSONException e) {
+      LOGGER.warn("Unable to parse JSON for user {} and time {}", userID, time);
+      response.sendError(500, "Unable to parse JSON.");
+    }
+  }
+
+  /**
+   * A request can only be parked once, and only when it came through the filter.
+   */
+  private boolean canWait(SlingHttpServletRequest request, String userID) {
+    return request.getAttribute(ChatWaitFilter.FILTERED_ATTR) != null
+        && request.getAttribute(ChatWaitFilter.WAITER_ATTR) == null && userID != null
+        && !UserConstants.ANON_USERID.equals(userID);
+  }
+
+  /**
+   * Write the messages the user has been sent since a time, as far as this server knows
+   * of them. Messages the user can no longer read are left out.
+   */
+  private void writeMessages(SlingHttpServletRequest request, String userID, long since,
+      JSONWriter write) throws JSONException {
+    List<String> paths = chatManagerService.getRecentMessages(userID, since);
+    if (paths.isEmpty()) {
+      return;
+    }
+    try {
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+          .adaptTo(javax.jcr.Session.class));
+      ContentManager contentManager = session.getContentManager();
+      for (String path : paths) {
+        try {
+          Content content = contentManager.get(path);
+          if (content != null) {
+            write.object();
+            write.key("id");
+            write.value(StorageClientUtils.getObjectName(path));
+            ExtendedJSONWriter.writeNodeContentsToWriter(write, content);
+            write.endObject();
+          }
+        } catch (AccessDeniedException e) {
+          LOGGER.debug("Skipping chat message {} for {}", path, userID);
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Unable to read new chat messages for {}: {}", userID, e.getMessage());
+    }
+  }
+}
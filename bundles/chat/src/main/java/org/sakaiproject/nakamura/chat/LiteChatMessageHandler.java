@@ -127,9 +127,9 @@ public class LiteChatMessageHandler implements LiteMessageTransport,
 
           if ( from != null ) {
             // Set the rcpt in the cache.
-            chatManagerService.put(rcpt, time);
+            chatManagerService.put(rcpt, time, toPath);
             // Set the from in the cache
-            chatManagerService.put(from, time);
+            chatManagerService.put(from, time, originalMessage.getPath());
           }
 
         }
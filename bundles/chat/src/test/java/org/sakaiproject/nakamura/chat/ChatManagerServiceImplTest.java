@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class ChatManagerServiceImplTest {
+  private Cache<Object> chatCache;
+  private ChatManagerServiceImpl chatManagerService;
+
+  @Before
+  public void setUp() throws Exception {
+    chatCache = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache("chat", CacheScope.CLUSTERREPLICATED))
+        .andReturn(chatCache).anyTimes();
+    replay(cacheManagerService);
+
+    chatManagerService = new ChatManagerServiceImpl();
+    chatManagerService.bindCacheManagerService(cacheManagerService);
+  }
+
+  @Test
+  public void testCallbackRunsOnLaterUpdate() {
+    chatManagerService.put("alice", 1000L);
+    Counter counter = new Counter();
+    assertTrue(chatManagerService.addUpdateCallback("alice", 1000L, counter));
+    assertEquals(1, chatManagerService.getWaitingCount());
+
+    chatManagerService.put("bob", 2000L);
+    assertEquals(0, counter.count.get());
+
+    chatManagerService.put("alice", 2000L);
+    assertEquals(1, counter.count.get());
+    assertEquals(0, chatManagerService.getWaitingCount());
+
+    // only ever run once.
+    chatManagerService.put("alice", 3000L);
+    assertEquals(1, counter.count.get());
+  }
+
+  @Test
+  public void testAddUpdateCallbackWithExistingUpdate() {
+    chatManagerService.put("alice", 2000L);
+    Counter counter = new Counter();
+    assertFalse(chatManagerService.addUpdateCallback("alice", 1000L, counter));
+    assertEquals(0, counter.count.get());
+    assertEquals(0, chatManagerService.getWaitingCount());
+  }
+
+  @Test
+  public void testRemoveUpdateCallback() {
+    chatManagerService.put("alice", 1000L);
+    Counter counter = new Counter();
+    chatManagerService.addUpdateCallback("alice", 1000L, counter);
+    chatManagerService.removeUpdateCallback("alice", counter);
+    assertEquals(0, chatManagerService.getWaitingCount());
+
+    chatManagerService.put("alice", 2000L);
+    assertEquals(0, counter.count.get());
+  }
+
+  @Test
+  public void testUpdateFromOtherServer() {
+    chatManagerService.put("alice", 1000L);
+    Counter counter = new Counter();
+    chatManagerService.addUpdateCallback("alice", 1000L, counter);
+
+    // another server in the cluster only updates the cache.
+    chatCache.put("alice", 2000L);
+    assertEquals(0, counter.count.get());
+    chatManagerService.checkForUpdates();
+    assertEquals(1, counter.count.get());
+  }
+
+  @Test
+  public void testRecentMessages() {
+    chatManagerService.put("alice", 1000L, "/a/message1");
+    chatManagerService.put("alice", 2000L, "/a/message2");
+    assertEquals(Arrays.asList("/a/message1", "/a/message2"),
+        chatManagerService.getRecentMessages("alice", 0L));
+    assertEquals(Arrays.asList("/a/message2"),
+        chatManagerService.getRecentMessages("alice", 1000L));
+    assertTrue(chatManagerService.getRecentMessages("bob", 0L).isEmpty());
+    assertEquals(Long.valueOf(2000L), chatManagerService.get("alice"));
+  }
+
+  private static class Counter implements Runnable {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public void run() {
+      count.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.felix.http.api.ExtHttpService;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.mortbay.util.ajax.Continuation;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Runs chat wait requests through the filter and the servlet behind it.
+ */
+public class ChatWaitFilterTest {
+  /**
+   * Where Jetty keeps the continuation of a request.
+   */
+  private static final String CONTINUATION_ATTR = "org.mortbay.jetty.ajax.Continuation";
+
+  private ChatManagerServiceImpl chatManagerService;
+  private ChatWaitFilter filter;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private StringWriter output;
+  private FilterChain chain;
+
+  @Before
+  public void setUp() throws Exception {
+    Cache<Object> chatCache = new MapCacheImpl<Object>();
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.<Object> getCache("chat", CacheScope.CLUSTERREPLICATED))
+        .thenReturn(chatCache);
+    chatManagerService = new ChatManagerServiceImpl();
+    chatManagerService.bindCacheManagerService(cacheManagerService);
+    chatManagerService.put("alice", 1000L);
+
+    filter = new ChatWaitFilter();
+    filter.extHttpService = mock(ExtHttpService.class);
+    filter.chatManagerService = chatManagerService;
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put("chat.wait.timeout", 50L);
+    filter.activate(properties);
+
+    final ChatWaitServlet servlet = new ChatWaitServlet();
+    servlet.bindChatManagerService(chatManagerService);
+    chain = mock(FilterChain.class);
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        servlet.doGet((SlingHttpServletRequest) invocation.getArguments()[0],
+            (SlingHttpServletResponse) invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+    request = mock(SlingHttpServletRequest.class);
+    ChatWaitServletTest.attributes(request);
+    when(request.getRemoteUser()).thenReturn("alice");
+    RequestParameter param = mock(RequestParameter.class);
+    when(param.getString()).thenReturn("1000");
+    when(request.getRequestParameter("t")).thenReturn(param);
+    response = mock(SlingHttpServletResponse.class);
+    output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+  }
+
+  @Test
+  public void testUpdateIsNotParked() throws Exception {
+    chatManagerService.put("alice", 2000L);
+
+    filter.doFilter(request, response, chain);
+
+    verify(chain, times(1)).doFilter(request, response);
+    assertEquals(true, new JSONObject(output.toString()).get("update"));
+    assertEquals(0, filter.getParkedCount());
+  }
+
+  @Test
+  public void testParkedUntilUpdate() throws Exception {
+    Continuation continuation = mock(Continuation.class);
+    // a non blocking connector gives up the thread by throwing out of suspend.
+    doThrow(new Retry()).when(continuation).suspend(50L);
+    request.setAttribute(CONTINUATION_ATTR, continuation);
+
+    try {
+      filter.doFilter(request, response, chain);
+      fail("The request should have been suspended");
+    } catch (Retry e) {
+      // expected
+    }
+    assertEquals("", output.toString());
+    assertEquals(1, filter.getParkedCount());
+    assertEquals(1, chatManagerService.getWaitingCount());
+
+    chatManagerService.put("alice", 2000L);
+    verify(continuation).resume();
+
+    // Jetty dispatches the request again once it is resumed.
+    filter.doFilter(request, response, chain);
+    verify(chain, times(2)).doFilter(request, response);
+    JSONObject answer = new JSONObject(output.toString());
+    assertEquals(true, answer.get("update"));
+    assertEquals(2000L, answer.getLong("time"));
+    assertEquals(0, filter.getParkedCount());
+    assertEquals(0, chatManagerService.getWaitingCount());
+  }
+
+  @Test
+  public void testBlockingWaitTimesOut() throws Exception {
+    // without a continuation from Jetty the wait blocks the thread, then the chain runs
+    // again on the same thread to answer.
+    filter.doFilter(request, response, chain);
+
+    verify(chain, times(2)).doFilter(request, response);
+    JSONObject answer = new JSONObject(output.toString());
+    assertEquals(false, answer.get("update"));
+    assertEquals(1000L, answer.getLong("time"));
+    assertEquals(0, filter.getParkedCount());
+    assertEquals(0, chatManagerService.getWaitingCount());
+  }
+
+  @Test
+  public void testDeactivateAnswersParkedRequests() throws Exception {
+    Continuation continuation = mock(Continuation.class);
+    doThrow(new Retry()).when(continuation).suspend(50L);
+    request.setAttribute(CONTINUATION_ATTR, continuation);
+    try {
+      filter.doFilter(request, response, chain);
+      fail("The request should have been suspended");
+    } catch (Retry e) {
+      // expected
+    }
+
+    filter.deactivate(new HashMap<String, Object>());
+    verify(continuation).resume();
+    verify(filter.extHttpService).unregisterFilter(filter);
+  }
+
+  /**
+   * Stands in for the exception Jetty throws to give up the thread of a request.
+   */
+  private static class Retry extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+}
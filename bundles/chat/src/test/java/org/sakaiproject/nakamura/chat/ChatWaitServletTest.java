@@ -0,0 +1,152 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.chat.ChatManagerService;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class ChatWaitServletTest {
+
+  private ChatManagerService chatManagerService;
+  private ChatWaitServlet servlet;
+  private SlingHttpServletRequest request;
+  private SlingHttpServletResponse response;
+  private StringWriter output;
+
+  @Before
+  public void setUp() throws Exception {
+    chatManagerService = mock(ChatManagerService.class);
+    when(chatManagerService.getRecentMessages(anyString(), anyLong())).thenReturn(
+        Collections.<String> emptyList());
+    servlet = new ChatWaitServlet();
+    servlet.bindChatManagerService(chatManagerService);
+
+    request = mock(SlingHttpServletRequest.class);
+    attributes(request);
+    when(request.getRemoteUser()).thenReturn("alice");
+    response = mock(SlingHttpServletResponse.class);
+    output = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(output));
+  }
+
+  @Test
+  public void testUpdateIsAnswered() throws Exception {
+    when(chatManagerService.get("alice")).thenReturn(2000L);
+    since("1000");
+    request.setAttribute(ChatWaitFilter.FILTERED_ATTR, Boolean.TRUE);
+
+    servlet.doGet(request, response);
+
+    JSONObject answer = new JSONObject(output.toString());
+    assertEquals(true, answer.get("update"));
+    assertEquals(2000L, answer.getLong("time"));
+    assertEquals(0, answer.getJSONArray("messages").length());
+    verify(chatManagerService).getRecentMessages("alice", 1000L);
+  }
+
+  @Test
+  public void testNoUpdateIsLeftToTheFilter() throws Exception {
+    when(chatManagerService.get("alice")).thenReturn(1000L);
+    since("1000");
+    request.setAttribute(ChatWaitFilter.FILTERED_ATTR, Boolean.TRUE);
+
+    servlet.doGet(request, response);
+
+    verify(response, never()).getWriter();
+    assertEquals("alice", request.getAttribute(ChatWaitServlet.WAIT_USER_ATTR));
+    assertEquals(1000L, request.getAttribute(ChatWaitServlet.WAIT_SINCE_ATTR));
+  }
+
+  @Test
+  public void testNoUpdateWithoutTheFilterIsAnswered() throws Exception {
+    when(chatManagerService.get("alice")).thenReturn(1000L);
+    since("1000");
+
+    servlet.doGet(request, response);
+
+    JSONObject answer = new JSONObject(output.toString());
+    assertEquals(false, answer.get("update"));
+    assertEquals(1000L, answer.getLong("time"));
+  }
+
+  @Test
+  public void testTimedOutWaitIsAnswered() throws Exception {
+    when(chatManagerService.get("alice")).thenReturn(1000L);
+    since("1000");
+    // back from the filter after the wait, which is only ever done once.
+    request.setAttribute(ChatWaitFilter.FILTERED_ATTR, Boolean.TRUE);
+    request.setAttribute(ChatWaitFilter.WAITER_ATTR, new Object());
+
+    servlet.doGet(request, response);
+
+    JSONObject answer = new JSONObject(output.toString());
+    assertEquals(false, answer.get("update"));
+    assertTrue(answer.has("pulltime"));
+  }
+
+  private void since(String t) {
+    RequestParameter param = mock(RequestParameter.class);
+    when(param.getString()).thenReturn(t);
+    when(request.getRequestParameter("t")).thenReturn(param);
+  }
+
+  /**
+   * Back the attributes of a mock request with a map.
+   */
+  static void attributes(SlingHttpServletRequest request) {
+    final Map<String, Object> attributes = new HashMap<String, Object>();
+    when(request.getAttribute(anyString())).thenAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        return attributes.get(invocation.getArguments()[0]);
+      }
+    });
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        attributes.put((String) invocation.getArguments()[0], invocation.getArguments()[1]);
+        return null;
+      }
+    }).when(request).setAttribute(anyString(), any());
+  }
+}
@@ -0,0 +1,373 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.disk;
+
+import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResult;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory index of the file names below a repository root. Names are kept in two
+ * sorted maps, one on the name and one on the reversed name, so that starts-with and
+ * ends-with lookups are range scans rather than a walk of the directory tree.
+ * <p>
+ * The index notices changes made outside of the processor by comparing the last
+ * modified time of each indexed directory, at most once per refresh interval, and
+ * rescanning only the directories that changed. Many file systems only keep modified
+ * times to the second, so a change made just after a directory was scanned may leave its
+ * time as it was. Directories modified within that granularity of being scanned are
+ * rescanned on every refresh until their modified time is safely in the past.
+ * </p>
+ */
+public class DiskFileIndex {
+
+  /**
+   * Separates the (possibly reversed) file name from the absolute path in index keys.
+   * It can not appear in a file name so a prefix of a key is always a prefix of the name.
+   */
+  private static final char SEPARATOR = '\0';
+
+  /**
+   * The coarsest modified time resolution expected of a file system, in ms.
+   */
+  private static final long MTIME_GRANULARITY = 2000L;
+
+  private final File root;
+
+  private final long refreshInterval;
+
+  private long lastRefresh;
+
+  /**
+   * name + SEPARATOR + absolute path to file.
+   */
+  private final ConcurrentNavigableMap<String, File> byName = new ConcurrentSkipListMap<String, File>();
+
+  /**
+   * reversed name + SEPARATOR + absolute path to file.
+   */
+  private final ConcurrentNavigableMap<String, File> byReversedName = new ConcurrentSkipListMap<String, File>();
+
+  /**
+   * Last modified time of each indexed directory.
+   */
+  private final Map<File, Long> directories = new ConcurrentHashMap<File, Long>();
+
+  /**
+   * Names of the indexed children of each directory.
+   */
+  private final Map<File, Set<String>> children = new ConcurrentHashMap<File, Set<String>>();
+
+  /**
+   * Directories whose modified time was too close to when they were scanned to be sure it
+   * would change with their next change.
+   */
+  private final Set<File> unsettled = Collections
+      .newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  /**
+   * @param root
+   *          The directory to index.
+   * @param refreshInterval
+   *          The minimum number of milliseconds between checks for changes on disk.
+   */
+  public DiskFileIndex(File root, long refreshInterval) {
+    this.root = root;
+    this.refreshInterval = refreshInterval;
+    synchronized (this) {
+      scanDirectory(root);
+      lastRefresh = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * Find all the indexed files matching a start and end of name.
+   *
+   * @param startsWith
+   *          The start of the name, can be null or empty to match any name.
+   * @param endsWith
+   *          The end of the name, can be null or empty to match any name.
+   * @return A lazily evaluated result list.
+   */
+  public Results search(String startsWith, String endsWith) {
+    refresh();
+    boolean hasStart = startsWith != null && startsWith.length() > 0;
+    boolean hasEnd = endsWith != null && endsWith.length() > 0;
+    if (hasEnd && !hasStart) {
+      // range scan on the reversed names, nothing further to check.
+      return new Results(byReversedName, reverse(endsWith), null);
+    }
+    return new Results(byName, hasStart ? startsWith : "", hasEnd ? endsWith : null);
+  }
+
+  /**
+   * Add (or re-add) a single file, used when a file is written through the processor so
+   * it can be found straight away.
+   *
+   * @param file
+   */
+  public synchronized void add(File file) {
+    // walk up to the first indexed directory, any new directories on the way are
+    // indexed along with the file.
+    File f = file.getAbsoluteFile();
+    File parent = f.getParentFile();
+    while (parent != null && !isIndexed(parent)) {
+      f = parent;
+      parent = f.getParentFile();
+    }
+    if (parent == null) {
+      // not below the root of this index.
+      return;
+    }
+    if (f.isDirectory()) {
+      scanDirectory(f);
+    }
+    addEntry(parent, f);
+  }
+
+  /**
+   * Check the indexed directories for changes if the refresh interval has passed.
+   */
+  public synchronized void refresh() {
+    long now = System.currentTimeMillis();
+    if (now - lastRefresh < refreshInterval) {
+      return;
+    }
+    lastRefresh = now;
+    for (Entry<File, Long> entry : directories.entrySet()) {
+      File dir = entry.getKey();
+      if (!directories.containsKey(dir)) {
+        // removed while processing an earlier directory.
+        continue;
+      }
+      if (!dir.isDirectory()) {
+        removeDirectory(dir);
+      } else if (unsettled.contains(dir) || dir.lastModified() != entry.getValue()) {
+        rescanDirectory(dir);
+      }
+    }
+  }
+
+  /**
+   * @return the number of indexed files.
+   */
+  public int size() {
+    return byName.size();
+  }
+
+  public File getRoot() {
+    return root;
+  }
+
+  private boolean isIndexed(File dir) {
+    return directories.containsKey(dir);
+  }
+
+  /**
+   * Index a directory and everything below it.
+   */
+  private void scanDirectory(File dir) {
+    // the time is taken before listing, so a change during the listing is seen next time.
+    recordModified(dir);
+    File[] files = dir.listFiles();
+    children.put(dir, new HashSet<String>());
+    if (files == null) {
+      return;
+    }
+    for (File f : files) {
+      if (f.isDirectory()) {
+        scanDirectory(f);
+      }
+      addEntry(dir, f);
+    }
+  }
+
+  /**
+   * Bring the immediate children of a changed directory up to date.
+   */
+  private void rescanDirectory(File dir) {
+    recordModified(dir);
+    Set<String> known = children.get(dir);
+    Set<String> present = new HashSet<String>();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        present.add(f.getName());
+        if (!known.contains(f.getName())) {
+          if (f.isDirectory()) {
+            scanDirectory(f);
+          }
+          addEntry(dir, f);
+        }
+      }
+    }
+    for (String name : new HashSet<String>(known)) {
+      if (!present.contains(name)) {
+        File gone = new File(dir, name);
+        if (isIndexed(gone)) {
+          removeDirectory(gone);
+        }
+        removeEntry(dir, gone);
+      }
+    }
+  }
+
+  /**
+   * Drop a directory and everything below it from the index.
+   */
+  private void removeDirectory(File dir) {
+    directories.remove(dir);
+    unsettled.remove(dir);
+    Set<String> names = children.remove(dir);
+    if (names == null) {
+      return;
+    }
+    for (String name : names) {
+      File child = new File(dir, name);
+      if (isIndexed(child)) {
+        removeDirectory(child);
+      }
+      removeEntry(dir, child);
+    }
+  }
+
+  private void recordModified(File dir) {
+    long modified = dir.lastModified();
+    directories.put(dir, modified);
+    if (System.currentTimeMillis() - modified < MTIME_GRANULARITY) {
+      unsettled.add(dir);
+    } else {
+      unsettled.remove(dir);
+    }
+  }
+
+  private void addEntry(File dir, File file) {
+    String name = file.getName();
+    children.get(dir).add(name);
+    // hidden files and our property files are never returned.
+    if (name.startsWith(".") || name.endsWith(".json")) {
+      return;
+    }
+    String path = file.getAbsolutePath();
+    byName.put(name + SEPARATOR + path, file);
+    byReversedName.put(reverse(name) + SEPARATOR + path, file);
+  }
+
+  private void removeEntry(File dir, File file) {
+    String name = file.getName();
+    Set<String> names = children.get(dir);
+    if (names != null) {
+      names.remove(name);
+    }
+    String path = file.getAbsolutePath();
+    byName.remove(name + SEPARATOR + path);
+    byReversedName.remove(reverse(name) + SEPARATOR + path);
+  }
+
+  private static String reverse(String s) {
+    return new StringBuilder(s).reverse().toString();
+  }
+
+  /**
+   * A lazily evaluated view of the files matching a search. Documents are only created
+   * as the iterator reaches them, so paging through a large result does not build the
+   * whole list.
+   */
+  public static class Results implements Iterable<ExternalDocumentResult> {
+    private final ConcurrentNavigableMap<String, File> range;
+    private final String prefix;
+    private final String nameSuffix;
+
+    Results(ConcurrentNavigableMap<String, File> index, String prefix, String nameSuffix) {
+      this.range = index.tailMap(prefix, true);
+      this.prefix = prefix;
+      this.nameSuffix = nameSuffix;
+    }
+
+    /**
+     * @return the number of matching files, counted from the index keys alone.
+     */
+    public long count() {
+      long count = 0;
+      for (String key : range.keySet()) {
+        if (!key.startsWith(prefix)) {
+          break;
+        }
+        if (matches(key)) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    public Iterator<ExternalDocumentResult> iterator() {
+      final Iterator<Entry<String, File>> entries = range.entrySet().iterator();
+      return new Iterator<ExternalDocumentResult>() {
+        private File next;
+        private boolean done;
+
+        public boolean hasNext() {
+          while (next == null && !done) {
+            if (!entries.hasNext()) {
+              done = true;
+              break;
+            }
+            Entry<String, File> entry = entries.next();
+            if (!entry.getKey().startsWith(prefix)) {
+              done = true;
+            } else if (matches(entry.getKey())) {
+              next = entry.getValue();
+            }
+          }
+          return next != null;
+        }
+
+        public ExternalDocumentResult next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          File f = next;
+          next = null;
+          return new DiskDocumentResult(f);
+        }
+
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    private boolean matches(String key) {
+      if (nameSuffix == null) {
+        return true;
+      }
+      String name = key.substring(0, key.indexOf(SEPARATOR));
+      return name.endsWith(nameSuffix);
+    }
+  }
+}
@@ -46,7 +46,6 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
@@ -59,6 +58,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -86,10 +86,20 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
   @Property(name = "createJCRNodes", description = "Wether or not nodes should be created in JCR for newly uploaded files.", boolValue = false)
   protected boolean createJCRNodes = false;
 
+  @Property(name = "indexRefreshInterval", description = "Minimum number of milliseconds between checks of the repository directories for files changed outside of this processor.", longValue = 5000)
+  protected long indexRefreshInterval = 5000;
+
+  /**
+   * File name indexes keyed on the absolute path of the repository root.
+   */
+  private final Map<String, DiskFileIndex> indexes = new ConcurrentHashMap<String, DiskFileIndex>();
+
   protected void activate(ComponentContext context) {
     @SuppressWarnings("rawtypes")
     Dictionary properties = context.getProperties();
     createJCRNodes = OsgiUtil.toBoolean(properties.get("createJCRNodes"), false);
+    indexRefreshInterval = OsgiUtil.toLong(properties.get("indexRefreshInterval"), 5000);
+    indexes.clear();
   }
 
   /**
@@ -133,82 +143,45 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
     // We will search in the same directory (and subs) as the README dir.
     File defaultFile = getRootFile(node);
 
-    String startWith = "";
-    String endsWith = "";
-    boolean matchStartName = false;
-    boolean matchEndName = false;
+    String startWith = null;
+    String endsWith = null;
     if (searchProperties != null) {
       if (searchProperties.get("starts-with") != null
           && !searchProperties.get("starts-with").equals("")) {
         startWith = searchProperties.get("starts-with").toString();
-        matchStartName = true;
       }
       if (searchProperties.get("ends-with") != null
           && !searchProperties.get("ends-with").equals("")) {
         endsWith = searchProperties.get("ends-with").toString();
-        matchEndName = true;
       }
     }
 
-    final String start = startWith;
-    final String end = endsWith;
-    final boolean doStartWith = matchStartName;
-    final boolean doEndsWith = matchEndName;
-
-    // The filter we will be using,
-    FilenameFilter filter = new FilenameFilter() {
-
-      public boolean accept(File dir, String name) {
-        boolean accept = true;
-        // We don't want any files starting with a . (hidden files)
-        if (name.startsWith(".")) {
-          return false;
-        }
-
-        // We don't show our property files.
-        if (name.endsWith(".json")) {
-          return false;
-        }
-
-        // If our files should start with a certain string.
-        if (doStartWith && !name.startsWith(start)) {
-          accept = false;
-        }
-        if (doEndsWith && !name.endsWith(end)) {
-          accept = false;
-        }
-        return accept;
-      }
-    };
-
-    List<ExternalDocumentResult> results = new ArrayList<ExternalDocumentResult>();
-    // Get children.
-    getChildren(defaultFile, results, filter);
-    ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(results.iterator(), results.size());
+    // Look the names up in the index, results are only created as they are paged through.
+    DiskFileIndex.Results results = getIndex(defaultFile).search(startWith, endsWith);
+    ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(results.iterator(), results.count());
     return resultSet;
   }
 
   /**
-   * Iterate over all the children of a "file".
-   * 
-   * @param parentFile
-   *          The file to list the children for.
-   * @param results
-   *          The list to add the results in
-   * @param filter
-   *          The filter to match the files against.
+   * Get the file name index for a repository root, building it on first use.
+   *
+   * @param root
+   *          The root directory of the repository.
+   * @return The index for that root.
    */
-  private void getChildren(File file, List<ExternalDocumentResult> results,
-      FilenameFilter filter) {
-    File[] files = file.listFiles();
-    for (File f : files) {
-      if (f.isDirectory()) {
-        getChildren(f, results, filter);
-      }
-      if (filter.accept(f.getParentFile(), f.getName())) {
-        results.add(new DiskDocumentResult(f));
+  protected DiskFileIndex getIndex(File root) {
+    String key = root.getAbsolutePath();
+    DiskFileIndex index = indexes.get(key);
+    if (index == null) {
+      synchronized (indexes) {
+        index = indexes.get(key);
+        if (index == null) {
+          index = new DiskFileIndex(root.getAbsoluteFile(), indexRefreshInterval);
+          indexes.put(key, index);
+        }
       }
     }
+    return index;
   }
 
   /**
@@ -227,6 +200,7 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
     // Write the file stream
     if (documentStream != null) {
       File newFile = writeStreamToFile(documentStream, file);
+      addToIndexes(newFile);
       if (properties == null) {
         properties = new HashMap<String, Object>();
         properties.put(EXTERNAL_ID, newFile.toURI());
@@ -280,6 +254,18 @@ public class DiskProcessor implements ExternalRepositoryProcessor {
     return properties;
   }
 
+  /**
+   * Make a newly written file visible to searches straight away, rather than when the
+   * index next notices the directory has changed.
+   *
+   * @param file
+   */
+  private void addToIndexes(File file) {
+    for (DiskFileIndex index : indexes.values()) {
+      index.add(file);
+    }
+  }
+
   /**
    * @param node
    * @param path
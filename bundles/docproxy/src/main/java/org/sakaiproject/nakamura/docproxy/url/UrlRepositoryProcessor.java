@@ -16,6 +16,7 @@ package org.sakaiproject.nakamura.docproxy.url;
 
 import com.ctc.wstx.stax.WstxInputFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SignatureException;
@@ -25,6 +26,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -37,13 +39,19 @@ import javax.xml.stream.events.Characters;
 import javax.xml.stream.events.StartElement;
 import javax.xml.stream.events.XMLEvent;
 
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HeaderElement;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.httpclient.methods.DeleteMethod;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
@@ -53,6 +61,7 @@ import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResultMetadata;
 import org.sakaiproject.nakamura.api.docproxy.ExternalRepositoryProcessor;
 import org.sakaiproject.nakamura.api.docproxy.ExternalSearchResultSet;
 import org.sakaiproject.nakamura.docproxy.ExternalSearchResultSetImpl;
+import org.sakaiproject.nakamura.docproxy.url.UrlResponseCache.CachedResponse;
 import org.sakaiproject.nakamura.util.Signature;
 
 /**
@@ -96,15 +105,54 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
   protected static final String REMOVE_URL = "remove.url";
   private String removeUrl;
 
+  public static final int DEFAULT_MAX_CONNECTIONS = 40;
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS)
+  static final String MAX_CONNECTIONS = "http.max.connections";
+
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+  @Property(intValue = DEFAULT_MAX_CONNECTIONS_PER_HOST)
+  static final String MAX_CONNECTIONS_PER_HOST = "http.max.connections.per.host";
+
+  public static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
+  @Property(intValue = DEFAULT_CONNECTION_TIMEOUT)
+  static final String CONNECTION_TIMEOUT = "http.connection.timeout";
+
+  public static final int DEFAULT_SO_TIMEOUT = 30000;
+  @Property(intValue = DEFAULT_SO_TIMEOUT)
+  static final String SO_TIMEOUT = "http.so.timeout";
+
+  public static final int DEFAULT_CACHE_TTL = 60;
+  @Property(intValue = DEFAULT_CACHE_TTL)
+  static final String CACHE_TTL = "cache.ttl";
+  private long cacheTtl;
+
+  public static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+  @Property(intValue = DEFAULT_CACHE_MAX_ENTRIES)
+  static final String CACHE_MAX_ENTRIES = "cache.max.entries";
+
   private XMLInputFactory xmlInputFactory;
 
+  /**
+   * A multi threaded connection manager so calls to the repository share a bounded pool
+   * of kept-alive connections.
+   */
+  private MultiThreadedHttpConnectionManager connectionManager;
+
   private HttpClient client;
 
+  /**
+   * Cache of metadata and search responses, keyed by user, url and parameters.
+   */
+  private UrlResponseCache responseCache;
+
   /**
    * Default constructor. Used by OSGi.
    */
   public UrlRepositoryProcessor() {
-    client = new HttpClient();
+    connectionManager = new MultiThreadedHttpConnectionManager();
+    client = new HttpClient(connectionManager);
+    responseCache = new UrlResponseCache(DEFAULT_CACHE_MAX_ENTRIES);
+    cacheTtl = DEFAULT_CACHE_TTL * 1000L;
   }
 
   @Activate
@@ -126,6 +174,27 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
 
     hmacHeader = OsgiUtil.toString(props.get(HMAC_HEADER), DEFAULT_HMAC_HEADER);
     sharedKey = OsgiUtil.toString(props.get(SHARED_KEY), null);
+
+    HttpConnectionManagerParams params = connectionManager.getParams();
+    params.setMaxTotalConnections(OsgiUtil.toInteger(props.get(MAX_CONNECTIONS),
+        DEFAULT_MAX_CONNECTIONS));
+    params.setDefaultMaxConnectionsPerHost(OsgiUtil.toInteger(
+        props.get(MAX_CONNECTIONS_PER_HOST), DEFAULT_MAX_CONNECTIONS_PER_HOST));
+    params.setConnectionTimeout(OsgiUtil.toInteger(props.get(CONNECTION_TIMEOUT),
+        DEFAULT_CONNECTION_TIMEOUT));
+    params.setSoTimeout(OsgiUtil.toInteger(props.get(SO_TIMEOUT), DEFAULT_SO_TIMEOUT));
+    // wait no longer than the connect timeout for a free pooled connection
+    client.getParams().setConnectionManagerTimeout(params.getConnectionTimeout());
+
+    cacheTtl = OsgiUtil.toInteger(props.get(CACHE_TTL), DEFAULT_CACHE_TTL) * 1000L;
+    responseCache = new UrlResponseCache(OsgiUtil.toInteger(
+        props.get(CACHE_MAX_ENTRIES), DEFAULT_CACHE_MAX_ENTRIES));
+  }
+
+  @Deactivate
+  protected void deactivate(ComponentContext context) {
+    responseCache.clear();
+    connectionManager.shutdown();
   }
 
   /*
@@ -152,7 +221,12 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       method.addParameter(entry.getKey(), entry.getValue().toString());
     }
     method.setRequestEntity(new InputStreamRequestEntity(documentStream));
-    executeMethod(method, node);
+    try {
+      executeMethod(method, node);
+    } finally {
+      method.releaseConnection();
+      responseCache.clear();
+    }
     return null;
   }
 
@@ -165,8 +239,8 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public ExternalDocumentResult getDocument(Node node, String path)
       throws DocProxyException {
+    GetMethod method = new GetMethod(documentUrl + path);
     try {
-      GetMethod method = new GetMethod(documentUrl + path);
       executeMethod(method, node);
       ExternalDocumentResult result = parseDocument(method.getResponseBodyAsStream());
       return result;
@@ -174,6 +248,8 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       throw new DocProxyException(500, e.getMessage());
     } catch (IOException e) {
       throw new DocProxyException(500, e.getMessage());
+    } finally {
+      method.releaseConnection();
     }
   }
 
@@ -188,12 +264,10 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       throws DocProxyException {
     try {
       GetMethod method = new GetMethod(metadataUrl + path);
-      executeMethod(method, node);
-      ExternalDocumentResultMetadata result = parseDocument(method
-          .getResponseBodyAsStream());
+      byte[] body = executeCachedMethod(method, metadataUrl + path, node);
+      ExternalDocumentResultMetadata result = parseDocument(new ByteArrayInputStream(
+          body));
       return result;
-    } catch (IOException e) {
-      throw new DocProxyException(500, e.getMessage());
     } catch (XMLStreamException e) {
       throw new DocProxyException(500, e.getMessage());
     }
@@ -210,17 +284,19 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
       Map<String, Object> searchProperties) throws DocProxyException {
     try {
       PostMethod method = new PostMethod(searchUrl);
-      for (Entry<String, Object> entry : searchProperties.entrySet()) {
+      // sort the parameters so the same search always maps to the same cache key
+      StringBuilder key = new StringBuilder(searchUrl);
+      for (Entry<String, Object> entry : new TreeMap<String, Object>(searchProperties)
+          .entrySet()) {
         method.addParameter(entry.getKey(), entry.getValue().toString());
+        key.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
       }
-      executeMethod(method, node);
-      List<ExternalDocumentResult> results = parseSearch(method.getResponseBodyAsStream());
+      byte[] body = executeCachedMethod(method, key.toString(), node);
+      List<ExternalDocumentResult> results = parseSearch(new ByteArrayInputStream(body));
       ExternalSearchResultSet resultSet = new ExternalSearchResultSetImpl(results.iterator(), (long)results.size());
       return resultSet;
     } catch (XMLStreamException e) {
       throw new DocProxyException(500, e.getMessage());
-    } catch (IOException e) {
-      throw new DocProxyException(500, e.getMessage());
     }
   }
 
@@ -233,7 +309,12 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    */
   public void removeDocument(Node node, String path) throws DocProxyException {
     DeleteMethod method = new DeleteMethod(removeUrl + path);
-    executeMethod(method, node);
+    try {
+      executeMethod(method, node);
+    } finally {
+      method.releaseConnection();
+      responseCache.clear();
+    }
   }
 
   /**
@@ -245,9 +326,27 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
    * @throws DocProxyException
    */
   private int executeMethod(HttpMethod method, Node node) throws DocProxyException {
+    return executeMethod(method, node, false);
+  }
+
+  /**
+   * Execute an http method and return the status code.
+   *
+   * @param method
+   * @param node
+   * @param allowNotModified
+   *          true if a 304 response is acceptable, ie a conditional request was made.
+   * @return
+   * @throws DocProxyException
+   */
+  private int executeMethod(HttpMethod method, Node node, boolean allowNotModified)
+      throws DocProxyException {
     try {
       addHmac(method, node);
       int returnCode = client.executeMethod(method);
+      if (allowNotModified && returnCode == HttpStatus.SC_NOT_MODIFIED) {
+        return returnCode;
+      }
       if (returnCode < 200 || returnCode >= 300) {
         throw new DocProxyException(returnCode, "Error occurred while executing method ["
             + method.getName() + ":" + returnCode + "]");
@@ -262,6 +361,95 @@ public class UrlRepositoryProcessor implements ExternalRepositoryProcessor {
     }
   }
 
+  /**
+   * Execute an http method through the response cache and return the response body. A
+   * fresh cached response is returned without contacting the repository. A stale one is
+   * revalidated with If-None-Match when the repository supplied an ETag. The response
+   * Cache-Control header is honoured: no-store responses are never cached, no-cache
+   * responses are always revalidated and max-age overrides the configured ttl.
+   *
+   * @param method
+   *          the method to execute on a cache miss.
+   * @param url
+   *          the url and any parameters that identify the response.
+   * @param node
+   * @return the response body.
+   * @throws DocProxyException
+   */
+  private byte[] executeCachedMethod(HttpMethod method, String url, Node node)
+      throws DocProxyException {
+    String key;
+    try {
+      // responses are signed for and may differ by user
+      key = node.getSession().getUserID() + "\n" + url;
+    } catch (RepositoryException e) {
+      throw new DocProxyException(500, e.getMessage());
+    }
+    CachedResponse cached = responseCache.get(key);
+    if (cached != null) {
+      if (cached.isFresh(System.currentTimeMillis())) {
+        return cached.getBody();
+      }
+      if (cached.getEtag() != null) {
+        method.addRequestHeader("If-None-Match", cached.getEtag());
+      }
+    }
+
+    try {
+      int returnCode = executeMethod(method, node, cached != null
+          && cached.getEtag() != null);
+      long expires = getExpires(method);
+      if (returnCode == HttpStatus.SC_NOT_MODIFIED) {
+        cached.refresh(expires);
+        return cached.getBody();
+      }
+      byte[] body = method.getResponseBody();
+      if (expires == Long.MIN_VALUE) {
+        responseCache.remove(key);
+      } else {
+        Header etag = method.getResponseHeader("ETag");
+        responseCache.put(key, new CachedResponse(body, etag == null ? null : etag
+            .getValue(), expires));
+      }
+      return body;
+    } catch (IOException e) {
+      throw new DocProxyException(500, e.getMessage());
+    } finally {
+      method.releaseConnection();
+    }
+  }
+
+  /**
+   * Work out when a response expires from its Cache-Control header.
+   *
+   * @param method
+   *          an executed method.
+   * @return the expiry time in milliseconds or {@link Long#MIN_VALUE} if the response
+   *         must not be cached.
+   */
+  private long getExpires(HttpMethod method) {
+    long now = System.currentTimeMillis();
+    long ttl = cacheTtl;
+    Header cacheControl = method.getResponseHeader("Cache-Control");
+    if (cacheControl != null) {
+      for (HeaderElement element : cacheControl.getElements()) {
+        String name = element.getName();
+        if ("no-store".equalsIgnoreCase(name)) {
+          return Long.MIN_VALUE;
+        } else if ("no-cache".equalsIgnoreCase(name)) {
+          return now;
+        } else if ("max-age".equalsIgnoreCase(name) && element.getValue() != null) {
+          try {
+            ttl = Long.parseLong(element.getValue().trim()) * 1000L;
+          } catch (NumberFormatException e) {
+            // keep the configured ttl
+          }
+        }
+      }
+    }
+    return now + ttl;
+  }
+
   /**
    * Parse search results information into documents.
    * <p>
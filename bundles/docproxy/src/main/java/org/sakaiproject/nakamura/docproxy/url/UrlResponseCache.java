@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one or more contributor license agreements.
+ * See the NOTICE file distributed with this work for additional information regarding
+ * copyright ownership. The SF licenses this file to you under the Apache License, Version
+ * 2.0 (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under
+ * the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.url;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of response bodies returned by the URL
+ * repository. Entries carry an expiry time and the upstream ETag so that a stale entry
+ * can be revalidated with a conditional request rather than fetched again.
+ */
+public class UrlResponseCache {
+
+  /**
+   * A cached response body along with the information needed to revalidate it.
+   */
+  public static class CachedResponse {
+    private final byte[] body;
+    private final String etag;
+    private volatile long expires;
+
+    public CachedResponse(byte[] body, String etag, long expires) {
+      this.body = body;
+      this.etag = etag;
+      this.expires = expires;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    public String getEtag() {
+      return etag;
+    }
+
+    public boolean isFresh(long now) {
+      return now < expires;
+    }
+
+    /**
+     * Extend the life of this entry after the upstream confirmed it is unchanged.
+     *
+     * @param expires
+     *          the new expiry time in milliseconds.
+     */
+    public void refresh(long expires) {
+      this.expires = expires;
+    }
+  }
+
+  private final Map<String, CachedResponse> entries;
+
+  /**
+   * @param maxEntries
+   *          the maximum number of responses to hold. The least recently used entry is
+   *          evicted once this is exceeded.
+   */
+  public UrlResponseCache(final int maxEntries) {
+    entries = new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param key
+   * @return the cached response for the key, fresh or stale, or null if there is none.
+   */
+  public synchronized CachedResponse get(String key) {
+    return entries.get(key);
+  }
+
+  public synchronized void put(String key, CachedResponse response) {
+    entries.put(key, response);
+  }
+
+  public synchronized void remove(String key) {
+    entries.remove(key);
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+}
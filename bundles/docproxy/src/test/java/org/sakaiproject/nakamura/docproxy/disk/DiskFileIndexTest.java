@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.docproxy.disk;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.docproxy.ExternalDocumentResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ *
+ */
+public class DiskFileIndexTest {
+  private File root;
+
+  @Before
+  public void setUp() throws IOException {
+    root = File.createTempFile("diskindex", "");
+    root.delete();
+    root.mkdir();
+    for (int i = 0; i < 10; i++) {
+      File dir = new File(root, "dir" + i);
+      dir.mkdir();
+      for (int j = 0; j < 100; j++) {
+        new File(dir, "file-" + i + "-" + j + ".txt").createNewFile();
+      }
+    }
+    new File(root, ".hidden.txt").createNewFile();
+    new File(root, "file-0-0.txt.json").createNewFile();
+  }
+
+  @After
+  public void tearDown() {
+    delete(root);
+  }
+
+  @Test
+  public void testStartsWith() {
+    DiskFileIndex index = new DiskFileIndex(root, 0);
+    DiskFileIndex.Results results = index.search("file-3-", null);
+    assertEquals(100, results.count());
+    assertEquals(100, count(results.iterator()));
+  }
+
+  @Test
+  public void testEndsWith() {
+    DiskFileIndex index = new DiskFileIndex(root, 0);
+    // 1000 files plus the directories, hidden and property files are never returned.
+    assertEquals(1010, index.search(null, null).count());
+    assertEquals(10, index.search(null, "-7.txt").count());
+    assertEquals(1, index.search("file-2-", "-7.txt").count());
+  }
+
+  @Test
+  public void testRefreshFindsExternalChanges() throws IOException {
+    long scanned = System.currentTimeMillis() - 60000;
+    setModified(root, scanned);
+    DiskFileIndex index = new DiskFileIndex(root, 0);
+    File dir = new File(root, "dir0/new");
+    dir.mkdir();
+    new File(dir, "added.txt").createNewFile();
+    new File(root, "dir1/file-1-1.txt").delete();
+    // whatever the resolution of the file system, the changed directories have a new time.
+    new File(root, "dir0").setLastModified(scanned + 10000);
+    new File(root, "dir1").setLastModified(scanned + 10000);
+
+    assertEquals(1, index.search("added", null).count());
+    assertEquals(0, index.search("file-1-1.txt", null).count());
+  }
+
+  @Test
+  public void testRefreshWithinModifiedTimeGranularity() throws IOException {
+    File dir = new File(root, "dir2");
+    long modified = (System.currentTimeMillis() / 1000) * 1000;
+    dir.setLastModified(modified);
+    DiskFileIndex index = new DiskFileIndex(root, 0);
+    // changed in the same second as the scan, the time stays the same.
+    new File(dir, "same-second.txt").createNewFile();
+    dir.setLastModified(modified);
+
+    assertEquals(1, index.search("same-second", null).count());
+  }
+
+  @Test
+  public void testAdd() throws IOException {
+    DiskFileIndex index = new DiskFileIndex(root, Long.MAX_VALUE);
+    File dir = new File(root, "dir0/written");
+    dir.mkdir();
+    File file = new File(dir, "written.txt");
+    file.createNewFile();
+    index.add(file);
+
+    assertEquals(1, index.search("written.txt", null).count());
+    assertEquals(1, index.search("written", ".txt").count());
+  }
+
+  private int count(Iterator<ExternalDocumentResult> iterator) {
+    int count = 0;
+    while (iterator.hasNext()) {
+      iterator.next();
+      count++;
+    }
+    return count;
+  }
+
+  private void setModified(File file, long time) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        setModified(f, time);
+      }
+    }
+    file.setLastModified(time);
+  }
+
+  private void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        delete(f);
+      }
+    }
+    file.delete();
+  }
+}
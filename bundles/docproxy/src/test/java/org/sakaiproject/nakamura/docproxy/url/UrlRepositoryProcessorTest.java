@@ -19,8 +19,14 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.jcr.Node;
 
@@ -43,7 +49,6 @@ import org.sakaiproject.nakamura.docproxy.url.requestHandlers.UpdateRequestHandl
 
 @RunWith(MockitoJUnitRunner.class)
 public class UrlRepositoryProcessorTest {
-
   @Mock(answer = Answers.RETURNS_DEEP_STUBS)
   private Node node;
 
@@ -161,4 +166,56 @@ public class UrlRepositoryProcessorTest {
     long streamLength = output.length();
     processor.updateDocument(node, docPath1, props, bais, streamLength);
   }
+
+  @Test
+  public void testMetadataIsCached() throws Exception {
+    processor.getDocumentMetadata(node, docPath1);
+    ExternalDocumentResultMetadata metadata = processor.getDocumentMetadata(node,
+        docPath1);
+    assertEquals(docResult1, metadata);
+    assertEquals(1, metadataHandler.getRequestCount());
+  }
+
+  @Test
+  public void testNoStoreIsNotCached() throws Exception {
+    metadataHandler.setCacheControl("no-store");
+    processor.getDocumentMetadata(node, docPath1);
+    processor.getDocumentMetadata(node, docPath1);
+    assertEquals(2, metadataHandler.getRequestCount());
+  }
+
+  @Test
+  public void testStaleMetadataIsRevalidated() throws Exception {
+    metadataHandler.setCacheControl("max-age=0");
+    metadataHandler.setEtag("\"v1\"");
+    processor.getDocumentMetadata(node, docPath1);
+    ExternalDocumentResultMetadata metadata = processor.getDocumentMetadata(node,
+        docPath1);
+    assertEquals(docResult1, metadata);
+    assertEquals(2, metadataHandler.getRequestCount());
+  }
+
+  @Test
+  public void testConcurrentGetDocument() throws Exception {
+    int threads = 10;
+    final int calls = 50;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+    for (int i = 0; i < threads; i++) {
+      futures.add(executor.submit(new Callable<Integer>() {
+        public Integer call() throws Exception {
+          for (int j = 0; j < calls; j++) {
+            assertEquals(docResult1, processor.getDocument(node, docPath1));
+          }
+          return calls;
+        }
+      }));
+    }
+    int total = 0;
+    for (Future<Integer> future : futures) {
+      total += future.get();
+    }
+    executor.shutdown();
+    assertEquals(threads * calls, total);
+  }
 }
@@ -27,6 +27,7 @@ import org.sakaiproject.nakamura.docproxy.url.UrlDocumentResult;
 
 import java.io.IOException;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MetadataRequestHandler implements HttpRequestHandler {
   private static final String START_ELEMENT_PATTERN = "<document contentLength=\"%s\" contentType=\"%s\" uri=\"%s\">\n";
@@ -34,12 +35,30 @@ public class MetadataRequestHandler implements HttpRequestHandler {
 
   private UrlDocumentResult doc;
 
+  private AtomicInteger requestCount = new AtomicInteger();
+
+  private String etag;
+
+  private String cacheControl;
+
   public MetadataRequestHandler(UrlDocumentResult doc) {
     this.doc = doc;
   }
 
   public void handle(HttpRequest request, HttpResponse response, HttpContext context)
       throws HttpException, IOException {
+    requestCount.incrementAndGet();
+    if (cacheControl != null) {
+      response.setHeader("Cache-Control", cacheControl);
+    }
+    if (etag != null) {
+      response.setHeader("ETag", etag);
+      if (request.containsHeader("If-None-Match")
+          && etag.equals(request.getFirstHeader("If-None-Match").getValue())) {
+        response.setStatusCode(304);
+        return;
+      }
+    }
     response.setStatusCode(200);
     response.setHeader("Content-type", "text/xml");
 
@@ -72,4 +91,16 @@ public class MetadataRequestHandler implements HttpRequestHandler {
   public UrlDocumentResult getDocument() {
     return doc;
   }
+
+  public int getRequestCount() {
+    return requestCount.get();
+  }
+
+  public void setEtag(String etag) {
+    this.etag = etag;
+  }
+
+  public void setCacheControl(String cacheControl) {
+    this.cacheControl = cacheControl;
+  }
 }
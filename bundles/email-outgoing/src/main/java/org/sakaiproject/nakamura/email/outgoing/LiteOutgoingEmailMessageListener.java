@@ -34,6 +34,9 @@ import org.osgi.service.component.ComponentContext;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventAdmin;
 import org.sakaiproject.nakamura.api.activemq.ConnectionFactoryService;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventDeliveryMode;
+import org.sakaiproject.nakamura.api.events.EventDeliveryConstants.EventMessageMode;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
@@ -50,6 +53,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Dictionary;
@@ -71,6 +75,8 @@ import javax.jms.MessageConsumer;
 import javax.jms.MessageListener;
 import javax.jms.Queue;
 import javax.jms.Session;
+import javax.mail.Address;
+import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 
@@ -92,6 +98,23 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
   private static final String REPLY_AS_ADDRESS = "sakai.email.replyAsAddress";
   @Property(value = "Sakai OAE")
   private static final String REPLY_AS_NAME = "sakai.email.replyAsName";
+  @Property(value = "")
+  private static final String SMTP_USERNAME = "sakai.smtp.username";
+  @Property(value = "")
+  private static final String SMTP_PASSWORD = "sakai.smtp.password";
+  /**
+   * The number of SMTP connections kept open, which is also the number of messages
+   * delivered at once.
+   */
+  @Property(intValue = 4)
+  private static final String SMTP_CONNECTIONS = "sakai.smtp.connections";
+  @Property(intValue = 100)
+  private static final String SMTP_MESSAGES_PER_CONNECTION = "sakai.smtp.connection.maxMessages";
+  /**
+   * The most SMTP transactions per second to any one recipient domain, 0 for no limit.
+   */
+  @Property(intValue = 10)
+  private static final String SMTP_DOMAIN_RATE = "sakai.smtp.domain.rate";
 
   protected static final String QUEUE_NAME = "org/sakaiproject/nakamura/message/email/outgoing";
 
@@ -130,6 +153,8 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
   private Integer retryInterval;
 
+  private SmtpDeliveryEngine deliveryEngine;
+
   public LiteOutgoingEmailMessageListener() {
   }
 
@@ -188,48 +213,20 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
                     email.setSmtpPort(smtpPort);
                     email.setHostName(smtpServer);
+                    email.buildMimeMessage();
 
-                    email.send();
-                  } catch (EmailException e) {
-                    String exMessage = e.getMessage();
-                    Throwable cause = e.getCause();
-
-                    setError(messageContent, exMessage);
-                    LOGGER.warn("Unable to send email: " + exMessage);
-
-                    // Get the SMTP error code
-                    // There has to be a better way to do this
-                    boolean rescheduled = false;
-                    if (cause != null && cause.getMessage() != null) {
-                      String smtpError = cause.getMessage().trim();
-                      try {
-                        int errorCode = Integer.parseInt(smtpError.substring(0, 3));
-                        // All retry-able SMTP errors should have codes starting
-                        // with 4
-                        scheduleRetry(errorCode, messageContent);
-                        rescheduled = true;
-                      } catch (NumberFormatException nfe) {
-                        // smtpError didn't start with an error code, let's dig for
-                        // it
-                        String searchFor = "response:";
-                        int rindex = smtpError.indexOf(searchFor);
-                        if (rindex > -1
-                            && (rindex + searchFor.length()) < smtpError.length()) {
-                          int errorCode = Integer.parseInt(smtpError.substring(
-                              searchFor.length(), searchFor.length() + 3));
-                          scheduleRetry(errorCode, messageContent);
-                          rescheduled = true;
-                        }
-                      }
-                    }
-                    if (rescheduled) {
-                      LOGGER.info("Email {} rescheduled for redelivery. ", nodePath);
-                    } else {
-                      LOGGER
-                          .error(
-                              "Unable to reschedule email for delivery: "
-                                  + e.getMessage(), e);
+                    SmtpDeliveryEngine.Result result = deliveryEngine.send(email
+                        .getMimeMessage());
+                    if (!result.isDelivered()) {
+                      handleFailures(result, messageContent, nodePath);
                     }
+                  } catch (EmailException e) {
+                    handleSendFailure(e, messageContent, nodePath, recipients);
+                  } catch (MessagingException e) {
+                    handleSendFailure(e, messageContent, nodePath, recipients);
+                  } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    setError(messageContent, "Interrupted while sending");
                   }
                 } else {
                   setError(messageContent, "Message must have a to and from set");
@@ -285,7 +282,6 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     try {
       // set from: to the reply as address
       email.setFrom(replyAsAddress, replyAsName);
-      email.setAuthentication("user", "pass");
 
       if (toRecipients.size() == 1) {
         // set to: to the rcpt if sending to just one person
@@ -443,7 +439,56 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
     return address;
   }
 
-  private void scheduleRetry(int errorCode, Content contentNode) {
+  private void handleSendFailure(Exception e, Content messageContent, String nodePath,
+      List<String> recipients) {
+    String exMessage = e.getMessage();
+    setError(messageContent, exMessage);
+    LOGGER.warn("Unable to send email: " + exMessage);
+
+    int errorCode = SmtpDeliveryEngine.getSmtpCode(e);
+    if (errorCode >= 0) {
+      // All retry-able SMTP errors should have codes starting with 4
+      scheduleRetry(errorCode, messageContent, recipients);
+      LOGGER.info("Email {} rescheduled for redelivery. ", nodePath);
+    } else {
+      LOGGER.error("Unable to reschedule email for delivery: " + exMessage, e);
+    }
+  }
+
+  /**
+   * Record the recipients a message could not be delivered to, retrying later for the
+   * recipients whose failures were transient. Recipients the server accepted are not sent
+   * the message again.
+   */
+  private void handleFailures(SmtpDeliveryEngine.Result result, Content messageContent,
+      String nodePath) {
+    StringBuilder error = new StringBuilder();
+    int errorCode = -1;
+    for (SmtpDeliveryEngine.Failure failure : result.getFailures()) {
+      if (error.length() > 0) {
+        error.append("; ");
+      }
+      error.append(failure.getMessage()).append(' ').append(failure.getRecipients());
+      if (errorCode / 100 != 4) {
+        errorCode = failure.getCode();
+      }
+    }
+    setError(messageContent, error.toString());
+    LOGGER.warn("Unable to send email {} to all recipients: {}", nodePath, error);
+    if (result.isRetryable()) {
+      List<String> retry = new ArrayList<String>();
+      for (Address address : result.getRetryableRecipients()) {
+        retry.add(address instanceof InternetAddress ? ((InternetAddress) address)
+            .getAddress() : address.toString());
+      }
+      scheduleRetry(errorCode, messageContent, retry);
+    }
+  }
+
+  /**
+   * Have the message sent again later to the given recipients.
+   */
+  private void scheduleRetry(int errorCode, Content contentNode, List<String> recipients) {
     // All retry-able SMTP errors should have codes starting with 4
     if ((errorCode / 100) == 4) {
       long retryCount = 0;
@@ -459,6 +504,12 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
             Map<String, Serializable> config = jc.getConfiguration();
             Properties eventProps = new Properties();
             eventProps.put(NODE_PATH_PROPERTY, config.get(NODE_PATH_PROPERTY));
+            eventProps.put(CONTENT_PATH_PROPERTY, config.get(CONTENT_PATH_PROPERTY));
+            if (config.get(RECIPIENTS) != null) {
+              eventProps.put(RECIPIENTS, config.get(RECIPIENTS));
+            }
+            eventProps.put(EventDeliveryConstants.DELIVERY_MODE, EventDeliveryMode.P2P);
+            eventProps.put(EventDeliveryConstants.MESSAGE_MODE, EventMessageMode.PERSISTENT);
 
             Event retryEvent = new Event(QUEUE_NAME, eventProps);
             eventAdmin.postEvent(retryEvent);
@@ -468,6 +519,10 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
 
         HashMap<String, Serializable> jobConfig = new HashMap<String, Serializable>();
         jobConfig.put(NODE_PATH_PROPERTY, contentNode.getPath());
+        jobConfig.put(CONTENT_PATH_PROPERTY, contentNode.getPath());
+        if (recipients != null) {
+          jobConfig.put(RECIPIENTS, new ArrayList<String>(recipients));
+        }
 
         int retryIntervalMillis = retryInterval * 60000;
         Date nextTry = new Date(System.currentTimeMillis() + (retryIntervalMillis));
@@ -548,12 +603,23 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       LOGGER.error("No reply-as email name set");
     }
 
+    int connections = OsgiUtil.toInteger(props.get(SMTP_CONNECTIONS), 4);
+    deliveryEngine = new SmtpDeliveryEngine(smtpServer, smtpPort, OsgiUtil.toString(
+        props.get(SMTP_USERNAME), ""), OsgiUtil.toString(props.get(SMTP_PASSWORD), ""),
+        connections);
+    deliveryEngine.setMessagesPerConnection(OsgiUtil.toInteger(
+        props.get(SMTP_MESSAGES_PER_CONNECTION), 100));
+    deliveryEngine.setDomainRate(OsgiUtil.toInteger(props.get(SMTP_DOMAIN_RATE), 10));
+
     try {
       connection = connFactoryService.getDefaultConnectionFactory().createConnection();
-      Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-      Queue dest = session.createQueue(QUEUE_NAME);
-      MessageConsumer consumer = session.createConsumer(dest);
-      consumer.setMessageListener(this);
+      // each session delivers on its own thread, one per pooled SMTP connection.
+      for (int i = 0; i < Math.max(1, connections); i++) {
+        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Queue dest = session.createQueue(QUEUE_NAME);
+        MessageConsumer consumer = session.createConsumer(dest);
+        consumer.setMessageListener(this);
+      }
       connection.start();
     } catch (JMSException e) {
       LOGGER.error(e.getMessage(), e);
@@ -573,6 +639,9 @@ public class LiteOutgoingEmailMessageListener implements MessageListener {
       } catch (JMSException e) {
       }
     }
+    if (deliveryEngine != null) {
+      deliveryEngine.close();
+    }
   }
 
   private void setError(Content node, String error) {
@@ -0,0 +1,541 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Delivers mime messages over a small pool of SMTP connections that stay open between
+ * messages, rather than connecting and saying hello to the server for every message.
+ * <p>
+ * The recipients of a message are grouped by domain so that each domain gets the message
+ * in as few SMTP transactions as possible. Transactions to a domain are rate limited, and
+ * a domain that answers with a transient (4xx) error is backed off exponentially, its
+ * messages failing fast with a 4xx until the back off has passed.
+ * </p>
+ */
+public class SmtpDeliveryEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SmtpDeliveryEngine.class);
+
+  /**
+   * Pooled connections idle for longer than this are checked with a NOOP before use.
+   */
+  private static final long VALIDATE_AFTER = 1000L;
+
+  /**
+   * The code given to recipients in a domain that is being backed off.
+   */
+  static final int DEFERRED = 421;
+
+  private final Session mailSession;
+  private final String host;
+  private final int port;
+  private final String username;
+  private final String password;
+
+  private final Semaphore connections;
+  private final BlockingQueue<PooledTransport> idle = new LinkedBlockingQueue<PooledTransport>();
+  private final ConcurrentMap<String, DomainState> domains = new ConcurrentHashMap<String, DomainState>();
+
+  private int messagesPerConnection = 100;
+  private int recipientsPerTransaction = 100;
+  private long domainInterval = 0;
+  private long backoffBase = 10000L;
+  private long backoffMax = 600000L;
+  private volatile boolean closed;
+
+  /**
+   * @param host
+   *          the SMTP server.
+   * @param port
+   *          the SMTP port.
+   * @param username
+   *          the user to authenticate as, null or empty to not authenticate.
+   * @param password
+   * @param poolSize
+   *          the maximum number of open connections to the server.
+   */
+  public SmtpDeliveryEngine(String host, int port, String username, String password,
+      int poolSize) {
+    this.host = host;
+    this.port = port;
+    this.username = (username == null || username.length() == 0) ? null : username;
+    this.password = password;
+    this.connections = new Semaphore(Math.max(1, poolSize), true);
+
+    Properties props = new Properties();
+    props.put("mail.smtp.host", host);
+    props.put("mail.smtp.port", String.valueOf(port));
+    props.put("mail.smtp.auth", String.valueOf(this.username != null));
+    // deliver to the good addresses of a transaction even if some are refused.
+    props.put("mail.smtp.sendpartial", "true");
+    props.put("mail.smtp.connectiontimeout", "30000");
+    props.put("mail.smtp.timeout", "60000");
+    mailSession = Session.getInstance(props);
+  }
+
+  /**
+   * @param messagesPerConnection
+   *          the number of transactions after which a connection is closed and replaced.
+   */
+  public void setMessagesPerConnection(int messagesPerConnection) {
+    this.messagesPerConnection = Math.max(1, messagesPerConnection);
+  }
+
+  /**
+   * @param recipientsPerTransaction
+   *          the most recipients to give in one transaction; RFC 5321 servers accept at
+   *          least 100.
+   */
+  public void setRecipientsPerTransaction(int recipientsPerTransaction) {
+    this.recipientsPerTransaction = Math.max(1, recipientsPerTransaction);
+  }
+
+  /**
+   * @param perSecond
+   *          the most transactions per second to any one domain, 0 or less for no limit.
+   */
+  public void setDomainRate(double perSecond) {
+    this.domainInterval = (perSecond > 0) ? (long) (TimeUnit.SECONDS.toNanos(1) / perSecond)
+        : 0;
+  }
+
+  /**
+   * @param base
+   *          the back off after the first transient failure of a domain, in ms. It doubles
+   *          with every further failure.
+   * @param max
+   *          the longest back off, in ms.
+   */
+  public void setBackoff(long base, long max) {
+    this.backoffBase = base;
+    this.backoffMax = max;
+  }
+
+  /**
+   * Send a message to all of its recipients, including Bcc recipients which are not
+   * written into the message.
+   *
+   * @param message
+   * @return what could not be delivered, if anything. Recipients that could not be tried
+   *         because no connection could be made are failures too, so the recipients that
+   *         were delivered to are never lost.
+   * @throws MessagingException
+   *           if the message could not be prepared.
+   * @throws InterruptedException
+   */
+  public Result send(MimeMessage message) throws MessagingException, InterruptedException {
+    message.saveChanges();
+    Result result = new Result();
+    Address[] recipients = message.getAllRecipients();
+    if (recipients == null) {
+      return result;
+    }
+    MessagingException unreachable = null;
+    for (Entry<String, List<Address>> domain : groupByDomain(recipients).entrySet()) {
+      DomainState state = getDomainState(domain.getKey());
+      List<Address> addresses = domain.getValue();
+      for (int i = 0; i < addresses.size(); i += recipientsPerTransaction) {
+        Address[] chunk = addresses.subList(i,
+            Math.min(addresses.size(), i + recipientsPerTransaction)).toArray(
+            new Address[0]);
+        if (unreachable != null) {
+          // every domain goes through the same server, don't wait on it again.
+          result.fail(chunk, getSmtpCode(unreachable), unreachable.getMessage());
+          continue;
+        }
+        if (state.isBackingOff(System.currentTimeMillis())) {
+          result.fail(chunk, DEFERRED, "Delivery to " + domain.getKey()
+              + " deferred after a transient failure");
+          continue;
+        }
+        long wait = state.reserve(domainInterval);
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        unreachable = sendChunk(message, chunk, state, result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Close the pooled connections, connections in use are closed when they are returned.
+   */
+  public void close() {
+    closed = true;
+    PooledTransport transport;
+    while ((transport = idle.poll()) != null) {
+      transport.close();
+    }
+  }
+
+  /**
+   * @return the number of connections currently open and idle.
+   */
+  public int getIdleConnections() {
+    return idle.size();
+  }
+
+  /**
+   * @return why no connection could be made to send the chunk, null if one was made.
+   */
+  private MessagingException sendChunk(MimeMessage message, Address[] chunk,
+      DomainState state, Result result) throws InterruptedException {
+    for (int attempt = 0;; attempt++) {
+      PooledTransport transport;
+      try {
+        transport = borrow();
+      } catch (MessagingException e) {
+        LOGGER.debug("Unable to connect to the SMTP server: {}", e.getMessage());
+        result.fail(chunk, getSmtpCode(e), e.getMessage());
+        return e;
+      }
+      boolean reusable = true;
+      try {
+        transport.transport.sendMessage(message, chunk);
+        state.succeeded();
+        result.delivered += chunk.length;
+        return null;
+      } catch (SendFailedException e) {
+        // some addresses were refused, the rest were sent.
+        Address[] invalid = e.getInvalidAddresses();
+        Address[] unsent = e.getValidUnsentAddresses();
+        int code = getSmtpCode(e);
+        if (invalid != null && invalid.length > 0) {
+          result.fail(invalid, code, e.getMessage());
+        }
+        if (unsent != null && unsent.length > 0) {
+          result.fail(unsent, code, e.getMessage());
+        }
+        Address[] sent = e.getValidSentAddresses();
+        result.delivered += (sent == null) ? 0 : sent.length;
+        if (code / 100 == 4) {
+          state.failed(System.currentTimeMillis(), backoffBase, backoffMax);
+        }
+        return null;
+      } catch (MessagingException e) {
+        reusable = transport.transport.isConnected();
+        int code = getSmtpCode(e);
+        if (!reusable && code < 0 && attempt == 0 && transport.sent > 0) {
+          // a pooled connection dropped by the server, try once on a new one.
+          LOGGER.debug("Pooled SMTP connection was closed, reconnecting: {}",
+              e.getMessage());
+          continue;
+        }
+        if (code / 100 == 4) {
+          state.failed(System.currentTimeMillis(), backoffBase, backoffMax);
+        }
+        result.fail(chunk, code, e.getMessage());
+        return null;
+      } finally {
+        release(transport, reusable);
+      }
+    }
+  }
+
+  private PooledTransport borrow() throws MessagingException, InterruptedException {
+    connections.acquire();
+    try {
+      PooledTransport transport;
+      while ((transport = idle.poll()) != null) {
+        if (System.currentTimeMillis() - transport.lastUsed < VALIDATE_AFTER
+            || transport.transport.isConnected()) {
+          return transport;
+        }
+        transport.close();
+      }
+      Transport t = mailSession.getTransport("smtp");
+      t.connect(host, port, username, password);
+      return new PooledTransport(t);
+    } catch (MessagingException e) {
+      connections.release();
+      throw e;
+    } catch (RuntimeException e) {
+      connections.release();
+      throw e;
+    }
+  }
+
+  private void release(PooledTransport transport, boolean reusable) {
+    try {
+      transport.sent++;
+      transport.lastUsed = System.currentTimeMillis();
+      if (!reusable || closed || transport.sent >= messagesPerConnection) {
+        transport.close();
+      } else {
+        idle.offer(transport);
+        if (closed && idle.remove(transport)) {
+          transport.close();
+        }
+      }
+    } finally {
+      connections.release();
+    }
+  }
+
+  private DomainState getDomainState(String domain) {
+    DomainState state = domains.get(domain);
+    if (state == null) {
+      DomainState newState = new DomainState();
+      state = domains.putIfAbsent(domain, newState);
+      if (state == null) {
+        state = newState;
+      }
+    }
+    return state;
+  }
+
+  static Map<String, List<Address>> groupByDomain(Address[] recipients) {
+    Map<String, List<Address>> byDomain = new LinkedHashMap<String, List<Address>>();
+    for (Address recipient : recipients) {
+      String domain = "";
+      if (recipient instanceof InternetAddress) {
+        String address = ((InternetAddress) recipient).getAddress();
+        int at = (address == null) ? -1 : address.lastIndexOf('@');
+        if (at >= 0) {
+          domain = address.substring(at + 1).toLowerCase();
+        }
+      }
+      List<Address> addresses = byDomain.get(domain);
+      if (addresses == null) {
+        addresses = new ArrayList<Address>();
+        byDomain.put(domain, addresses);
+      }
+      addresses.add(recipient);
+    }
+    return byDomain;
+  }
+
+  /**
+   * Find the SMTP reply code in an exception or its causes.
+   *
+   * @param e
+   * @return the reply code, or -1 if there is none.
+   */
+  static int getSmtpCode(Throwable e) {
+    String searchFor = "response:";
+    for (Throwable t = e; t != null; t = getNext(t)) {
+      String message = t.getMessage();
+      if (message == null) {
+        continue;
+      }
+      message = message.trim();
+      int code = parseCode(message, 0);
+      if (code < 0) {
+        int rindex = message.indexOf(searchFor);
+        if (rindex > -1) {
+          code = parseCode(message, rindex + searchFor.length());
+        }
+      }
+      if (code >= 0) {
+        return code;
+      }
+    }
+    return -1;
+  }
+
+  private static Throwable getNext(Throwable t) {
+    if (t instanceof MessagingException
+        && ((MessagingException) t).getNextException() != null) {
+      return ((MessagingException) t).getNextException();
+    }
+    return t.getCause();
+  }
+
+  private static int parseCode(String message, int start) {
+    while (start < message.length() && message.charAt(start) == ' ') {
+      start++;
+    }
+    if (message.length() < start + 3) {
+      return -1;
+    }
+    for (int i = start; i < start + 3; i++) {
+      if (!Character.isDigit(message.charAt(i))) {
+        return -1;
+      }
+    }
+    if (message.length() > start + 3 && Character.isDigit(message.charAt(start + 3))) {
+      return -1;
+    }
+    return Integer.parseInt(message.substring(start, start + 3));
+  }
+
+  /**
+   * The outcome of sending a message.
+   */
+  public static class Result {
+    private int delivered;
+    private final List<Failure> failures = new ArrayList<Failure>();
+
+    void fail(Address[] recipients, int code, String message) {
+      failures.add(new Failure(Arrays.asList(recipients), code, message));
+    }
+
+    /**
+     * @return true if every recipient was accepted by the server.
+     */
+    public boolean isDelivered() {
+      return failures.isEmpty();
+    }
+
+    /**
+     * @return the number of recipients the server accepted.
+     */
+    public int getDelivered() {
+      return delivered;
+    }
+
+    public List<Failure> getFailures() {
+      return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @return true if any of the failures may succeed if tried again later.
+     */
+    public boolean isRetryable() {
+      for (Failure failure : failures) {
+        if (failure.getCode() / 100 == 4) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * @return the recipients of the failures that may succeed if tried again later.
+     */
+    public List<Address> getRetryableRecipients() {
+      List<Address> recipients = new ArrayList<Address>();
+      for (Failure failure : failures) {
+        if (failure.getCode() / 100 == 4) {
+          recipients.addAll(failure.getRecipients());
+        }
+      }
+      return recipients;
+    }
+  }
+
+  /**
+   * Recipients that could not be delivered to and why.
+   */
+  public static class Failure {
+    private final List<Address> recipients;
+    private final int code;
+    private final String message;
+
+    Failure(List<Address> recipients, int code, String message) {
+      this.recipients = recipients;
+      this.code = code;
+      this.message = message;
+    }
+
+    public List<Address> getRecipients() {
+      return recipients;
+    }
+
+    /**
+     * @return the SMTP reply code, -1 if the server did not give one.
+     */
+    public int getCode() {
+      return code;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+  }
+
+  /**
+   * Rate limit and back off state for one recipient domain.
+   */
+  static class DomainState {
+    private long nextSend = System.nanoTime();
+    private int failures;
+    private long backoffUntil;
+
+    /**
+     * Reserve the next send slot.
+     *
+     * @return how long to wait for the slot, in ns.
+     */
+    synchronized long reserve(long interval) {
+      long now = System.nanoTime();
+      long at = Math.max(now, nextSend);
+      nextSend = at + interval;
+      return at - now;
+    }
+
+    synchronized boolean isBackingOff(long now) {
+      return now < backoffUntil;
+    }
+
+    synchronized void failed(long now, long base, long max) {
+      failures++;
+      long backoff = base << Math.min(failures - 1, 20);
+      backoffUntil = now + Math.min(backoff, max);
+    }
+
+    synchronized void succeeded() {
+      failures = 0;
+      backoffUntil = 0;
+    }
+  }
+
+  private static class PooledTransport {
+    private final Transport transport;
+    private int sent;
+    private long lastUsed = System.currentTimeMillis();
+
+    PooledTransport(Transport transport) {
+      this.transport = transport;
+    }
+
+    void close() {
+      try {
+        transport.close();
+      } catch (MessagingException e) {
+        LOGGER.debug("Failed to close SMTP connection: {}", e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,319 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.email.outgoing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.email.outgoing.SmtpDeliveryEngine.DomainState;
+import org.subethamail.wiser.Wiser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+public class SmtpDeliveryEngineTest {
+  private Wiser wiser;
+  private int port;
+
+  @Before
+  public void setUp() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    port = socket.getLocalPort();
+    socket.close();
+    wiser = new Wiser() {
+      @Override
+      public boolean accept(String from, String recipient) {
+        return !recipient.startsWith("nobody@");
+      }
+    };
+    wiser.setPort(port);
+    wiser.start();
+  }
+
+  @After
+  public void tearDown() {
+    wiser.stop();
+  }
+
+  @Test
+  public void testDeliversToAllRecipients() throws Exception {
+    SmtpDeliveryEngine engine = new SmtpDeliveryEngine("localhost", port, null, null, 2);
+    engine.setRecipientsPerTransaction(10);
+    MimeMessage message = createMessage(0);
+    for (int i = 0; i < 25; i++) {
+      message.addRecipient(RecipientType.BCC, new InternetAddress("user" + i + "@one.example.com"));
+      message.addRecipient(RecipientType.BCC, new InternetAddress("user" + i + "@two.example.com"));
+    }
+    SmtpDeliveryEngine.Result result = engine.send(message);
+    engine.close();
+
+    assertTrue(result.isDelivered());
+    assertEquals(50, result.getDelivered());
+    assertEquals(50, wiser.getMessages().size());
+  }
+
+  @Test
+  public void testRefusedRecipients() throws Exception {
+    SmtpDeliveryEngine engine = new SmtpDeliveryEngine("localhost", port, null, null, 1);
+    MimeMessage message = createMessage(0);
+    message.addRecipient(RecipientType.TO, new InternetAddress("somebody@example.com"));
+    message.addRecipient(RecipientType.CC, new InternetAddress("nobody@example.com"));
+    SmtpDeliveryEngine.Result result = engine.send(message);
+    engine.close();
+
+    assertFalse(result.isDelivered());
+    assertFalse(result.isRetryable());
+    assertEquals(1, result.getDelivered());
+    assertEquals(1, result.getFailures().size());
+    assertEquals(5, result.getFailures().get(0).getCode() / 100);
+    assertEquals(1, wiser.getMessages().size());
+  }
+
+  @Test
+  public void testRetryableRecipients() throws Exception {
+    SmtpDeliveryEngine.Result result = new SmtpDeliveryEngine.Result();
+    result.fail(InternetAddress.parse("a@one.org, b@one.org"), SmtpDeliveryEngine.DEFERRED,
+        "deferred");
+    result.fail(InternetAddress.parse("c@two.org"), 550, "no such user");
+
+    assertTrue(result.isRetryable());
+    List<Address> retry = result.getRetryableRecipients();
+    assertEquals(2, retry.size());
+    assertEquals("a@one.org", ((InternetAddress) retry.get(0)).getAddress());
+    assertEquals("b@one.org", ((InternetAddress) retry.get(1)).getAddress());
+  }
+
+  @Test
+  public void testConnectionsAreReused() throws Exception {
+    CountingRelay relay = new CountingRelay(port);
+    try {
+      sendConcurrently(relay.getPort(), 100, 100);
+    } finally {
+      relay.close();
+    }
+    // every message went over the few connections of the pool.
+    assertTrue(relay.sessions.get() >= 1);
+    assertTrue(relay.sessions.get() <= 4);
+  }
+
+  @Test
+  public void testUnreachableServerKeepsDeliveredRecipients() throws Exception {
+    CountingRelay relay = new CountingRelay(port);
+    relay.passOn = 1;
+    SmtpDeliveryEngine.Result result;
+    try {
+      SmtpDeliveryEngine engine = new SmtpDeliveryEngine("localhost", relay.getPort(), null,
+          null, 1);
+      engine.setMessagesPerConnection(1);
+      engine.setRecipientsPerTransaction(1);
+      MimeMessage message = createMessage(0);
+      message.addRecipients(RecipientType.TO,
+          InternetAddress.parse("a@one.example.com, b@two.example.com, c@two.example.com"));
+      result = engine.send(message);
+      engine.close();
+    } finally {
+      relay.close();
+    }
+
+    assertEquals(1, result.getDelivered());
+    assertEquals(1, wiser.getMessages().size());
+    // the second connection was greeted with a 421, the last recipient was not tried.
+    assertEquals(2, relay.sessions.get());
+    assertTrue(result.isRetryable());
+    List<Address> retry = result.getRetryableRecipients();
+    assertEquals(2, retry.size());
+    assertEquals("b@two.example.com", ((InternetAddress) retry.get(0)).getAddress());
+    assertEquals("c@two.example.com", ((InternetAddress) retry.get(1)).getAddress());
+  }
+
+  @Test
+  public void testGroupByDomain() throws Exception {
+    Address[] recipients = InternetAddress.parse("a@one.org, b@Two.org, c@one.org, d@two.org");
+    Map<String, List<Address>> byDomain = SmtpDeliveryEngine.groupByDomain(recipients);
+    assertEquals(2, byDomain.size());
+    assertEquals(2, byDomain.get("one.org").size());
+    assertEquals(2, byDomain.get("two.org").size());
+  }
+
+  @Test
+  public void testBackoffDoubles() {
+    DomainState state = new DomainState();
+    long now = System.currentTimeMillis();
+    state.failed(now, 1000, 60000);
+    assertTrue(state.isBackingOff(now + 999));
+    assertFalse(state.isBackingOff(now + 1000));
+    state.failed(now, 1000, 60000);
+    assertTrue(state.isBackingOff(now + 1999));
+    assertFalse(state.isBackingOff(now + 2000));
+    for (int i = 0; i < 30; i++) {
+      state.failed(now, 1000, 60000);
+    }
+    assertFalse(state.isBackingOff(now + 60000));
+    state.succeeded();
+    assertFalse(state.isBackingOff(now));
+  }
+
+  @Test
+  public void testDomainRate() {
+    DomainState state = new DomainState();
+    long interval = TimeUnit.MILLISECONDS.toNanos(10);
+    long wait = 0;
+    for (int i = 0; i < 10; i++) {
+      wait = state.reserve(interval);
+    }
+    // the tenth send has to wait for the nine before it.
+    assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(50));
+  }
+
+  private void sendConcurrently(int serverPort, int messagesPerConnection, int messages)
+      throws Exception {
+    final SmtpDeliveryEngine engine = new SmtpDeliveryEngine("localhost", serverPort, null,
+        null, 4);
+    engine.setMessagesPerConnection(messagesPerConnection);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<SmtpDeliveryEngine.Result>> results = new ArrayList<Future<SmtpDeliveryEngine.Result>>();
+      for (int i = 0; i < messages; i++) {
+        final MimeMessage message = createMessage(i);
+        message.addRecipient(RecipientType.TO, new InternetAddress("user" + i
+            + "@example.com"));
+        results.add(executor.submit(new Callable<SmtpDeliveryEngine.Result>() {
+          public SmtpDeliveryEngine.Result call() throws Exception {
+            return engine.send(message);
+          }
+        }));
+      }
+      for (Future<SmtpDeliveryEngine.Result> result : results) {
+        assertTrue(result.get().isDelivered());
+      }
+    } finally {
+      executor.shutdown();
+      engine.close();
+    }
+    assertEquals(messages, wiser.getMessages().size());
+  }
+
+  private MimeMessage createMessage(int i) throws Exception {
+    MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+    message.setFrom(new InternetAddress("no-reply@example.com"));
+    message.setSubject("Message " + i);
+    message.setText("A notification for a large group.");
+    return message;
+  }
+
+  /**
+   * Passes SMTP connections on to the Wiser sink and counts them. Connections past the
+   * first passOn are greeted with a 421 and closed.
+   */
+  private static class CountingRelay implements Runnable {
+    private final ServerSocket serverSocket;
+    private final int targetPort;
+    private final AtomicInteger sessions = new AtomicInteger();
+    private volatile int passOn = Integer.MAX_VALUE;
+
+    CountingRelay(int targetPort) throws IOException {
+      this.targetPort = targetPort;
+      serverSocket = new ServerSocket(0);
+      Thread thread = new Thread(this, "SMTP relay");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    public void run() {
+      try {
+        for (;;) {
+          Socket client = serverSocket.accept();
+          if (sessions.incrementAndGet() > passOn) {
+            client.getOutputStream().write(
+                "421 Service not available\r\n".getBytes("US-ASCII"));
+            client.close();
+            continue;
+          }
+          Socket server = new Socket("localhost", targetPort);
+          pipe(client, server);
+          pipe(server, client);
+        }
+      } catch (IOException e) {
+        // closed.
+      }
+    }
+
+    private static void pipe(final Socket from, final Socket to) {
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          byte[] buffer = new byte[8192];
+          try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+              out.write(buffer, 0, n);
+              out.flush();
+            }
+          } catch (IOException e) {
+            // the other side closed.
+          } finally {
+            closeQuietly(from);
+            closeQuietly(to);
+          }
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // already closed.
+      }
+    }
+  }
+}
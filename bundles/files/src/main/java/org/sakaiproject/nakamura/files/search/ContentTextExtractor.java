@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.tika.exception.TikaException;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts the text of pooled content bodies for indexing. Extracted text is cached
+ * against the identity of the body, so an indexing event that only changed metadata does
+ * not parse the body again. Parsing runs on a small pool of its own with a time limit per
+ * document, and bodies over a size limit are not parsed, so one bad file holds up the
+ * indexing queue for at most the time limit. A parser that is still running after the
+ * time limit can not always be stopped, so the pool gets a worker in its place until it
+ * finishes. Text is cut to the length that is indexed before it is cached, so the cache
+ * does not hold text that is never used.
+ */
+public class ContentTextExtractor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ContentTextExtractor.class);
+
+  /**
+   * Where the body of a content item is stored, changes every time a new body is saved.
+   */
+  static final String BODY_LOCATION_FIELD = "_bodyLocation";
+
+  static final String BODY_LASTMODIFIED_FIELD = "_bodyLastModified";
+
+  /**
+   * Cached in place of the text of bodies that could not be extracted, so they are not
+   * tried again until the body changes.
+   */
+  private static final String NO_TEXT = "";
+
+  private final TikaService tika;
+
+  private final Cache<String> textCache;
+
+  private final ThreadPoolExecutor executor;
+
+  private final int threads;
+
+  /**
+   * The number of workers added in place of parsers that were given up on but are still
+   * running.
+   */
+  private int stuck;
+
+  private final long timeout;
+
+  private final long maxBodyLength;
+
+  private final int maxTextLength;
+
+  /**
+   * @param tika
+   * @param textCache
+   *          holds extracted text keyed by body identity.
+   * @param threads
+   *          the number of bodies parsed at the same time.
+   * @param queueSize
+   *          the number of bodies waiting to be parsed before further bodies are indexed
+   *          without their text.
+   * @param timeout
+   *          the maximum time in ms to wait for the text of one body.
+   * @param maxBodyLength
+   *          bodies longer than this number of bytes are not parsed.
+   * @param maxTextLength
+   *          the number of characters of text kept from a body.
+   */
+  public ContentTextExtractor(TikaService tika, Cache<String> textCache, int threads,
+      int queueSize, long timeout, long maxBodyLength, int maxTextLength) {
+    this.tika = tika;
+    this.textCache = textCache;
+    this.timeout = timeout;
+    this.maxBodyLength = maxBodyLength;
+    this.maxTextLength = maxTextLength;
+    this.threads = threads;
+    final AtomicInteger threadNumber = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "PoolContentTextExtractor-"
+                + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @param contentManager
+   * @param content
+   * @return the text of the body of content, or null if there is no body or no text could
+   *         be extracted.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   * @throws IOException
+   */
+  public String getText(ContentManager contentManager, Content content)
+      throws StorageClientException, AccessDeniedException, IOException {
+    String key = getBodyKey(content);
+    if (key != null) {
+      String text = textCache.get(key);
+      if (text != null) {
+        LOGGER.debug("Using extracted text for unchanged body of {} ", content.getPath());
+        return NO_TEXT.equals(text) ? null : text;
+      }
+    }
+    Object length = content.getProperty(Content.LENGTH_FIELD);
+    if (length instanceof Number && ((Number) length).longValue() > maxBodyLength) {
+      LOGGER.info("Not extracting text from {}, body of {} bytes is over the limit of {} ",
+          new Object[] { content.getPath(), length, maxBodyLength });
+      cache(key, null);
+      return null;
+    }
+    final InputStream contentStream = contentManager.getInputStream(content.getPath());
+    if (contentStream == null) {
+      return null;
+    }
+    Extraction extraction = new Extraction(contentStream);
+    Future<String> future;
+    try {
+      future = executor.submit(extraction);
+    } catch (RejectedExecutionException e) {
+      // not cached, the next change to this item will try again.
+      IOUtils.closeQuietly(contentStream);
+      LOGGER.warn("Text extraction queue is full, indexing {} without its text ",
+          content.getPath());
+      return null;
+    }
+    try {
+      String text = future.get(timeout, TimeUnit.MILLISECONDS);
+      if (text != null && text.length() > maxTextLength) {
+        // copied, so the full text is not kept alive by the substring.
+        text = new String(text.substring(0, maxTextLength));
+      }
+      cache(key, text);
+      return text;
+    } catch (TimeoutException e) {
+      LOGGER.warn("Gave up extracting text from {} after {} ms ", content.getPath(),
+          timeout);
+      future.cancel(true);
+      // most parsers stop quickly once their input goes away.
+      IOUtils.closeQuietly(contentStream);
+      if (extraction.started.get()) {
+        // the body itself is the problem, rather than a busy pool.
+        cache(key, null);
+        extraction.abandon();
+      }
+    } catch (ExecutionException e) {
+      LOGGER.warn(e.getCause().getMessage(), e.getCause());
+      cache(key, null);
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+    }
+    return null;
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * @return a key that changes whenever a new body is saved, or null if the content does
+   *         not carry enough information to identify its body.
+   */
+  static String getBodyKey(Content content) {
+    Object location = content.getProperty(BODY_LOCATION_FIELD);
+    Object lastModified = content.getProperty(BODY_LASTMODIFIED_FIELD);
+    if (location == null && lastModified == null) {
+      return null;
+    }
+    return content.getPath() + "@" + location + ":" + lastModified + ":"
+        + content.getProperty(Content.LENGTH_FIELD);
+  }
+
+  private void cache(String key, String text) {
+    if (key != null) {
+      textCache.put(key, text == null ? NO_TEXT : text);
+    }
+  }
+
+  /**
+   * Add a worker in place of one held by a parser that was given up on, or take it back
+   * once that parser finishes. No more than the configured number of workers are added,
+   * so parsers that never finish can not take an unbounded number of threads.
+   *
+   * @return true if the pool was resized.
+   */
+  private synchronized boolean resize(int delta) {
+    if (delta > 0 && stuck >= threads) {
+      LOGGER.warn("{} text extraction workers are held by parsers that were given up on ",
+          stuck);
+      return false;
+    }
+    stuck += delta;
+    int size = threads + stuck;
+    // the maximum may never be below the core size.
+    if (delta > 0) {
+      executor.setMaximumPoolSize(size);
+      executor.setCorePoolSize(size);
+    } else {
+      executor.setCorePoolSize(size);
+      executor.setMaximumPoolSize(size);
+    }
+    return true;
+  }
+
+  /**
+   * Parses one body. Locks on itself before the extractor when resizing the pool.
+   */
+  private class Extraction implements Callable<String> {
+    private final InputStream contentStream;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private boolean finished;
+    private boolean abandoned;
+
+    private Extraction(InputStream contentStream) {
+      this.contentStream = contentStream;
+    }
+
+    public String call() throws IOException, TikaException {
+      started.set(true);
+      try {
+        return tika.parseToString(contentStream);
+      } finally {
+        IOUtils.closeQuietly(contentStream);
+        synchronized (this) {
+          finished = true;
+          if (abandoned) {
+            resize(-1);
+          }
+        }
+      }
+    }
+
+    /**
+     * Give the pool another worker if this parse is still holding one.
+     */
+    synchronized void abandon() {
+      if (!finished && !abandoned) {
+        abandoned = resize(1);
+      }
+    }
+  }
+}
@@ -28,10 +28,11 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.solr.common.SolrInputDocument;
-import org.apache.tika.exception.TikaException;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
@@ -44,6 +45,9 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.lite.util.Iterables;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.solr.IndexingHandler;
 import org.sakaiproject.nakamura.api.solr.RepositorySession;
 import org.sakaiproject.nakamura.api.solr.ResourceIndexingService;
@@ -52,7 +56,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -81,6 +84,28 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
   @Reference
   private TikaService tika;
 
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
+  static final String TEXT_CACHE = PoolContentResourceTypeHandler.class.getName() + "-text";
+
+  @Property(intValue = 2)
+  static final String EXTRACTION_THREADS = "extraction.threads";
+
+  @Property(intValue = 100)
+  static final String EXTRACTION_QUEUE = "extraction.queue";
+
+  @Property(longValue = 30000)
+  static final String EXTRACTION_TIMEOUT = "extraction.timeout";
+
+  @Property(longValue = 52428800)
+  static final String EXTRACTION_MAX_LENGTH = "extraction.max.length";
+
+  @Property(intValue = 100000)
+  static final String EXTRACTION_MAX_TEXT = "extraction.max.text";
+
+  private ContentTextExtractor textExtractor;
+
   private static Map<String, String> getFieldMap() {
     Builder<String, String> builder = ImmutableMap.builder();
     builder.put(FilesConstants.POOLED_CONTENT_USER_MANAGER, "manager");
@@ -108,6 +133,13 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
 
   @Activate
   public void activate(Map<String, Object> properties) throws Exception {
+    Cache<String> textCache = cacheManagerService.getCache(TEXT_CACHE, CacheScope.INSTANCE);
+    textExtractor = new ContentTextExtractor(tika, textCache,
+        OsgiUtil.toInteger(properties.get(EXTRACTION_THREADS), 2),
+        OsgiUtil.toInteger(properties.get(EXTRACTION_QUEUE), 100),
+        OsgiUtil.toLong(properties.get(EXTRACTION_TIMEOUT), 30000),
+        OsgiUtil.toLong(properties.get(EXTRACTION_MAX_LENGTH), 52428800),
+        OsgiUtil.toInteger(properties.get(EXTRACTION_MAX_TEXT), 100000));
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.addHandler(type, this);
     }
@@ -118,6 +150,10 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
     for (String type : CONTENT_TYPES) {
       resourceIndexingService.removeHandler(type, this);
     }
+    if (textExtractor != null) {
+      textExtractor.shutdown();
+      textExtractor = null;
+    }
   }
 
   // ---------- IndexingHandler interface --------------------------------------
@@ -166,14 +202,9 @@ public class PoolContentResourceTypeHandler implements IndexingHandler {
               }
             }
 
-            InputStream contentStream = contentManager.getInputStream(path);
-            if (contentStream != null) {
-              try {
-                String extracted = tika.parseToString(contentStream);
-                doc.addField("content", extracted);
-              } catch (TikaException e) {
-                LOGGER.warn(e.getMessage(), e);
-              }
+            String extracted = textExtractor.getText(contentManager, content);
+            if (extracted != null) {
+              doc.addField("content", extracted);
             }
 
             doc.addField(_DOC_SOURCE_OBJECT, content);
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.files.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.tika.TikaService;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class ContentTextExtractorTest {
+  private TikaService tika;
+  private ContentManager contentManager;
+  private MapCacheImpl<String> textCache;
+  private ContentTextExtractor extractor;
+
+  @Before
+  public void setUp() throws Exception {
+    tika = mock(TikaService.class);
+    contentManager = mock(ContentManager.class);
+    when(contentManager.getInputStream(anyString())).thenAnswer(new Answer<InputStream>() {
+      public InputStream answer(InvocationOnMock invocation) throws Throwable {
+        return new ByteArrayInputStream(new byte[10]);
+      }
+    });
+    when(tika.parseToString(any(InputStream.class))).thenReturn("extracted text");
+    textCache = new MapCacheImpl<String>();
+    extractor = new ContentTextExtractor(tika, textCache, 2, 10, 200, 1000, 20);
+  }
+
+  @After
+  public void tearDown() {
+    extractor.shutdown();
+  }
+
+  @Test
+  public void testMetadataChangeSkipsExtraction() throws Exception {
+    Content content = pooledContent("p1", "2011/5/aa", 1L, 100L);
+    assertEquals("extracted text", extractor.getText(contentManager, content));
+    content.setProperty("sakai:tags", new String[] { "renamed" });
+    assertEquals("extracted text", extractor.getText(contentManager, content));
+    verify(tika, times(1)).parseToString(any(InputStream.class));
+
+    // a new body is extracted again.
+    content = pooledContent("p1", "2011/5/bb", 2L, 100L);
+    extractor.getText(contentManager, content);
+    verify(tika, times(2)).parseToString(any(InputStream.class));
+  }
+
+  @Test
+  public void testLargeBodyIsNotParsed() throws Exception {
+    assertNull(extractor.getText(contentManager, pooledContent("p2", "2011/5/cc", 1L, 5000L)));
+    verify(tika, never()).parseToString(any(InputStream.class));
+  }
+
+  @Test
+  public void testSlowBodyTimesOut() throws Exception {
+    final CountDownLatch parsing = new CountDownLatch(1);
+    when(tika.parseToString(any(InputStream.class))).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) throws Throwable {
+        parsing.await();
+        return "too late";
+      }
+    });
+    Content content = pooledContent("p3", "2011/5/dd", 1L, 100L);
+    try {
+      // the parse can't finish until the extractor has given up on it.
+      assertNull(extractor.getText(contentManager, content));
+      // the same body is not tried again.
+      assertNull(extractor.getText(contentManager, content));
+      verify(tika, times(1)).parseToString(any(InputStream.class));
+    } finally {
+      parsing.countDown();
+    }
+  }
+
+  @Test
+  public void testStuckParserDoesNotHoldTheOnlyWorker() throws Exception {
+    extractor.shutdown();
+    extractor = new ContentTextExtractor(tika, textCache, 1, 10, 200, 1000, 20);
+    final CountDownLatch parsing = new CountDownLatch(1);
+    final AtomicInteger calls = new AtomicInteger();
+    when(tika.parseToString(any(InputStream.class))).thenAnswer(new Answer<String>() {
+      public String answer(InvocationOnMock invocation) throws Throwable {
+        if (calls.getAndIncrement() == 0) {
+          // a parser caught in a loop, deaf to interrupts.
+          while (parsing.getCount() > 0) {
+            try {
+              parsing.await();
+            } catch (InterruptedException e) {
+              // ignored.
+            }
+          }
+        }
+        return "extracted text";
+      }
+    });
+    try {
+      assertNull(extractor.getText(contentManager, pooledContent("p5", "2011/5/ff", 1L,
+          100L)));
+      assertEquals("extracted text", extractor.getText(contentManager, pooledContent("p6",
+          "2011/5/gg", 1L, 100L)));
+    } finally {
+      parsing.countDown();
+    }
+  }
+
+  @Test
+  public void testLongTextIsCutToIndexedLength() throws Exception {
+    when(tika.parseToString(any(InputStream.class))).thenReturn(
+        "text that is longer than what gets indexed");
+    Content content = pooledContent("p4", "2011/5/ee", 1L, 100L);
+    assertEquals("text that is longer ", extractor.getText(contentManager, content));
+    assertEquals("text that is longer ",
+        textCache.get(ContentTextExtractor.getBodyKey(content)));
+  }
+
+  @Test
+  public void testMetadataChurnParsesEachBodyOnce() throws Exception {
+    int documents = 50;
+    int changes = 10;
+    for (int c = 0; c < changes; c++) {
+      for (int d = 0; d < documents; d++) {
+        extractor.getText(contentManager,
+            pooledContent("doc" + d, "2011/5/" + d, 1L, 100L * (d % 10 + 1)));
+      }
+    }
+    verify(tika, times(documents)).parseToString(any(InputStream.class));
+  }
+
+  private Content pooledContent(String path, String bodyLocation, long bodyLastModified,
+      long length) {
+    return new Content(path, ImmutableMap.of("sling:resourceType",
+        (Object) "sakai/pooled-content", ContentTextExtractor.BODY_LOCATION_FIELD,
+        bodyLocation, ContentTextExtractor.BODY_LASTMODIFIED_FIELD, bodyLastModified,
+        Content.LENGTH_FIELD, length));
+  }
+}
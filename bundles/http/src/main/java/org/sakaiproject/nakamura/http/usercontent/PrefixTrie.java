@@ -0,0 +1,101 @@
+package org.sakaiproject.nakamura.http.usercontent;
+
+import java.util.Arrays;
+
+/**
+ * An immutable character trie of string stems, answering whether any stem is a prefix of
+ * a string in time proportional to the length of the string rather than the number of
+ * stems. It has the same semantics as testing <code>s.startsWith(stem)</code> against
+ * each stem in turn.
+ */
+final class PrefixTrie {
+
+  private static final char[] NO_KEYS = new char[0];
+  private static final Node[] NO_NODES = new Node[0];
+
+  private final Node root = new Node();
+  private final String[] stems;
+
+  PrefixTrie(String... stems) {
+    this.stems = stems.clone();
+    for (String stem : stems) {
+      if (stem != null) {
+        add(stem);
+      }
+    }
+  }
+
+  /**
+   * @param s
+   * @return the shortest stem that s starts with, or null if there is none.
+   */
+  String findPrefixOf(String s) {
+    if (s == null) {
+      return null;
+    }
+    Node node = root;
+    for (int i = 0; node.stem == null && i < s.length(); i++) {
+      node = node.child(s.charAt(i));
+      if (node == null) {
+        return null;
+      }
+    }
+    return node.stem;
+  }
+
+  /**
+   * @param s
+   * @return true if s starts with any of the stems.
+   */
+  boolean matchesPrefixOf(String s) {
+    return findPrefixOf(s) != null;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(stems);
+  }
+
+  private void add(String stem) {
+    Node node = root;
+    for (int i = 0; i < stem.length(); i++) {
+      node = node.addChild(stem.charAt(i));
+    }
+    node.stem = stem;
+  }
+
+  /**
+   * Children are held in a sorted char array alongside the child nodes, which keeps the
+   * nodes small and avoids boxing on lookup.
+   */
+  private static final class Node {
+    private char[] keys = NO_KEYS;
+    private Node[] children = NO_NODES;
+    private String stem;
+
+    private Node child(char c) {
+      int i = Arrays.binarySearch(keys, c);
+      return i < 0 ? null : children[i];
+    }
+
+    private Node addChild(char c) {
+      int i = Arrays.binarySearch(keys, c);
+      if (i >= 0) {
+        return children[i];
+      }
+      i = -i - 1;
+      char[] newKeys = new char[keys.length + 1];
+      Node[] newChildren = new Node[children.length + 1];
+      System.arraycopy(keys, 0, newKeys, 0, i);
+      System.arraycopy(children, 0, newChildren, 0, i);
+      System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+      System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+      Node node = new Node();
+      newKeys[i] = c;
+      newChildren[i] = node;
+      keys = newKeys;
+      children = newChildren;
+      return node;
+    }
+  }
+}
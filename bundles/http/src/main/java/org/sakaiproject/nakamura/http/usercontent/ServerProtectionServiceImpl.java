@@ -37,7 +37,6 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Map;
@@ -151,13 +150,13 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
    */
   private Set<String> safeHosts;
   /**
-   * List of referer stems its safe to accept non GET operations from
+   * Referer stems its safe to accept non GET operations from
    */
-  private String[] safeReferers;
+  private PrefixTrie safeReferers;
   /**
-   * List of path stems its safe to stream content bodies from using a trusted host
+   * Path stems its safe to stream content bodies from using a trusted host
    */
-  private String[] safeToStreamPaths;
+  private PrefixTrie safeToStreamPaths;
   /**
    * List of path stems its safe to stream content bodies from using a trusted host
    */
@@ -176,18 +175,19 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
    */
   private String contentRedirectHost;
   /**
-   * Array of keys created from the secret, indexed by the second digit of the timestamp
+   * Macs initialised with the ring of keys created from the secret, indexed by the last
+   * digit of the timestamp
    */
-  private Key[] transferKeys;
+  private TransferMacs transferMacs;
   /**
-   * List of url stems that are always Ok to accept posts from on any URL (eg
+   * Url stems that are always Ok to accept posts from on any URL (eg
    * /system/console). You will want to add additional protection on these.
    */
-  private String[] postWhiteList;
+  private PrefixTrie postWhiteList;
   /**
-   * list of paths where its safe for anon to post to.
+   * Path stems where its safe for anon to post to.
    */
-  private String[] safeForAnonToPostPaths;
+  private PrefixTrie safeForAnonToPostPaths;
 
   @Reference(cardinality = ReferenceCardinality.OPTIONAL_MULTIPLE, policy = ReferencePolicy.DYNAMIC, strategy = ReferenceStrategy.EVENT, bind = "bindServerProtectionValidator", unbind = "unbindServerProtectionValidator")
   private ServerProtectionValidator[] serverProtectionValidators = new ServerProtectionValidator[0];
@@ -215,20 +215,20 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     }
     safeHosts = ImmutableSet.of(OsgiUtil.toStringArray(
         properties.get(TRUSTED_HOSTS_CONF), DEFAULT_TRUSTED_HOSTS));
-    safeReferers = OsgiUtil.toStringArray(properties.get(TRUSTED_REFERER_CONF),
-        DEFAULT_TRUSTED_REFERERS);
-    safeToStreamPaths = OsgiUtil.toStringArray(properties.get(TRUSTED_PATHS_CONF),
-        DEFAULT_TRUSTED_PATHS);
+    safeReferers = new PrefixTrie(OsgiUtil.toStringArray(
+        properties.get(TRUSTED_REFERER_CONF), DEFAULT_TRUSTED_REFERERS));
+    safeToStreamPaths = new PrefixTrie(OsgiUtil.toStringArray(
+        properties.get(TRUSTED_PATHS_CONF), DEFAULT_TRUSTED_PATHS));
     safeToStreamExactPaths = ImmutableSet.of(OsgiUtil.toStringArray(
         properties.get(TRUSTED_EXACT_PATHS_CONF), DEFAULT_TRUSTED_EXACT_PATHS));
     contentUrl = OsgiUtil.toString(properties.get(UNTRUSTED_CONTENTURL_CONF),
         DEFAULT_UNTRUSTED_CONTENT_URL);
     contentRedirectHost = OsgiUtil.toString(properties.get(UNTRUSTED_REDIRECT_HOST),
         "");
-    postWhiteList = OsgiUtil.toStringArray(
-        properties.get(WHITELIST_POST_PATHS_CONF), DEFAULT_WHITELIST_POST_PATHS);
-    safeForAnonToPostPaths = OsgiUtil.toStringArray(
-        properties.get(ANON_WHITELIST_POST_PATHS_CONF), DEFAULT_ANON_WHITELIST_POST_PATHS);
+    postWhiteList = new PrefixTrie(OsgiUtil.toStringArray(
+        properties.get(WHITELIST_POST_PATHS_CONF), DEFAULT_WHITELIST_POST_PATHS));
+    safeForAnonToPostPaths = new PrefixTrie(OsgiUtil.toStringArray(
+        properties.get(ANON_WHITELIST_POST_PATHS_CONF), DEFAULT_ANON_WHITELIST_POST_PATHS));
     String transferSharedSecret = OsgiUtil.toString(properties.get(TRUSTED_SECRET_CONF),
         DEFAULT_TRUSTED_SECRET_VALUE);
     if (DEFAULT_TRUSTED_SECRET_VALUE.equals(transferSharedSecret)) {
@@ -239,15 +239,15 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     }
 
     LOGGER.info("Trusted Hosts {}",safeHosts);
-    LOGGER.info("Trusted Referers {} ",Arrays.toString(safeReferers));
-    LOGGER.info("Trusted Stream Paths {} ",Arrays.toString(safeToStreamPaths));
+    LOGGER.info("Trusted Referers {} ",safeReferers);
+    LOGGER.info("Trusted Stream Paths {} ",safeToStreamPaths);
     LOGGER.info("Trusted Stream Resources {} ",safeToStreamExactPaths);
     LOGGER.info("POST Whitelist {} ",postWhiteList);
     LOGGER.info("Content Host {} ",contentUrl);
     LOGGER.info("Content Redirect Host {} ",contentRedirectHost);
     LOGGER.info("Content Shared Secret [{}] ",transferSharedSecret);
 
-    transferKeys = new Key[10];
+    Key[] transferKeys = new Key[10];
     MessageDigest md = MessageDigest.getInstance("SHA-512");
     Base64 encoder = new Base64(true);
     byte[] input = transferSharedSecret.getBytes("UTF-8");
@@ -259,6 +259,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
       transferKeys[i] = new SecretKeySpec(data, HMAC_SHA512);
       input = encoder.encode(data);
     }
+    transferMacs = new TransferMacs(transferKeys);
 
     bundleContext = componentContext.getBundleContext();
     ServiceReference[] srs = bundleContext.getAllServiceReferences(
@@ -312,14 +313,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
       String userId = srequest.getRemoteUser();
       if ( User.ANON_USER.equals(userId) ) {
         String path = srequest.getRequestURI();
-        boolean safeForAnonToPost = false;
-        for (String safePath : safeForAnonToPostPaths) {
-          if (path.startsWith(safePath)) {
-            safeForAnonToPost = true;
-            break;
-          }
-        }
-        if ( ! safeForAnonToPost ) {
+        if ( !safeForAnonToPostPaths.matchesPrefixOf(path) ) {
           sresponse.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Anon users may not perform POST operations");
           return false;
         }
@@ -337,12 +331,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
         safeToStream = safeToStreamExactPaths.contains(path);
         if (!safeToStream) {
           LOGGER.debug("Checking [{}] looks like not safe to stream ", path );
-          for (String safePath : safeToStreamPaths) {
-            if (path.startsWith(safePath)) {
-              safeToStream = true;
-              break;
-            }
-          }
+          safeToStream = safeToStreamPaths.matchesPrefixOf(path);
           if (!safeToStream) {
             Resource resource = srequest.getResource();
             if ( resource != null ) {
@@ -430,8 +419,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
         try {
           long ts = System.currentTimeMillis();
           int keyIndex = (int) (ts - ((ts / 10) * 10));
-          Mac m = Mac.getInstance(HMAC_SHA512);
-          m.init(transferKeys[keyIndex]);
+          Mac m = transferMacs.get(keyIndex);
 
           String message = finalUrl + ";" + userId + ";" + ts;
           m.update(message.getBytes("UTF-8"));
@@ -480,8 +468,7 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
           long requestTsL = Long.parseLong(requestTs);
           if (Math.abs(System.currentTimeMillis() - requestTsL) < 60000L) {
             int keyIndex = (int) (requestTsL - ((requestTsL / 10) * 10));
-            Mac m = Mac.getInstance(HMAC_SHA512);
-            m.init(transferKeys[keyIndex]);
+            Mac m = transferMacs.get(keyIndex);
             m.update(message.getBytes("UTF-8"));
             String testHmac = Base64.encodeBase64URLSafeString(m.doFinal());
             if (testHmac.equals(requestHmac)) {
@@ -518,10 +505,8 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     // and no flash bug.
     if (!("GET".equals(method) || "HEAD".equals(method))) {
       String path = hrequest.getRequestURI();
-      for (String okPostStem : postWhiteList) {
-        if (path.startsWith(okPostStem)) {
-          return true;
-        }
+      if (postWhiteList.matchesPrefixOf(path)) {
+        return true;
       }
       // check the Referer
       @SuppressWarnings("unchecked")
@@ -544,15 +529,12 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
       // Do we allow non get operations to this host ?
       if (safeHost) {
         // and if we do, do we accept them from the Referer mentioned ?
-        safeHost = false;
-        for (String safeReferer : safeReferers) {
-          if (referer.startsWith(safeReferer)) {
-            safeHost = true;
-            LOGGER.debug("Accepted referred {}  {}", safeReferer, referer);
-            break;
-          } else {
-            LOGGER.debug("Rejecting referred {}  {}", safeReferer, referer);
-          }
+        String safeReferer = safeReferers.findPrefixOf(referer);
+        safeHost = safeReferer != null;
+        if (safeHost) {
+          LOGGER.debug("Accepted referred {}  {}", safeReferer, referer);
+        } else {
+          LOGGER.debug("Rejecting referred {}  {}", safeReferers, referer);
         }
       }
       if (!safeHost) {
@@ -585,6 +567,45 @@ public class ServerProtectionServiceImpl implements ServerProtectionService {
     return safeHosts.contains(requestHost);
   }
 
+  /**
+   * Initialised Macs for each transfer key, kept per thread as creating and initialising a
+   * Mac costs far more than the digest of a url.
+   */
+  private static class TransferMacs {
+    private final Key[] keys;
+    private final ThreadLocal<Mac[]> macs;
+
+    TransferMacs(final Key[] keys) {
+      this.keys = keys;
+      macs = new ThreadLocal<Mac[]>() {
+        @Override
+        protected Mac[] initialValue() {
+          return new Mac[keys.length];
+        }
+      };
+    }
+
+    /**
+     * @param keyIndex
+     * @return a Mac for the key, ready for use by the current thread.
+     * @throws NoSuchAlgorithmException
+     * @throws InvalidKeyException
+     */
+    Mac get(int keyIndex) throws NoSuchAlgorithmException, InvalidKeyException {
+      Mac[] threadMacs = macs.get();
+      Mac m = threadMacs[keyIndex];
+      if (m == null) {
+        m = Mac.getInstance(HMAC_SHA512);
+        m.init(keys[keyIndex]);
+        threadMacs[keyIndex] = m;
+      } else {
+        // in case an earlier use failed part way through.
+        m.reset();
+      }
+      return m;
+    }
+  }
+
   public void bindServerProtectionValidator(ServiceReference serviceReference) {
     if (bundleContext != null) {
       serverProtectionValidatorsStore.put(serviceReference,
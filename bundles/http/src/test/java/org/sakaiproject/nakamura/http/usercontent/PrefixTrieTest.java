@@ -0,0 +1,39 @@
+package org.sakaiproject.nakamura.http.usercontent;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrefixTrieTest {
+
+  @Test
+  public void testMatchesLikeStartsWith() {
+    String[] stems = { "/dev", "/devwidgets", "/system", "/logout", "http://localhost:8080" };
+    PrefixTrie trie = new PrefixTrie(stems);
+    String[] paths = { "/dev", "/devwidgets/x.html", "/developer", "/de", "/system/console",
+        "/sys", "/p/abc", "", "http://localhost:8080/index.html", "http://localhost:8082/",
+        "/logout" };
+    for (String path : paths) {
+      boolean expected = false;
+      for (String stem : stems) {
+        expected = expected || path.startsWith(stem);
+      }
+      Assert.assertEquals(path, expected, trie.matchesPrefixOf(path));
+    }
+    Assert.assertFalse(trie.matchesPrefixOf(null));
+  }
+
+  @Test
+  public void testFindShortestPrefix() {
+    PrefixTrie trie = new PrefixTrie("/dev", "/devwidgets");
+    Assert.assertEquals("/dev", trie.findPrefixOf("/devwidgets/x.html"));
+    Assert.assertNull(trie.findPrefixOf("/p/dev"));
+  }
+
+  @Test
+  public void testEmptyStemMatchesEverything() {
+    PrefixTrie trie = new PrefixTrie("", "/dev");
+    Assert.assertTrue(trie.matchesPrefixOf("anything"));
+    Assert.assertTrue(trie.matchesPrefixOf(""));
+    Assert.assertFalse(new PrefixTrie().matchesPrefixOf(""));
+  }
+}
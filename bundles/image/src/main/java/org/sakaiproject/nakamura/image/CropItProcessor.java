@@ -25,7 +25,6 @@ import org.apache.sanselan.ImageInfo;
 import org.apache.sanselan.ImageReadException;
 import org.apache.sanselan.ImageWriteException;
 import org.apache.sanselan.Sanselan;
-import org.apache.sanselan.util.IOUtils;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.sakaiproject.nakamura.api.jcr.JCRConstants;
@@ -41,15 +40,24 @@ import org.slf4j.LoggerFactory;
 
 import java.awt.Dimension;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.PathNotFoundException;
@@ -60,6 +68,15 @@ public class CropItProcessor {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(CropItProcessor.class);
 
+  /**
+   * ImageIO format name -> the name to write scaled images with, for the formats decoded
+   * straight from the stream.
+   */
+  private static final Map<String, String> STREAMED_FORMATS = ImmutableMap.of("jpeg", "jpg",
+      "png", "png");
+
+  private static final int BYTES_PER_PIXEL = 4;
+
   /**
    *
    * @param session
@@ -88,6 +105,18 @@ public class CropItProcessor {
    */
   public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
       List<Dimension> dimensions, String img, String save) throws ImageException, StorageClientException, AccessDeniedException {
+    return crop(resourceResolver, x, y, width, height, dimensions, img, save, null);
+  }
+
+  /**
+   * As {@link #crop(ResourceResolver, int, int, int, int, List, String, String)}, reserving
+   * the memory needed to decode the image from a budget shared with other crops.
+   *
+   * @param budget
+   *          the memory budget, or null to decode without limit.
+   */
+  public static String[] crop(ResourceResolver resourceResolver, int x, int y, int width, int height,
+      List<Dimension> dimensions, String img, String save, ImageMemoryBudget budget) throws ImageException, StorageClientException, AccessDeniedException {
 
     Session session = StorageClientUtils.adaptToSession(resourceResolver.adaptTo(javax.jcr.Session.class));
     ContentManager contentManager = session.getContentManager();
@@ -126,54 +155,30 @@ public class CropItProcessor {
 
       }
 
+        if ( in == null ) {
+          throw new ImageException(406, "Can't parse this format.  Image "+img+", mime Type "+mimeType);
+        }
         if ( in.available() > 100L*1024L*1024L ) {
           throw new ImageException(406, "Image "+img+" too large to crop > 100MB Si "+in.available());
         }
         try {
 
-          // NOTE: I'd prefer to use the InputStream, but I don't see a way to get the
-          // ImageInfo _and_ the BufferedImage.
-          // I've tried using a BufferedInputStream which allows you to reset, but for BMP
-          // this doesn't help.
-          byte[] bytes = IOUtils.getInputStreamBytes(in);
-          ImageInfo info = Sanselan.getImageInfo(bytes);
-          BufferedImage imgBuf = getBufferedImage(bytes, info);
-
-          // Set the correct width & height.
-          width = (width <= 0) ? info.getWidth() : width;
-          height = (height <= 0) ? info.getHeight() : height;
-
-          if (x + width > info.getWidth()) {
-            width = info.getWidth() - x;
-          }
-          if (y + height > info.getHeight()) {
-            height = info.getHeight() - y;
-          }
+          ScaledImages scaled = scale(in, x, y, width, height, dimensions, budget);
 
-          // Cut the desired piece out of the image.
-          BufferedImage subImage = imgBuf.getSubimage(x, y, width, height);
-
-          // Loop the dimensions and create and save an image for each
-          // one.
+          // Save an image for each dimension.
           for (int i = 0; i < dimensions.size(); i++) {
 
-            Dimension d = dimensions.get(i);
-
-            // get dimension size
+            Dimension d = scaled.getSize(i);
             int iWidth = d.width;
             int iHeight = d.height;
 
-            iWidth = (iWidth <= 0) ? info.getWidth() : iWidth;
-            iHeight = (iHeight <= 0) ? info.getHeight() : iHeight;
-
-            // Create the image.
-            byte[] image = scaleAndWriteToByteArray(iWidth, iHeight, subImage, imgName, info);
+            byte[] image = scaled.getImage(i);
 
             if ( image != null ) {
 
               String sPath = save + "/" + iWidth + "x" + iHeight + "_" + imgName;
               // Save new image to JCR.
-              saveImageToContentStore(sPath, info.getMimeType(), image, session);
+              saveImageToContentStore(sPath, scaled.getMimeType(), image, session);
 
               arrFiles[i] = sPath;
             } else {
@@ -217,6 +222,271 @@ public class CropItProcessor {
     return arrFiles;
   }
 
+  /**
+   * Cut a piece out of an image and scale it to each of the dimensions, decoding the
+   * image once for all of them.
+   * <p>
+   * JPEG and PNG images are decoded straight from the stream, reading only the crop area
+   * and skipping pixels when the largest dimension is less than half of that area. Other
+   * formats are read into memory and decoded in full by Sanselan.
+   * </p>
+   *
+   * @param in
+   *          The image body.
+   * @param budget
+   *          the memory budget to reserve the decoded image from, or null for no limit.
+   * @return the scaled images, in the order of the dimensions.
+   * @throws IOException
+   * @throws ImageReadException
+   * @throws ImageWriteException
+   * @throws ImageException
+   */
+  protected static ScaledImages scale(InputStream in, int x, int y, int width, int height,
+      List<Dimension> dimensions, ImageMemoryBudget budget) throws IOException,
+      ImageReadException, ImageWriteException, ImageException {
+    ImageInputStream iis = ImageIO.createImageInputStream(in);
+    if (iis == null) {
+      throw new IOException("Unable to create an image input stream.");
+    }
+    try {
+      ImageReader reader = getStreamingReader(iis);
+      if (reader == null) {
+        // the probe for a reader only marks and resets the stream.
+        iis.seek(0);
+        return scaleBuffered(readFully(iis), x, y, width, height, dimensions, budget);
+      }
+      try {
+        reader.setInput(iis, true, true);
+        return scaleStreamed(reader, x, y, width, height, dimensions, budget);
+      } finally {
+        reader.dispose();
+      }
+    } finally {
+      iis.close();
+    }
+  }
+
+  /**
+   * @return an ImageIO reader for the formats that are decoded from the stream, or null
+   *         if the image has some other format.
+   */
+  private static ImageReader getStreamingReader(ImageInputStream iis) throws IOException {
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+    while (readers.hasNext()) {
+      ImageReader reader = readers.next();
+      if (STREAMED_FORMATS.containsKey(reader.getFormatName().toLowerCase())) {
+        return reader;
+      }
+    }
+    return null;
+  }
+
+  private static ScaledImages scaleStreamed(ImageReader reader, int x, int y, int width,
+      int height, List<Dimension> dimensions, ImageMemoryBudget budget) throws IOException,
+      ImageException {
+    int sourceWidth = reader.getWidth(0);
+    int sourceHeight = reader.getHeight(0);
+    Rectangle region = getRegion(x, y, width, height, sourceWidth, sourceHeight);
+    Dimension[] sizes = getSizes(dimensions, sourceWidth, sourceHeight);
+
+    int largestWidth = 1;
+    int largestHeight = 1;
+    for (Dimension size : sizes) {
+      largestWidth = Math.max(largestWidth, size.width);
+      largestHeight = Math.max(largestHeight, size.height);
+    }
+    // keep at least twice the largest size so the last scaling step still blends
+    // neighbouring pixels, skipping pixels on its own would alias.
+    int subsampling = Math.max(1, Math.min(region.width / (2 * largestWidth),
+        region.height / (2 * largestHeight)));
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(region);
+    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+    long needed = estimateMemory((region.width + subsampling - 1) / subsampling,
+        (region.height + subsampling - 1) / subsampling);
+    if (budget != null) {
+      budget.acquire(needed);
+    }
+    try {
+      BufferedImage decoded = reader.read(0, param);
+      String format = STREAMED_FORMATS.get(reader.getFormatName().toLowerCase());
+      return new ScaledImages(reader.getOriginatingProvider().getMIMETypes()[0], sizes,
+          scaleAll(decoded, sizes, format));
+    } finally {
+      if (budget != null) {
+        budget.release(needed);
+      }
+    }
+  }
+
+  private static ScaledImages scaleBuffered(byte[] bytes, int x, int y, int width,
+      int height, List<Dimension> dimensions, ImageMemoryBudget budget)
+      throws ImageReadException, IOException, ImageWriteException, ImageException {
+    ImageInfo info = Sanselan.getImageInfo(bytes);
+    Rectangle region = getRegion(x, y, width, height, info.getWidth(), info.getHeight());
+    Dimension[] sizes = getSizes(dimensions, info.getWidth(), info.getHeight());
+
+    long needed = estimateMemory(info.getWidth(), info.getHeight());
+    if (budget != null) {
+      budget.acquire(needed);
+    }
+    try {
+      BufferedImage imgBuf = getBufferedImage(bytes, info);
+      // Cut the desired piece out of the image.
+      BufferedImage subImage = imgBuf.getSubimage(region.x, region.y, region.width,
+          region.height);
+      byte[][] images = new byte[sizes.length][];
+      for (int i = 0; i < sizes.length; i++) {
+        images[i] = scaleAndWriteToByteArray(sizes[i].width, sizes[i].height, subImage,
+            null, info);
+      }
+      return new ScaledImages(info.getMimeType(), sizes, images);
+    } finally {
+      if (budget != null) {
+        budget.release(needed);
+      }
+    }
+  }
+
+  /**
+   * Scale an image to each size, largest first, starting each from the previous result
+   * when that is still at least as large so the early halving steps are shared.
+   */
+  private static byte[][] scaleAll(BufferedImage img, Dimension[] sizes, String format) {
+    Integer[] order = new Integer[sizes.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    final Dimension[] s = sizes;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long areaA = (long) s[a].width * s[a].height;
+        long areaB = (long) s[b].width * s[b].height;
+        return areaA > areaB ? -1 : (areaA < areaB ? 1 : 0);
+      }
+    });
+    byte[][] images = new byte[sizes.length][];
+    BufferedImage previous = null;
+    for (int i : order) {
+      Dimension size = sizes[i];
+      BufferedImage start = img;
+      if (previous != null && previous.getWidth() >= size.width
+          && previous.getHeight() >= size.height) {
+        start = previous;
+      }
+      BufferedImage scaled = getScaledInstance(start, size.width, size.height);
+      images[i] = writeToByteArray(scaled, format);
+      previous = scaled;
+    }
+    return images;
+  }
+
+  private static byte[] writeToByteArray(BufferedImage img, String format) {
+    try {
+      if ("jpg".equals(format) && img.getColorModel().hasAlpha()) {
+        // the JPEG writer does not handle an alpha channel.
+        BufferedImage opaque = new BufferedImage(img.getWidth(), img.getHeight(),
+            BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = opaque.createGraphics();
+        g2.drawImage(img, 0, 0, null);
+        g2.dispose();
+        img = opaque;
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ImageIO.write(img, format, out);
+      out.close();
+      return out.toByteArray();
+    } catch (Exception e) {
+      LOGGER.error("Failed to process image "+e.getMessage(), e);
+    }
+    return null;
+  }
+
+  /**
+   * The area to cut out of the image, widths and heights <= 0 take the whole image and
+   * the area is clipped to the image.
+   */
+  private static Rectangle getRegion(int x, int y, int width, int height,
+      int imageWidth, int imageHeight) throws ImageException {
+    // Set the correct width & height.
+    width = (width <= 0) ? imageWidth : width;
+    height = (height <= 0) ? imageHeight : height;
+
+    if (x + width > imageWidth) {
+      width = imageWidth - x;
+    }
+    if (y + height > imageHeight) {
+      height = imageHeight - y;
+    }
+    if (width <= 0 || height <= 0) {
+      throw new ImageException(400, "The area to crop is outside of the image.");
+    }
+    return new Rectangle(x, y, width, height);
+  }
+
+  /**
+   * The size of each scaled image, widths and heights <= 0 take those of the whole image.
+   */
+  private static Dimension[] getSizes(List<Dimension> dimensions, int imageWidth,
+      int imageHeight) {
+    Dimension[] sizes = new Dimension[dimensions.size()];
+    for (int i = 0; i < sizes.length; i++) {
+      Dimension d = dimensions.get(i);
+      sizes[i] = new Dimension((d.width <= 0) ? imageWidth : d.width,
+          (d.height <= 0) ? imageHeight : d.height);
+    }
+    return sizes;
+  }
+
+  /**
+   * An estimate of the memory needed to decode and scale an image, the decoded pixels
+   * plus the scaled copies made from them.
+   */
+  protected static long estimateMemory(int width, int height) {
+    return (long) width * height * BYTES_PER_PIXEL * 2;
+  }
+
+  private static byte[] readFully(ImageInputStream iis) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = iis.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Images scaled from one source, with the size and body of each.
+   */
+  protected static class ScaledImages {
+    private final String mimeType;
+    private final Dimension[] sizes;
+    private final byte[][] images;
+
+    ScaledImages(String mimeType, Dimension[] sizes, byte[][] images) {
+      this.mimeType = mimeType;
+      this.sizes = sizes;
+      this.images = images;
+    }
+
+    public String getMimeType() {
+      return mimeType;
+    }
+
+    public Dimension getSize(int i) {
+      return sizes[i];
+    }
+
+    /**
+     * @return the image body or null if it could not be scaled.
+     */
+    public byte[] getImage(int i) {
+      return images[i];
+    }
+  }
+
   /**
    * @param bytes
    * @param info
@@ -359,6 +629,14 @@ public class CropItProcessor {
     int w = img.getWidth();
     int h = img.getHeight();
 
+    // custom and indexed images can not be drawn into with good quality.
+    int type = img.getType();
+    if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_INDEXED
+        || type == BufferedImage.TYPE_BYTE_BINARY) {
+      type = (img.getTransparency() == Transparency.OPAQUE) ? BufferedImage.TYPE_INT_RGB
+          : BufferedImage.TYPE_INT_ARGB;
+    }
+
     while (w > targetWidth || h > targetHeight) {
       // Bit shifting by one is faster than dividing by 2.
       w >>= 1;
@@ -372,7 +650,7 @@ public class CropItProcessor {
         h = targetHeight;
       }
 
-      BufferedImage tmp = new BufferedImage(w, h, img.getType());
+      BufferedImage tmp = new BufferedImage(w, h, type);
       Graphics2D g2 = tmp.createGraphics();
       g2.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
           RenderingHints.VALUE_INTERPOLATION_BILINEAR);
@@ -17,6 +17,9 @@
  */
 package org.sakaiproject.nakamura.image;
 
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.sling.SlingServlet;
@@ -27,6 +30,7 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.sakaiproject.nakamura.api.doc.BindingType;
 import org.sakaiproject.nakamura.api.doc.ServiceBinding;
 import org.sakaiproject.nakamura.api.doc.ServiceDocumentation;
@@ -47,14 +51,25 @@ import java.awt.Dimension;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * This servlet will crop and cut images.
+ * This servlet will crop and cut images. The images are decoded and scaled on a small
+ * pool of workers with a shared memory budget so that a burst of large uploads queues up
+ * rather than exhausting the heap.
  */
-@SlingServlet(paths = "/var/image/cropit", methods = { "POST" })
+@Component(immediate = true, metatype = true)
+@SlingServlet(paths = "/var/image/cropit", methods = { "POST" }, generateComponent = false)
 @Properties(value = { @Property(name = "service.description", value = "Crops an image."),
     @Property(name = "service.vendor", value = "The Sakai Foundation") })
 @ServiceDocumentation(name = "CropItServlet", okForVersion = "0.11", shortDescription = "Crop an image.", description = "Use this servlet to cut out a part of an image and resize it to different sizes.", bindings = @ServiceBinding(type = BindingType.PATH, bindings = "/var/image/cropit"), methods = @ServiceMethod(name = "POST", description = "Cut out part of an image and save it in different sizes. <br />"
@@ -77,6 +92,42 @@ public class CropItServlet extends SlingAllMethodsServlet {
   private static final Logger logger = LoggerFactory.getLogger(CropItServlet.class);
   private static final long serialVersionUID = 7893384805719426200L;
 
+  @Property(intValue = 2, label = "Crop Threads",
+      description = "The number of images that are decoded and scaled at the same time.")
+  static final String CROP_THREADS = "image.crop.threads";
+
+  @Property(intValue = 20, label = "Crop Queue",
+      description = "The number of crop requests that may wait for a thread, further requests are turned away.")
+  static final String CROP_QUEUE = "image.crop.queue";
+
+  @Property(intValue = 256, label = "Crop Memory (MB)",
+      description = "The memory shared by the images being decoded at the same time.")
+  static final String CROP_MEMORY = "image.crop.memory";
+
+  @Property(intValue = 30, label = "Crop Wait (seconds)",
+      description = "How long a crop waits for memory to be released by other crops.")
+  static final String CROP_WAIT = "image.crop.wait";
+
+  private transient ThreadPoolExecutor cropExecutor;
+
+  private transient ImageMemoryBudget memoryBudget;
+
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    int threads = Math.max(1, OsgiUtil.toInteger(properties.get(CROP_THREADS), 2));
+    int queue = Math.max(1, OsgiUtil.toInteger(properties.get(CROP_QUEUE), 20));
+    long memory = Math.max(1, OsgiUtil.toInteger(properties.get(CROP_MEMORY), 256)) * 1024L * 1024L;
+    long wait = TimeUnit.SECONDS.toMillis(OsgiUtil.toInteger(properties.get(CROP_WAIT), 30));
+    memoryBudget = new ImageMemoryBudget(memory, wait);
+    cropExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queue));
+  }
+
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    cropExecutor.shutdownNow();
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -148,8 +199,8 @@ public class CropItServlet extends SlingAllMethodsServlet {
 //      save = PathUtils.normalizePath(save) + "/";
 //      requestSave = PathUtils.normalizePath(requestSave) + "/";
 
-      String[] crop = CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions, requestImg,
-          save);
+      String[] crop = cropOnWorker(resourceResolver, x, y, width, height, dimensions,
+          requestImg, save);
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
@@ -197,6 +248,50 @@ public class CropItServlet extends SlingAllMethodsServlet {
     }
   }
 
+  /**
+   * Crop on one of the workers, waiting for the result. The request resolver is only used
+   * by the worker while this thread waits.
+   */
+  private String[] cropOnWorker(final ResourceResolver resourceResolver, final int x,
+      final int y, final int width, final int height, final List<Dimension> dimensions,
+      final String img, final String save) throws ImageException, StorageClientException,
+      AccessDeniedException {
+    Future<String[]> future;
+    try {
+      future = cropExecutor.submit(new Callable<String[]>() {
+        public String[] call() throws Exception {
+          return CropItProcessor.crop(resourceResolver, x, y, width, height, dimensions,
+              img, save, memoryBudget);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      throw new ImageException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Too many images are being cropped, try again later.");
+    }
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ImageException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Interrupted while cropping the image.");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ImageException) {
+        throw (ImageException) cause;
+      } else if (cause instanceof StorageClientException) {
+        throw (StorageClientException) cause;
+      } else if (cause instanceof AccessDeniedException) {
+        throw (AccessDeniedException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      logger.error("Unable to crop image " + img, cause);
+      throw new ImageException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Unable to crop the image.");
+    }
+  }
+
   private String expandAuthorizable(Session session, String path) throws StorageClientException, AccessDeniedException {
     int start = 0;
     if ( path.startsWith("/~") ) {
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.image;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how much heap the images being cropped at the same time may take. Each crop
+ * reserves an estimate of the memory its decoded image will need before decoding and
+ * waits for other crops to finish if there is not enough left.
+ */
+public class ImageMemoryBudget {
+
+  /**
+   * Permits are handed out per kilobyte so the budget can be larger than 2GB.
+   */
+  private static final long UNIT = 1024L;
+
+  private final Semaphore permits;
+
+  private final int totalPermits;
+
+  private final long waitMs;
+
+  /**
+   * @param bytes
+   *          the memory shared by all the crops running at the same time.
+   * @param waitMs
+   *          how long a crop waits for memory to be released before giving up.
+   */
+  public ImageMemoryBudget(long bytes, long waitMs) {
+    this.totalPermits = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes / UNIT));
+    this.permits = new Semaphore(totalPermits, true);
+    this.waitMs = waitMs;
+  }
+
+  /**
+   * Reserve memory for an image, every successful call must be matched by a call to
+   * {@link #release(long)} with the same number of bytes.
+   *
+   * @param bytes
+   *          the estimated memory needed.
+   * @throws ImageException
+   *           406 if the image could never fit in the budget, 503 if the memory did not
+   *           become available in time.
+   */
+  public void acquire(long bytes) throws ImageException {
+    int needed = toPermits(bytes);
+    if (needed > totalPermits) {
+      throw new ImageException(406, "Image too large to crop, it needs " + bytes
+          + " bytes to decode");
+    }
+    try {
+      if (!permits.tryAcquire(needed, waitMs, TimeUnit.MILLISECONDS)) {
+        throw new ImageException(503, "Too many images are being cropped, try again later.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ImageException(503, "Interrupted while waiting to crop the image.");
+    }
+  }
+
+  public void release(long bytes) {
+    permits.release(toPermits(bytes));
+  }
+
+  /**
+   * @return the number of bytes not reserved at the moment.
+   */
+  public long available() {
+    return permits.availablePermits() * UNIT;
+  }
+
+  private int toPermits(long bytes) {
+    return (int) Math.min(Integer.MAX_VALUE, (bytes + UNIT - 1) / UNIT);
+  }
+}
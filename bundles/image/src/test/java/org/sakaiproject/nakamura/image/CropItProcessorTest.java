@@ -39,15 +39,24 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.image.CropItProcessor.ScaledImages;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
 
+import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 import javax.jcr.RepositoryException;
@@ -56,7 +65,6 @@ import javax.jcr.RepositoryException;
  *
  */
 public class CropItProcessorTest {
-
   private Session session;
   private String img = "/foo/people.png";
   private int x = 0;
@@ -149,4 +157,82 @@ public class CropItProcessorTest {
     assertEquals(scaledImage.getHeight(), 50);
   }
 
+  @Test
+  public void testScaleFromStream() throws Exception {
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(16, 16));
+    sizes.add(new Dimension(32, 32));
+    ImageMemoryBudget budget = new ImageMemoryBudget(16L * 1024L * 1024L, 1000);
+    ScaledImages scaled = CropItProcessor.scale(getClass().getResourceAsStream(
+        "people.png"), 10, 10, 50, 50, sizes, budget);
+    assertEquals("image/png", scaled.getMimeType());
+    for (int i = 0; i < sizes.size(); i++) {
+      BufferedImage image = ImageIO.read(new ByteArrayInputStream(scaled.getImage(i)));
+      assertEquals(sizes.get(i).width, image.getWidth());
+      assertEquals(sizes.get(i).height, image.getHeight());
+    }
+    // everything reserved was given back.
+    assertEquals(16L * 1024L * 1024L, budget.available());
+  }
+
+  @Test
+  public void testTooLargeForBudget() throws Exception {
+    List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(0, 0));
+    try {
+      CropItProcessor.scale(getClass().getResourceAsStream("people.png"), 0, 0, 0, 0,
+          sizes, new ImageMemoryBudget(1024L, 1000));
+      fail("The image should not fit in the budget.");
+    } catch (ImageException e) {
+      assertEquals(406, e.getCode());
+    }
+  }
+
+  @Test
+  public void testConcurrentJpegs() throws Exception {
+    final byte[] jpeg = createJpeg(1200, 800);
+    final List<Dimension> sizes = new ArrayList<Dimension>();
+    sizes.add(new Dimension(256, 256));
+    sizes.add(new Dimension(128, 128));
+    sizes.add(new Dimension(32, 32));
+    final ImageMemoryBudget budget = new ImageMemoryBudget(64L * 1024L * 1024L, 60000);
+    int requests = 10;
+    ExecutorService callers = Executors.newFixedThreadPool(requests);
+    List<Future<ScaledImages>> results = new ArrayList<Future<ScaledImages>>();
+    for (int i = 0; i < requests; i++) {
+      results.add(callers.submit(new Callable<ScaledImages>() {
+        public ScaledImages call() throws Exception {
+          return CropItProcessor.scale(new ByteArrayInputStream(jpeg), 200, 0, 800, 800,
+              sizes, budget);
+        }
+      }));
+    }
+    for (Future<ScaledImages> result : results) {
+      ScaledImages scaled = result.get();
+      assertEquals("image/jpeg", scaled.getMimeType());
+      for (int i = 0; i < sizes.size(); i++) {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(scaled.getImage(i)));
+        assertEquals(sizes.get(i).width, image.getWidth());
+        assertEquals(sizes.get(i).height, image.getHeight());
+      }
+    }
+    callers.shutdown();
+    // everything reserved was given back.
+    assertEquals(64L * 1024L * 1024L, budget.available());
+  }
+
+  private byte[] createJpeg(int width, int height) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+    Graphics2D g2 = image.createGraphics();
+    g2.setPaint(new GradientPaint(0, 0, Color.BLUE, width, height, Color.ORANGE));
+    g2.fillRect(0, 0, width, height);
+    g2.setColor(Color.WHITE);
+    for (int i = 0; i < width; i += 200) {
+      g2.drawLine(i, 0, width - i, height);
+    }
+    g2.dispose();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpg", out);
+    return out.toByteArray();
+  }
 }
@@ -32,6 +32,7 @@ import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.commons.json.JSONArray;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.JSONObject;
+import org.junit.After;
 import org.junit.Test;
 import org.mockito.Mockito;
 import org.sakaiproject.nakamura.api.lite.Session;
@@ -48,6 +49,7 @@ import org.sakaiproject.nakamura.util.StringUtils;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.HashMap;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
@@ -70,6 +72,12 @@ public class CropItServletTest extends AbstractEasyMockTest {
     super.setUp();
 
     servlet = new CropItServlet();
+    servlet.activate(new HashMap<String, Object>());
+  }
+
+  @After
+  public void tearDown() {
+    servlet.deactivate(new HashMap<String, Object>());
   }
 
   @Test
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of gzipped response bodies, so unchanged static
+ * resources are compressed once rather than on every request. Entries carry the
+ * validators of the response they were made from, and are only served once the
+ * resource has been confirmed unchanged.
+ */
+public class GzipCache {
+
+  /**
+   * A gzipped response body and the headers needed to serve and revalidate it.
+   */
+  public static class Entry {
+    private final byte[] gzipped;
+    private final String contentType;
+    private final String etag;
+    private final long lastModified;
+
+    public Entry(byte[] gzipped, String contentType, String etag, long lastModified) {
+      this.gzipped = gzipped;
+      this.contentType = contentType;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+
+    public byte[] getGzipped() {
+      return gzipped;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    /**
+     * @return the ETag of the uncompressed response, or null.
+     */
+    public String getEtag() {
+      return etag;
+    }
+
+    /**
+     * @return the last modified time of the uncompressed response, or -1.
+     */
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    /**
+     * @return true if a response with these validators is the one this entry was made
+     *         from.
+     */
+    public boolean matches(String etag, long lastModified) {
+      if (this.etag != null || etag != null) {
+        return this.etag != null && this.etag.equals(etag)
+            && this.lastModified == lastModified;
+      }
+      return this.lastModified >= 0 && this.lastModified == lastModified;
+    }
+  }
+
+  private final long maxBytes;
+  private final int maxEntryBytes;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+      0.75f, true);
+  private long bytes;
+
+  /**
+   * @param maxBytes
+   *          the most gzipped bytes held. Least recently used entries are evicted past
+   *          this.
+   * @param maxEntryBytes
+   *          the largest gzipped body that is cached.
+   */
+  public GzipCache(long maxBytes, int maxEntryBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = (int) Math.min(maxEntryBytes, maxBytes);
+  }
+
+  public int getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  public synchronized Entry get(String key) {
+    return entries.get(key);
+  }
+
+  public synchronized void put(String key, Entry entry) {
+    if (entry.gzipped.length > maxEntryBytes) {
+      return;
+    }
+    remove(key);
+    entries.put(key, entry);
+    bytes += entry.gzipped.length;
+    for (Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator(); bytes > maxBytes
+        && i.hasNext();) {
+      bytes -= i.next().getValue().gzipped.length;
+      i.remove();
+    }
+  }
+
+  public synchronized void remove(String key) {
+    Entry old = entries.remove(key);
+    if (old != null) {
+      bytes -= old.gzipped.length;
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+}
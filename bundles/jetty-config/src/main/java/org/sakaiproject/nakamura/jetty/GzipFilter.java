@@ -13,15 +13,27 @@
 //========================================================================
 package org.sakaiproject.nakamura.jetty;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.zip.GZIPOutputStream;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
@@ -29,6 +41,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpServletResponseWrapper;
 
@@ -59,6 +72,13 @@ import org.slf4j.LoggerFactory;
  * This filter extends {@link UserAgentFilter} and if the the initParameter <code>excludedAgents</code>
  * is set to a comma separated list of user agents, then these agents will be excluded from gzip content.
  * </p>
+ * <p>
+ * Content is compressed at the <code>compressionLevel</code> initParameter with a deflater reused per
+ * thread. GET responses for paths matching the <code>cachePaths</code> initParameter that carry an
+ * ETag or Last-Modified header are kept gzipped, up to <code>cacheMaxBytes</code> in total and
+ * <code>cacheMaxEntryBytes</code> each. Later plain requests for the path are made conditional on
+ * the cached validators, and the cached bytes are served if the resource has not changed.
+ * </p>
  *
  * @author gregw
  *
@@ -70,6 +90,9 @@ public class GzipFilter extends UserAgentFilter
     protected int _bufferSize=8192;
     protected int _minGzipSize=0;
     protected Set<String> _excluded;
+    protected int _compressionLevel=Deflater.DEFAULT_COMPRESSION;
+    protected Pattern _cachePaths;
+    protected GzipCache _cache;
 
     public void init(FilterConfig filterConfig) throws ServletException
     {
@@ -83,6 +106,27 @@ public class GzipFilter extends UserAgentFilter
         if (tmp!=null)
             _minGzipSize=Integer.parseInt(tmp);
 
+        tmp=filterConfig.getInitParameter("compressionLevel");
+        if (tmp!=null)
+            _compressionLevel=Integer.parseInt(tmp);
+
+        tmp=filterConfig.getInitParameter("cachePaths");
+        if (tmp!=null && tmp.trim().length()>0)
+            _cachePaths=Pattern.compile(tmp.trim());
+
+        long cacheMaxBytes=0;
+        tmp=filterConfig.getInitParameter("cacheMaxBytes");
+        if (tmp!=null)
+            cacheMaxBytes=Long.parseLong(tmp);
+
+        int cacheMaxEntryBytes=1048576;
+        tmp=filterConfig.getInitParameter("cacheMaxEntryBytes");
+        if (tmp!=null)
+            cacheMaxEntryBytes=Integer.parseInt(tmp);
+
+        if (_cachePaths!=null && cacheMaxBytes>0)
+            _cache=new GzipCache(cacheMaxBytes,cacheMaxEntryBytes);
+
         tmp=filterConfig.getInitParameter("mimeTypes");
         if (tmp!=null)
         {
@@ -127,7 +171,22 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
 
+            String cacheKey=getCacheKey(request);
+            GzipCache.Entry cached=null;
+            boolean revalidating=false;
+            if (cacheKey!=null)
+            {
+                cached=_cache.get(cacheKey);
+                if (cached!=null && !isConditional(request))
+                {
+                    // have the resource tell us whether the cached copy is still good.
+                    request=new RevalidatingRequest(request,cached);
+                    revalidating=true;
+                }
+            }
+
             GZIPResponseWrapper wrappedResponse=newGZIPResponseWrapper(request,response);
+            wrappedResponse.setCache(cacheKey,cached,revalidating);
 
             boolean exceptional=true;
             try
@@ -159,6 +218,32 @@ public class GzipFilter extends UserAgentFilter
         }
     }
 
+    /**
+     * @return the key to cache the gzipped response under, or null if it should not be
+     *         cached.
+     */
+    protected String getCacheKey(HttpServletRequest request)
+    {
+        if (_cache==null || !"GET".equals(request.getMethod()))
+            return null;
+        String uri=request.getRequestURI();
+        if (uri==null || !_cachePaths.matcher(uri).matches())
+            return null;
+        String query=request.getQueryString();
+        return query==null?uri:uri+"?"+query;
+    }
+
+    /**
+     * @return true if the client made its own conditional or range request, which is left
+     *         to the resource.
+     */
+    private boolean isConditional(HttpServletRequest request)
+    {
+        return request.getHeader("If-None-Match")!=null || request.getHeader("If-Modified-Since")!=null ||
+            request.getHeader("If-Match")!=null || request.getHeader("If-Unmodified-Since")!=null ||
+            request.getHeader("Range")!=null;
+    }
+
     protected GZIPResponseWrapper newGZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response)
     {
         return new GZIPResponseWrapper(request,response);
@@ -180,6 +265,14 @@ public class GzipFilter extends UserAgentFilter
         PrintWriter _writer;
         GzipStream _gzStream;
         long _contentLength=-1;
+        int _status=HttpServletResponse.SC_OK;
+        String _cacheKey;
+        GzipCache.Entry _cached;
+        boolean _revalidating;
+        boolean _serveCached;
+        boolean _cacheable=true;
+        String _etag;
+        long _lastModified=-1;
 
         public GZIPResponseWrapper(HttpServletRequest request, HttpServletResponse response)
         {
@@ -187,6 +280,13 @@ public class GzipFilter extends UserAgentFilter
             _request=request;
         }
 
+        void setCache(String cacheKey, GzipCache.Entry cached, boolean revalidating)
+        {
+            _cacheKey=cacheKey;
+            _cached=cached;
+            _revalidating=revalidating;
+        }
+
         public void setContentType(String ct)
         {
             super.setContentType(ct);
@@ -209,6 +309,9 @@ public class GzipFilter extends UserAgentFilter
 
         public void setStatus(int sc, String sm)
         {
+            if (notModified(sc))
+                return;
+            _status=sc;
             super.setStatus(sc,sm);
             if (sc<200||sc>=300)
               noGzip(false, "Status Code "+sc);
@@ -219,6 +322,9 @@ public class GzipFilter extends UserAgentFilter
 
         public void setStatus(int sc)
         {
+            if (notModified(sc))
+                return;
+            _status=sc;
             super.setStatus(sc);
             if (sc<200||sc>=300)
                 noGzip(false, "Status Code "+sc );
@@ -254,7 +360,10 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
             else
+            {
+                noteHeader(name,value);
                 super.addHeader(name,value);
+            }
         }
 
         public void setHeader(String name, String value)
@@ -278,7 +387,40 @@ public class GzipFilter extends UserAgentFilter
                 }
             }
             else
+            {
+                noteHeader(name,value);
                 super.setHeader(name,value);
+            }
+        }
+
+        public void setDateHeader(String name, long date)
+        {
+            if ("last-modified".equalsIgnoreCase(name))
+                _lastModified=date;
+            super.setDateHeader(name,date);
+        }
+
+        public void addDateHeader(String name, long date)
+        {
+            if ("last-modified".equalsIgnoreCase(name))
+                _lastModified=date;
+            super.addDateHeader(name,date);
+        }
+
+        /**
+         * Keep track of the headers that decide whether the response can be cached.
+         */
+        private void noteHeader(String name, String value)
+        {
+            if ("etag".equalsIgnoreCase(name))
+                _etag=value;
+            else if ("last-modified".equalsIgnoreCase(name))
+                _lastModified=parseDate(value);
+            else if ("set-cookie".equalsIgnoreCase(name))
+                _cacheable=false;
+            else if ("cache-control".equalsIgnoreCase(name) && value!=null &&
+                (value.indexOf("private")>=0 || value.indexOf("no-store")>=0))
+                _cacheable=false;
         }
 
         public void setIntHeader(String name, int value)
@@ -326,12 +468,18 @@ public class GzipFilter extends UserAgentFilter
 
         public void sendError(int sc, String msg) throws IOException
         {
+            if (notModified(sc))
+                return;
+            _status=sc;
             resetBuffer();
             super.sendError(sc,msg);
         }
 
         public void sendError(int sc) throws IOException
         {
+            if (notModified(sc))
+                return;
+            _status=sc;
             resetBuffer();
             super.sendError(sc);
         }
@@ -346,10 +494,13 @@ public class GzipFilter extends UserAgentFilter
         {
             if (_gzStream==null)
             {
+                if (isUnchanged())
+                    return __discardStream;
+
                 if (getResponse().isCommitted() || _noGzip)
                     return getResponse().getOutputStream();
 
-                _gzStream=newGzipStream(_request,(HttpServletResponse)getResponse(),_contentLength,_bufferSize,_minGzipSize);
+                _gzStream=createGzipStream();
             }
             else if (_writer!=null)
                 throw new IllegalStateException("getWriter() called");
@@ -364,10 +515,16 @@ public class GzipFilter extends UserAgentFilter
                 if (_gzStream!=null)
                     throw new IllegalStateException("getOutputStream() called");
 
+                if (isUnchanged())
+                {
+                    _writer=newWriter(__discardStream,getCharacterEncoding());
+                    return _writer;
+                }
+
                 if (getResponse().isCommitted() || _noGzip)
                     return getResponse().getWriter();
 
-                _gzStream=newGzipStream(_request,(HttpServletResponse)getResponse(),_contentLength,_bufferSize,_minGzipSize);
+                _gzStream=createGzipStream();
                 _writer=newWriter(_gzStream,getCharacterEncoding());
             }
             return _writer;
@@ -409,10 +566,92 @@ public class GzipFilter extends UserAgentFilter
 
         void finish() throws IOException
         {
+            if (_serveCached)
+            {
+                writeCached();
+                return;
+            }
             if (_writer!=null && !_gzStream._closed)
                 _writer.flush();
             if (_gzStream!=null)
+            {
                 _gzStream.finish();
+                storeCached();
+            }
+        }
+
+        private GzipStream createGzipStream() throws IOException
+        {
+            GzipStream stream=newGzipStream(_request,(HttpServletResponse)getResponse(),_contentLength,_bufferSize,_minGzipSize);
+            stream._compressionLevel=_compressionLevel;
+            if (_cacheKey!=null)
+                stream._captureLimit=_cache.getMaxEntryBytes();
+            return stream;
+        }
+
+        /**
+         * A 304 for the conditions this filter added means the cached copy is good.
+         */
+        private boolean notModified(int sc)
+        {
+            if (sc==HttpServletResponse.SC_NOT_MODIFIED && _revalidating && !isCommitted())
+            {
+                LOGGER.debug("Serving cached gzip of {}",_cacheKey);
+                _serveCached=true;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * A resource that does not handle conditional requests still sends the same
+         * validators if it is unchanged, in which case its body is thrown away.
+         */
+        private boolean isUnchanged()
+        {
+            if (_serveCached)
+                return true;
+            if (_cached!=null && _status==HttpServletResponse.SC_OK && !_noGzip && !isCommitted() &&
+                _cached.matches(_etag,_lastModified))
+            {
+                LOGGER.debug("Serving cached gzip of unchanged {}",_cacheKey);
+                _serveCached=true;
+            }
+            return _serveCached;
+        }
+
+        private void writeCached() throws IOException
+        {
+            HttpServletResponse response=(HttpServletResponse)getResponse();
+            if (response.isCommitted())
+                return;
+            byte[] gzipped=_cached.getGzipped();
+            response.setStatus(HttpServletResponse.SC_OK);
+            if (_cached.getContentType()!=null)
+                response.setContentType(_cached.getContentType());
+            if (_cached.getEtag()!=null)
+                response.setHeader("ETag",_cached.getEtag());
+            if (_cached.getLastModified()>=0)
+                response.setDateHeader("Last-Modified",_cached.getLastModified());
+            response.setHeader("Content-Encoding","gzip");
+            response.addHeader("Vary","Accept-Encoding");
+            response.setContentLength(gzipped.length);
+            response.getOutputStream().write(gzipped);
+        }
+
+        private void storeCached()
+        {
+            if (_cacheKey==null)
+                return;
+            byte[] captured=_gzStream.getCaptured();
+            if (captured!=null && _status==HttpServletResponse.SC_OK && _cacheable &&
+                (_etag!=null || _lastModified>=0))
+            {
+                LOGGER.debug("Caching {} gzipped bytes of {}",captured.length,_cacheKey);
+                _cache.put(_cacheKey,new GzipCache.Entry(captured,getContentType(),_etag,_lastModified));
+            }
+            else
+                _cache.remove(_cacheKey);
         }
 
         protected GzipStream newGzipStream(HttpServletRequest request,HttpServletResponse response,long contentLength,int bufferSize, int minGzipSize) throws IOException
@@ -422,17 +661,112 @@ public class GzipFilter extends UserAgentFilter
     }
 
 
+    /**
+     * Adds the validators of a cached response to a request, so that the resource answers
+     * 304 if it is unchanged.
+     */
+    protected static class RevalidatingRequest extends HttpServletRequestWrapper
+    {
+        private final String _etag;
+        private final long _lastModified;
+
+        public RevalidatingRequest(HttpServletRequest request, GzipCache.Entry cached)
+        {
+            super(request);
+            _etag=cached.getEtag();
+            _lastModified=cached.getLastModified();
+        }
+
+        public String getHeader(String name)
+        {
+            if (_etag!=null && "if-none-match".equalsIgnoreCase(name))
+                return _etag;
+            if (_lastModified>=0 && "if-modified-since".equalsIgnoreCase(name))
+                return formatDate(_lastModified);
+            return super.getHeader(name);
+        }
+
+        public long getDateHeader(String name)
+        {
+            if (_lastModified>=0 && "if-modified-since".equalsIgnoreCase(name))
+                return _lastModified;
+            return super.getDateHeader(name);
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Enumeration getHeaders(String name)
+        {
+            if (_etag!=null && "if-none-match".equalsIgnoreCase(name) ||
+                _lastModified>=0 && "if-modified-since".equalsIgnoreCase(name))
+                return Collections.enumeration(Collections.singletonList(getHeader(name)));
+            return super.getHeaders(name);
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Enumeration getHeaderNames()
+        {
+            List<Object> names=new ArrayList<Object>();
+            for (Enumeration e=super.getHeaderNames(); e!=null && e.hasMoreElements();)
+                names.add(e.nextElement());
+            if (_etag!=null)
+                names.add("If-None-Match");
+            if (_lastModified>=0)
+                names.add("If-Modified-Since");
+            return Collections.enumeration(names);
+        }
+    }
+
+    private static SimpleDateFormat newHttpDateFormat()
+    {
+        SimpleDateFormat format=new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    static String formatDate(long date)
+    {
+        return newHttpDateFormat().format(new Date(date));
+    }
+
+    static long parseDate(String date)
+    {
+        if (date==null)
+            return -1;
+        try
+        {
+            return newHttpDateFormat().parse(date).getTime();
+        }
+        catch (ParseException e)
+        {
+            return -1;
+        }
+    }
+
+    private static final ServletOutputStream __discardStream=new ServletOutputStream()
+    {
+        public void write(int b)
+        {
+        }
+
+        public void write(byte[] b, int off, int len)
+        {
+        }
+    };
+
     public static class GzipStream extends ServletOutputStream
     {
         protected HttpServletRequest _request;
         protected HttpServletResponse _response;
         protected OutputStream _out;
         protected ByteArrayOutputStream2 _bOut;
-        protected GZIPOutputStream _gzOut;
+        protected DeflaterOutputStream _gzOut;
         protected boolean _closed;
         protected int _bufferSize;
         protected int _minGzipSize;
         protected long _contentLength;
+        protected int _compressionLevel=Deflater.DEFAULT_COMPRESSION;
+        protected int _captureLimit;
+        protected ByteArrayOutputStream2 _capture;
 
         public GzipStream(HttpServletRequest request,HttpServletResponse response,long contentLength,int bufferSize, int minGzipSize) throws IOException
         {
@@ -451,6 +785,7 @@ public class GzipFilter extends UserAgentFilter
             _closed=false;
             _out=null;
             _bOut=null;
+            _capture=null;
             if (_gzOut!=null && !_response.isCommitted())
                 _response.setHeader("Content-Encoding",null);
             _gzOut=null;
@@ -544,7 +879,10 @@ public class GzipFilter extends UserAgentFilter
         {
           LOGGER.debug("Encoding as GZip content");
             _response.setHeader("Content-Encoding", "gzip");
-            return _response.containsHeader("Content-Encoding");
+            if (!_response.containsHeader("Content-Encoding"))
+                return false;
+            _response.addHeader("Vary", "Accept-Encoding");
+            return true;
         }
 
         public void doGzip() throws IOException
@@ -556,7 +894,7 @@ public class GzipFilter extends UserAgentFilter
 
                 if (setContentEncodingGzip())
                 {
-                    _out=_gzOut=new GZIPOutputStream(_response.getOutputStream(),_bufferSize);
+                    _out=_gzOut=new ReusableGZIPOutputStream(newGzipTarget(),_bufferSize,_compressionLevel);
 
                     if (_bOut!=null)
                     {
@@ -569,6 +907,53 @@ public class GzipFilter extends UserAgentFilter
             }
         }
 
+        /**
+         * @return the stream the gzipped bytes are written to, keeping a copy of them if they
+         *         are to be cached.
+         */
+        protected OutputStream newGzipTarget() throws IOException
+        {
+            OutputStream out=_response.getOutputStream();
+            if (_captureLimit<=0)
+                return out;
+            _capture=new ByteArrayOutputStream2(_bufferSize);
+            return new FilterOutputStream(out)
+            {
+                public void write(int b) throws IOException
+                {
+                    out.write(b);
+                    capture(new byte[] { (byte)b },0,1);
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException
+                {
+                    out.write(b,off,len);
+                    capture(b,off,len);
+                }
+            };
+        }
+
+        private void capture(byte[] b, int off, int len)
+        {
+            if (_capture==null)
+                return;
+            if (_capture.getCount()+len>_captureLimit)
+                _capture=null;
+            else
+                _capture.write(b,off,len);
+        }
+
+        /**
+         * @return all of the gzipped bytes once the stream is closed, or null if they were
+         *         not kept.
+         */
+        public byte[] getCaptured()
+        {
+            if (!_closed || _gzOut==null || _capture==null)
+                return null;
+            return _capture.toByteArray();
+        }
+
         public void doNotGzip() throws IOException
         {
             if (_gzOut!=null)
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A gzip output stream that compresses at a given level with a {@link Deflater} kept per
+ * thread, rather than allocating (and later finalizing) a new one for every response as
+ * {@link java.util.zip.GZIPOutputStream} does.
+ */
+public class ReusableGZIPOutputStream extends DeflaterOutputStream {
+
+  /**
+   * The idle deflater for each thread. It is taken while a stream uses it, so a thread
+   * writing two streams at once gets a second one.
+   */
+  private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>();
+
+  private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0,
+      0, 0, 0, 0 };
+
+  private final CRC32 crc = new CRC32();
+
+  private boolean finished;
+
+  /**
+   * @param out
+   * @param bufferSize
+   * @param level
+   *          the compression level, 0-9 or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @throws IOException
+   */
+  public ReusableGZIPOutputStream(OutputStream out, int bufferSize, int level)
+      throws IOException {
+    super(out, takeDeflater(level), bufferSize);
+    out.write(HEADER);
+  }
+
+  private static Deflater takeDeflater(int level) {
+    Deflater deflater = DEFLATERS.get();
+    if (deflater == null) {
+      return new Deflater(level, true);
+    }
+    DEFLATERS.remove();
+    deflater.setLevel(level);
+    return deflater;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (finished) {
+      throw new IOException("Stream finished");
+    }
+    super.write(b, off, len);
+    crc.update(b, off, len);
+  }
+
+  @Override
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    super.finish();
+    writeInt((int) crc.getValue());
+    writeInt((int) def.getBytesRead());
+    finished = true;
+    // only handed back once finished cleanly, an abandoned deflater is left to the gc.
+    def.reset();
+    if (DEFLATERS.get() == null) {
+      DEFLATERS.set(def);
+    } else {
+      def.end();
+    }
+  }
+
+  private void writeInt(int i) throws IOException {
+    out.write(i & 0xff);
+    out.write((i >> 8) & 0xff);
+    out.write((i >> 16) & 0xff);
+    out.write((i >> 24) & 0xff);
+  }
+}
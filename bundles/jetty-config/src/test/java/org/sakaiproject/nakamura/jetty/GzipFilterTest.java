@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.jetty;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.FilterHolder;
+import org.mortbay.jetty.servlet.ServletHolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the filter in front of a servlet serving a large javascript file.
+ */
+public class GzipFilterTest {
+  private static final byte[] BODY = createScript(200 * 1024);
+
+  private Server server;
+  private StaticServlet servlet;
+  private String base;
+
+  @After
+  public void after() throws Exception {
+    if (server != null) {
+      server.stop();
+      server.destroy();
+    }
+  }
+
+  @Test
+  public void testUnchangedResourceIsServedFromCache() throws Exception {
+    start(true);
+    for (int i = 0; i < 3; i++) {
+      HttpURLConnection connection = get("/dev/lib/widgets.js", null);
+      assertEquals(200, connection.getResponseCode());
+      assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+      assertEquals("Accept-Encoding", connection.getHeaderField("Vary"));
+      byte[] gzipped = read(connection);
+      if (i > 0) {
+        // cached responses have a known length.
+        assertEquals(gzipped.length, connection.getContentLength());
+      }
+      assertArrayEquals(BODY, gunzip(gzipped));
+    }
+    assertEquals(3, servlet.requests.get());
+    assertEquals(2, servlet.notModified.get());
+  }
+
+  @Test
+  public void testChangedResourceIsCompressedAgain() throws Exception {
+    start(true);
+    read(get("/dev/lib/widgets.js", null));
+    servlet.body = createScript(100 * 1024);
+    servlet.lastModified += 60000L;
+    HttpURLConnection connection = get("/dev/lib/widgets.js", null);
+    assertArrayEquals(servlet.body, gunzip(read(connection)));
+    assertEquals(0, servlet.notModified.get());
+
+    connection = get("/dev/lib/widgets.js", null);
+    assertArrayEquals(servlet.body, gunzip(read(connection)));
+    assertEquals(1, servlet.notModified.get());
+  }
+
+  @Test
+  public void testUnconditionalResourceWithSameEtag() throws Exception {
+    start(true);
+    servlet.conditional = false;
+    servlet.etag = "\"widgets-1\"";
+    read(get("/var/widgets.json", null));
+    HttpURLConnection connection = get("/var/widgets.json", null);
+    byte[] gzipped = read(connection);
+    assertEquals(gzipped.length, connection.getContentLength());
+    assertEquals("\"widgets-1\"", connection.getHeaderField("ETag"));
+    assertArrayEquals(BODY, gunzip(gzipped));
+  }
+
+  @Test
+  public void testClientConditionalIsLeftToResource() throws Exception {
+    start(true);
+    read(get("/dev/lib/widgets.js", null));
+    HttpURLConnection connection = get("/dev/lib/widgets.js",
+        GzipFilter.formatDate(servlet.lastModified));
+    assertEquals(304, connection.getResponseCode());
+  }
+
+  @Test
+  public void testOtherPathsAreNotCached() throws Exception {
+    start(true);
+    for (int i = 0; i < 2; i++) {
+      HttpURLConnection connection = get("/p/content.js", null);
+      assertArrayEquals(BODY, gunzip(read(connection)));
+      assertNull(connection.getHeaderField("Content-Length"));
+    }
+    assertEquals(0, servlet.notModified.get());
+  }
+
+  @Test
+  public void testNoCacheCompressesEveryRequest() throws Exception {
+    start(false);
+    for (int i = 0; i < 2; i++) {
+      HttpURLConnection connection = get("/dev/lib/widgets.js", null);
+      assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+      assertArrayEquals(BODY, gunzip(read(connection)));
+      assertNull(connection.getHeaderField("Content-Length"));
+    }
+    assertEquals(2, servlet.requests.get());
+    assertEquals(0, servlet.notModified.get());
+  }
+
+  private void start(boolean cache) throws Exception {
+    servlet = new StaticServlet();
+    Map<String, String> params = new HashMap<String, String>();
+    params.put("minGzipSize", "8192");
+    params.put("compressionLevel", "6");
+    params.put("mimeTypes", "text/javascript,application/json");
+    params.put("cachePaths", "/(dev|devwidgets)/.*|/var/widgets\\.json");
+    params.put("cacheMaxBytes", cache ? "16777216" : "0");
+
+    server = new Server(0);
+    Context context = new Context(server, "/", Context.NO_SESSIONS);
+    FilterHolder filter = new FilterHolder(new GzipFilter());
+    for (Entry<String, String> e : params.entrySet()) {
+      filter.setInitParameter(e.getKey(), e.getValue());
+    }
+    context.addFilter(filter, "/*", Handler.DEFAULT);
+    context.addServlet(new ServletHolder(servlet), "/*");
+    server.start();
+    base = "http://localhost:" + server.getConnectors()[0].getLocalPort();
+  }
+
+  private HttpURLConnection get(String path, String ifModifiedSince) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(base + path)
+        .openConnection();
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    if (ifModifiedSince != null) {
+      connection.setRequestProperty("If-Modified-Since", ifModifiedSince);
+    }
+    return connection;
+  }
+
+  private static byte[] read(HttpURLConnection connection) throws IOException {
+    InputStream in = connection.getInputStream();
+    try {
+      return toBytes(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    return toBytes(new GZIPInputStream(new java.io.ByteArrayInputStream(gzipped)));
+  }
+
+  private static byte[] toBytes(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] createScript(int size) {
+    StringBuilder sb = new StringBuilder(size + 100);
+    for (int i = 0; sb.length() < size; i++) {
+      sb.append("sakai.widgets.widget").append(i).append(" = function(tuid, showSettings) {\n")
+          .append("  var $rootel = $(\"#\" + tuid), count = ").append(i * 31 % 977)
+          .append(";\n  return sakai.api.Widgets.render(\"widget").append(i)
+          .append("\", $rootel, count);\n};\n");
+    }
+    return sb.substring(0, size).getBytes();
+  }
+
+  /**
+   * Serves a script with a Last-Modified header, answering conditional requests.
+   */
+  private static class StaticServlet extends HttpServlet {
+    private static final long serialVersionUID = 1L;
+
+    private volatile byte[] body = BODY;
+    private volatile long lastModified = 1300000000000L;
+    private volatile String etag;
+    private volatile boolean conditional = true;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+        throws ServletException, IOException {
+      requests.incrementAndGet();
+      if (conditional && req.getDateHeader("If-Modified-Since") >= lastModified) {
+        notModified.incrementAndGet();
+        resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      resp.setContentType("text/javascript");
+      resp.setDateHeader("Last-Modified", lastModified);
+      if (etag != null) {
+        resp.setHeader("ETag", etag);
+      }
+      resp.setContentLength(body.length);
+      resp.getOutputStream().write(body);
+    }
+  }
+}
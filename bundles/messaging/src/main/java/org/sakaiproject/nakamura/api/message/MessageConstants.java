@@ -182,4 +182,25 @@ public interface MessageConstants {
   public static final int CLEAUNUP_EVERY_X_SECONDS = 7200;
   public static final String PROP_TEMPLATE_PATH = "sakai:templatePath";
   public static final String PROP_TEMPLATE_PARAMS = "sakai:templateParams";
+
+  /**
+   * Progress of an internal message fanning out to its recipients, kept on the sent
+   * message. The state is {@link #STATE_PENDING} until every recipient has been handled
+   * and then {@link #STATE_DELIVERED}.
+   */
+  public static final String PROP_SAKAI_DELIVERY_STATE = "sakai:deliveryState";
+  public static final String PROP_SAKAI_DELIVERY_TOTAL = "sakai:deliveryTotal";
+  public static final String PROP_SAKAI_DELIVERY_COUNT = "sakai:deliveryCount";
+  public static final String PROP_SAKAI_DELIVERY_FAILED = "sakai:deliveryFailed";
+  public static final String STATE_DELIVERED = "delivered";
+
+  /**
+   * Path of a body shared by all the delivered copies of a message, set on a copy in
+   * place of {@link #PROP_SAKAI_BODY}.
+   */
+  public static final String PROP_SAKAI_BODY_REF = "sakai:bodyRef";
+  /**
+   * Where shared message bodies are kept.
+   */
+  public static final String SHARED_BODY_STORE = "/var/message/body";
 }
@@ -20,7 +20,9 @@ package org.sakaiproject.nakamura.message.internal;
 
 import com.google.common.collect.ImmutableMap;
 
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -29,12 +31,17 @@ import org.apache.sling.api.resource.ValueMap;
 import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.event.Event;
 import org.sakaiproject.nakamura.api.lite.ClientPoolException;
 import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
@@ -59,15 +66,34 @@ import org.sakaiproject.nakamura.util.PathUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handler for messages that are sent locally and intended for local delivery. Needs to be
  * started immediately to make sure it registers with JCR as soon as possible.
+ * <p>
+ * Delivery happens in the background. Groups are expanded to their members once, then the
+ * members are delivered to in batches on a fixed pool of threads, so a message to a large
+ * group neither holds up the sender nor takes over the server. Progress is recorded on
+ * the sent message as each batch completes.
+ * </p>
  */
-@Component(immediate = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
+@Component(immediate = true, metatype = true, label = "LiteInternalMessageHandler", description = "Handler for internally delivered messages.")
 @Service({ LiteMessageTransport.class, LiteMessageProfileWriter.class })
 @Properties(value = {
     @Property(name = "service.vendor", value = "The Sakai Foundation"),
@@ -77,6 +103,23 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   private static final Logger LOG = LoggerFactory.getLogger(LiteInternalMessageHandler.class);
   private static final String TYPE = MessageConstants.TYPE_INTERNAL;
 
+  @Property(intValue = 4, label = "Delivery Threads",
+      description = "The number of recipients messages are delivered to at the same time.")
+  static final String DELIVERY_THREADS = "message.internal.delivery.threads";
+
+  @Property(intValue = 100, label = "Delivery Batch Size",
+      description = "The number of recipients delivered to between progress updates.")
+  static final String DELIVERY_BATCH_SIZE = "message.internal.delivery.batchsize";
+
+  @Property(boolValue = false, label = "Share Message Bodies",
+      description = "Store the body of a message once and reference it from each recipient's copy. "
+          + "Copies are then only complete when read through the message search feeds.")
+  static final String SHARED_BODY = "message.internal.delivery.sharedbody";
+
+  @Property(longValue = 60, label = "Shutdown Wait",
+      description = "The number of seconds to wait for queued deliveries to finish when stopping.")
+  static final String SHUTDOWN_WAIT = "message.internal.delivery.shutdownwait";
+
   @Reference
   protected transient Repository slingRepository;
 
@@ -91,12 +134,51 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  private ThreadPoolExecutor deliveryExecutor;
+
+  private int batchSize;
+
+  private boolean sharedBody;
+
+  private long shutdownWait;
+
   /**
    * Default constructor
    */
   public LiteInternalMessageHandler() {
   }
 
+  @Activate
+  protected void activate(Map<String, Object> properties) {
+    int threads = Math.max(1, OsgiUtil.toInteger(properties.get(DELIVERY_THREADS), 4));
+    batchSize = Math.max(1, OsgiUtil.toInteger(properties.get(DELIVERY_BATCH_SIZE), 100));
+    sharedBody = OsgiUtil.toBoolean(properties.get(SHARED_BODY), false);
+    shutdownWait = Math.max(0L, OsgiUtil.toLong(properties.get(SHUTDOWN_WAIT), 60L));
+    deliveryExecutor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>());
+  }
+
+  /**
+   * Queued deliveries only exist in memory, so let them finish rather than dropping them
+   * and leaving their messages pending for ever. Fan outs still running when the pool is
+   * shut down deliver their batches themselves.
+   */
+  @Deactivate
+  protected void deactivate(Map<String, Object> properties) {
+    deliveryExecutor.shutdown();
+    try {
+      if (!deliveryExecutor.awaitTermination(shutdownWait, TimeUnit.SECONDS)) {
+        List<Runnable> undelivered = deliveryExecutor.shutdownNow();
+        LOG.warn("Stopped after {}s with {} message deliveries outstanding", shutdownWait,
+            undelivered.size());
+      }
+    } catch (InterruptedException e) {
+      List<Runnable> undelivered = deliveryExecutor.shutdownNow();
+      LOG.warn("Interrupted with {} message deliveries outstanding", undelivered.size());
+      Thread.currentThread().interrupt();
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -104,113 +186,302 @@ public class LiteInternalMessageHandler implements LiteMessageTransport,
    *      org.osgi.service.event.Event, Content)
    */
   public void send(MessageRoutes routes, Event event, Content originalMessage) {
-    Session session = null;
-    try {
-
-      session = slingRepository.loginAdministrative();
+    Set<String> rcpts = new LinkedHashSet<String>();
+    for (MessageRoute route : routes) {
+      if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
+        LOG.info("Started handling a message for delivery to {} ", route.getRcpt());
+        rcpts.add(route.getRcpt());
+      }
+    }
+    if (!rcpts.isEmpty()) {
+      deliveryExecutor.execute(new FanOut(rcpts, originalMessage));
+    }
+  }
 
-      // recipients keeps track of who have already received the message, to avoid
-      // duplicate messages
-      List<String> recipients = new ArrayList<String>();
-      AuthorizableManager authorizableManager = session.getAuthorizableManager();
-      for (MessageRoute route : routes) {
-        if (MessageTransport.INTERNAL_TRANSPORT.equals(route.getTransport())) {
-          String recipient = route.getRcpt();
-          LOG.info("Started handling a message for delivery to {} ", recipient );
-          // the path were we want to save messages in.
-          String messageId = (String) originalMessage
-              .getProperty(MessageConstants.PROP_SAKAI_ID);
-          sendHelper(recipients, recipient, originalMessage, session, messageId,
-              authorizableManager);
-        }
+  /**
+   * Expand any groups amongst the recipients into their members, following nested groups
+   * and ignoring groups that have already been seen so cycles terminate.
+   *
+   * @return the individual recipients, in the order they were found.
+   */
+  protected Set<String> expandRecipients(Collection<String> rcpts,
+      AuthorizableManager authManager) {
+    Set<String> recipients = new LinkedHashSet<String>();
+    Set<String> groups = new HashSet<String>();
+    Deque<String> pending = new ArrayDeque<String>(rcpts);
+    while (!pending.isEmpty()) {
+      String recipient = pending.poll();
+      if (recipients.contains(recipient) || groups.contains(recipient)) {
+        continue;
       }
-    } catch (AccessDeniedException e) {
-      LOG.error(e.getMessage(), e);
-    } catch (ClientPoolException e) {
-      LOG.error(e.getMessage(), e);
-    } catch (StorageClientException e) {
-      LOG.error(e.getMessage(), e);
-    } finally {
-      if (session != null) {
-        try {
-          session.logout();
-        } catch (ClientPoolException e) {
-          throw new RuntimeException("Failed to logout session.", e);
+      try {
+        Authorizable au = authManager.findAuthorizable(recipient);
+        if (au instanceof Group) {
+          groups.add(recipient);
+          // user must be in the group directly to send a message:
+          for (String memberName : ((Group) au).getMembers()) {
+            if (!recipients.contains(memberName) && !groups.contains(memberName)) {
+              pending.add(memberName);
+            }
+          }
+        } else {
+          recipients.add(recipient);
         }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
       }
     }
+    return recipients;
   }
 
-  private void sendHelper(List<String> recipients, String recipient,
-      Content originalMessage, Session session, String messageId,
-      AuthorizableManager authManager) {
-    try {
-      ContentManager contentManager = session.getContentManager();
-      Authorizable au = authManager.findAuthorizable(recipient);
-      if (au != null && au instanceof Group) {
-        Group group = (Group) au;
-        recipients.add(recipient); // prevent infinite recursion in cyclic group references
-        // user must be in the group directly to send a message:
-        for (String memberName : group.getMembers()) {
-          if (!recipients.contains(memberName)) {
-            // call back to itself: this allows for groups to be in groups and future
-            // extensions
-            sendHelper(recipients, memberName, originalMessage, session, messageId,
-                authManager);
+  /**
+   * Works out who a message goes to and queues up the batches that deliver it.
+   */
+  private class FanOut implements Runnable {
+    private final Collection<String> rcpts;
+    private final Content originalMessage;
+
+    FanOut(Collection<String> rcpts, Content originalMessage) {
+      this.rcpts = rcpts;
+      this.originalMessage = originalMessage;
+    }
+
+    public void run() {
+      Session session = null;
+      try {
+        session = slingRepository.loginAdministrative();
+        List<String> recipients = new ArrayList<String>(expandRecipients(rcpts,
+            session.getAuthorizableManager()));
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (Entry<String, Object> e : originalMessage.getProperties().entrySet()) {
+          // the store sets its own bookkeeping properties on each copy.
+          if (!e.getKey().startsWith("_")) {
+            properties.put(e.getKey(), e.getValue());
           }
         }
-      } else {
-        // only send a message to a user who hasn't already received one:
-        if (!recipients.contains(recipient)) {
+        if (sharedBody && properties.containsKey(MessageConstants.PROP_SAKAI_BODY)) {
+          String bodyPath = MessageConstants.SHARED_BODY_STORE + "/"
+              + originalMessage.getProperty(MessageConstants.PROP_SAKAI_ID);
+          session.getContentManager().update(
+              new Content(bodyPath, ImmutableMap.of(MessageConstants.PROP_SAKAI_BODY,
+                  properties.remove(MessageConstants.PROP_SAKAI_BODY))));
+          // only read on behalf of the recipients, so nobody else may see it.
+          session.getAccessControlManager().setAcl(
+              Security.ZONE_CONTENT,
+              bodyPath,
+              new AclModification[] {
+                  new AclModification(AclModification.denyKey(User.ANON_USER),
+                      Permissions.ALL.getPermission(), Operation.OP_REPLACE),
+                  new AclModification(AclModification.denyKey(Group.EVERYONE),
+                      Permissions.ALL.getPermission(), Operation.OP_REPLACE) });
+          properties.put(MessageConstants.PROP_SAKAI_BODY_REF, bodyPath);
+        }
+        properties.put(MessageConstants.PROP_SAKAI_READ, false);
+        properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
+        properties.put(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
 
-          String messageStorePath = messagingService.getFullPathToStore(recipient, session);
-          if (messageStorePath.endsWith("/")) {
-            messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
+        int batches = (recipients.size() + batchSize - 1) / batchSize;
+        DeliveryProgress progress = new DeliveryProgress(originalMessage.getPath(),
+            recipients.size(), batches);
+        progress.save(session);
+        for (int i = 0; i < recipients.size(); i += batchSize) {
+          DeliveryBatch batch = new DeliveryBatch(recipients.subList(i,
+              Math.min(i + batchSize, recipients.size())), originalMessage, properties,
+              progress);
+          try {
+            deliveryExecutor.execute(batch);
+          } catch (RejectedExecutionException e) {
+            // shutting down, finish the message here rather than lose the batch
+            batch.run();
           }
-          boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
-
-          if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
-            String toPath = messagingService.getFullPathToMessage(recipient, messageId,
-                session);
-            
-            
-  
-            try {
-              lockManager.waitForLock(toPath);
-            } catch (LockTimeoutException e1) {
-              throw new MessagingException("Unable to lock destination message store");
-            }
-            
-            ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
-            // Copy the content into the user his folder.
-            contentManager.update(
-                new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
-                    .build()));
-            contentManager.copy(originalMessage.getPath(), toPath, true);
-            Content message = contentManager.get(toPath);
-            LOG.debug("Message As delivered at {} from {} is {} ",new Object[]{message.getPath(), originalMessage.getPath(), message});
-  
-            // Add some extra properties on the just created node.
-            message.setProperty(MessageConstants.PROP_SAKAI_READ, false);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
-            message.setProperty(MessageConstants.PROP_SAKAI_SENDSTATE, MessageConstants.STATE_NOTIFIED);
-            message.setProperty(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messagingService.getFullPathToStore(recipient, session));
-            contentManager.update(message);
+        }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      } finally {
+        logout(session);
+      }
+    }
+  }
+
+  /**
+   * Delivers a message to some of its recipients.
+   */
+  private class DeliveryBatch implements Runnable {
+    private final List<String> recipients;
+    private final Content originalMessage;
+    private final Map<String, Object> properties;
+    private final DeliveryProgress progress;
+
+    DeliveryBatch(List<String> recipients, Content originalMessage,
+        Map<String, Object> properties, DeliveryProgress progress) {
+      this.recipients = recipients;
+      this.originalMessage = originalMessage;
+      this.properties = properties;
+      this.progress = progress;
+    }
+
+    /**
+     * Every batch is counted as done however it ends, with the recipients it did not get
+     * to counted as failed, so the message always leaves the pending state. A recipient
+     * that fails does not stop delivery to the rest of the batch.
+     */
+    public void run() {
+      Session session = null;
+      int processed = 0;
+      try {
+        session = slingRepository.loginAdministrative();
+        for (String recipient : recipients) {
+          boolean delivered = false;
+          try {
+            delivered = deliver(recipient, originalMessage, properties, session);
+          } catch (RuntimeException e) {
+            LOG.error("Failed to deliver " + originalMessage.getPath() + " to " + recipient,
+                e);
+          }
+          if (delivered) {
+            progress.delivered.incrementAndGet();
           } else {
-            LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
+            progress.failed.incrementAndGet();
           }
-          recipients.add(recipient);
+          processed++;
+        }
+      } catch (AccessDeniedException e) {
+        LOG.error(e.getMessage(), e);
+      } catch (StorageClientException e) {
+        LOG.error(e.getMessage(), e);
+      } finally {
+        progress.failed.addAndGet(recipients.size() - processed);
+        progress.batches.decrementAndGet();
+        saveProgress(session);
+        logout(session);
+      }
+    }
+
+    private void saveProgress(Session session) {
+      Session saveSession = session;
+      try {
+        if (saveSession == null) {
+          saveSession = slingRepository.loginAdministrative();
+        }
+        progress.save(saveSession);
+      } catch (AccessDeniedException e) {
+        LOG.error("Unable to record delivery progress of " + progress.path, e);
+      } catch (StorageClientException e) {
+        LOG.error("Unable to record delivery progress of " + progress.path, e);
+      } finally {
+        if (session == null) {
+          logout(saveSession);
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts the recipients a message has been delivered to and records them on the sent
+   * message.
+   */
+  private static class DeliveryProgress {
+    private final String path;
+    private final int total;
+    private final AtomicInteger delivered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger batches;
+
+    DeliveryProgress(String path, int total, int batches) {
+      this.path = path;
+      this.total = total;
+      this.batches = new AtomicInteger(batches);
+    }
+
+    /**
+     * Saves are serialised so the counts on the message only ever go up.
+     */
+    synchronized void save(Session session) throws AccessDeniedException,
+        StorageClientException {
+      ContentManager contentManager = session.getContentManager();
+      Content message = contentManager.get(path);
+      if (message == null) {
+        return;
+      }
+      boolean done = batches.get() == 0;
+      message.setProperty(MessageConstants.PROP_SAKAI_DELIVERY_STATE,
+          done ? MessageConstants.STATE_DELIVERED : MessageConstants.STATE_PENDING);
+      message.setProperty(MessageConstants.PROP_SAKAI_DELIVERY_TOTAL, total);
+      message.setProperty(MessageConstants.PROP_SAKAI_DELIVERY_COUNT, delivered.get());
+      message.setProperty(MessageConstants.PROP_SAKAI_DELIVERY_FAILED, failed.get());
+      contentManager.update(message);
+      if (done) {
+        LOG.info("Delivered {} to {} of {} recipients", new Object[] { path,
+            delivered.get(), total });
+      }
+    }
+  }
+
+  /**
+   * Write a copy of the message into the inbox of a single recipient.
+   *
+   * @return true if the message was delivered.
+   */
+  private boolean deliver(String recipient, Content originalMessage,
+      Map<String, Object> properties, Session session) {
+    try {
+      ContentManager contentManager = session.getContentManager();
+      String messageStore = messagingService.getFullPathToStore(recipient, session);
+      String messageStorePath = messageStore;
+      if (messageStorePath.endsWith("/")) {
+        messageStorePath = messageStorePath.substring(0, messageStorePath.length() - 1);
+      }
+      boolean forPublicOrEveryone = hasEveryoneOrPublicPermission(messageStorePath, contentManager);
+
+      if ( forPublicOrEveryone || messagingService.checkDeliveryAccessOk(recipient, originalMessage, session ) ) {
+        String messageId = (String) originalMessage
+            .getProperty(MessageConstants.PROP_SAKAI_ID);
+        String toPath = messagingService.getFullPathToMessage(recipient, messageId,
+            session);
+
+        try {
+          lockManager.waitForLock(toPath);
+        } catch (LockTimeoutException e1) {
+          throw new MessagingException("Unable to lock destination message store");
         }
+
+        ImmutableMap.Builder<String, Object> propertyBuilder = ImmutableMap.builder();
+        contentManager.update(
+            new Content(toPath.substring(0, toPath.lastIndexOf("/")), propertyBuilder
+                .build()));
+        // Write the copy into the user his folder in one go.
+        Map<String, Object> messageProperties = new HashMap<String, Object>(properties);
+        messageProperties.put(MessageConstants.PROP_SAKAI_MESSAGE_STORE, messageStore);
+        contentManager.update(new Content(toPath, messageProperties));
+        LOG.debug("Message As delivered at {} from {} ", toPath, originalMessage.getPath());
+        return true;
+      } else {
+        LOG.warn("Unable to deliver message, permission denied {} ", originalMessage.getPath());
       }
     } catch (AccessDeniedException e) {
       LOG.error(e.getMessage(), e);
     } catch (StorageClientException e) {
       LOG.error(e.getMessage(), e);
-    } catch (IOException e) {
+    } catch (MessagingException e) {
       LOG.error(e.getMessage(), e);
     } finally {
       lockManager.clearLocks();
     }
+    return false;
+  }
+
+  private void logout(Session session) {
+    if (session != null) {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOG.warn("Failed to logout session.", e);
+      }
+    }
   }
 
   private boolean hasEveryoneOrPublicPermission(String path, ContentManager contentManager) throws StorageClientException, AccessDeniedException {
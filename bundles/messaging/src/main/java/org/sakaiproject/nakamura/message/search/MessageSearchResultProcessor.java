@@ -35,12 +35,16 @@ import org.apache.sling.commons.json.JSONException;
 import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.osgi.framework.Constants;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.message.LiteMessageProfileWriter;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
@@ -81,12 +85,21 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
 
   private static final Logger LOGGER = LoggerFactory.getLogger(MessageSearchResultProcessor.class);
 
+  private static final String SHARED_BODY_CACHE = MessageSearchResultProcessor.class
+      .getName() + "-sharedbodies";
+
   @Reference
   protected LiteMessagingService messagingService;
 
   @Reference
   protected SolrSearchServiceFactory searchServiceFactory;
 
+  @Reference
+  protected Repository repository;
+
+  @Reference
+  protected CacheManagerService cacheManagerService;
+
   @Reference(referenceInterface = LiteMessageProfileWriter.class, cardinality = ReferenceCardinality.MANDATORY_MULTIPLE, policy = ReferencePolicy.DYNAMIC)
   protected Map<String, LiteMessageProfileWriter> writers = new ConcurrentHashMap<String, LiteMessageProfileWriter>();
 
@@ -134,6 +147,7 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
 
     // Write out all the properties on the message.
     ExtendedJSONWriter.writeNodeContentsToWriter(write, content);
+    writeSharedBody(write, content);
 
     // Add some extra properties.
     write.key("id");
@@ -196,6 +210,52 @@ public class MessageSearchResultProcessor implements SolrSearchResultProcessor,
     }
   }
 
+  /**
+   * A delivered copy of a message may reference a body stored once for all of its
+   * recipients. Whoever can read the copy can read the body, so it is read on their
+   * behalf.
+   */
+  private void writeSharedBody(JSONWriter write, Content content)
+      throws AccessDeniedException, StorageClientException, JSONException {
+    if (!content.hasProperty(MessageConstants.PROP_SAKAI_BODY_REF)
+        || content.hasProperty(MessageConstants.PROP_SAKAI_BODY) || repository == null) {
+      return;
+    }
+    String bodyPath = (String) content.getProperty(MessageConstants.PROP_SAKAI_BODY_REF);
+    if (!bodyPath.startsWith(MessageConstants.SHARED_BODY_STORE + "/")) {
+      return;
+    }
+    String body = getSharedBody(bodyPath);
+    if (body != null) {
+      write.key(MessageConstants.PROP_SAKAI_BODY);
+      write.value(body);
+    }
+  }
+
+  /**
+   * A shared body is written once when its message is sent and never changes, so bodies
+   * are cached rather than logging in to read one for every message listed.
+   */
+  private String getSharedBody(String bodyPath) throws AccessDeniedException,
+      StorageClientException {
+    Cache<String> cache = cacheManagerService.getCache(SHARED_BODY_CACHE,
+        CacheScope.INSTANCE);
+    String body = cache.get(bodyPath);
+    if (body == null) {
+      Session adminSession = repository.loginAdministrative();
+      try {
+        Content content = adminSession.getContentManager().get(bodyPath);
+        if (content != null && content.hasProperty(MessageConstants.PROP_SAKAI_BODY)) {
+          body = String.valueOf(content.getProperty(MessageConstants.PROP_SAKAI_BODY));
+          cache.put(bodyPath, body);
+        }
+      } finally {
+        adminSession.logout();
+      }
+    }
+    return body;
+  }
+
   protected void decorateProfile(ProfileType profileType, Session session,
       String otherUser, JSONWriter write) throws AccessDeniedException,
       StorageClientException, JSONException {
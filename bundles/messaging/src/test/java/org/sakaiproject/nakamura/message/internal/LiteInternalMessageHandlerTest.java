@@ -0,0 +1,246 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.message.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.locking.LockManager;
+import org.sakaiproject.nakamura.api.message.LiteMessagingService;
+import org.sakaiproject.nakamura.api.message.MessageConstants;
+import org.sakaiproject.nakamura.api.message.MessageRoutes;
+import org.sakaiproject.nakamura.api.message.MessageTransport;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.sakaiproject.nakamura.message.listener.LiteMessageRoutesImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ */
+public class LiteInternalMessageHandlerTest {
+  private RepositoryImpl repository;
+  private Session session;
+  private LiteInternalMessageHandler handler;
+  private LiteMessagingService messagingService;
+
+  @Before
+  public void setUp() throws Exception {
+    repository = new BaseMemoryRepository().getRepository();
+    session = repository.loginAdministrative();
+
+    messagingService = mock(LiteMessagingService.class);
+    when(messagingService.getFullPathToStore(anyString(), any(Session.class))).thenAnswer(
+        new Answer<String>() {
+          public String answer(InvocationOnMock invocation) throws Throwable {
+            return "a:" + invocation.getArguments()[0] + "/message/";
+          }
+        });
+    when(messagingService.getFullPathToMessage(anyString(), anyString(), any(Session.class)))
+        .thenAnswer(new Answer<String>() {
+          public String answer(InvocationOnMock invocation) throws Throwable {
+            return "a:" + invocation.getArguments()[0] + "/message/inbox/"
+                + invocation.getArguments()[1];
+          }
+        });
+    when(messagingService.checkDeliveryAccessOk(anyString(), any(Content.class),
+        any(Session.class))).thenReturn(true);
+
+    handler = new LiteInternalMessageHandler();
+    handler.slingRepository = repository;
+    handler.messagingService = messagingService;
+    handler.lockManager = mock(LockManager.class);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    handler.deactivate(null);
+    session.logout();
+  }
+
+  @Test
+  public void testNestedAndCyclicGroups() throws Exception {
+    handler.activate(new HashMap<String, Object>());
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    for (String user : new String[] { "alice", "bob", "carol" }) {
+      authorizableManager.createUser(user, user, "password", new HashMap<String, Object>());
+    }
+    authorizableManager.createGroup("g-outer", "g-outer", new HashMap<String, Object>());
+    authorizableManager.createGroup("g-inner", "g-inner", new HashMap<String, Object>());
+    addMembers("g-outer", "alice", "bob", "g-inner");
+    addMembers("g-inner", "bob", "carol", "g-outer");
+
+    Content message = sendTo("m1", "g-outer", "alice");
+    waitForDelivery(message.getPath());
+
+    ContentManager contentManager = session.getContentManager();
+    for (String user : new String[] { "alice", "bob", "carol" }) {
+      Content delivered = contentManager.get("a:" + user + "/message/inbox/m1");
+      assertNotNull(delivered);
+      assertEquals("hello", delivered.getProperty(MessageConstants.PROP_SAKAI_BODY));
+      assertEquals(MessageConstants.BOX_INBOX,
+          delivered.getProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX));
+      assertFalse((Boolean) delivered.getProperty(MessageConstants.PROP_SAKAI_READ));
+    }
+    assertFalse(contentManager.exists("a:g-outer/message/inbox/m1"));
+    Content sent = contentManager.get(message.getPath());
+    assertEquals(3, count(sent, MessageConstants.PROP_SAKAI_DELIVERY_TOTAL));
+    assertEquals(3, count(sent, MessageConstants.PROP_SAKAI_DELIVERY_COUNT));
+    assertEquals(0, count(sent, MessageConstants.PROP_SAKAI_DELIVERY_FAILED));
+  }
+
+  @Test
+  public void testSharedBody() throws Exception {
+    handler.activate(ImmutableMap.of(LiteInternalMessageHandler.SHARED_BODY,
+        (Object) Boolean.TRUE));
+    session.getAuthorizableManager().createUser("alice", "alice", "password", new HashMap<String, Object>());
+
+    Content message = sendTo("m2", "alice");
+    waitForDelivery(message.getPath());
+
+    ContentManager contentManager = session.getContentManager();
+    Content delivered = contentManager.get("a:alice/message/inbox/m2");
+    assertNull(delivered.getProperty(MessageConstants.PROP_SAKAI_BODY));
+    String bodyPath = (String) delivered.getProperty(MessageConstants.PROP_SAKAI_BODY_REF);
+    assertEquals("hello", contentManager.get(bodyPath).getProperty(
+        MessageConstants.PROP_SAKAI_BODY));
+
+    // the body is only read through the administrative session.
+    Session alice = repository.login("alice", "password");
+    try {
+      alice.getContentManager().get(bodyPath);
+      fail("Users should not be able to read shared message bodies directly.");
+    } catch (AccessDeniedException e) {
+      // expected
+    } finally {
+      alice.logout();
+    }
+  }
+
+  @Test
+  public void testDeactivateFinishesQueuedDeliveries() throws Exception {
+    handler.activate(ImmutableMap.of(LiteInternalMessageHandler.DELIVERY_THREADS,
+        (Object) 1, LiteInternalMessageHandler.DELIVERY_BATCH_SIZE, (Object) 1));
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    authorizableManager.createGroup("g-all", "g-all", new HashMap<String, Object>());
+    Group group = (Group) authorizableManager.findAuthorizable("g-all");
+    for (int i = 0; i < 50; i++) {
+      String user = "user" + i;
+      authorizableManager.createUser(user, user, "password", new HashMap<String, Object>());
+      group.addMember(user);
+    }
+    authorizableManager.updateAuthorizable(group);
+
+    Content message = sendTo("m3", "g-all");
+    handler.deactivate(null);
+
+    Content sent = session.getContentManager().get(message.getPath());
+    assertEquals(MessageConstants.STATE_DELIVERED,
+        sent.getProperty(MessageConstants.PROP_SAKAI_DELIVERY_STATE));
+    assertEquals(50, count(sent, MessageConstants.PROP_SAKAI_DELIVERY_COUNT));
+  }
+
+  @Test
+  public void testFailedRecipientDoesNotStopBatch() throws Exception {
+    handler.activate(new HashMap<String, Object>());
+    when(messagingService.getFullPathToStore(eq("bob"), any(Session.class))).thenThrow(
+        new IllegalStateException("broken store"));
+
+    Content message = sendTo("m4", "alice", "bob", "carol");
+    waitForDelivery(message.getPath());
+
+    ContentManager contentManager = session.getContentManager();
+    Content sent = contentManager.get(message.getPath());
+    assertEquals(3, count(sent, MessageConstants.PROP_SAKAI_DELIVERY_TOTAL));
+    assertEquals(2, count(sent, MessageConstants.PROP_SAKAI_DELIVERY_COUNT));
+    assertEquals(1, count(sent, MessageConstants.PROP_SAKAI_DELIVERY_FAILED));
+    assertNotNull(contentManager.get("a:alice/message/inbox/m4"));
+    assertNotNull(contentManager.get("a:carol/message/inbox/m4"));
+  }
+
+  private int count(Content sent, String property) {
+    return ((Number) sent.getProperty(property)).intValue();
+  }
+
+  private void addMembers(String groupId, String... members) throws Exception {
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Group group = (Group) authorizableManager.findAuthorizable(groupId);
+    for (String member : members) {
+      group.addMember(member);
+    }
+    authorizableManager.updateAuthorizable(group);
+  }
+
+  private Content sendTo(String messageId, String... rcpts) throws Exception {
+    ContentManager contentManager = session.getContentManager();
+    String path = "a:sender/message/outbox/" + messageId;
+    Map<String, Object> properties = new HashMap<String, Object>();
+    properties.put(MessageConstants.PROP_SAKAI_ID, messageId);
+    properties.put(MessageConstants.PROP_SAKAI_BODY, "hello");
+    properties.put(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_OUTBOX);
+    StringBuilder to = new StringBuilder();
+    for (String rcpt : rcpts) {
+      to.append(to.length() > 0 ? "," : "").append(MessageTransport.INTERNAL_TRANSPORT)
+          .append(":").append(rcpt);
+    }
+    properties.put(MessageConstants.PROP_SAKAI_TO, to.toString());
+    contentManager.update(new Content(path, properties));
+    Content message = contentManager.get(path);
+
+    MessageRoutes routes = new LiteMessageRoutesImpl(message);
+    handler.send(routes, null, message);
+    return message;
+  }
+
+  private void waitForDelivery(String path) throws Exception {
+    ContentManager contentManager = session.getContentManager();
+    long timeout = System.currentTimeMillis() + 120000;
+    while (System.currentTimeMillis() < timeout) {
+      Content sent = contentManager.get(path);
+      if (MessageConstants.STATE_DELIVERED.equals(sent
+          .getProperty(MessageConstants.PROP_SAKAI_DELIVERY_STATE))) {
+        return;
+      }
+      Thread.sleep(10);
+    }
+    fail("Message " + path + " was not delivered");
+  }
+}
@@ -18,9 +18,15 @@
 package org.sakaiproject.nakamura.message.search;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableMap;
+
 import org.apache.jackrabbit.api.JackrabbitSession;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.ResourceResolver;
@@ -31,12 +37,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.sakaiproject.nakamura.api.lite.Repository;
 import org.sakaiproject.nakamura.api.lite.Session;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
 import org.sakaiproject.nakamura.api.message.LiteMessagingService;
 import org.sakaiproject.nakamura.api.message.MessageConstants;
 import org.sakaiproject.nakamura.lite.jackrabbit.SparseMapUserManager;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
 import org.sakaiproject.nakamura.message.internal.LiteInternalMessageHandler;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 
@@ -178,6 +188,40 @@ public class MessageSearchResultProcessorTest {
     assertEquals(prev.getString("id"), previousId);
   }
 
+  @Test
+  public void testSharedBodiesAreCached() throws Exception {
+    String bodyPath = MessageConstants.SHARED_BODY_STORE + "/msgid";
+    ContentManager adminContentManager = mock(ContentManager.class);
+    when(adminContentManager.get(bodyPath)).thenReturn(new Content(bodyPath,
+        ImmutableMap.of(MessageConstants.PROP_SAKAI_BODY, (Object) "hello everyone")));
+    Session adminSession = mock(Session.class);
+    when(adminSession.getContentManager()).thenReturn(adminContentManager);
+    Repository repository = mock(Repository.class);
+    when(repository.loginAdministrative()).thenReturn(adminSession);
+    CacheManagerService cacheManagerService = mock(CacheManagerService.class);
+    when(cacheManagerService.getCache(anyString(), eq(CacheScope.INSTANCE))).thenReturn(
+        new MapCacheImpl<Object>());
+    proc.repository = repository;
+    proc.cacheManagerService = cacheManagerService;
+
+    // the same group message, as delivered to two of its recipients.
+    for (String user : new String[] { "alice", "bob" }) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      Writer w = new PrintWriter(baos);
+      ExtendedJSONWriter write = new ExtendedJSONWriter(w);
+      Content copy = new Content("a:" + user + "/message/inbox/msgid", null);
+      copy.setProperty(MessageConstants.PROP_SAKAI_BODY_REF, bodyPath);
+      write.object();
+      proc.writeContent(request, write, copy);
+      write.endObject();
+      w.flush();
+      JSONObject o = new JSONObject(baos.toString("UTF-8"));
+      assertEquals("hello everyone", o.getString(MessageConstants.PROP_SAKAI_BODY));
+    }
+    verify(repository, times(1)).loginAdministrative();
+    verify(adminSession, times(1)).logout();
+  }
+
   private Content createDummyMessage(String msgID) {
     Content c = new Content("/path/to/store/" + msgID, null);
     c.setProperty(MessageConstants.PROP_SAKAI_MESSAGEBOX, MessageConstants.BOX_INBOX);
@@ -61,6 +61,19 @@ public interface ProxyClientService {
    */
   public static final String SAKAI_LIMIT_GET_SIZE = "sakai:proxy-limit-length";
 
+  /**
+   * The number of seconds GET responses from this end point are cached for, overriding
+   * the cache headers sent by the end point.
+   */
+  public static final String SAKAI_PROXY_CACHE_TTL = "sakai:proxy-cache-ttl";
+
+  /**
+   * Set to true when GET responses from this end point are the same for every user. The
+   * client's cookies are then not sent to the end point, so requests that carry them can
+   * still be served from the cache.
+   */
+  public static final String SAKAI_PROXY_CACHE_SHARED = "sakai:proxy-cache-shared";
+
 
   /**
    * Executes a HTTP call using a path in the JCR to point to a template and a map of
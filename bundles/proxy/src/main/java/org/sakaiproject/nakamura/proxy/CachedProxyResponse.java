@@ -0,0 +1,136 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.io.IOUtils;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Map;
+
+/**
+ * A ProxyResponse whose body has been read into memory, either from the response cache
+ * or while trying to store it there. When the body turned out to be too large to cache
+ * the part already read is followed by the rest of the upstream response.
+ */
+public class CachedProxyResponse implements ProxyResponse {
+
+  private static final String DEFAULT_CHARSET = "ISO-8859-1";
+
+  private final int result;
+  private final Map<String, String[]> headers;
+  private final byte[] body;
+  private final String token;
+  private InputStream rest;
+  private HttpMethod method;
+
+  /**
+   * @param result
+   * @param headers
+   * @param body
+   *          the complete body.
+   * @param token
+   *          identifies the cached version of the body, or null if it was not cached.
+   */
+  public CachedProxyResponse(int result, Map<String, String[]> headers, byte[] body,
+      String token) {
+    this.result = result;
+    this.headers = headers;
+    this.body = body;
+    this.token = token;
+  }
+
+  /**
+   * A response with only the start of its body in memory.
+   *
+   * @param rest
+   *          the remainder of the body.
+   * @param method
+   *          the upstream method, released on close.
+   */
+  public CachedProxyResponse(int result, Map<String, String[]> headers, byte[] start,
+      InputStream rest, HttpMethod method) {
+    this(result, headers, start, null);
+    this.rest = rest;
+    this.method = method;
+  }
+
+  /**
+   * @return a token that is the same for every response served from one cached copy of
+   *         an upstream response, or null if this response was not cached.
+   */
+  public String getCacheToken() {
+    return token;
+  }
+
+  public int getResultCode() {
+    return result;
+  }
+
+  public Map<String, String[]> getResponseHeaders() {
+    return headers;
+  }
+
+  public byte[] getResponseBody() throws IOException {
+    if (rest == null) {
+      return body;
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    IOUtils.copy(getResponseBodyAsInputStream(), out);
+    return out.toByteArray();
+  }
+
+  public InputStream getResponseBodyAsInputStream() throws IOException {
+    InputStream start = new ByteArrayInputStream(body);
+    if (rest == null) {
+      return start;
+    }
+    InputStream in = new SequenceInputStream(start, rest);
+    rest = null;
+    return in;
+  }
+
+  public String getResponseBodyAsString() throws IOException {
+    return new String(getResponseBody(), getCharset());
+  }
+
+  public void close() {
+    if (method != null) {
+      method.releaseConnection();
+      method = null;
+    }
+  }
+
+  private String getCharset() {
+    String contentType = ProxyResponseCache.getHeader(headers, "Content-Type");
+    if (contentType != null) {
+      for (String param : contentType.split(";")) {
+        param = param.trim();
+        if (param.toLowerCase().startsWith("charset=")) {
+          return param.substring(8).replace("\"", "");
+        }
+      }
+    }
+    return DEFAULT_CHARSET;
+  }
+}
@@ -46,6 +46,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.request.RequestParameter;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.velocity.Template;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.VelocityEngine;
@@ -59,11 +60,13 @@ import org.sakaiproject.nakamura.api.proxy.ProxyMethod;
 import org.sakaiproject.nakamura.api.proxy.ProxyNodeSource;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CachedEntry;
 import org.sakaiproject.nakamura.proxy.velocity.JcrResourceLoader;
 import org.sakaiproject.nakamura.proxy.velocity.VelocityLogger;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.sakaiproject.nakamura.util.StringUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
@@ -72,6 +75,7 @@ import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -79,6 +83,9 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -115,6 +122,43 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
   @Property(value={"rss", "trustedLoginTokenProxyPostProcessor", "someothersafepostprocessor"})
   private static final String SAFE_POSTPROCESSORS = "safe.postprocessors";
 
+  /**
+   * The total size of the upstream GET responses to cache, 0 to disable caching.
+   */
+  @Property(intValue = 10485760)
+  private static final String CACHE_MAX_BYTES = "proxy.cache.max.bytes";
+
+  /**
+   * The largest upstream response that will be cached.
+   */
+  @Property(intValue = 1048576)
+  private static final String CACHE_MAX_ENTRY_BYTES = "proxy.cache.max.entry.bytes";
+
+  /**
+   * How long a key whose response could not be cached is passed straight through, in ms.
+   */
+  private static final long UNCACHEABLE_RETRY = 60000L;
+
+  /**
+   * How long a key whose upstream failed is passed straight through, in ms, so that
+   * waiting requests do not retry the failing endpoint one at a time.
+   */
+  private static final long FAILED_RETRY = 5000L;
+
+  /**
+   * The longest a request waits for another request's fetch of the same key, in ms,
+   * before fetching on its own.
+   */
+  private static final long FETCH_WAIT = 10000L;
+
+  /**
+   * Request headers that do not change the upstream response, left out of cache keys.
+   */
+  private static final Set<String> CACHE_KEY_IGNORED_HEADERS = new HashSet<String>(
+      Arrays.asList("user-agent", "referer", "connection",
+          "keep-alive", "cache-control", "pragma", "if-none-match", "if-modified-since",
+          "x-requested-with", "origin", "te", "upgrade"));
+
   /**
    * The shared velocity engine, which should cache all the templates. (need to sort out
    * how to invalidate).
@@ -140,6 +184,11 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
   private Set<String> safeOpenProcessors = new HashSet<String>();
 
+  /**
+   * Shared cache of upstream GET responses, null if caching is disabled.
+   */
+  private ProxyResponseCache responseCache;
+
   /**
    * Set to true if HttpClient communicates via an authenticating proxy server to
    * get to the internet. False otherwise.
@@ -193,6 +242,12 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
 
     httpClient = new HttpClient(httpClientConnectionManager);
 
+    int cacheMaxBytes = OsgiUtil.toInteger(configProperties.get(CACHE_MAX_BYTES), 10485760);
+    int cacheMaxEntryBytes = OsgiUtil.toInteger(configProperties.get(CACHE_MAX_ENTRY_BYTES),
+        1048576);
+    responseCache = (cacheMaxBytes > 0) ? new ProxyResponseCache(cacheMaxBytes,
+        cacheMaxEntryBytes) : null;
+
     // allow communications via a proxy server if command line
     // java parameters http.proxyHost,http.proxyPort,http.proxyUser,
     // http.proxyPassword have been provided.
@@ -333,36 +388,16 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         HttpMethod method = null;
         switch (proxyMethod) {
         case GET:
-          if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
-            long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
-            method = new HeadMethod(endpointURL);
-            HttpMethodParams params = new HttpMethodParams(method.getParams());
-            // make certain we reject the body of a head
-            params.setBooleanParameter("http.protocol.reject-head-body", true);
-            method.setParams(params);
-            method.setFollowRedirects(true);
-            populateMethod(method, node, headers);
-            int result = httpClient.executeMethod(method);
-            if (externalAuthenticatingProxy && result == 407) {
-              method.releaseConnection();
-              method.setDoAuthentication(true);
-              result = httpClient.executeMethod(method);
-            }
-            if (result == 200) {
-              // Check if the content-length is smaller than the maximum (if any).
-              Header contentLengthHeader = method.getResponseHeader("Content-Length");
-              if (contentLengthHeader != null) {
-                long length = Long.parseLong(contentLengthHeader.getValue());
-                if (length > maxSize) {
-                  return new ProxyResponseImpl(
-                      HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
-                      method);
-                }
-              }
-            } else {
-              return new ProxyResponseImpl(result, method);
+          if (responseCache != null) {
+            Map<String, String> cacheableHeaders = getCacheableHeaders(node, headers);
+            if (cacheableHeaders != null) {
+              return executeCachedGet(node, endpointURL, cacheableHeaders);
             }
           }
+          ProxyResponse tooLarge = checkGetSize(node, endpointURL, headers);
+          if (tooLarge != null) {
+            return tooLarge;
+          }
           method = new GetMethod(endpointURL);
           // redirects work automatically for get, options and head, but not for put and
           // post
@@ -454,24 +489,14 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
           }
         }
 
-        int result = httpClient.executeMethod(method);
-        if (externalAuthenticatingProxy && result == 407) {
-          method.releaseConnection();
-          method.setDoAuthentication(true);
-          result = httpClient.executeMethod(method);
-        }
+        int result = executeMethod(method);
         if (result == 302 && method instanceof EntityEnclosingMethod) {
           // handle redirects on post and put
           String url = method.getResponseHeader("Location").getValue();
           method = new GetMethod(url);
           method.setFollowRedirects(true);
           method.setDoAuthentication(false);
-          result = httpClient.executeMethod(method);
-          if (externalAuthenticatingProxy && result == 407) {
-            method.releaseConnection();
-            method.setDoAuthentication(true);
-            result = httpClient.executeMethod(method);
-          }
+          result = executeMethod(method);
         }
 
         return new ProxyResponseImpl(result, method);
@@ -489,6 +514,252 @@ public class ProxyClientServiceImpl implements ProxyClientService, ProxyNodeSour
         + " does not contain a valid endpoint specification ");
   }
 
+  /**
+   * If the node limits the size of GET responses, check the size upstream with a HEAD
+   * request first.
+   *
+   * @return a response to return instead of doing the GET, or null if the GET can go
+   *         ahead.
+   */
+  private ProxyResponse checkGetSize(Node node, String endpointURL,
+      Map<String, String> headers) throws RepositoryException, IOException {
+    if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
+      long maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+      HttpMethod method = new HeadMethod(endpointURL);
+      HttpMethodParams params = new HttpMethodParams(method.getParams());
+      // make certain we reject the body of a head
+      params.setBooleanParameter("http.protocol.reject-head-body", true);
+      method.setParams(params);
+      method.setFollowRedirects(true);
+      populateMethod(method, node, headers);
+      int result = executeMethod(method);
+      if (result == 200) {
+        // Check if the content-length is smaller than the maximum (if any).
+        Header contentLengthHeader = method.getResponseHeader("Content-Length");
+        if (contentLengthHeader != null) {
+          long length = Long.parseLong(contentLengthHeader.getValue());
+          if (length > maxSize) {
+            return new ProxyResponseImpl(
+                HttpServletResponse.SC_PRECONDITION_FAILED, "Response too large",
+                method);
+          }
+        }
+      } else {
+        return new ProxyResponseImpl(result, method);
+      }
+      method.releaseConnection();
+    }
+    return null;
+  }
+
+  /**
+   * Execute a method, retrying with authentication if an authenticating proxy server
+   * asks for it.
+   */
+  private int executeMethod(HttpMethod method) throws IOException {
+    int result = httpClient.executeMethod(method);
+    if (externalAuthenticatingProxy && result == 407) {
+      method.releaseConnection();
+      method.setDoAuthentication(true);
+      result = httpClient.executeMethod(method);
+    }
+    return result;
+  }
+
+  /**
+   * Responses to requests carrying credentials or cookies are not shared between users,
+   * unless the end point is marked as shared, in which case the cookies are not sent.
+   *
+   * @return the headers to send through the cache, or null if the request can not be
+   *         cached.
+   */
+  private Map<String, String> getCacheableHeaders(Node node, Map<String, String> headers)
+      throws RepositoryException {
+    boolean shared = node.hasProperty(SAKAI_PROXY_CACHE_SHARED)
+        && node.getProperty(SAKAI_PROXY_CACHE_SHARED).getBoolean();
+    Map<String, String> cacheableHeaders = new HashMap<String, String>();
+    for (Entry<String, String> header : headers.entrySet()) {
+      String name = header.getKey();
+      if ("authorization".equalsIgnoreCase(name)) {
+        return null;
+      }
+      if ("cookie".equalsIgnoreCase(name)) {
+        if (!shared) {
+          return null;
+        }
+      } else {
+        cacheableHeaders.put(name, header.getValue());
+      }
+    }
+    return cacheableHeaders;
+  }
+
+  /**
+   * Do a GET through the response cache. Fresh responses are served from the cache,
+   * stale ones are revalidated upstream with a conditional GET, and concurrent misses on
+   * the same request wait for a single upstream fetch.
+   */
+  private ProxyResponse executeCachedGet(Node node, String endpointURL,
+      Map<String, String> headers) throws RepositoryException, IOException,
+      InterruptedException {
+    String key = getCacheKey(node, endpointURL, headers);
+    long maxSize = -1;
+    if (node.hasProperty(SAKAI_LIMIT_GET_SIZE)) {
+      maxSize = node.getProperty(SAKAI_LIMIT_GET_SIZE).getLong();
+    }
+    long ttl = -1;
+    if (node.hasProperty(SAKAI_PROXY_CACHE_TTL)) {
+      ttl = node.getProperty(SAKAI_PROXY_CACHE_TTL).getLong() * 1000L;
+    }
+    // the cache does its own revalidation, the client's conditions would get a 304
+    // that can not be stored.
+    Map<String, String> upstreamHeaders = new HashMap<String, String>();
+    for (Entry<String, String> header : headers.entrySet()) {
+      String name = header.getKey().toLowerCase();
+      if (!"if-none-match".equals(name) && !"if-modified-since".equals(name)) {
+        upstreamHeaders.put(header.getKey(), header.getValue());
+      }
+    }
+    for (;;) {
+      long now = System.currentTimeMillis();
+      CachedEntry entry = responseCache.get(key);
+      if (entry != null && entry.isFresh(now)) {
+        return toResponse(entry, maxSize);
+      }
+      if (responseCache.isUncacheable(key, now)) {
+        return fetch(node, endpointURL, upstreamHeaders, key, null, ttl, maxSize);
+      }
+      CountDownLatch fetching = responseCache.claim(key);
+      if (fetching == null) {
+        boolean fetched = false;
+        try {
+          ProxyResponse response = fetch(node, endpointURL, upstreamHeaders, key, entry,
+              ttl, maxSize);
+          fetched = true;
+          return response;
+        } finally {
+          if (!fetched) {
+            responseCache.markUncacheable(key, now + FAILED_RETRY);
+          }
+          responseCache.release(key);
+        }
+      }
+      // someone else is fetching this, use what they got.
+      if (!fetching.await(FETCH_WAIT, TimeUnit.MILLISECONDS)) {
+        return fetch(node, endpointURL, upstreamHeaders, key, null, ttl, maxSize);
+      }
+    }
+  }
+
+  private ProxyResponse fetch(Node node, String endpointURL, Map<String, String> headers,
+      String key, CachedEntry stale, long ttl, long maxSize) throws RepositoryException,
+      IOException {
+    if (stale == null) {
+      ProxyResponse tooLarge = checkGetSize(node, endpointURL, headers);
+      if (tooLarge != null) {
+        return tooLarge;
+      }
+    }
+    GetMethod method = new GetMethod(endpointURL);
+    method.setFollowRedirects(true);
+    populateMethod(method, node, headers);
+    if (stale != null) {
+      if (stale.getETag() != null) {
+        method.setRequestHeader("If-None-Match", stale.getETag());
+      }
+      if (stale.getLastModified() != null) {
+        method.setRequestHeader("If-Modified-Since", stale.getLastModified());
+      }
+    }
+    int result = executeMethod(method);
+    long now = System.currentTimeMillis();
+    Map<String, String[]> responseHeaders = new ProxyResponseImpl(result, method)
+        .getResponseHeaders();
+
+    if (result == HttpServletResponse.SC_NOT_MODIFIED && stale != null) {
+      method.releaseConnection();
+      // a 304 need not repeat the freshness headers.
+      Map<String, String[]> freshness = responseHeaders;
+      if (ProxyResponseCache.getHeader(responseHeaders, "Cache-Control") == null
+          && ProxyResponseCache.getHeader(responseHeaders, "Expires") == null) {
+        freshness = stale.getHeaders();
+      }
+      stale.refresh(ProxyResponseCache.getExpires(freshness, now, ttl));
+      return toResponse(stale, maxSize);
+    }
+    if (result != HttpServletResponse.SC_OK) {
+      responseCache.markUncacheable(key, now + FAILED_RETRY);
+      return new ProxyResponseImpl(result, method);
+    }
+    long expires = ProxyResponseCache.getExpires(responseHeaders, now, ttl);
+    boolean revalidatable = ProxyResponseCache.getHeader(responseHeaders, "ETag") != null
+        || ProxyResponseCache.getHeader(responseHeaders, "Last-Modified") != null;
+    if (!ProxyResponseCache.isStorable(responseHeaders, CACHE_KEY_IGNORED_HEADERS)
+        || (expires <= now && !revalidatable)) {
+      responseCache.markUncacheable(key, now + UNCACHEABLE_RETRY);
+      return new ProxyResponseImpl(result, method);
+    }
+    Header contentLength = method.getResponseHeader("Content-Length");
+    int maxEntryBytes = responseCache.getMaxEntryBytes();
+    if (contentLength != null && Long.parseLong(contentLength.getValue()) > maxEntryBytes) {
+      responseCache.markUncacheable(key, now + UNCACHEABLE_RETRY);
+      return new ProxyResponseImpl(result, method);
+    }
+    InputStream in = method.getResponseBodyAsStream();
+    byte[] body = readAtMost(in, maxEntryBytes + 1);
+    if (body.length > maxEntryBytes) {
+      // too large to cache after all, pass on what has been read and the rest.
+      responseCache.markUncacheable(key, now + UNCACHEABLE_RETRY);
+      return new CachedProxyResponse(result, responseHeaders, body, in, method);
+    }
+    method.releaseConnection();
+    CachedEntry entry = responseCache.put(key, result, responseHeaders, body, expires);
+    return toResponse(entry, maxSize);
+  }
+
+  private ProxyResponse toResponse(CachedEntry entry, long maxSize) {
+    if (maxSize >= 0 && entry.getBody().length > maxSize) {
+      return new CachedProxyResponse(HttpServletResponse.SC_PRECONDITION_FAILED,
+          entry.getHeaders(), new byte[0], null);
+    }
+    return new CachedProxyResponse(entry.getStatus(), entry.getHeaders(), entry.getBody(),
+        entry.getToken());
+  }
+
+  /**
+   * The key for a request is its URL, the node it was made through and the request
+   * headers that can change the upstream response.
+   */
+  private String getCacheKey(Node node, String endpointURL, Map<String, String> headers)
+      throws RepositoryException {
+    StringBuilder key = new StringBuilder(endpointURL).append('\n').append(node.getPath());
+    Map<String, String> keyHeaders = new TreeMap<String, String>();
+    for (Entry<String, String> header : headers.entrySet()) {
+      String name = header.getKey().toLowerCase();
+      if (!CACHE_KEY_IGNORED_HEADERS.contains(name)) {
+        keyHeaders.put(name, header.getValue());
+      }
+    }
+    for (Entry<String, String> header : keyHeaders.entrySet()) {
+      key.append('\n').append(header.getKey()).append(':').append(header.getValue());
+    }
+    return key.toString();
+  }
+
+  private byte[] readAtMost(InputStream in, int max) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    if (in == null) {
+      return out.toByteArray();
+    }
+    byte[] buffer = new byte[8192];
+    int n;
+    while (out.size() < max
+        && (n = in.read(buffer, 0, Math.min(buffer.length, max - out.size()))) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
   private boolean isUnsafeProxyDefinition(Node node) throws RepositoryException {
     if (node.hasProperty(ProxyPostProcessor.SAKAI_POSTPROCESSOR)) {
       String postProcessorName = node.getProperty(
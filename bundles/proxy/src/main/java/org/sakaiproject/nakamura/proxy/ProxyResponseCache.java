@@ -0,0 +1,330 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A shared cache of upstream responses, bounded by the total size of the bodies held.
+ * Entries are kept while they are fresh according to the upstream Cache-Control and
+ * Expires headers, or a ttl set on the proxy node, and while they can be revalidated with
+ * their ETag or Last-Modified once stale.
+ * <p>
+ * Concurrent misses on the same key are collapsed: the first caller to
+ * {@link #claim(String)} a key fetches it, the others wait for that fetch and then look
+ * in the cache again.
+ * </p>
+ */
+public class ProxyResponseCache {
+
+  /**
+   * A cached upstream response.
+   */
+  public static class CachedEntry {
+    private final int status;
+    private final Map<String, String[]> headers;
+    private final byte[] body;
+    private final long version;
+    private volatile long expires;
+
+    CachedEntry(int status, Map<String, String[]> headers, byte[] body, long expires,
+        long version) {
+      this.status = status;
+      this.headers = headers;
+      this.body = body;
+      this.expires = expires;
+      this.version = version;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public Map<String, String[]> getHeaders() {
+      return headers;
+    }
+
+    public byte[] getBody() {
+      return body;
+    }
+
+    /**
+     * @return a token that changes whenever the cached body for a key is replaced.
+     */
+    public String getToken() {
+      return String.valueOf(version);
+    }
+
+    public boolean isFresh(long now) {
+      return now < expires;
+    }
+
+    public String getETag() {
+      return getHeader(headers, "ETag");
+    }
+
+    public String getLastModified() {
+      return getHeader(headers, "Last-Modified");
+    }
+
+    /**
+     * Extend the life of this entry after the upstream confirmed it is unchanged.
+     */
+    void refresh(long expires) {
+      this.expires = expires;
+    }
+  }
+
+  private final long maxBytes;
+
+  private final int maxEntryBytes;
+
+  private long bytes;
+
+  private final AtomicLong versions = new AtomicLong();
+
+  private final Map<String, CachedEntry> entries = new LinkedHashMap<String, CachedEntry>(
+      16, 0.75f, true);
+
+  private final ConcurrentHashMap<String, CountDownLatch> inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+
+  /**
+   * Keys whose last response could not be cached -> until when to stop trying, so that
+   * concurrent requests for them are not collapsed into one at a time.
+   */
+  private final Map<String, Long> uncacheable = new LinkedHashMap<String, Long>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_UNCACHEABLE_KEYS;
+    }
+  };
+
+  private static final int MAX_UNCACHEABLE_KEYS = 1000;
+
+  /**
+   * @param maxBytes
+   *          the total size of the bodies to hold, least recently used entries are
+   *          evicted beyond this.
+   * @param maxEntryBytes
+   *          the largest body that will be cached.
+   */
+  public ProxyResponseCache(long maxBytes, int maxEntryBytes) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = maxEntryBytes;
+  }
+
+  public synchronized CachedEntry get(String key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Store a response, replacing any earlier response for the key.
+   *
+   * @return the new entry, or null if the body is too large to cache.
+   */
+  public synchronized CachedEntry put(String key, int status, Map<String, String[]> headers,
+      byte[] body, long expires) {
+    if (body.length > maxEntryBytes) {
+      return null;
+    }
+    CachedEntry entry = new CachedEntry(status, Collections.unmodifiableMap(headers), body,
+        expires, versions.incrementAndGet());
+    uncacheable.remove(key);
+    CachedEntry previous = entries.put(key, entry);
+    if (previous != null) {
+      bytes -= previous.body.length;
+    }
+    bytes += body.length;
+    Iterator<Entry<String, CachedEntry>> eldest = entries.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      CachedEntry evicted = eldest.next().getValue();
+      eldest.remove();
+      bytes -= evicted.body.length;
+    }
+    return entry;
+  }
+
+  public synchronized void remove(String key) {
+    CachedEntry previous = entries.remove(key);
+    if (previous != null) {
+      bytes -= previous.body.length;
+    }
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public int getMaxEntryBytes() {
+    return maxEntryBytes;
+  }
+
+  /**
+   * Stop collapsing and caching requests for a key for a while, after its response could
+   * not be cached.
+   */
+  public synchronized void markUncacheable(String key, long until) {
+    remove(key);
+    uncacheable.put(key, until);
+  }
+
+  public synchronized boolean isUncacheable(String key, long now) {
+    Long until = uncacheable.get(key);
+    if (until == null) {
+      return false;
+    }
+    if (now >= until) {
+      uncacheable.remove(key);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Claim the right to fetch a key from upstream.
+   *
+   * @return null if the caller now owns the fetch and must call {@link #release(String)}
+   *         when done, otherwise the latch of the fetch already in progress.
+   */
+  public CountDownLatch claim(String key) {
+    return inFlight.putIfAbsent(key, new CountDownLatch(1));
+  }
+
+  /**
+   * Release a claimed key, waking up any callers waiting on it.
+   */
+  public void release(String key) {
+    CountDownLatch latch = inFlight.remove(key);
+    if (latch != null) {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * @param headers
+   *          the response headers.
+   * @param unkeyedRequestHeaders
+   *          the lower case names of the request headers left out of cache keys. A
+   *          response that varies on any of them can not be shared.
+   * @return false if the response headers forbid a shared cache from storing it.
+   */
+  public static boolean isStorable(Map<String, String[]> headers,
+      Set<String> unkeyedRequestHeaders) {
+    String cacheControl = getHeader(headers, "Cache-Control");
+    if (cacheControl != null) {
+      for (String directive : cacheControl.toLowerCase().split(",")) {
+        directive = directive.trim();
+        if ("no-store".equals(directive) || "private".equals(directive)) {
+          return false;
+        }
+      }
+    }
+    for (Entry<String, String[]> header : headers.entrySet()) {
+      if ("Vary".equalsIgnoreCase(header.getKey())) {
+        for (String value : header.getValue()) {
+          for (String field : value.toLowerCase().split(",")) {
+            field = field.trim();
+            if ("*".equals(field) || unkeyedRequestHeaders.contains(field)) {
+              return false;
+            }
+          }
+        }
+      }
+    }
+    return getHeader(headers, "Set-Cookie") == null;
+  }
+
+  /**
+   * Work out until when a response may be served without revalidation.
+   *
+   * @param ttl
+   *          a freshness lifetime in ms set on the proxy node that overrides the
+   *          upstream headers, or a negative number to use them.
+   * @return the expiry time in ms, at or before now if the response is stale straight
+   *         away.
+   */
+  public static long getExpires(Map<String, String[]> headers, long now, long ttl) {
+    if (ttl >= 0) {
+      return now + ttl;
+    }
+    String cacheControl = getHeader(headers, "Cache-Control");
+    if (cacheControl != null) {
+      long maxAge = -1;
+      for (String directive : cacheControl.toLowerCase().split(",")) {
+        directive = directive.trim();
+        if ("no-cache".equals(directive)) {
+          return now;
+        }
+        try {
+          if (directive.startsWith("s-maxage=")) {
+            // a shared cache takes s-maxage over max-age.
+            return now + Long.parseLong(directive.substring(9)) * 1000L;
+          } else if (directive.startsWith("max-age=")) {
+            maxAge = Long.parseLong(directive.substring(8)) * 1000L;
+          }
+        } catch (NumberFormatException e) {
+          return now;
+        }
+      }
+      if (maxAge >= 0) {
+        return now + maxAge;
+      }
+    }
+    String expires = getHeader(headers, "Expires");
+    if (expires != null) {
+      try {
+        long date = now;
+        String dateHeader = getHeader(headers, "Date");
+        if (dateHeader != null) {
+          date = DateUtil.parseDate(dateHeader).getTime();
+        }
+        return now + DateUtil.parseDate(expires).getTime() - date;
+      } catch (DateParseException e) {
+        // an invalid Expires means already expired.
+        return now;
+      }
+    }
+    return now;
+  }
+
+  /**
+   * @return the first value of a header, matching the name without regard to case.
+   */
+  static String getHeader(Map<String, String[]> headers, String name) {
+    for (Entry<String, String[]> header : headers.entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && header.getValue().length > 0) {
+        return header.getValue()[0];
+      }
+    }
+    return null;
+  }
+}
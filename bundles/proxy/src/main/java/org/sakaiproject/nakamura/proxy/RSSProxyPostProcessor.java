@@ -32,6 +32,7 @@ import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.proxy.ProxyPostProcessor;
 import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+import org.sakaiproject.nakamura.proxy.ProxyResponseCache.CachedEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,20 +68,29 @@ import javax.xml.stream.events.XMLEvent;
     @Property(name = "service.vendor", value = "The Sakai foundation"),
     @Property(name = "service.description", value = "Post processor who checks if requests are valid RSS requests."),
     @Property(name = RSSProxyPostProcessor.EVENTS_THRESHOLD, intValue = RSSProxyPostProcessor.DEFAULT_EVENTS_THRESHOLD),
-    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH)
+    @Property(name = RSSProxyPostProcessor.MAX_LENGTH, intValue = RSSProxyPostProcessor.DEFAULT_MAX_LENGTH),
+    @Property(name = RSSProxyPostProcessor.VALIDATED_CACHE_BYTES, intValue = RSSProxyPostProcessor.DEFAULT_VALIDATED_CACHE_BYTES)
 })
 public class RSSProxyPostProcessor implements ProxyPostProcessor {
 
   public static final int DEFAULT_MAX_LENGTH = 10000000;
   public static final int DEFAULT_EVENTS_THRESHOLD = 100;
+  public static final int DEFAULT_VALIDATED_CACHE_BYTES = 5242880;
 
   static final String EVENTS_THRESHOLD = "sakai.rss.elements.threshold";
   static final String MAX_LENGTH = "sakai.rss.length.max";
+  static final String VALIDATED_CACHE_BYTES = "sakai.rss.validated.cache.bytes";
 
   private XMLInputFactory xmlInputFactory;
   private int eventsThreshold;
   private int maxLength;
 
+  /**
+   * Validated output of feeds served from the proxy response cache, keyed on the cached
+   * version so a feed is only parsed again once it has changed upstream.
+   */
+  private ProxyResponseCache validatedFeeds;
+
   // Maximum size is 10 megabyte.
   public static final Logger logger = LoggerFactory
       .getLogger(RSSProxyPostProcessor.class);
@@ -94,6 +104,10 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     eventsThreshold = OsgiUtil.toInteger(props.get(EVENTS_THRESHOLD),
         DEFAULT_EVENTS_THRESHOLD);
     maxLength = OsgiUtil.toInteger(props.get(MAX_LENGTH), DEFAULT_MAX_LENGTH);
+    int validatedCacheBytes = OsgiUtil.toInteger(props.get(VALIDATED_CACHE_BYTES),
+        DEFAULT_VALIDATED_CACHE_BYTES);
+    validatedFeeds = (validatedCacheBytes > 0) ? new ProxyResponseCache(
+        validatedCacheBytes, maxLength) : null;
 
     xmlInputFactory = new WstxInputFactory();
     xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
@@ -151,6 +165,7 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     this.xmlInputFactory = null;
 
     contentTypes = null;
+    validatedFeeds = null;
   }
 
   public String getName() {
@@ -193,6 +208,18 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
       }
     }
 
+    String cacheToken = null;
+    if (validatedFeeds != null && proxyResponse instanceof CachedProxyResponse) {
+      cacheToken = ((CachedProxyResponse) proxyResponse).getCacheToken();
+    }
+    if (cacheToken != null) {
+      CachedEntry validated = validatedFeeds.get(cacheToken);
+      if (validated != null) {
+        writeFeed(response, headers, validated.getBody());
+        return;
+      }
+    }
+
     boolean isValid = false;
     InputStream in = proxyResponse.getResponseBodyAsInputStream();
     InputStreamReader reader = new InputStreamReader(in);
@@ -263,16 +290,13 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
         return;
       }
 
-      for (Entry<String, String[]> h : proxyResponse.getResponseHeaders().entrySet()) {
-        for (String v : h.getValue()) {
-          response.setHeader(h.getKey(), v);
-        }
+      writer.flush();
+      byte[] feed = out.toByteArray();
+      if (cacheToken != null) {
+        validatedFeeds.put(cacheToken, HttpServletResponse.SC_OK, headers, feed,
+            Long.MAX_VALUE);
       }
-      // We always return 200 when we get to this point.
-      response.setStatus(200);
-      response.setHeader("Content-Length", Integer.toString(out.size()));
-      // Write the cached stream to the output.
-      out.writeTo(response.getOutputStream());
+      writeFeed(response, headers, feed);
 
     } catch (XMLStreamException e) {
       response.sendError(HttpServletResponse.SC_BAD_REQUEST,
@@ -293,4 +317,17 @@ public class RSSProxyPostProcessor implements ProxyPostProcessor {
     }
 
   }
+
+  private void writeFeed(SlingHttpServletResponse response, Map<String, String[]> headers,
+      byte[] feed) throws IOException {
+    for (Entry<String, String[]> h : headers.entrySet()) {
+      for (String v : h.getValue()) {
+        response.setHeader(h.getKey(), v);
+      }
+    }
+    // We always return 200 when we get to this point.
+    response.setStatus(200);
+    response.setHeader("Content-Length", Integer.toString(feed.length));
+    response.getOutputStream().write(feed);
+  }
 }
@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.sakaiproject.nakamura.api.proxy.ProxyClientService;
+import org.sakaiproject.nakamura.api.proxy.ProxyResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Value;
+import javax.jcr.nodetype.PropertyDefinition;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Checks the GET response cache against a stub end point that counts its requests.
+ */
+public class ProxyClientServiceImplCacheTest {
+  private static final String BODY = "<rss version=\"2.0\"><channel/></rss>";
+  private static final String ETAG = "\"v1\"";
+
+  private static Server server;
+  private static StubEndPoint endPoint;
+  private static String url;
+
+  private ProxyClientServiceImpl proxyClientServiceImpl;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    endPoint = new StubEndPoint();
+    server = new Server(0);
+    server.setHandler(endPoint);
+    server.start();
+    url = "http://localhost:" + server.getConnectors()[0].getLocalPort() + "/feed";
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    server.stop();
+    server.destroy();
+  }
+
+  @Before
+  public void before() throws Exception {
+    endPoint.reset();
+    proxyClientServiceImpl = new ProxyClientServiceImpl();
+    proxyClientServiceImpl.activate(null);
+  }
+
+  @After
+  public void after() throws Exception {
+    proxyClientServiceImpl.deactivate(null);
+  }
+
+  @Test
+  public void testFreshResponseIsServedFromCache() throws Exception {
+    endPoint.cacheControl = "max-age=60";
+    Node node = createNode(-1);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(BODY, get(node));
+    }
+    assertEquals(1, endPoint.requests.get());
+  }
+
+  @Test
+  public void testStaleResponseIsRevalidated() throws Exception {
+    endPoint.cacheControl = "max-age=0";
+    endPoint.etag = ETAG;
+    Node node = createNode(-1);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(BODY, get(node));
+    }
+    assertEquals(5, endPoint.requests.get());
+    assertEquals(4, endPoint.notModified.get());
+  }
+
+  @Test
+  public void testNoStoreIsNotCached() throws Exception {
+    endPoint.cacheControl = "no-store";
+    Node node = createNode(-1);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(BODY, get(node));
+    }
+    assertEquals(3, endPoint.requests.get());
+  }
+
+  @Test
+  public void testTtlOverridesMissingCacheHeaders() throws Exception {
+    Node node = createNode(60);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(BODY, get(node));
+    }
+    assertEquals(1, endPoint.requests.get());
+  }
+
+  @Test
+  public void testAuthorizedRequestsAreNotCached() throws Exception {
+    endPoint.cacheControl = "max-age=60";
+    Node node = createNode(-1);
+    Map<String, String> headers = new HashMap<String, String>();
+    headers.put("Authorization", "Basic dXNlcjpwYXNz");
+    for (int i = 0; i < 3; i++) {
+      ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers,
+          new HashMap<String, Object>(), null, 0, null);
+      assertEquals(BODY, response.getResponseBodyAsString());
+      response.close();
+    }
+    assertEquals(3, endPoint.requests.get());
+  }
+
+  @Test
+  public void testConcurrentMissesAreCollapsed() throws Exception {
+    endPoint.cacheControl = "max-age=60";
+    endPoint.delay = 200;
+    final Node node = createNode(-1);
+    int clients = 20;
+    ExecutorService executor = Executors.newFixedThreadPool(clients);
+    try {
+      List<Future<String>> results = new ArrayList<Future<String>>();
+      for (int i = 0; i < clients; i++) {
+        results.add(executor.submit(new Callable<String>() {
+          public String call() throws Exception {
+            return get(node);
+          }
+        }));
+      }
+      for (Future<String> result : results) {
+        assertEquals(BODY, result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals(1, endPoint.requests.get());
+  }
+
+  @Test
+  public void testCookiesAreNotShared() throws Exception {
+    endPoint.cacheControl = "max-age=60";
+    endPoint.etag = ETAG;
+    endPoint.echoCookie = true;
+    Node node = createNode(-1);
+    for (int i = 0; i < 2; i++) {
+      assertEquals(BODY + "alice", get(node, "session=alice"));
+      assertEquals(BODY + "bob", get(node, "session=bob"));
+    }
+    assertEquals(4, endPoint.requests.get());
+  }
+
+  @Test
+  public void testSessionCookieIsNotSentToSharedEndPoint() throws Exception {
+    endPoint.cacheControl = "max-age=60";
+    Node node = createNode(-1, true);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(BODY, get(node, "JSESSIONID=user" + i));
+    }
+    assertEquals(1, endPoint.requests.get());
+    assertEquals(0, endPoint.cookies.get());
+  }
+
+  @Test
+  public void testVaryOnUnkeyedHeaderIsNotCached() throws Exception {
+    endPoint.cacheControl = "max-age=60";
+    endPoint.vary = "Accept-Encoding, User-Agent";
+    Node node = createNode(-1);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(BODY, get(node));
+    }
+    assertEquals(3, endPoint.requests.get());
+  }
+
+  @Test
+  public void testVaryOnKeyedHeaderIsCached() throws Exception {
+    endPoint.cacheControl = "max-age=60";
+    endPoint.vary = "Accept";
+    Node node = createNode(-1);
+    for (int i = 0; i < 3; i++) {
+      assertEquals(BODY, get(node));
+    }
+    assertEquals(1, endPoint.requests.get());
+  }
+
+  @Test
+  public void testFailingEndPointIsNotFetchedOneAtATime() throws Exception {
+    endPoint.status = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+    endPoint.delay = 300;
+    final Node node = createNode(-1);
+    int clients = 10;
+    ExecutorService executor = Executors.newFixedThreadPool(clients);
+    try {
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < clients; i++) {
+        results.add(executor.submit(new Callable<Integer>() {
+          public Integer call() throws Exception {
+            ProxyResponse response = proxyClientServiceImpl.executeCall(node,
+                new HashMap<String, String>(), new HashMap<String, Object>(), null, 0,
+                null);
+            try {
+              return response.getResultCode();
+            } finally {
+              response.close();
+            }
+          }
+        }));
+      }
+      for (Future<Integer> result : results) {
+        assertEquals(Integer.valueOf(HttpServletResponse.SC_SERVICE_UNAVAILABLE),
+            result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // the first failure lets the waiting requests go upstream together.
+    assertTrue(endPoint.maxInFlight.get() > 1);
+  }
+
+  private String get(Node node) throws Exception {
+    return get(node, null);
+  }
+
+  private String get(Node node, String cookie) throws Exception {
+    Map<String, String> headers = new HashMap<String, String>();
+    if (cookie != null) {
+      headers.put("Cookie", cookie);
+    }
+    ProxyResponse response = proxyClientServiceImpl.executeCall(node, headers,
+        new HashMap<String, Object>(), null, 0, null);
+    try {
+      assertEquals(200, response.getResultCode());
+      return response.getResponseBodyAsString();
+    } finally {
+      response.close();
+    }
+  }
+
+  private Node createNode(long ttl) throws Exception {
+    return createNode(ttl, false);
+  }
+
+  private Node createNode(long ttl, boolean shared) throws Exception {
+    Node node = mock(Node.class);
+    when(node.getPath()).thenReturn("/var/proxy/cached");
+
+    Property endpointProperty = mock(Property.class);
+    PropertyDefinition definition = mock(PropertyDefinition.class);
+    Value value = mock(Value.class);
+    when(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).thenReturn(true);
+    when(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_ENDPOINT)).thenReturn(
+        endpointProperty);
+    when(endpointProperty.getDefinition()).thenReturn(definition);
+    when(definition.isMultiple()).thenReturn(false);
+    when(endpointProperty.getValue()).thenReturn(value);
+    when(value.getString()).thenReturn(url);
+
+    Property methodProperty = mock(Property.class);
+    when(node.hasProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).thenReturn(true);
+    when(node.getProperty(ProxyClientService.SAKAI_REQUEST_PROXY_METHOD)).thenReturn(
+        methodProperty);
+    when(methodProperty.getString()).thenReturn("GET");
+
+    if (ttl >= 0) {
+      Property ttlProperty = mock(Property.class);
+      when(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE_TTL)).thenReturn(true);
+      when(node.getProperty(ProxyClientService.SAKAI_PROXY_CACHE_TTL)).thenReturn(
+          ttlProperty);
+      when(ttlProperty.getLong()).thenReturn(ttl);
+    }
+    if (shared) {
+      Property sharedProperty = mock(Property.class);
+      when(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE_SHARED)).thenReturn(true);
+      when(node.getProperty(ProxyClientService.SAKAI_PROXY_CACHE_SHARED)).thenReturn(
+          sharedProperty);
+      when(sharedProperty.getBoolean()).thenReturn(true);
+    }
+    return node;
+  }
+
+  /**
+   * Sends a fixed feed with configurable cache headers, answering If-None-Match with a
+   * 304 when the ETag matches.
+   */
+  private static class StubEndPoint extends AbstractHandler {
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+    private final AtomicInteger cookies = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private volatile String cacheControl;
+    private volatile String etag;
+    private volatile long delay;
+    private volatile String vary;
+    private volatile boolean echoCookie;
+    private volatile int status = HttpServletResponse.SC_OK;
+
+    void reset() {
+      requests.set(0);
+      notModified.set(0);
+      cookies.set(0);
+      inFlight.set(0);
+      maxInFlight.set(0);
+      cacheControl = null;
+      etag = null;
+      delay = 0;
+      vary = null;
+      echoCookie = false;
+      status = HttpServletResponse.SC_OK;
+    }
+
+    public void handle(String target, HttpServletRequest request,
+        HttpServletResponse response, int dispatch) throws IOException, ServletException {
+      requests.incrementAndGet();
+      if (request.getHeader("Cookie") != null) {
+        cookies.incrementAndGet();
+      }
+      int current = inFlight.incrementAndGet();
+      while (current > maxInFlight.get()) {
+        maxInFlight.compareAndSet(maxInFlight.get(), current);
+      }
+      try {
+        if (delay > 0) {
+          Thread.sleep(delay);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        inFlight.decrementAndGet();
+      }
+      if (cacheControl != null) {
+        response.setHeader("Cache-Control", cacheControl);
+      }
+      if (vary != null) {
+        response.setHeader("Vary", vary);
+      }
+      if (status != HttpServletResponse.SC_OK) {
+        response.setStatus(status);
+        ((Request) request).setHandled(true);
+        return;
+      }
+      if (etag != null) {
+        response.setHeader("ETag", etag);
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+          notModified.incrementAndGet();
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          ((Request) request).setHandled(true);
+          return;
+        }
+      }
+      response.setContentType("application/rss+xml");
+      response.setStatus(HttpServletResponse.SC_OK);
+      response.getWriter().print(BODY);
+      if (echoCookie) {
+        String cookie = request.getHeader("Cookie");
+        response.getWriter().print(cookie.substring(cookie.indexOf('=') + 1));
+      }
+      ((Request) request).setHandled(true);
+    }
+  }
+}
@@ -396,6 +396,8 @@ public class ProxyClientServiceImplTest extends AbstractEasyMockTest {
         endpointProperty);
     expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_HEADER)).andReturn(false)
         .atLeastOnce();
+    expect(node.hasProperty(ProxyClientService.SAKAI_PROXY_CACHE_TTL)).andReturn(false)
+        .anyTimes();
 
     if (limit == -1) {
       expect(node.hasProperty(ProxyClientService.SAKAI_LIMIT_GET_SIZE)).andReturn(false)
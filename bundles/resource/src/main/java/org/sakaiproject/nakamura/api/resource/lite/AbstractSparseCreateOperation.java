@@ -30,11 +30,21 @@ import org.sakaiproject.nakamura.api.resource.RequestProperty;
 
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
 
 public abstract class AbstractSparseCreateOperation extends AbstractSparsePostOperation {
+  /**
+   * Source of suffixes for generated names that collide with existing content. Seeded
+   * from the clock so values are not reused after a restart.
+   */
+  private static final AtomicLong UNIQUE_PATH_SUFFIX = new AtomicLong(
+      System.currentTimeMillis());
+
+  private static final int MAX_UNIQUE_PATH_ATTEMPTS = 5;
+
   /**
    * The default node name generator
    */
@@ -327,26 +337,23 @@ public abstract class AbstractSparseCreateOperation extends AbstractSparsePostOp
 
     String path = removeAndValidateWorkspace(basePath);
 
-    // if resulting path exists, add a suffix until it's not the case
-    // anymore
-    if (contentManager.exists(path)) {
-      for (int idx = 0; idx < 1000; idx++) {
-        String newPath = path + "_" + idx;
-        if (!contentManager.exists(newPath)) {
-          basePath = basePath + "_" + idx;
-          path = newPath;
-          break;
-        }
+    // if resulting path exists, add a suffix that is unique to this server rather than
+    // probing _0, _1, ... which costs a storage read per existing sibling.
+    String uniqueBasePath = basePath;
+    String uniquePath = path;
+    int attempts = 0;
+    while (contentManager.exists(uniquePath)) {
+      // if it still exists something is badly wrong.
+      if (++attempts > MAX_UNIQUE_PATH_ATTEMPTS) {
+        throw new StorageClientException("Collision in generated node names for path="
+            + basePath);
       }
+      String suffix = "_" + Long.toString(UNIQUE_PATH_SUFFIX.incrementAndGet(), 36);
+      uniqueBasePath = basePath + suffix;
+      uniquePath = path + suffix;
     }
 
-    // if it still exists there are more than 1000 nodes ?
-    if (contentManager.exists(path)) {
-      throw new StorageClientException("Collision in generated node names for path="
-          + basePath);
-    }
-
-    return basePath;
+    return uniqueBasePath;
   }
 
 }
@@ -0,0 +1,405 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import org.apache.sling.commons.json.JSONArray;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.LinkedList;
+
+/**
+ * A minimal pull parser over a JSON character stream. Only the current token is held in
+ * memory, plus one entry per open object or array, so a document can be processed in
+ * space proportional to its depth rather than its size. Scalar values are converted the
+ * same way {@link JSONObject} converts them, so either can feed {@link LiteJsonImporter}.
+ * The parser is as lenient as {@link JSONObject}: keys may be single quoted or unquoted,
+ * a key may be followed by '=' or '=&gt;' as well as ':', and entries may be separated by
+ * ';' as well as ','.
+ * <p>
+ * Not thread safe.
+ * </p>
+ */
+class JsonPullParser {
+
+  enum Event {
+    START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, KEY, VALUE, END_DOCUMENT
+  }
+
+  /**
+   * What is expected next inside an open object or array.
+   */
+  private enum State {
+    KEY, VALUE, AFTER_VALUE
+  }
+
+  private static final class Container {
+    private final boolean object;
+    private State state;
+
+    private Container(boolean object) {
+      this.object = object;
+      this.state = object ? State.KEY : State.VALUE;
+    }
+  }
+
+  private static final int NONE = -2;
+
+  private final Reader reader;
+
+  private final LinkedList<Container> stack = new LinkedList<Container>();
+
+  private int pushedBack = NONE;
+
+  private boolean started;
+
+  private String key;
+
+  private Object value;
+
+  private long position;
+
+  JsonPullParser(Reader reader) {
+    this.reader = reader instanceof BufferedReader ? reader : new BufferedReader(reader);
+  }
+
+  /**
+   * @return the next event in the document.
+   * @throws IOException
+   * @throws JSONException
+   *           if the document is not well formed.
+   */
+  Event next() throws IOException, JSONException {
+    int c = readNonWhitespace();
+    if (stack.isEmpty()) {
+      if (started) {
+        if (c != -1) {
+          throw syntaxError("Unexpected content after the end of the document");
+        }
+        return Event.END_DOCUMENT;
+      }
+      started = true;
+      if (c != '{' && c != '[') {
+        throw syntaxError("A JSON document must start with '{' or '['");
+      }
+      return startValue(c);
+    }
+    Container top = stack.getFirst();
+    switch (top.state) {
+    case KEY:
+      if (top.object && c == '}') {
+        return end();
+      }
+      key = readKey(c);
+      int separator = readNonWhitespace();
+      if (separator == '=') {
+        int c2 = read();
+        if (c2 != '>') {
+          pushBack(c2);
+        }
+      } else if (separator != ':') {
+        throw syntaxError("Expected ':' after key " + key);
+      }
+      top.state = State.VALUE;
+      return Event.KEY;
+    case VALUE:
+      if (!top.object && c == ']') {
+        // an empty array, or a trailing comma which JSONArray also tolerates.
+        return end();
+      }
+      top.state = State.AFTER_VALUE;
+      return startValue(c);
+    default:
+      if (c == ',' || c == ';') {
+        top.state = top.object ? State.KEY : State.VALUE;
+        return next();
+      }
+      if ((top.object && c == '}') || (!top.object && c == ']')) {
+        return end();
+      }
+      throw syntaxError("Expected ',' or the end of the " + (top.object ? "object" : "array"));
+    }
+  }
+
+  /**
+   * @return the key of the last {@link Event#KEY} event.
+   */
+  String getKey() {
+    return key;
+  }
+
+  /**
+   * @return the value of the last {@link Event#VALUE} event, a String, Boolean, Integer,
+   *         Long, Double or {@link JSONObject#NULL}.
+   */
+  Object getValue() {
+    return value;
+  }
+
+  /**
+   * @return the number of characters consumed so far, for error reporting.
+   */
+  long getPosition() {
+    return position;
+  }
+
+  /**
+   * Read the rest of the object just started into memory. Used for small values such as
+   * ACL entries.
+   *
+   * @return the object, the parser is positioned after its end.
+   * @throws IOException
+   * @throws JSONException
+   */
+  JSONObject readObject() throws IOException, JSONException {
+    JSONObject object = new JSONObject();
+    for (Event e = next(); e != Event.END_OBJECT; e = next()) {
+      String k = key;
+      object.put(k, readValue(next()));
+    }
+    return object;
+  }
+
+  /**
+   * Read the rest of the array just started into memory.
+   *
+   * @return the array, the parser is positioned after its end.
+   * @throws IOException
+   * @throws JSONException
+   */
+  JSONArray readArray() throws IOException, JSONException {
+    JSONArray array = new JSONArray();
+    for (Event e = next(); e != Event.END_ARRAY; e = next()) {
+      array.put(readValue(e));
+    }
+    return array;
+  }
+
+  /**
+   * Skip the rest of the object or array just started, without holding it in memory.
+   *
+   * @throws IOException
+   * @throws JSONException
+   */
+  void skipChildren() throws IOException, JSONException {
+    int depth = 1;
+    while (depth > 0) {
+      switch (next()) {
+      case START_OBJECT:
+      case START_ARRAY:
+        depth++;
+        break;
+      case END_OBJECT:
+      case END_ARRAY:
+        depth--;
+        break;
+      case END_DOCUMENT:
+        throw syntaxError("Unexpected end of document");
+      default:
+        break;
+      }
+    }
+  }
+
+  private Object readValue(Event e) throws IOException, JSONException {
+    switch (e) {
+    case START_OBJECT:
+      return readObject();
+    case START_ARRAY:
+      return readArray();
+    case VALUE:
+      return value;
+    default:
+      throw syntaxError("Expected a value");
+    }
+  }
+
+  private Event startValue(int c) throws IOException, JSONException {
+    switch (c) {
+    case '{':
+      stack.addFirst(new Container(true));
+      return Event.START_OBJECT;
+    case '[':
+      stack.addFirst(new Container(false));
+      return Event.START_ARRAY;
+    case '"':
+    case '\'':
+      value = readString(c);
+      return Event.VALUE;
+    case -1:
+      throw syntaxError("Unexpected end of document");
+    default:
+      value = readLiteral(c);
+      return Event.VALUE;
+    }
+  }
+
+  private Event end() {
+    Container closed = stack.removeFirst();
+    return closed.object ? Event.END_OBJECT : Event.END_ARRAY;
+  }
+
+  /**
+   * Read a key, which like JSONObject takes it is any string or literal.
+   */
+  private String readKey(int c) throws IOException, JSONException {
+    switch (c) {
+    case '"':
+    case '\'':
+      return readString(c);
+    case -1:
+      throw syntaxError("Unexpected end of document");
+    case '{':
+    case '[':
+    case ',':
+    case ':':
+    case ']':
+      throw syntaxError("Expected a key");
+    default:
+      return readLiteral(c).toString();
+    }
+  }
+
+  private String readString(int quote) throws IOException, JSONException {
+    StringBuilder sb = new StringBuilder();
+    for (;;) {
+      int c = read();
+      if (c == quote) {
+        return sb.toString();
+      }
+      switch (c) {
+      case -1:
+      case '\n':
+      case '\r':
+        throw syntaxError("Unterminated string");
+      case '\\':
+        c = read();
+        switch (c) {
+        case 'b':
+          sb.append('\b');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 'u':
+          char[] hex = new char[4];
+          for (int i = 0; i < hex.length; i++) {
+            int h = read();
+            if (h == -1) {
+              throw syntaxError("Unterminated string");
+            }
+            hex[i] = (char) h;
+          }
+          try {
+            sb.append((char) Integer.parseInt(new String(hex), 16));
+          } catch (NumberFormatException e) {
+            throw syntaxError("Illegal escape \\u" + new String(hex));
+          }
+          break;
+        case -1:
+          throw syntaxError("Unterminated string");
+        default:
+          sb.append((char) c);
+        }
+        break;
+      default:
+        sb.append((char) c);
+      }
+    }
+  }
+
+  /**
+   * Read an unquoted value, converted as JSONObject.stringToValue does.
+   */
+  private Object readLiteral(int first) throws IOException, JSONException {
+    StringBuilder sb = new StringBuilder();
+    int c = first;
+    while (c != -1 && ",:]}/\\\"[{;=#".indexOf(c) < 0 && !Character.isWhitespace(c)) {
+      sb.append((char) c);
+      c = read();
+    }
+    pushBack(c);
+    String s = sb.toString();
+    if (s.length() == 0) {
+      throw syntaxError("Missing value");
+    }
+    if ("true".equalsIgnoreCase(s)) {
+      return Boolean.TRUE;
+    }
+    if ("false".equalsIgnoreCase(s)) {
+      return Boolean.FALSE;
+    }
+    if ("null".equalsIgnoreCase(s)) {
+      return JSONObject.NULL;
+    }
+    char b = s.charAt(0);
+    if ((b >= '0' && b <= '9') || b == '.' || b == '-' || b == '+') {
+      try {
+        if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+          long l = Long.parseLong(s);
+          if (l == (int) l) {
+            return Integer.valueOf((int) l);
+          }
+          return Long.valueOf(l);
+        }
+        return Double.valueOf(s);
+      } catch (NumberFormatException e) {
+        // not a number, keep it as a string.
+      }
+    }
+    return s;
+  }
+
+  private int readNonWhitespace() throws IOException {
+    int c = read();
+    while (c != -1 && Character.isWhitespace(c)) {
+      c = read();
+    }
+    return c;
+  }
+
+  private int read() throws IOException {
+    if (pushedBack != NONE) {
+      int c = pushedBack;
+      pushedBack = NONE;
+      return c;
+    }
+    position++;
+    return reader.read();
+  }
+
+  private void pushBack(int c) {
+    pushedBack = c;
+  }
+
+  private JSONException syntaxError(String message) {
+    return new JSONException(message + " at character " + position);
+  }
+}
@@ -3,6 +3,7 @@ package org.sakaiproject.nakamura.api.resource.lite;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.sling.commons.json.JSONArray;
@@ -23,11 +24,14 @@ import org.sakaiproject.nakamura.util.ISO8601Date;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.lang.reflect.Array;
 import java.math.BigDecimal;
 import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -49,11 +53,125 @@ public class LiteJsonImporter {
     TYPES = b.build();
   }
   
+  /**
+   * The number of nodes written in one batch, along with any ACL changes made to them.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 500;
+
+  private final int batchSize;
+
+  private long committedNodes;
+
+  public LiteJsonImporter() {
+    this(DEFAULT_BATCH_SIZE);
+  }
+
+  /**
+   * @param batchSize
+   *          the number of nodes to hold before they and their ACLs are written.
+   */
+  public LiteJsonImporter(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
   public void importContent(ContentManager contentManager, JSONObject json,
       String path, boolean continueIfExists, boolean replaceProperties, boolean removeTree, AccessControlManager accessControlManager) throws JSONException, StorageClientException, AccessDeniedException  {
+    if (!prepare(contentManager, path, continueIfExists, removeTree, 0)) {
+      return;
+    }
+    ImportRun run = new ImportRun(contentManager, accessControlManager, replaceProperties,
+        removeTree, 0);
+    ImportNode root = run.start(null, path);
+    internalImportContent(run, json, root);
+    run.complete(root);
+    run.finish(path);
+  }
+
+  /**
+   * Import a JSON tree read incrementally from a stream. Only the nodes on the path from
+   * the root to the current node are held in memory, and nodes are written, along with
+   * their ACL changes, in batches of at most the batch size.
+   * <p>
+   * Nodes are completed children first, in document order. Once a batch has been
+   * written, {@link #getCommittedNodes()} gives the number of nodes known to be stored, so
+   * if an import fails it can be restarted with the same document and that number as
+   * resumeFrom, skipping everything already done. When resuming, the existence check and
+   * removeTree are not applied again.
+   * </p>
+   *
+   * @return the number of nodes in the document.
+   */
+  public long importContent(ContentManager contentManager, Reader json, String path,
+      boolean continueIfExists, boolean replaceProperties, boolean removeTree,
+      AccessControlManager accessControlManager, long resumeFrom) throws JSONException,
+      StorageClientException, AccessDeniedException, IOException {
+    if (!prepare(contentManager, path, continueIfExists, removeTree, resumeFrom)) {
+      return 0;
+    }
+    JsonPullParser parser = new JsonPullParser(json);
+    if (parser.next() != JsonPullParser.Event.START_OBJECT) {
+      throw new JSONException("A JSON import must be an object");
+    }
+    ImportRun run = new ImportRun(contentManager, accessControlManager, replaceProperties,
+        removeTree && resumeFrom == 0, resumeFrom);
+    LinkedList<ImportNode> stack = new LinkedList<ImportNode>();
+    stack.addFirst(run.start(null, path));
+    while (!stack.isEmpty()) {
+      ImportNode node = stack.getFirst();
+      JsonPullParser.Event event = parser.next();
+      if (event == JsonPullParser.Event.END_OBJECT) {
+        run.complete(stack.removeFirst());
+        continue;
+      }
+      String key = parser.getKey();
+      event = parser.next();
+      boolean container = event == JsonPullParser.Event.START_OBJECT
+          || event == JsonPullParser.Event.START_ARRAY;
+      if (key.startsWith("jcr:")) {
+        if (container) {
+          parser.skipChildren();
+        }
+      } else if (event == JsonPullParser.Event.START_OBJECT) {
+        String pathKey = getPathElement(key);
+        if (key.endsWith("@grant") || key.endsWith("@deny")) {
+          addProperty(node, key, parser.readObject());
+        } else if (key.endsWith("@Delete")) {
+          parser.skipChildren();
+          run.delete(node, pathKey);
+        } else {
+          stack.addFirst(run.start(node, pathKey));
+        }
+      } else if (event == JsonPullParser.Event.START_ARRAY) {
+        addProperty(node, key, parser.readArray());
+      } else {
+        addProperty(node, key, parser.getValue());
+      }
+    }
+    if (parser.next() != JsonPullParser.Event.END_DOCUMENT) {
+      throw new JSONException("Unexpected content at character " + parser.getPosition());
+    }
+    return run.finish(path);
+  }
+
+  /**
+   * @return the number of nodes of the last import that are known to have been written.
+   *         After a failure, pass this as resumeFrom to continue the import.
+   */
+  public long getCommittedNodes() {
+    return committedNodes;
+  }
+
+  private boolean prepare(ContentManager contentManager, String path,
+      boolean continueIfExists, boolean removeTree, long resumeFrom)
+      throws StorageClientException, AccessDeniedException {
+    committedNodes = resumeFrom;
+    if (resumeFrom > 0) {
+      LOGGER.info("Resuming JSON import to {} after node {} ", path, resumeFrom);
+      return true;
+    }
     if ( !continueIfExists && contentManager.exists(path)) {
       LOGGER.debug("replace=false and path exists, so discontinuing JSON import: " + path);
-      return;
+      return false;
     }
     if ( removeTree ) {
       for ( Iterator<String> i = contentManager.listChildPaths(path); i.hasNext(); ) {
@@ -63,73 +181,190 @@ public class LiteJsonImporter {
         LOGGER.info("Done Deleting {} ",childPath);
       }
     }
-    internalImportContent(contentManager, json, path, replaceProperties, accessControlManager);
+    return true;
   }
-  public void internalImportContent(ContentManager contentManager, JSONObject json,
-      String path, boolean replaceProperties, AccessControlManager accessControlManager) throws JSONException, StorageClientException, AccessDeniedException {
+
+  private void internalImportContent(ImportRun run, JSONObject json, ImportNode node)
+      throws JSONException, StorageClientException, AccessDeniedException {
     Iterator<String> keys = json.keys();
-    Map<String, Object> properties = new HashMap<String, Object>();
-    List<AclModification> modifications = Lists.newArrayList();
     while (keys.hasNext()) {
-
       String key = keys.next();
       if (!key.startsWith("jcr:")) {
         Object obj = json.get(key);
-
-        String pathKey = getPathElement(key);
-        Class<?> typeHint = getElementType(key);
-
-        if (obj instanceof JSONObject) {
-          if ( key.endsWith("@grant")) {
-            JSONObject acl = (JSONObject) obj;
-            int bitmap = getPermissionBitMap(acl.getJSONArray("permission"));
-            Operation op = getOperation(acl.getString("operation"));
-            modifications.add(new AclModification(AclModification.grantKey(pathKey), bitmap, op));
-          } else if ( key.endsWith("@deny")) {
-            JSONObject acl = (JSONObject) obj;
-            int bitmap = getPermissionBitMap(acl.getJSONArray("permission"));
-            Operation op = getOperation(acl.getString("operation"));
-            modifications.add(new AclModification(AclModification.denyKey(pathKey), bitmap, op));
-          } else if ( key.endsWith("@Delete") ) {
-            StorageClientUtils.deleteTree(contentManager, path + "/" + pathKey);
-          } else {
-            // need to do somethingwith delete here
-            internalImportContent(contentManager, (JSONObject) obj, path + "/" + pathKey, replaceProperties, accessControlManager);
-          }
-        } else if (obj instanceof JSONArray) {
+        if (obj instanceof JSONObject && !key.endsWith("@grant") && !key.endsWith("@deny")) {
+          String pathKey = getPathElement(key);
           if ( key.endsWith("@Delete") ) {
-            properties.put(pathKey, new RemoveProperty());
+            run.delete(node, pathKey);
           } else {
-            // This represents a multivalued property
-            JSONArray arr = (JSONArray) obj;
-            properties.put(pathKey, getArray(arr, typeHint));
+            ImportNode child = run.start(node, pathKey);
+            internalImportContent(run, (JSONObject) obj, child);
+            run.complete(child);
           }
         } else {
-          if ( key.endsWith("@Delete") ) {
-            properties.put(pathKey, new RemoveProperty());
-          } else {
-            properties.put(pathKey, getObject(obj, typeHint));
-          }
+          addProperty(node, key, obj);
         }
       }
     }
-    Content content = contentManager.get(path);
-    if (content == null) {
-      contentManager.update(new Content(path, properties));
-      LOGGER.info("Created Node {} {}",path,properties);
+  }
+
+  /**
+   * Add a property, multivalued property or ACL entry to a node.
+   */
+  private void addProperty(ImportNode node, String key, Object obj) throws JSONException {
+    String pathKey = getPathElement(key);
+    Class<?> typeHint = getElementType(key);
+    if (obj instanceof JSONObject) {
+      JSONObject acl = (JSONObject) obj;
+      int bitmap = getPermissionBitMap(acl.getJSONArray("permission"));
+      Operation op = getOperation(acl.getString("operation"));
+      if ( key.endsWith("@grant")) {
+        node.modifications.add(new AclModification(AclModification.grantKey(pathKey), bitmap, op));
+      } else {
+        node.modifications.add(new AclModification(AclModification.denyKey(pathKey), bitmap, op));
+      }
+    } else if ( key.endsWith("@Delete") ) {
+      node.properties.put(pathKey, new RemoveProperty());
+    } else if (obj instanceof JSONArray) {
+      // This represents a multivalued property
+      node.properties.put(pathKey, getArray((JSONArray) obj, typeHint));
     } else {
-      for (Entry<String, Object> e : properties.entrySet()) {
-        if ( replaceProperties || !content.hasProperty(e.getKey())) {
-          LOGGER.info("Updated Node {} {} {} ",new Object[]{path,e.getKey(), e.getValue()});
-          content.setProperty(e.getKey(), e.getValue());
+      node.properties.put(pathKey, getObject(obj, typeHint));
+    }
+  }
+
+  /**
+   * A node of the document that has been started but not completed.
+   */
+  private static final class ImportNode {
+    private final String path;
+    private final Map<String, Object> properties = new HashMap<String, Object>();
+    private final List<AclModification> modifications = Lists.newArrayList();
+    private Content content;
+    private boolean loaded;
+    /**
+     * True if this import removed everything below the node, so none of its children exist.
+     */
+    private final boolean cleared;
+
+    private ImportNode(String path, boolean cleared) {
+      this.path = path;
+      this.cleared = cleared;
+    }
+  }
+
+  /**
+   * The state of one import. Content writes are held in a {@link SparseWriteBatch} along
+   * with the ACL changes for the same nodes, and both are written together once the batch
+   * size is reached, content first so a node always exists before its ACL is set. Nodes
+   * are queued as they complete, so children are written before their parents.
+   */
+  private final class ImportRun {
+    private final SparseWriteBatch batch;
+    private final ContentManager contentManager;
+    private final AccessControlManager accessControlManager;
+    private final boolean replaceProperties;
+    private final boolean removedTree;
+    private final long resumeFrom;
+    private final Map<String, List<AclModification>> acls = Maps.newLinkedHashMap();
+    private long completed;
+
+    private ImportRun(ContentManager contentManager,
+        AccessControlManager accessControlManager, boolean replaceProperties,
+        boolean removedTree, long resumeFrom) {
+      // flushes are driven from here so content and ACLs stay in step.
+      this.batch = new SparseWriteBatch(contentManager, Integer.MAX_VALUE);
+      this.contentManager = contentManager;
+      this.accessControlManager = accessControlManager;
+      this.replaceProperties = replaceProperties;
+      this.removedTree = removedTree;
+      this.resumeFrom = resumeFrom;
+    }
+
+    /**
+     * Start a node. Its existing content is read now, unless this import removed the tree
+     * it is in, in which case it does not exist. A parent that simply is not there says
+     * nothing about its children, as content can be stored below a path that has none.
+     * Until the resume point has been passed it is not known whether the node will be
+     * written, so the read waits until the node completes.
+     */
+    private ImportNode start(ImportNode parent, String pathKey)
+        throws StorageClientException, AccessDeniedException {
+      if (parent == null) {
+        // the root itself is kept when its tree is removed, only its children go.
+        ImportNode root = new ImportNode(pathKey, removedTree);
+        if (completed >= resumeFrom) {
+          root.content = batch.get(root.path);
+          root.loaded = true;
+        }
+        return root;
+      }
+      ImportNode node = new ImportNode(parent.path + "/" + pathKey, parent.cleared);
+      if (node.cleared) {
+        node.loaded = true;
+      } else if (completed >= resumeFrom) {
+        node.content = batch.get(node.path);
+        node.loaded = true;
+      }
+      return node;
+    }
+
+    private void complete(ImportNode node) throws StorageClientException,
+        AccessDeniedException {
+      completed++;
+      if (completed <= resumeFrom) {
+        return;
+      }
+      Content content = node.loaded ? node.content : batch.get(node.path);
+      if (content == null) {
+        batch.update(new Content(node.path, node.properties));
+        LOGGER.debug("Created Node {} {}", node.path, node.properties);
+      } else {
+        for (Entry<String, Object> e : node.properties.entrySet()) {
+          if ( replaceProperties || !content.hasProperty(e.getKey())) {
+            LOGGER.debug("Updated Node {} {} {} ",new Object[]{node.path,e.getKey(), e.getValue()});
+            content.setProperty(e.getKey(), e.getValue());
+          }
         }
+        batch.update(content);
+      }
+      if ( node.modifications.size() > 0 ) {
+        acls.put(node.path, node.modifications);
+      }
+      if (batch.getPendingCount() >= batchSize) {
+        flush();
       }
-      contentManager.update(content);
     }
-    if ( modifications.size() > 0 ) {
-      accessControlManager.setAcl(Security.ZONE_CONTENT, path, modifications.toArray(new AclModification[modifications.size()]));
+
+    private void delete(ImportNode node, String pathKey) throws StorageClientException,
+        AccessDeniedException {
+      if (completed < resumeFrom) {
+        return;
+      }
+      // deletes go straight to storage, so everything before them is written first.
+      flush();
+      StorageClientUtils.deleteTree(contentManager, node.path + "/" + pathKey);
+    }
+
+    private long finish(String path) throws StorageClientException,
+        AccessDeniedException {
+      flush();
+      LOGGER.debug("Imported {} nodes to {} with {} reads and {} writes ", new Object[] {
+          completed, path, batch.getReadCount(), batch.getWriteCount() });
+      return completed;
+    }
+
+    private void flush() throws StorageClientException, AccessDeniedException {
+      batch.flush();
+      for (Entry<String, List<AclModification>> e : acls.entrySet()) {
+        List<AclModification> modifications = e.getValue();
+        accessControlManager.setAcl(Security.ZONE_CONTENT, e.getKey(),
+            modifications.toArray(new AclModification[modifications.size()]));
+      }
+      acls.clear();
+      committedNodes = Math.max(committedNodes, completed);
     }
   }
+
   protected Operation getOperation(String op) {
     op = op.toLowerCase();
     if ( op.equals("replace")) {
@@ -0,0 +1,200 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import com.google.common.collect.Maps;
+
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.Map;
+
+/**
+ * Groups the content reads and writes of a single sparse POST operation. Each path is
+ * read from storage at most once, and each touched content item is written once when the
+ * batch is flushed, however many request properties change it. Once more than the
+ * maximum number of items are pending they are flushed, so a large import holds a
+ * bounded number of items in memory.
+ * <p>
+ * A batch is not thread safe and is expected to live for one request.
+ * </p>
+ */
+public class SparseWriteBatch {
+
+  /**
+   * Marks a path known not to exist, so it is not read again.
+   */
+  private static final Content MISSING = new Content("", null);
+
+  public static final int DEFAULT_MAX_PENDING = 500;
+
+  private final ContentManager contentManager;
+
+  private final int maxPending;
+
+  private final Map<String, Content> loaded = Maps.newHashMap();
+
+  /**
+   * Items to write, in the order they were first queued. Nothing is reordered, a caller
+   * that queues a child before its parent has the child written first, which sparse
+   * storage allows.
+   */
+  private final Map<String, Content> pending = Maps.newLinkedHashMap();
+
+  private int reads;
+
+  private int writes;
+
+  public SparseWriteBatch(ContentManager contentManager) {
+    this(contentManager, DEFAULT_MAX_PENDING);
+  }
+
+  /**
+   * @param contentManager
+   *          the content manager to read and write through.
+   * @param maxPending
+   *          the number of changed items held before they are written.
+   */
+  public SparseWriteBatch(ContentManager contentManager, int maxPending) {
+    this.contentManager = contentManager;
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * @param path
+   * @return the content at path, including any pending changes, or null if there is none.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public Content get(String path) throws StorageClientException, AccessDeniedException {
+    Content content = pending.get(path);
+    if (content != null) {
+      return content;
+    }
+    content = loaded.get(path);
+    if (content == null) {
+      reads++;
+      content = contentManager.get(path);
+      loaded.put(path, content == null ? MISSING : content);
+    }
+    return content == MISSING ? null : content;
+  }
+
+  /**
+   * @param path
+   * @return true if there is content at path, either stored or pending.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public boolean exists(String path) throws StorageClientException,
+      AccessDeniedException {
+    if (pending.containsKey(path)) {
+      return true;
+    }
+    Content content = loaded.get(path);
+    if (content != null) {
+      return content != MISSING;
+    }
+    reads++;
+    boolean exists = contentManager.exists(path);
+    if (!exists) {
+      loaded.put(path, MISSING);
+    }
+    return exists;
+  }
+
+  /**
+   * Queue a content item to be written when the batch is flushed. Items are written in
+   * the order they were first queued.
+   *
+   * @param content
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public void update(Content content) throws StorageClientException,
+      AccessDeniedException {
+    pending.put(content.getPath(), content);
+    loaded.remove(content.getPath());
+    if (pending.size() >= maxPending) {
+      flush();
+    }
+  }
+
+  /**
+   * Forget anything known about a path, used when it has been changed directly through
+   * the content manager, by a move or copy for example.
+   *
+   * @param path
+   */
+  public void invalidate(String path) {
+    loaded.remove(path);
+  }
+
+  /**
+   * Forget everything read so far, pending changes are kept.
+   */
+  public void invalidateAll() {
+    loaded.clear();
+  }
+
+  /**
+   * Write all pending changes. What has been read is forgotten too, so the memory held
+   * by a batch stays bounded however much it processes.
+   *
+   * @return the number of items written.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public int flush() throws StorageClientException, AccessDeniedException {
+    int n = pending.size();
+    for (Content content : pending.values()) {
+      writes++;
+      contentManager.update(content);
+    }
+    pending.clear();
+    loaded.clear();
+    return n;
+  }
+
+  /**
+   * @return the number of changed items waiting to be written.
+   */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * @return the number of reads made against storage by this batch.
+   */
+  public int getReadCount() {
+    return reads;
+  }
+
+  /**
+   * @return the number of writes made against storage by this batch.
+   */
+  public int getWriteCount() {
+    return writes;
+  }
+
+  public ContentManager getContentManager() {
+    return contentManager;
+  }
+}
@@ -6,7 +6,6 @@ import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.servlets.HtmlResponse;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
 import org.apache.sling.servlets.post.Modification;
 import org.apache.sling.servlets.post.NodeNameGenerator;
 import org.apache.sling.servlets.post.SlingPostConstants;
@@ -24,7 +23,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.List;
 
 import javax.servlet.http.HttpServletResponse;
@@ -33,6 +34,11 @@ public class ImportOperation extends AbstractSparseCreateOperation {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(ImportOperation.class);
 
+  /**
+   * The number of nodes of an earlier, failed, import of the same content to skip.
+   */
+  public static final String RP_RESUME_FROM = ":resumeFrom";
+
   public ImportOperation(NodeNameGenerator defaultNodeNameGenerator) {
     super(defaultNodeNameGenerator);
   }
@@ -85,15 +91,30 @@ public class ImportOperation extends AbstractSparseCreateOperation {
 
     response.setCreateRequest(true);
 
+    long resumeFrom = 0;
+    String resume = request.getParameter(RP_RESUME_FROM);
+    if (resume != null) {
+      try {
+        resumeFrom = Long.parseLong(resume);
+      } catch (NumberFormatException e) {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST,
+            "Invalid " + RP_RESUME_FROM + " parameter " + resume);
+        return;
+      }
+    }
+
+    LiteJsonImporter simpleJsonImporter = new LiteJsonImporter();
+    Reader content = null;
     try {
-      InputStream contentStream = null;
-      String content = request.getParameter(SlingPostConstants.RP_CONTENT);
-      if (content == null) {
+      String contentString = request.getParameter(SlingPostConstants.RP_CONTENT);
+      if (contentString != null) {
+        content = new StringReader(contentString);
+      } else {
         RequestParameter contentFile = request
             .getRequestParameter(SlingPostConstants.RP_CONTENT_FILE);
         if (contentFile != null) {
-          contentStream = contentFile.getInputStream();
-          content = IOUtils.toString(contentStream, "UTF-8");
+          // read the file as it is imported rather than loading it all first.
+          content = new InputStreamReader(contentFile.getInputStream(), "UTF-8");
         }
       }
 
@@ -102,15 +123,11 @@ public class ImportOperation extends AbstractSparseCreateOperation {
             "Missing content for import");
         return;
       } else {
-        
-        JSONObject json = new JSONObject(content);
-        if ( LOGGER.isDebugEnabled() ) {
-          LOGGER.debug("to {} importing {} ",basePath,json.toString(3));
-        }
-        LiteJsonImporter simpleJsonImporter = new LiteJsonImporter();
         Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
         AccessControlManager accessControlManager = session.getAccessControlManager();
-        simpleJsonImporter.importContent(contentManager, json, basePath, replace, replaceProperties, removeTree, accessControlManager);
+        long nodes = simpleJsonImporter.importContent(contentManager, content, basePath,
+            replace, replaceProperties, removeTree, accessControlManager, resumeFrom);
+        LOGGER.debug("Imported {} nodes to {} ", nodes, basePath);
           response.setLocation(externalizePath(request, basePath));
           response.setPath(basePath);
           int lastSlashIndex = basePath.lastIndexOf('/');
@@ -126,6 +143,10 @@ public class ImportOperation extends AbstractSparseCreateOperation {
     } catch (JSONException e) {
       LOGGER.error(e.getMessage(),e);
       throw new StorageClientException(e.getMessage(),e);
+    } finally {
+      // tell the client where to pick up from if the import did not complete.
+      response.setProperty(RP_RESUME_FROM, simpleJsonImporter.getCommittedNodes());
+      IOUtils.closeQuietly(content);
     }
   }
 
@@ -18,8 +18,6 @@
  */
 package org.sakaiproject.nakamura.resource.lite.servlet.post.operations;
 
-import com.google.common.collect.Maps;
-
 import org.apache.sling.api.SlingException;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.resource.Resource;
@@ -38,8 +36,11 @@ import org.sakaiproject.nakamura.api.resource.lite.AbstractSparseCreateOperation
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.api.resource.lite.SparseNonExistingResource;
 import org.sakaiproject.nakamura.api.resource.lite.SparseRequestProperty;
+import org.sakaiproject.nakamura.api.resource.lite.SparseWriteBatch;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.SparseFileUploadHandler;
 import org.sakaiproject.nakamura.resource.lite.servlet.post.helper.SparsePropertyValueHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.List;
@@ -54,6 +55,8 @@ import javax.servlet.ServletContext;
  */
 public class ModifyOperation extends AbstractSparseCreateOperation {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(ModifyOperation.class);
+
   private final DateParser dateParser;
 
   /**
@@ -74,6 +77,8 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
 
     Map<String, SparseRequestProperty> reqProperties = collectContent(request, response, contentPath);
 
+    // every content item is read at most once and written once at the end.
+    SparseWriteBatch batch = new SparseWriteBatch(contentManager, Integer.MAX_VALUE);
 
     boolean contentPathHandled = (contentPath == null);
     for (SparseRequestProperty property : reqProperties.values()) {
@@ -83,6 +88,8 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
         if (to.equals(contentPath)) {
           contentPathHandled = true;
         }
+        // moves go straight to storage, so write anything pending first.
+        batch.flush();
         contentManager.move(from, to);
         changes.add(Modification.onMoved(from, property.getPath()));
         property.setDelete(false);
@@ -92,6 +99,7 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
         if (to.equals(contentPath)) {
           contentPathHandled = true;
         }
+        batch.flush();
         contentManager.copy(from, to, true);
         changes.add(Modification.onCopied(from, property.getPath()));
         property.setDelete(false);
@@ -100,10 +108,10 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
         if (from.equals(contentPath)) {
           contentPathHandled = true;
         }
-        Content content = contentManager.get(from);
+        Content content = batch.get(from);
         if (content != null) {
           content.removeProperty(property.getName());
-          contentManager.update(content);
+          batch.update(content);
         }
         changes.add(Modification.onDeleted(property.getPath()));
       }
@@ -111,31 +119,26 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
 
     SparsePropertyValueHandler propHandler = new SparsePropertyValueHandler(dateParser, changes);
 
-    Map<String, Content> contentMap = Maps.newHashMap();
-
     if (!contentPathHandled) {
-      Content content = contentManager.get(contentPath);
+      Content content = batch.get(contentPath);
       if (content == null) {
         content = new Content(contentPath, null);
         response.setCreateRequest(true);
         changes.add(Modification.onCreated(response.getPath()));
-        contentMap.put(contentPath, content);
+        batch.update(content);
       }
     }
 
     for (SparseRequestProperty prop : reqProperties.values()) {
       if (prop.hasValues()) {
         String propContentPath = prop.getContentPath();
-        Content content = contentMap.get(propContentPath);
-        if ( content == null  ) {
-          content = contentManager.get(propContentPath);
-          if ( content == null ) {
-            response.setCreateRequest(true);
-            content = new Content(propContentPath, null);
-            changes.add(Modification.onCreated(propContentPath));
-          }
-          contentMap.put(propContentPath, content);
+        Content content = batch.get(propContentPath);
+        if ( content == null ) {
+          response.setCreateRequest(true);
+          content = new Content(propContentPath, null);
+          changes.add(Modification.onCreated(propContentPath));
         }
+        batch.update(content);
         // skip jcr special properties
         if (prop.getName().equals("jcr:primaryType")
             || prop.getName().equals("jcr:mixinTypes")) {
@@ -149,8 +152,11 @@ public class ModifyOperation extends AbstractSparseCreateOperation {
       }
     }
 
-    for ( Content c : contentMap.values()) {
-      contentManager.update(c);
+    batch.flush();
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Modified {} with {} properties in {} reads and {} writes",
+          new Object[] { contentPath, reqProperties.size(), batch.getReadCount(),
+              batch.getWriteCount() });
     }
   }
 
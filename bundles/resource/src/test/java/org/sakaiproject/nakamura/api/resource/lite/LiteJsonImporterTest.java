@@ -18,15 +18,23 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
 import org.sakaiproject.nakamura.lite.RepositoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.FilterReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.math.BigDecimal;
 import java.util.Calendar;
 
 public class LiteJsonImporterTest {
+  private static final Logger LOGGER = LoggerFactory.getLogger(LiteJsonImporterTest.class);
 
   private static final String[] TEST_FILES = {
     "testimport/test1.json",
@@ -197,4 +205,149 @@ public class LiteJsonImporterTest {
       liteJsonImporter.importContent(contentManager, json, testFile, true, true, true, accessControlManager);
     }
   }
+
+  @Test
+  public void testStreamingImportContent() throws Exception {
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter(2);
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+
+    for ( String testFile : TEST_FILES ) {
+      Reader reader = new InputStreamReader(getClass().getClassLoader().getResourceAsStream(testFile), "UTF-8");
+      long nodes = liteJsonImporter.importContent(contentManager, reader, "stream/" + testFile, true, true, true, accessControlManager, 0);
+      Assert.assertEquals(nodes, liteJsonImporter.getCommittedNodes());
+    }
+    Content content = contentManager.get("stream/testimport/test1.json/testsimpleproperties");
+    Assert.assertEquals("ValueA", content.getProperty("propertyA"));
+    Assert.assertNotNull(contentManager.get("stream/testimport/test3.json/testnested/nested1/nested2/nested4"));
+    Assert.assertNull(contentManager.get("stream/testimport/test5.json/testdelete/nested"));
+  }
+
+  @Test
+  public void testResumeImport() throws Exception {
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    String json = generateTree(20, 10);
+
+    // fail part way through the document.
+    LiteJsonImporter liteJsonImporter = new LiteJsonImporter(50);
+    Reader failing = new FailingReader(new StringReader(json), json.length() / 2);
+    try {
+      liteJsonImporter.importContent(contentManager, failing, "resume", true, true, false, accessControlManager, 0);
+      Assert.fail("Import should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+    long committed = liteJsonImporter.getCommittedNodes();
+    Assert.assertTrue(committed > 0);
+    Assert.assertNull(contentManager.get("resume/node19"));
+
+    long nodes = new LiteJsonImporter(50).importContent(contentManager, new StringReader(json), "resume", true, true, false, accessControlManager, committed);
+    Assert.assertEquals(20 * 10 + 20 + 1, nodes);
+    for (int i = 0; i < 20; i++) {
+      for (int j = 0; j < 10; j++) {
+        Content content = contentManager.get("resume/node" + i + "/child" + j);
+        Assert.assertNotNull(content);
+        Assert.assertEquals("value" + i + "-" + j, content.getProperty("prop"));
+      }
+    }
+  }
+
+  @Test
+  public void testLargeStreamingImport() throws Exception {
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    String json = generateTree(200, 50);
+
+    new LiteJsonImporter().importContent(contentManager, new JSONObject(json), "large/object", true, true, false, accessControlManager);
+    long nodes = new LiteJsonImporter().importContent(contentManager, new StringReader(json), "large/stream", true, true, false, accessControlManager, 0);
+
+    Assert.assertEquals(200 * 50 + 200 + 1, nodes);
+    LOGGER.debug("Imported {} nodes ({} chars)", nodes, json.length());
+    for (String child : new String[] { "node0/child0", "node199/child49", "node100/child25" }) {
+      Content fromObject = contentManager.get("large/object/" + child);
+      Content fromStream = contentManager.get("large/stream/" + child);
+      Assert.assertEquals(fromObject.getProperty("prop"), fromStream.getProperty("prop"));
+      Assert.assertEquals(fromObject.getProperty("count"), fromStream.getProperty("count"));
+    }
+  }
+
+  @Test
+  public void testLenientSyntax() throws Exception {
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    // JSONObject accepts all of these, so the streaming import does too.
+    String json = "{'single':{unquoted:'a', 'typed@TypeLong'=2; arrow=>\"b\", list:['c';'d']}}";
+
+    new LiteJsonImporter().importContent(contentManager, new JSONObject(json), "lenient/object", true, true, false, accessControlManager);
+    new LiteJsonImporter().importContent(contentManager, new StringReader(json), "lenient/stream", true, true, false, accessControlManager, 0);
+
+    for (String path : new String[] { "lenient/object/single", "lenient/stream/single" }) {
+      Content content = contentManager.get(path);
+      Assert.assertNotNull(path, content);
+      Assert.assertEquals("a", content.getProperty("unquoted"));
+      Assert.assertEquals(2L, content.getProperty("typed"));
+      Assert.assertEquals("b", content.getProperty("arrow"));
+      Assert.assertArrayEquals(new String[] { "c", "d" }, (String[]) content.getProperty("list"));
+    }
+  }
+
+  @Test
+  public void testChildOfMissingParentIsRead() throws Exception {
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    contentManager.update(new Content("orphan/parent/child", ImmutableMap.of("kept", (Object) "yes", "prop", "old")));
+    contentManager.delete("orphan/parent");
+    Assert.assertNull(contentManager.get("orphan/parent"));
+    Assert.assertNotNull(contentManager.get("orphan/parent/child"));
+
+    String json = "{\"parent\":{\"child\":{\"prop\":\"new\",\"added\":\"yes\"}}}";
+    new LiteJsonImporter().importContent(contentManager, new StringReader(json), "orphan", true, false, false, accessControlManager, 0);
+
+    // the existing child was updated, not replaced.
+    Content child = contentManager.get("orphan/parent/child");
+    Assert.assertEquals("yes", child.getProperty("kept"));
+    Assert.assertEquals("old", child.getProperty("prop"));
+    Assert.assertEquals("yes", child.getProperty("added"));
+  }
+
+  private String generateTree(int nodes, int children) {
+    StringBuilder sb = new StringBuilder("{");
+    for (int i = 0; i < nodes; i++) {
+      sb.append(i == 0 ? "" : ",").append("\"node").append(i).append("\":{\"title\":\"Node ").append(i).append("\"");
+      for (int j = 0; j < children; j++) {
+        sb.append(",\"child").append(j).append("\":{\"prop\":\"value").append(i).append("-").append(j)
+            .append("\",\"count@TypeLong\":").append(j).append(",\"tags\":[\"a\",\"b\"]}");
+      }
+      sb.append(",\"ieb@grant\":{\"operation\":\"replace\",\"permission\":[\"read\"]}}");
+    }
+    return sb.append("}").toString();
+  }
+
+  /**
+   * Fails once a number of characters have been read, like a dropped upload.
+   */
+  private static class FailingReader extends FilterReader {
+    private int remaining;
+
+    FailingReader(Reader in, int failAfter) {
+      super(in);
+      this.remaining = failAfter;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        throw new IOException("Connection reset");
+      }
+      int n = super.read(cbuf, off, Math.min(len, remaining));
+      remaining -= Math.max(n, 0);
+      return n;
+    }
+  }
 }
@@ -0,0 +1,88 @@
+package org.sakaiproject.nakamura.api.resource.lite;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.lite.BaseMemoryRepository;
+import org.sakaiproject.nakamura.lite.RepositoryImpl;
+
+public class SparseWriteBatchTest {
+
+  @Test
+  public void testManyPropertiesOneWrite() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    SparseWriteBatch batch = new SparseWriteBatch(contentManager);
+    for (int i = 0; i < 500; i++) {
+      Content content = batch.get("/a/b");
+      if (content == null) {
+        content = new Content("/a/b", null);
+      }
+      content.setProperty("p" + i, "v" + i);
+      batch.update(content);
+    }
+    batch.flush();
+
+    verify(contentManager, times(1)).get("/a/b");
+    verify(contentManager, times(1)).update(any(Content.class));
+    Assert.assertEquals(1, batch.getReadCount());
+    Assert.assertEquals(1, batch.getWriteCount());
+  }
+
+  @Test
+  public void testPendingItemsAreBounded() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    SparseWriteBatch batch = new SparseWriteBatch(contentManager, 100);
+    for (int i = 0; i < 2000; i++) {
+      batch.update(new Content("/import/node" + i, null));
+    }
+    // all writes happened as the batch filled, nothing left to flush.
+    Assert.assertEquals(0, batch.flush());
+    verify(contentManager, times(2000)).update(any(Content.class));
+  }
+
+  @Test
+  public void testMissingPathsAreRemembered() throws Exception {
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.exists("/a")).thenReturn(false);
+    SparseWriteBatch batch = new SparseWriteBatch(contentManager);
+    Assert.assertFalse(batch.exists("/a"));
+    Assert.assertNull(batch.get("/a"));
+    batch.update(new Content("/a", null));
+    Assert.assertTrue(batch.exists("/a"));
+    Assert.assertEquals(1, batch.getReadCount());
+  }
+
+  @Test
+  public void testImportRoundTrips() throws Exception {
+    RepositoryImpl repository = new BaseMemoryRepository().getRepository();
+    Session session = repository.loginAdministrative();
+    ContentManager contentManager = session.getContentManager();
+
+    SparseWriteBatch batch = new SparseWriteBatch(contentManager);
+    for (int i = 0; i < 2000; i++) {
+      String path = "/import/node" + (i / 100) + "/child" + i;
+      Content content = batch.get(path);
+      if (content == null) {
+        content = new Content(path, null);
+      }
+      content.setProperty("index", i);
+      batch.update(content);
+    }
+    batch.flush();
+
+    // every path was new, so each was looked up once and written once.
+    Assert.assertEquals(2000, batch.getReadCount());
+    Assert.assertEquals(2000, batch.getWriteCount());
+    Assert.assertEquals(1999, contentManager.get("/import/node19/child1999").getProperty(
+        "index"));
+    session.logout();
+  }
+}
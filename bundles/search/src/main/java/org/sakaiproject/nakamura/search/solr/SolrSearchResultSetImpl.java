@@ -14,12 +14,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
 
 
 public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryResponseWrapper {
@@ -27,7 +28,8 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
   private static final Logger LOGGER = LoggerFactory.getLogger(SolrSearchResultSetImpl.class);
 
   private final QueryResponse queryResponse;
-  private SolrDocumentList responseList;
+  private Iterable<SolrDocument> documents;
+  private long size;
 
   public SolrSearchResultSetImpl(QueryResponse queryResponse) {
     LOGGER.debug("new SolrSearchResultSetImpl(QueryResponse {})", queryResponse);
@@ -36,12 +38,11 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
 
   public Iterator<Result> getResultSetIterator() {
     loadResponse();
-    final Iterator<SolrDocument> solrIterator = (responseList != null) ? responseList
-        .iterator() : null;
+    final Iterator<SolrDocument> solrIterator = documents.iterator();
     return new UnmodifiableIterator<Result>() {
 
       public boolean hasNext() {
-        return solrIterator != null && solrIterator.hasNext();
+        return solrIterator.hasNext();
       }
 
       public Result next() {
@@ -54,86 +55,95 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
 
   public long getSize() {
     loadResponse();
-    return (responseList == null) ? 0 : responseList.getNumFound();
+    return size;
   }
 
 
+  /**
+   * Walk the documents of each group in turn rather than copying them into one list.
+   */
   @SuppressWarnings("unchecked")
   private void loadGroupedResponse(NamedList<Object> response) {
     NamedList<Object> grouped = (NamedList<Object>) response.get("grouped");
     if (grouped.size() > 0) {
       NamedList<Object> groupings = (NamedList<Object>) grouped.getVal(0);
       // have to set this manually
-      long numFound = (Integer) groupings.get("matches");
-      responseList.setNumFound(numFound);
-      List<NamedList<Object>> groups = (List<NamedList<Object>>) groupings.get("groups");
-
-      for (NamedList<Object> group : groups) {
-        SolrDocumentList docList = (SolrDocumentList) group.get("doclist");
-        responseList.addAll(docList);
-      }
+      size = (Integer) groupings.get("matches");
+      final List<NamedList<Object>> groups = (List<NamedList<Object>>) groupings.get("groups");
+      documents = new Iterable<SolrDocument>() {
+        public Iterator<SolrDocument> iterator() {
+          return new GroupIterator(groups.iterator());
+        }
+      };
     }
   }
 
 
+  /**
+   * Merge the documents similar to each matched document in a single pass. Documents are
+   * de-duped on their ID, keeping the instance with the highest score, and ordered in a
+   * heap. The heap is built in linear time and each document taken from it costs log n,
+   * so a page of results only sorts as far as it reads.
+   */
   @SuppressWarnings("unchecked")
   private void loadMoreLikeThisResponse(NamedList<Object> response) {
-    List<SolrDocument> resultDocs = new ArrayList<SolrDocument>();
-
     NamedList<Object> mlts = (NamedList<Object>) response.get("moreLikeThis");
 
-    if (mlts.size() > 0) {
-      for (Map.Entry<String,Object> mlt : mlts) {
-        for (SolrDocument doc : (SolrDocumentList) mlt.getValue()) {
-          resultDocs.add(doc);
+    Map<Object, ScoredDocument> deDupedDocs = new HashMap<Object, ScoredDocument>();
+    for (Map.Entry<String,Object> mlt : mlts) {
+      for (SolrDocument doc : (SolrDocumentList) mlt.getValue()) {
+        ScoredDocument scored = new ScoredDocument(doc);
+        Object id = doc.getFieldValue("id");
+        ScoredDocument seen = deDupedDocs.get(id);
+        if (seen == null || seen.compareTo(scored) > 0) {
+          deDupedDocs.put(id, scored);
         }
       }
     }
 
-    Comparator scoreSorter = new Comparator<SolrDocument>() {
-      public int compare(SolrDocument doc1, SolrDocument doc2) {
-        return ((Float) doc1.getFieldValue("score")).compareTo((Float) doc2.getFieldValue("score"));
+    size = deDupedDocs.size();
+    final List<ScoredDocument> heap = new ArrayList<ScoredDocument>(deDupedDocs.values());
+    documents = new Iterable<SolrDocument>() {
+      public Iterator<SolrDocument> iterator() {
+        // copying a collection heapifies it in one pass, where adding the documents one
+        // at a time would sift each of them.
+        final PriorityQueue<ScoredDocument> queue = new PriorityQueue<ScoredDocument>(heap);
+        return new UnmodifiableIterator<SolrDocument>() {
+          public boolean hasNext() {
+            return !queue.isEmpty();
+          }
+
+          public SolrDocument next() {
+            if (queue.isEmpty()) {
+              throw new NoSuchElementException();
+            }
+            return queue.poll().doc;
+          }
+        };
       }
     };
-
-    // Sort our doc list by score (from lowest score to highest)
-    Collections.sort(resultDocs, scoreSorter);
-
-    Map<String,SolrDocument> deDupedDocs = new HashMap<String,SolrDocument>();
-    // And de-dupe based on the ID field.  Where there are multiple occurrences
-    // of a document, we keep the instance with the highest score.
-    for (SolrDocument doc : resultDocs) {
-      deDupedDocs.put((String) doc.getFieldValue("id"), doc);
-    }
-
-    responseList.setNumFound(deDupedDocs.values().size());
-    responseList.addAll(deDupedDocs.values());
-
-    // One final sort to get the results into descending score order...
-    Collections.sort(responseList, scoreSorter);
-    Collections.reverse(responseList);
   }
 
 
   private void loadResponse() {
-    if (responseList == null) {
-      // null list so let's try to load it
+    if (documents == null) {
+      // nothing loaded yet, so let's try to load it
       NamedList<Object> response = queryResponse.getResponse();
-      responseList = new SolrDocumentList();
+      documents = Collections.emptyList();
 
       if (response.get("moreLikeThis") != null) {
         // The moreLikeThis response will contain a regular result set, but it's
         // the extra stuff we're interested in.
         loadMoreLikeThisResponse(response);
       } else {
-        responseList = queryResponse.getResults();
-        if (responseList == null) {
+        SolrDocumentList responseList = queryResponse.getResults();
+        if (responseList != null) {
+          documents = responseList;
+          size = responseList.getNumFound();
+        } else if (response.get("grouped") != null) {
           // will be null if search was grouped
-          responseList = new SolrDocumentList();
           // Must be one of our alternative query types.
-          if (response.get("grouped") != null) {
-            loadGroupedResponse(response);
-          }
+          loadGroupedResponse(response);
         }
       }
     }
@@ -145,4 +155,51 @@ public class SolrSearchResultSetImpl implements SolrSearchResultSet, SolrQueryRe
   }
 
 
+  /**
+   * A more like this document ordered on its score, highest first.
+   */
+  private static class ScoredDocument implements Comparable<ScoredDocument> {
+    private final SolrDocument doc;
+    private final float score;
+
+    ScoredDocument(SolrDocument doc) {
+      this.doc = doc;
+      Object value = doc.getFieldValue("score");
+      this.score = (value instanceof Number) ? ((Number) value).floatValue() : 0f;
+    }
+
+    public int compareTo(ScoredDocument other) {
+      return Float.compare(other.score, score);
+    }
+  }
+
+
+  /**
+   * Iterates over the documents of each group in a grouped response.
+   */
+  private static class GroupIterator extends UnmodifiableIterator<SolrDocument> {
+    private final Iterator<NamedList<Object>> groups;
+    private Iterator<SolrDocument> current = Collections.<SolrDocument>emptyList().iterator();
+
+    GroupIterator(Iterator<NamedList<Object>> groups) {
+      this.groups = groups;
+    }
+
+    public boolean hasNext() {
+      while (!current.hasNext() && groups.hasNext()) {
+        SolrDocumentList docList = (SolrDocumentList) groups.next().get("doclist");
+        if (docList != null) {
+          current = docList.iterator();
+        }
+      }
+      return current.hasNext();
+    }
+
+    public SolrDocument next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+  }
 }
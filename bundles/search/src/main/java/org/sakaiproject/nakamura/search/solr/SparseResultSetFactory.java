@@ -54,10 +54,12 @@ import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -74,23 +76,44 @@ public class SparseResultSetFactory implements ResultSetFactory {
   private static final String SLOW_QUERY_TIME = "slowQueryTime";
   @Property(intValue = 100)
   private static final String DEFAULT_MAX_RESULTS = "defaultMaxResults";
+  @Property(intValue = 500)
+  private static final String QUERY_PLAN_CACHE_SIZE = "queryPlanCacheSize";
 
   private int defaultMaxResults = 100; // set to 100 to allow testing
   private long slowQueryThreshold;
   private long verySlowQueryThreshold;
 
+  /**
+   * The property maps parsed from query strings, keyed on the normalized query string.
+   */
+  private Map<String, Map<String, Object>> queryPlans = newQueryPlanCache(500);
+
   /** only used to mark the logger */
   private final class SlowQueryLogger { }
   
   private static final Logger SLOW_QUERY_LOGGER = LoggerFactory.getLogger(SlowQueryLogger.class);
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseResultSetFactory.class);
 
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
   @Activate
   protected void activate(Map<?, ?> props) {
     defaultMaxResults = OsgiUtil.toInteger(props.get(DEFAULT_MAX_RESULTS),
         defaultMaxResults);
     slowQueryThreshold = OsgiUtil.toLong(props.get(SLOW_QUERY_TIME), 10L);
     verySlowQueryThreshold = OsgiUtil.toLong(props.get(VERY_SLOW_QUERY_TIME), 100L);
+    queryPlans = newQueryPlanCache(OsgiUtil.toInteger(props.get(QUERY_PLAN_CACHE_SIZE), 500));
+  }
+
+  private static Map<String, Map<String, Object>> newQueryPlanCache(final int size) {
+    return new LinkedHashMap<String, Map<String, Object>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Map<String, Object>> eldest) {
+        return size() > size;
+      }
+    };
   }
 
   /**
@@ -106,10 +129,75 @@ public class SparseResultSetFactory implements ResultSetFactory {
   public SolrSearchResultSet processQuery(SlingHttpServletRequest request, Query query,
       boolean asAnon) throws SolrSearchException {
     try {
+    Map<String, Object> props = getQueryPlan(query.getQueryString());
+
+    // add the options to the parameters but prepend _ to avoid collision
+    for (Entry<String, String> option : query.getOptions().entrySet()) {
+      props.put("_" + option.getKey(), option.getValue());
+    }
+    
+    String name = query.getName();
+    if ( name != null ) {
+       props.put(StorageConstants.CUSTOM_STATEMENT_SET, name);
+    }
+
+    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
+        .adaptTo(javax.jcr.Session.class));
+    ContentManager cm = session.getContentManager();
+    return findWithCount(cm, props, query.toString());
+    } catch (AccessDeniedException e) {
+      throw new SolrSearchException(500, e.getMessage());
+    } catch (StorageClientException e) {
+      throw new SolrSearchException(500, e.getMessage());
+    } catch (ParseException e) {
+      throw new SolrSearchException(500, e.getMessage());
+    }
+  }
+
+  /**
+   * Get the sparse property map for a query string. The query string is only parsed the
+   * first time it is seen; the caller gets its own copy of the cached map to add options
+   * to.
+   *
+   * @param queryString
+   * @return
+   * @throws ParseException
+   */
+  Map<String, Object> getQueryPlan(String queryString) throws ParseException {
+    String key = WHITESPACE.matcher(queryString.trim()).replaceAll(" ");
+    Map<String, Object> plan;
+    synchronized (queryPlans) {
+      plan = queryPlans.get(key);
+    }
+    if (plan == null) {
+      plan = parseQuery(key);
+      synchronized (queryPlans) {
+        queryPlans.put(key, plan);
+      }
+    }
+    return copyPlan(plan);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> copyPlan(Map<String, Object> plan) {
+    Map<String, Object> copy = Maps.newHashMap();
+    for (Entry<String, Object> entry : plan.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof Map) {
+        value = copyPlan((Map<String, Object>) value);
+      } else if (value instanceof Collection) {
+        value = Lists.newArrayList((Collection<Object>) value);
+      }
+      copy.put(entry.getKey(), value);
+    }
+    return copy;
+  }
+
+  private Map<String, Object> parseQuery(String queryString) throws ParseException {
     // use solr parsing to get the terms from the query string
     QueryParser parser = new QueryParser(Version.LUCENE_40, "id",
         new TextField().getQueryAnalyzer());
-    org.apache.lucene.search.Query luceneQuery = parser.parse(query.getQueryString());
+    org.apache.lucene.search.Query luceneQuery = parser.parse(queryString);
 
     Map<String, Object> props = Maps.newHashMap();
     if (luceneQuery instanceof BooleanQuery) {
@@ -139,42 +227,100 @@ public class SparseResultSetFactory implements ResultSetFactory {
     } else {
       extractTerms(null, luceneQuery, props, null);
     }
+    return props;
+  }
 
-    // add the options to the parameters but prepend _ to avoid collision
-    for (Entry<String, String> option : query.getOptions().entrySet()) {
-      props.put("_" + option.getKey(), option.getValue());
+  /**
+   * Find the requested page and a total in a single storage query where possible.
+   * <p>
+   * Sparse pages are offset by a multiple of the page size, so rather than query for the
+   * page and then again for a count, the page is read as part of a larger window that
+   * covers at least {@link #defaultMaxResults} rows. The rows in the window after the
+   * page give the same kind of total as a separate count query would. Only when the page
+   * falls at the very end of a full window is the count query still needed.
+   * </p>
+   *
+   * @param cm
+   * @param props
+   *          the query properties, including the page and page size options.
+   * @param description
+   *          used to log slow queries.
+   * @return
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  SolrSearchResultSet findWithCount(ContentManager cm, Map<String, Object> props,
+      String description) throws StorageClientException, AccessDeniedException {
+    Object itemsOption = props.get("_" + PARAMS_ITEMS_PER_PAGE);
+    Object pageOption = props.get("_" + PARAMS_PAGE);
+    if (itemsOption == null || pageOption == null) {
+      // not paged, nothing to count.
+      Iterable<Content> items = find(cm, props, "sparse query", description);
+      return new SparseSearchResultSet(items, defaultMaxResults);
     }
-    
-    String name = query.getName();
-    if ( name != null ) {
-       props.put(StorageConstants.CUSTOM_STATEMENT_SET, name);
+    long nitems = Long.valueOf(String.valueOf(itemsOption));
+    long page = Long.valueOf(String.valueOf(pageOption));
+    if (nitems <= 0 || nitems >= defaultMaxResults) {
+      // the page on its own is as much as we are prepared to read.
+      Iterable<Content> items = find(cm, props, "sparse query", description);
+      return getResultSetWithCount(new SparseSearchResultSet(items, defaultMaxResults),
+          props, cm);
     }
 
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver()
-        .adaptTo(javax.jcr.Session.class));
-    ContentManager cm = session.getContentManager();
+    long offset = page * nitems;
+    long pagesPerWindow = (defaultMaxResults + nitems - 1) / nitems + 1;
+    long windowSize = pagesPerWindow * nitems;
+    long windowOffset = (page / pagesPerWindow) * windowSize;
+    props.put("_" + PARAMS_PAGE, Long.toString(page / pagesPerWindow));
+    props.put("_" + PARAMS_ITEMS_PER_PAGE, Long.toString(windowSize));
+    List<Content> window = Lists.newArrayList();
+    for (Content c : find(cm, props, "sparse query", description)) {
+      window.add(c);
+    }
+    int from = (int) Math.min(offset - windowOffset, window.size());
+    int to = (int) Math.min(offset - windowOffset + nitems, window.size());
+    List<Content> pageItems = window.subList(from, to);
+
+    final long count;
+    if (window.isEmpty()) {
+      // as with a separate count, assume any earlier pages were full.
+      if (page > 0) {
+        LOGGER.info("Empty results from paged sparse query {}", description);
+      }
+      count = offset;
+    } else if (window.size() < windowSize || to < window.size()) {
+      // either the window ran out, or it has rows beyond this page.
+      count = windowOffset + window.size();
+    } else {
+      props.put("_" + PARAMS_PAGE, Long.toString(page));
+      props.put("_" + PARAMS_ITEMS_PER_PAGE, Long.toString(nitems));
+      count = countBeyondPage(cm, props, offset, nitems);
+    }
+    LOGGER.debug("Sparse query read {} rows for a page of {} and a total of {}",
+        new Object[] { window.size(), pageItems.size(), count });
+    return new SearchResultSetSizeWrapper(new SparseSearchResultSet(pageItems,
+        defaultMaxResults), count);
+  }
+
+  private Iterable<Content> find(ContentManager cm, Map<String, Object> props,
+      String what, String description) throws StorageClientException,
+      AccessDeniedException {
     long tquery = System.currentTimeMillis();
     Iterable<Content> items = cm.find(props);
     tquery = System.currentTimeMillis() - tquery;
     try {
       if ( tquery > verySlowQueryThreshold ) {
-        SLOW_QUERY_LOGGER.error("Very slow sparse query {} ms {} ",tquery, URLDecoder.decode(query.toString(),"UTF-8"));
+        SLOW_QUERY_LOGGER.error("Very slow {} {} ms {} ", new Object[] { what, tquery,
+            URLDecoder.decode(description, "UTF-8") });
       } else if ( tquery > slowQueryThreshold ) {
-        SLOW_QUERY_LOGGER.warn("Slow sparse query {} ms {} ",tquery, URLDecoder.decode(query.toString(),"UTF-8"));
+        SLOW_QUERY_LOGGER.warn("Slow {} {} ms {} ", new Object[] { what, tquery,
+            URLDecoder.decode(description, "UTF-8") });
       }
     } catch (UnsupportedEncodingException e) {
         // quietly swallow this exception
       LOGGER.debug(e.getLocalizedMessage(), e);
     }
-    SolrSearchResultSet rs = new SparseSearchResultSet(items, defaultMaxResults);
-    return getResultSetWithCount(rs, props, cm);
-    } catch (AccessDeniedException e) {
-      throw new SolrSearchException(500, e.getMessage());
-    } catch (StorageClientException e) {
-      throw new SolrSearchException(500, e.getMessage());
-    } catch (ParseException e) {
-      throw new SolrSearchException(500, e.getMessage());
-    }
+    return items;
   }
 
   /**
@@ -243,30 +389,7 @@ public class SparseResultSetFactory implements ResultSetFactory {
         // mean that a very inaccurate count is still very likely (as compared to
         // a "count()" query in SQL).
         if (queryCount == nitems) {
-          long nextOffset = offset + nitems;
-          long countStartPage = nextOffset / defaultMaxResults;
-          long countOffset = countStartPage * defaultMaxResults;
-          props.put("_" + PARAMS_PAGE, Long.toString(countStartPage));
-          props.put("_" + PARAMS_ITEMS_PER_PAGE, Integer.toString(defaultMaxResults));
-          long tquery = System.currentTimeMillis();
-          Iterable<Content> countItems = cm.find(props);
-          tquery = System.currentTimeMillis() - tquery;
-          try {
-            if ( tquery > verySlowQueryThreshold ) {
-              SLOW_QUERY_LOGGER.error("Very slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
-            } else if ( tquery > slowQueryThreshold ) {
-              SLOW_QUERY_LOGGER.warn("Slow count retrieval from sparse query {} ms {} ",tquery, URLDecoder.decode(props.toString(),"UTF-8"));
-            }
-          } catch (UnsupportedEncodingException e) {
-            LOGGER.debug(e.getLocalizedMessage(), e);
-          }
-          long additionalCount = 0;
-          final Iterator<Content> countIterator = countItems.iterator();
-          while (countIterator.hasNext()) {
-            countIterator.next();
-            additionalCount++;
-          }
-          count = countOffset + additionalCount;
+          count = countBeyondPage(cm, props, offset, nitems);
         } else {
           count = offset + queryCount;
         }
@@ -276,6 +399,28 @@ public class SparseResultSetFactory implements ResultSetFactory {
     return finalResultSet;
   }
 
+  /**
+   * Hint at the number of matches after a full page by reading a maximum-page-size's
+   * worth of results from the page after it.
+   */
+  private long countBeyondPage(ContentManager cm, Map<String, Object> props, long offset,
+      long nitems) throws StorageClientException, AccessDeniedException {
+    long nextOffset = offset + nitems;
+    long countStartPage = nextOffset / defaultMaxResults;
+    long countOffset = countStartPage * defaultMaxResults;
+    props.put("_" + PARAMS_PAGE, Long.toString(countStartPage));
+    props.put("_" + PARAMS_ITEMS_PER_PAGE, Integer.toString(defaultMaxResults));
+    Iterable<Content> countItems = find(cm, props, "count retrieval from sparse query",
+        props.toString());
+    long additionalCount = 0;
+    final Iterator<Content> countIterator = countItems.iterator();
+    while (countIterator.hasNext()) {
+      countIterator.next();
+      additionalCount++;
+    }
+    return countOffset + additionalCount;
+  }
+
   /**
    * @param clause
    * @param clauseQuery
@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ */
+public class SolrSearchResultSetImplTest {
+  @Test
+  public void testMoreLikeThisIsDeDupedAndOrdered() {
+    NamedList<Object> mlts = new NamedList<Object>();
+    mlts.add("seed1", docs(doc("a", 1.0f), doc("b", 3.0f)));
+    mlts.add("seed2", docs(doc("a", 5.0f), doc("c", 2.0f)));
+    SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response("moreLikeThis", mlts));
+
+    assertEquals(3, rs.getSize());
+    Iterator<Result> results = rs.getResultSetIterator();
+    assertEquals("a", results.next().getFirstValue("id"));
+    assertEquals("b", results.next().getFirstValue("id"));
+    assertEquals("c", results.next().getFirstValue("id"));
+    assertFalse(results.hasNext());
+  }
+
+  @Test
+  public void testGroupedResultsAreStreamed() {
+    NamedList<Object> group1 = new NamedList<Object>();
+    group1.add("doclist", docs(doc("a", 1.0f), doc("b", 1.0f)));
+    NamedList<Object> group2 = new NamedList<Object>();
+    group2.add("doclist", docs());
+    NamedList<Object> group3 = new NamedList<Object>();
+    group3.add("doclist", docs(doc("c", 1.0f)));
+    List<NamedList<Object>> groups = new ArrayList<NamedList<Object>>();
+    groups.add(group1);
+    groups.add(group2);
+    groups.add(group3);
+    NamedList<Object> groupings = new NamedList<Object>();
+    groupings.add("matches", 7);
+    groupings.add("groups", groups);
+    NamedList<Object> grouped = new NamedList<Object>();
+    grouped.add("path", groupings);
+    SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response("grouped", grouped));
+
+    assertEquals(7, rs.getSize());
+    assertEquals(3, count(rs.getResultSetIterator()));
+  }
+
+  @Test
+  public void testMoreLikeThisIsOrderedOnEachIteration() {
+    // 50 seed documents with 100 similar documents each, half of them shared.
+    NamedList<Object> mlts = new NamedList<Object>();
+    Random random = new Random(42);
+    for (int i = 0; i < 50; i++) {
+      SolrDocumentList list = docs();
+      for (int j = 0; j < 100; j++) {
+        String id = (j % 2 == 0) ? "shared-" + j : "doc-" + i + "-" + j;
+        list.add(doc(id, random.nextFloat()));
+      }
+      mlts.add("seed" + i, list);
+    }
+    SolrSearchResultSetImpl rs = new SolrSearchResultSetImpl(response("moreLikeThis", mlts));
+
+    assertEquals(2550, rs.getSize());
+    for (int run = 0; run < 2; run++) {
+      Iterator<Result> results = rs.getResultSetIterator();
+      float last = Float.MAX_VALUE;
+      int count = 0;
+      while (results.hasNext()) {
+        float score = (Float) results.next().getFirstValue("score");
+        assertTrue(score <= last);
+        last = score;
+        count++;
+      }
+      assertEquals(2550, count);
+    }
+  }
+
+  private QueryResponse response(String key, NamedList<Object> value) {
+    NamedList<Object> nl = new NamedList<Object>();
+    nl.add(key, value);
+    QueryResponse response = new QueryResponse();
+    response.setResponse(nl);
+    return response;
+  }
+
+  private SolrDocumentList docs(SolrDocument... docs) {
+    SolrDocumentList list = new SolrDocumentList();
+    for (SolrDocument doc : docs) {
+      list.add(doc);
+    }
+    return list;
+  }
+
+  private SolrDocument doc(String id, float score) {
+    SolrDocument doc = new SolrDocument();
+    doc.setField("id", id);
+    doc.setField("score", score);
+    return doc;
+  }
+
+  private int count(Iterator<Result> iterator) {
+    int count = 0;
+    while (iterator.hasNext()) {
+      iterator.next();
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.search.solr;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_ITEMS_PER_PAGE;
+import static org.sakaiproject.nakamura.api.search.solr.SolrSearchConstants.PARAMS_PAGE;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.search.solr.Result;
+import org.sakaiproject.nakamura.api.search.solr.SolrSearchResultSet;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class SparseResultSetFactoryTest {
+  private SparseResultSetFactory factory;
+  private int finds;
+  private int rowsRead;
+
+  @Before
+  public void setUp() {
+    factory = new SparseResultSetFactory();
+    factory.activate(new HashMap<String, Object>());
+    finds = 0;
+    rowsRead = 0;
+  }
+
+  @Test
+  public void testQueryPlanIsCachedOnNormalizedQuery() throws Exception {
+    Map<String, Object> plan = factory.getQueryPlan("resourceType:file AND  manager:alice");
+    plan.put("_items", "10");
+    Map<String, Object> again = factory.getQueryPlan(" resourceType:file AND manager:alice ");
+
+    assertEquals(2, again.size());
+    assertEquals("alice", again.get("manager"));
+  }
+
+  @Test
+  public void testFirstPageAndTotalInOneQuery() throws Exception {
+    SolrSearchResultSet rs = factory.findWithCount(contentManager(1000), props(0, 25), "");
+
+    assertEquals(1, finds);
+    assertEquals(25, count(rs.getResultSetIterator()));
+    assertEquals(125, rs.getSize());
+  }
+
+  @Test
+  public void testLastPageIsExact() throws Exception {
+    SolrSearchResultSet rs = factory.findWithCount(contentManager(30), props(1, 25), "");
+
+    assertEquals(1, finds);
+    assertEquals(5, count(rs.getResultSetIterator()));
+    assertEquals(30, rs.getSize());
+  }
+
+  @Test
+  public void testPageAtEndOfWindowCountsSeparately() throws Exception {
+    SolrSearchResultSet rs = factory.findWithCount(contentManager(1000), props(4, 25), "");
+
+    assertEquals(2, finds);
+    Iterator<Result> results = rs.getResultSetIterator();
+    assertEquals("/content/100", results.next().getPath());
+    assertEquals(25, count(results) + 1);
+    assertEquals(200, rs.getSize());
+  }
+
+  @Test
+  public void testWidgetPagesTakeOneQuery() throws Exception {
+    // the first few pages of a typical widget, 10 items at a time.
+    ContentManager cm = contentManager(1000);
+    int runs = 30;
+    for (int i = 0; i < runs; i++) {
+      Map<String, Object> props = factory.getQueryPlan("resourceType:file AND (manager:alice OR viewer:alice)");
+      props.putAll(props(i % 3, 10));
+      factory.findWithCount(cm, props, "").getSize();
+    }
+    // a separate page and count query reads 10 + 100 rows in two queries each time, the
+    // window reads as many rows in one.
+    assertEquals(runs, finds);
+    assertEquals(runs * 110, rowsRead);
+  }
+
+  private Map<String, Object> props(long page, long items) {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put("_" + PARAMS_PAGE, Long.toString(page));
+    props.put("_" + PARAMS_ITEMS_PER_PAGE, Long.toString(items));
+    return props;
+  }
+
+  /**
+   * A content manager over a fixed number of rows that honours the page options.
+   */
+  private ContentManager contentManager(final int rows) throws Exception {
+    ContentManager cm = createMock(ContentManager.class);
+    expect(cm.find((Map<String, Object>) anyObject())).andAnswer(
+        new IAnswer<Iterable<Content>>() {
+          @SuppressWarnings("unchecked")
+          public Iterable<Content> answer() throws Throwable {
+            Map<String, Object> props = (Map<String, Object>) getCurrentArguments()[0];
+            int items = Integer.parseInt((String) props.get("_" + PARAMS_ITEMS_PER_PAGE));
+            int page = Integer.parseInt((String) props.get("_" + PARAMS_PAGE));
+            List<Content> found = Lists.newArrayList();
+            for (int i = page * items; i < rows && i < (page + 1) * items; i++) {
+              found.add(new Content("/content/" + i, ImmutableMap.of("id", (Object) i)));
+            }
+            finds++;
+            rowsRead += found.size();
+            return found;
+          }
+        }).anyTimes();
+    replay(cm);
+    return cm;
+  }
+
+  private int count(Iterator<Result> iterator) {
+    int count = 0;
+    while (iterator.hasNext()) {
+      iterator.next();
+      count++;
+    }
+    return count;
+  }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.api.user;
+
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * Checks the access many users have to a single object in one go. The ACLs on the object
+ * and its parents are read once, and users whose principals are treated the same by those
+ * ACLs share a single permission check.
+ */
+public interface BulkAccessEvaluator {
+
+  /**
+   * @param adminSession
+   *          a session able to read the users and the ACLs of the object.
+   * @param objectType
+   *          the ACL zone, eg Security.ZONE_CONTENT.
+   * @param objectPath
+   *          the object being accessed.
+   * @param userIds
+   *          the users to check.
+   * @param permission
+   *          the permission each user needs.
+   * @return the users that have the permission, in the order they were given. Users that
+   *         do not exist are left out.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  Set<String> filterPermitted(Session adminSession, String objectType, String objectPath,
+      Collection<String> userIds, Permission permission) throws StorageClientException,
+      AccessDeniedException;
+}
@@ -0,0 +1,299 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permission;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.authorizable.User;
+import org.sakaiproject.nakamura.api.user.BulkAccessEvaluator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Evaluates access for many users at once. Only the principals that appear in the ACLs of
+ * an object, or of its parents, can change the outcome of a permission check on it, so
+ * users are grouped by the ACL principals they hold and each group is checked once with
+ * the normal access control manager.
+ * <p>
+ * Users are kept in an LRU cache together with all the groups they belong to, directly or
+ * through other groups, so their principals do not have to be read each time. A changed
+ * user only drops its own entry, any other change may alter the membership of groups and
+ * clears the cache.
+ * </p>
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { BulkAccessEvaluator.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class BulkAccessEvaluatorImpl implements BulkAccessEvaluator, EventHandler {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkAccessEvaluatorImpl.class);
+
+  @Property(intValue = 10000, label = "Cache Size",
+      description = "The number of users whose principals are cached.")
+  static final String CACHE_SIZE = "bulkaccess.cache.size";
+
+  private volatile Map<String, CachedAuthorizable> authorizables = createCache(10000);
+
+  @Activate
+  @Modified
+  protected void modified(Map<String, Object> properties) {
+    authorizables = createCache(OsgiUtil.toInteger(properties.get(CACHE_SIZE), 10000));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.sakaiproject.nakamura.api.user.BulkAccessEvaluator#filterPermitted(org.sakaiproject.nakamura.api.lite.Session,
+   *      java.lang.String, java.lang.String, java.util.Collection,
+   *      org.sakaiproject.nakamura.api.lite.accesscontrol.Permission)
+   */
+  public Set<String> filterPermitted(Session adminSession, String objectType,
+      String objectPath, Collection<String> userIds, Permission permission)
+      throws StorageClientException, AccessDeniedException {
+    AccessControlManager accessControlManager = adminSession.getAccessControlManager();
+    AuthorizableManager authorizableManager = adminSession.getAuthorizableManager();
+    Set<String> aclKeys = getAclKeys(accessControlManager, objectType, objectPath);
+
+    // users whose ACL principals are the same get the same answer.
+    Map<String, List<Authorizable>> bySignature = new LinkedHashMap<String, List<Authorizable>>();
+    for (String userId : userIds) {
+      CachedAuthorizable cached = getAuthorizable(userId, authorizableManager);
+      if (cached == null) {
+        continue;
+      }
+      String signature = getSignature(cached, aclKeys);
+      List<Authorizable> users = bySignature.get(signature);
+      if (users == null) {
+        users = new ArrayList<Authorizable>();
+        bySignature.put(signature, users);
+      }
+      users.add(cached.authorizable);
+    }
+
+    Set<String> permitted = new HashSet<String>();
+    for (List<Authorizable> users : bySignature.values()) {
+      if (accessControlManager.can(users.get(0), objectType, objectPath, permission)) {
+        for (Authorizable user : users) {
+          permitted.add(user.getId());
+        }
+      }
+    }
+    LOGGER.debug("Checked {} users against {} with {} permission checks", new Object[] {
+        userIds.size(), objectPath, bySignature.size() });
+
+    Set<String> result = new LinkedHashSet<String>();
+    for (String userId : userIds) {
+      if (permitted.contains(userId)) {
+        result.add(userId);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    Set<String> changed = new HashSet<String>();
+    addIds(changed, event.getProperty(StoreListener.PATH_PROPERTY));
+    Map<String, CachedAuthorizable> cache = authorizables;
+    synchronized (cache) {
+      for (String id : changed) {
+        CachedAuthorizable cached = cache.get(id);
+        if (cached != null && !cached.authorizable.isGroup()) {
+          // nobody is a member of a user, only its own principals can have changed.
+          cache.remove(id);
+        } else {
+          // a group, or something not seen yet, may have gained or lost members and that
+          // reaches every user below it.
+          cache.clear();
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the ACL keys set on the object and all of its parents.
+   */
+  private Set<String> getAclKeys(AccessControlManager accessControlManager,
+      String objectType, String objectPath) throws StorageClientException,
+      AccessDeniedException {
+    Set<String> aclKeys = new HashSet<String>();
+    String path = objectPath;
+    while (path != null) {
+      Map<String, Object> acl = accessControlManager.getAcl(objectType, path);
+      if (acl != null) {
+        aclKeys.addAll(acl.keySet());
+      }
+      if (path.length() == 0 || "/".equals(path)) {
+        break;
+      }
+      String parent = StorageClientUtils.getParentObjectPath(path);
+      path = path.equals(parent) ? null : parent;
+    }
+    return aclKeys;
+  }
+
+  /**
+   * @return the principals of the authorizable that are mentioned by the ACL keys, in a
+   *         stable order.
+   */
+  private String getSignature(CachedAuthorizable cached, Set<String> aclKeys) {
+    Authorizable authorizable = cached.authorizable;
+    String id = authorizable.getId();
+    if (User.ADMIN_USER.equals(id) || User.ANON_USER.equals(id)) {
+      // these are special cased by access control, never share their answer.
+      return "\u0000" + id;
+    }
+    Set<String> principals = new TreeSet<String>();
+    addIfMentioned(principals, id, aclKeys);
+    addIfMentioned(principals, Group.EVERYONE, aclKeys);
+    for (String principal : cached.principals) {
+      addIfMentioned(principals, principal, aclKeys);
+    }
+    return (authorizable.isGroup() ? "g:" : "u:") + StringUtils.join(principals, ',');
+  }
+
+  private void addIfMentioned(Set<String> principals, String principal, Set<String> aclKeys) {
+    if (aclKeys.contains(AclModification.grantKey(principal))
+        || aclKeys.contains(AclModification.denyKey(principal))) {
+      principals.add(principal);
+    }
+  }
+
+  private CachedAuthorizable getAuthorizable(String userId,
+      AuthorizableManager authorizableManager) throws AccessDeniedException,
+      StorageClientException {
+    Map<String, CachedAuthorizable> cache = authorizables;
+    CachedAuthorizable cached;
+    synchronized (cache) {
+      cached = cache.get(userId);
+    }
+    if (cached == null) {
+      Authorizable authorizable = authorizableManager.findAuthorizable(userId);
+      if (authorizable != null) {
+        cached = new CachedAuthorizable(authorizable, getAllPrincipals(authorizable,
+            authorizableManager));
+        synchronized (cache) {
+          cache.put(userId, cached);
+        }
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * @return the groups the authorizable belongs to, directly or through other groups, the
+   *         same way the principal provider expands memberships.
+   */
+  private Set<String> getAllPrincipals(Authorizable authorizable,
+      AuthorizableManager authorizableManager) throws AccessDeniedException,
+      StorageClientException {
+    Set<String> principals = new LinkedHashSet<String>();
+    List<String> pending = new ArrayList<String>();
+    addPrincipals(pending, authorizable);
+    for (int i = 0; i < pending.size(); i++) {
+      String principal = pending.get(i);
+      if (!principals.add(principal) || Group.EVERYONE.equals(principal)) {
+        continue;
+      }
+      Authorizable group = authorizableManager.findAuthorizable(principal);
+      if (group instanceof Group) {
+        addPrincipals(pending, group);
+      }
+    }
+    return principals;
+  }
+
+  private void addPrincipals(List<String> pending, Authorizable authorizable) {
+    String[] memberships = authorizable.getPrincipals();
+    if (memberships != null) {
+      Collections.addAll(pending, memberships);
+    }
+  }
+
+  private void addIds(Set<String> ids, Object property) {
+    if (property instanceof String[]) {
+      for (String id : (String[]) property) {
+        ids.add(id);
+      }
+    } else if (property != null) {
+      for (String id : StringUtils.split(String.valueOf(property), ',')) {
+        ids.add(id.trim());
+      }
+    }
+  }
+
+  private static Map<String, CachedAuthorizable> createCache(final int maxEntries) {
+    return new LinkedHashMap<String, CachedAuthorizable>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedAuthorizable> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  private static class CachedAuthorizable {
+    private final Authorizable authorizable;
+    private final Set<String> principals;
+
+    private CachedAuthorizable(Authorizable authorizable, Set<String> principals) {
+      this.authorizable = authorizable;
+      this.principals = principals;
+    }
+  }
+}
@@ -69,7 +69,8 @@ public class ContentCounter {
    */
   private int getCount(String queryString, SolrServerService solrSearchService) {
     SolrServer solrServer = solrSearchService.getServer();
-    SolrQuery solrQuery = new SolrQuery(queryString);
+    // only the number found is needed.
+    SolrQuery solrQuery = new SolrQuery(queryString).setRows(0);
 
     QueryResponse response;
     try {
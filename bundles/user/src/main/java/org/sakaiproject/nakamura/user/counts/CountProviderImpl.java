@@ -144,7 +144,7 @@ public class CountProviderImpl implements CountProvider {
   @Modified
   public void modify(Map<String, Object> properties) throws StorageClientException,
       AccessDeniedException {
-    updateIntervalMinutes = OsgiUtil.toLong(properties.get(UPDATE_INTERVAL_MINUTES), 30) * 60 * 1000;
+    updateIntervalMinutes = OsgiUtil.toLong(properties.get(UPDATE_INTERVAL_MINUTES), 30);
   }
 
 
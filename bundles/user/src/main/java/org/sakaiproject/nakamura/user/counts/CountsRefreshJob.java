@@ -17,6 +17,7 @@
  */
 package org.sakaiproject.nakamura.user.counts;
 
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.commons.scheduler.Job;
 import org.apache.sling.commons.scheduler.JobContext;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -36,6 +37,25 @@ import org.sakaiproject.nakamura.api.solr.SolrServerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconciles the counts held on authorizables. The count change listeners keep counts up
+ * to date as content, connections and memberships change, this job picks up anything they
+ * missed. Authorizables are updated on a small pool of threads, each with its own session,
+ * at no more than the configured rate so a large backlog does not swamp storage and Solr.
+ */
 public class CountsRefreshJob implements Job {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountsRefreshJob.class);
 
@@ -58,75 +78,145 @@ public class CountsRefreshJob implements Job {
    * @see org.apache.sling.commons.scheduler.Job#execute(org.apache.sling.commons.scheduler.JobContext)
    */
   public void execute(JobContext context) {
-    Session adminSession = null;
-    Integer batchSize = (Integer) context.getConfiguration().get(
-        CountsRefreshScheduler.PROP_UPDATE_BATCH_SIZE);
+    Map<String, Serializable> config = context.getConfiguration();
+    Integer batchSize = (Integer) config.get(CountsRefreshScheduler.PROP_UPDATE_BATCH_SIZE);
+    int threads = Math.max(1,
+        OsgiUtil.toInteger(config.get(CountsRefreshScheduler.PROP_UPDATE_THREADS), 1));
+    int maxRate = OsgiUtil.toInteger(
+        config.get(CountsRefreshScheduler.PROP_MAX_UPDATES_PER_SECOND), 0);
+    SolrServer solrServer = solrServerService.getServer();
+    long nowTicks = System.currentTimeMillis();
+    long updateIntervalTicks = this.countProvider.getUpdateIntervalMinutes() * 60 * 1000;
+    long updateTicks = nowTicks - updateIntervalTicks;
+    // find all the authorizables have not been updated in the update interval
+    // or who have never been updated
+    StringBuilder querySB = new StringBuilder("+resourceType:authorizable AND -countLastUpdate:[")
+                            .append(updateTicks).append(" TO * ]");
+    String queryString = querySB.toString();
+    SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize)
+        .setFields("id");
+    try {
+      QueryResponse response = solrServer.query(solrQuery);
+      SolrDocumentList results = response.getResults();
+      long numResults = results.getNumFound();
+      if (LOGGER.isDebugEnabled()) LOGGER.debug("with query {}, found {} results", new Object[] { queryString,
+          numResults });
+      if (numResults > 0) {
+        batchSize = (int) (batchSize < numResults ? batchSize : numResults);
+        LOGGER.info("will update counts on max of {} authorizables with {} threads",
+            new Object[] { batchSize, threads });
+        long startTicks = System.currentTimeMillis();
+        int count = update(results, threads, maxRate);
+        long endTicks = System.currentTimeMillis();
+        LOGGER.info("updated {} authorizables in {} seconds", new Object[] { count,
+            (endTicks - startTicks) / 1000 });
+      } else {
+        LOGGER.info("All authorizables have up to date counts");
+      }
+    } catch (SolrServerException e) {
+      LOGGER.warn(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Update the counts of each authorizable in the results, returning once they are all
+   * done.
+   *
+   * @return the number of authorizables updated.
+   */
+  protected int update(SolrDocumentList results, int threads, int maxRate) {
+    List<String> authorizableIds = new ArrayList<String>(results.size());
+    for (SolrDocument solrDocument : results) {
+      authorizableIds.add((String) solrDocument.getFieldValue("id"));
+    }
+    return update(authorizableIds, threads, maxRate);
+  }
+
+  /**
+   * Update the counts of each of the authorizables, returning once they are all done.
+   *
+   * @return the number of authorizables updated.
+   */
+  protected int update(Collection<String> authorizableIds, int threads, int maxRate) {
+    final AtomicInteger count = new AtomicInteger();
+    final ThreadLocal<Session> sessions = new ThreadLocal<Session>();
+    final Set<Session> opened = Collections.synchronizedSet(new HashSet<Session>());
+    // the queue is kept short so the rate limit applies to updates being started rather
+    // than queued, when it is full the caller runs the update itself.
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    long interval = maxRate > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRate : 0;
+    long next = System.nanoTime();
     try {
-      adminSession = this.sparseRepository.loginAdministrative();
-      AuthorizableManager authManager = adminSession.getAuthorizableManager();
-      SolrServer solrServer = solrServerService.getServer();
-      long nowTicks = System.currentTimeMillis();
-      long updateIntervalTicks = this.countProvider.getUpdateIntervalMinutes() * 60 * 1000;
-      long updateTicks = nowTicks - updateIntervalTicks;
-      // find all the authorizables have not been updated in the update interval
-      // or who have never been updated
-      StringBuilder querySB = new StringBuilder("+resourceType:authorizable AND -countLastUpdate:[")
-                              .append(updateTicks).append(" TO * ]");
-      String queryString = querySB.toString();
-      SolrQuery solrQuery = new SolrQuery(queryString).setStart(0).setRows(batchSize);
-      QueryResponse response;
-      try {
-        response = solrServer.query(solrQuery);
-        SolrDocumentList results = response.getResults();
-        long numResults = results.getNumFound();
-        if (LOGGER.isDebugEnabled()) LOGGER.debug("with query {}, found {} results", new Object[] { queryString,
-            numResults });
-        if (numResults > 0) {
-          batchSize = (int) (batchSize < numResults ? batchSize : numResults);
-          LOGGER.info("will update counts on max of {} authorizables",
-              new Object[] { batchSize });
-          long startTicks = System.currentTimeMillis();
-          int count = 0;
-          for (SolrDocument solrDocument : results) {
-            String authorizableId = (String) solrDocument.getFieldValue("id");
-            Authorizable authorizable = authManager.findAuthorizable(authorizableId);
-            if (authorizable != null) {
-              if (authorizable.getId() != null) {
-                this.countProvider.update(authorizable, adminSession);
-                count++;              
-              } else {
-                LOGGER.debug(
-                    "found authorizable with id {} in Solr index but with NULL id in Sparse, not updating", 
-                    new Object[]{ authorizableId });
+      for (final String authorizableId : authorizableIds) {
+        if (interval > 0) {
+          long wait = next - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+          next = Math.max(next, System.nanoTime() - interval) + interval;
+        }
+        executor.execute(new Runnable() {
+          public void run() {
+            try {
+              Session session = sessions.get();
+              if (session == null) {
+                session = sparseRepository.loginAdministrative();
+                sessions.set(session);
+                opened.add(session);
               }
-            } else {
-              LOGGER.debug(
-                      "found authorizable with id {} in Solr index but couldn't find authorizable in Sparse, not updating",
-                      new Object[] { authorizableId });
+              if (updateCounts(authorizableId, session)) {
+                count.incrementAndGet();
+              }
+            } catch (StorageClientException e) {
+              LOGGER.warn(e.getMessage(), e);
+            } catch (AccessDeniedException e) {
+              LOGGER.warn(e.getMessage(), e);
             }
           }
-          long endTicks = System.currentTimeMillis();
-          LOGGER.info("updated {} authorizables in {} seconds", new Object[] { count,
-              (endTicks - startTicks) / 1000 });
-        } else {
-          LOGGER.info("All authorizables have up to date counts");
-        }
-      } catch (SolrServerException e) {
-        LOGGER.warn(e.getMessage(), e);
+        });
       }
-    } catch (ClientPoolException e) {
-      LOGGER.warn(e.getMessage(), e);
-    } catch (StorageClientException e) {
-      LOGGER.warn(e.getMessage(), e);
-    } catch (AccessDeniedException e) {
-      LOGGER.warn(e.getMessage(), e);
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOGGER.info("waiting on counts refresh, {} authorizables updated so far", count.get());
+      }
+    } catch (InterruptedException e) {
+      LOGGER.warn("Interrupted refreshing counts, {} authorizables updated", count.get());
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
     } finally {
-      if (adminSession != null)
-        try {
-          adminSession.logout();
-        } catch (ClientPoolException e) {
-          LOGGER.warn(e.getMessage(), e);
+      synchronized (opened) {
+        for (Session session : opened) {
+          try {
+            session.logout();
+          } catch (ClientPoolException e) {
+            LOGGER.warn(e.getMessage(), e);
+          }
         }
+      }
+    }
+    return count.get();
+  }
+
+  private boolean updateCounts(String authorizableId, Session session)
+      throws StorageClientException, AccessDeniedException {
+    AuthorizableManager authManager = session.getAuthorizableManager();
+    Authorizable authorizable = authManager.findAuthorizable(authorizableId);
+    if (authorizable != null) {
+      if (authorizable.getId() != null) {
+        this.countProvider.update(authorizable, session);
+        return true;
+      } else {
+        LOGGER.debug(
+            "found authorizable with id {} in Solr index but with NULL id in Sparse, not updating", 
+            new Object[]{ authorizableId });
+      }
+    } else {
+      LOGGER.debug(
+              "found authorizable with id {} in Solr index but couldn't find authorizable in Sparse, not updating",
+              new Object[] { authorizableId });
     }
+    return false;
   }
 }
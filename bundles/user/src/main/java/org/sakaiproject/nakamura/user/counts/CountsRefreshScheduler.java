@@ -21,7 +21,7 @@ import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
-import org.apache.sling.commons.scheduler.Job;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.commons.scheduler.Scheduler;
 import org.osgi.service.component.ComponentContext;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -30,9 +30,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 
 @Component(label = "Nakamura :: CountRefreshScheduler",
@@ -41,7 +47,8 @@ import java.util.Map;
 @Service(value = CountsRefreshScheduler.class)
 
 /**
- * run a periodic job (every poll interval seconds) that will update the batch size of authorizables' counts
+ * run a periodic job (every poll interval seconds) that will update the batch size of authorizables' counts.
+ * Counts are kept up to date as things change by the count change listeners, this job reconciles any drift.
  */
 public class CountsRefreshScheduler {
   private static final Logger LOGGER = LoggerFactory.getLogger(CountsRefreshScheduler.class);
@@ -66,15 +73,36 @@ public class CountsRefreshScheduler {
       description = "Maximum Number of Authorizables to Update in one Job")
   public static final String PROP_UPDATE_BATCH_SIZE = "refreshcounts.batchsize";  
 
+  @Property(intValue = 4, label = "Update Threads",
+      description = "Number of Authorizables to update at the same time")
+  public static final String PROP_UPDATE_THREADS = "refreshcounts.threads";
+
+  @Property(intValue = 50, label = "Maximum Updates per Second",
+      description = "Limits the load the refresh puts on storage and Solr, 0 for no limit")
+  public static final String PROP_MAX_UPDATES_PER_SECOND = "refreshcounts.maxrate";
+
   protected final static String JOB_NAME = "refreshCountsJob";
-  
+
+  private CountsRefreshJob countsRefreshJob;
+
+  private int maxRate;
+
+  /**
+   * Runs the refreshes queued by the count change listeners, one at a time.
+   */
+  private ExecutorService refreshExecutor;
+
   protected void activate(ComponentContext componentContext) throws Exception {
     Dictionary<?, ?> props = componentContext.getProperties();
     Long pollInterval = (Long) props.get(PROP_POLL_INTERVAL_SECONDS);
     Integer batchSize = (Integer) props.get(PROP_UPDATE_BATCH_SIZE);
     Map<String, Serializable> config = new HashMap<String, Serializable>();
     config.put(PROP_UPDATE_BATCH_SIZE, batchSize);
-    final Job countsRefreshJob = new CountsRefreshJob(this.sparseRepository, this.solrServerService, this.countProvider);
+    config.put(PROP_UPDATE_THREADS, OsgiUtil.toInteger(props.get(PROP_UPDATE_THREADS), 4));
+    maxRate = OsgiUtil.toInteger(props.get(PROP_MAX_UPDATES_PER_SECOND), 50);
+    config.put(PROP_MAX_UPDATES_PER_SECOND, maxRate);
+    countsRefreshJob = new CountsRefreshJob(this.sparseRepository, this.solrServerService, this.countProvider);
+    refreshExecutor = Executors.newSingleThreadExecutor();
     try {
       LOGGER.debug("Activating CountsRefreshJob...");
       this.scheduler.addPeriodicJob(JOB_NAME, countsRefreshJob, config, pollInterval, false);
@@ -87,5 +115,25 @@ public class CountsRefreshScheduler {
   protected void deactivate(ComponentContext componentContext) throws Exception {
     LOGGER.debug("Removing refreshCountsJob...");
     this.scheduler.removeJob(JOB_NAME);
+    refreshExecutor.shutdownNow();
+  }
+
+  /**
+   * Queue the counts of some authorizables to be refreshed in the background, at the same
+   * rate as the periodic refresh. Authorizables that are not refreshed before the
+   * component stops are picked up by a later periodic refresh.
+   */
+  public void refresh(Collection<String> authorizableIds) {
+    final List<String> ids = new ArrayList<String>(authorizableIds);
+    try {
+      refreshExecutor.execute(new Runnable() {
+        public void run() {
+          int count = countsRefreshJob.update(ids, 1, maxRate);
+          LOGGER.debug("refreshed {} of {} queued authorizables", count, ids.size());
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOGGER.info("Not refreshing {} authorizables while stopping", ids.size());
+    }
   }
 }
@@ -17,9 +17,13 @@
  */
 package org.sakaiproject.nakamura.user.counts;
 
+import com.google.common.collect.Sets;
+
+import org.apache.commons.lang.StringUtils;
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Properties;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.osgi.service.event.Event;
 import org.osgi.service.event.EventHandler;
@@ -34,6 +38,8 @@ import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Set;
+
 @Component(metatype=true, immediate = true, inherit=true)
 @Service(value=EventHandler.class)
 @Properties(value = {
@@ -46,6 +52,10 @@ import org.slf4j.LoggerFactory;
 public class GroupMembershipCountChangeListener extends AbstractCountHandler implements EventHandler {
   
   private static final Logger LOG = LoggerFactory.getLogger(GroupMembershipCountChangeListener.class);
+
+  @Reference
+  protected CountsRefreshScheduler countsRefreshScheduler;
+
   private GroupMembershipCounter groupMembershipCounter = new GroupMembershipCounter();
 
   public void handleEvent(Event event) {
@@ -59,12 +69,16 @@ public class GroupMembershipCountChangeListener extends AbstractCountHandler imp
         AuthorizableManager authMgr = session.getAuthorizableManager();
         Authorizable au = authMgr.findAuthorizable(groupId);
         if ( au != null ) {
-          int n = groupMembershipCounter.count(au, authMgr);
-          Integer v = (Integer) au.getProperty(UserConstants.GROUP_MEMBERSHIPS_PROP);
-          if ( v == null || n != v.intValue()) {
-            au.setProperty(UserConstants.GROUP_MEMBERSHIPS_PROP, n);
-            authMgr.updateAuthorizable(au);
-          }
+          updateMemberships(au, authMgr);
+        }
+        // the memberships of anyone joining or leaving the group have changed too, they
+        // are recounted in the background so large changes don't hold up event delivery.
+        Set<String> changed = Sets.newLinkedHashSet();
+        addIds(changed, event.getProperty("added"));
+        addIds(changed, event.getProperty("removed"));
+        changed.removeAll(CountProvider.IGNORE_AUTHIDS);
+        if (!changed.isEmpty()) {
+          countsRefreshScheduler.refresh(changed);
         }
       }
     } catch (StorageClientException e) {
@@ -81,5 +95,31 @@ public class GroupMembershipCountChangeListener extends AbstractCountHandler imp
       }
     }
   }
+
+  private void updateMemberships(Authorizable au, AuthorizableManager authMgr)
+      throws AccessDeniedException, StorageClientException {
+    int n = groupMembershipCounter.count(au, authMgr);
+    Integer v = (Integer) au.getProperty(UserConstants.GROUP_MEMBERSHIPS_PROP);
+    if ( v == null || n != v.intValue()) {
+      au.setProperty(UserConstants.GROUP_MEMBERSHIPS_PROP, n);
+      authMgr.updateAuthorizable(au);
+    }
+  }
+
+  /**
+   * The added and removed event properties hold either a single id, a comma separated
+   * list or an array of ids.
+   */
+  private void addIds(Set<String> ids, Object property) {
+    if (property instanceof String[]) {
+      for (String id : (String[]) property) {
+        ids.add(id);
+      }
+    } else if (property != null) {
+      for (String id : StringUtils.split(String.valueOf(property), ',')) {
+        ids.add(id.trim());
+      }
+    }
+  }
 }
 
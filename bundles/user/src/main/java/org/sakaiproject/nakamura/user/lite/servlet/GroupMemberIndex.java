@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.OsgiUtil;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventHandler;
+import org.sakaiproject.nakamura.api.lite.ClientPoolException;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Keeps the members of recently listed groups sorted on the name they are listed by, so
+ * a page of members can be found without reading and sorting every member of the group.
+ * Only the members on the requested page are read.
+ * <p>
+ * The index for a group is brought up to date with the group's member and manager lists
+ * each time they have changed, which only reads the members added since the last use.
+ * Changes to the names of indexed members arrive as authorizable events.
+ * </p>
+ * <p>
+ * The indexes are bounded by the number of members held across all groups, so a few
+ * very large groups do not crowd out memory the way a count of groups would let them.
+ * </p>
+ */
+@Component(immediate = true, metatype = true)
+@Service(value = { GroupMemberIndex.class, EventHandler.class })
+@Properties(value = {
+    @Property(name = "service.vendor", value = "The Sakai Foundation"),
+    @Property(name = "service.description", value = "Keeps a sorted index of the members of groups."),
+    @Property(name = "event.topics", value = {
+        "org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        "org/sakaiproject/nakamura/lite/authorizables/DELETE" }) })
+public class GroupMemberIndex implements EventHandler {
+
+  public enum Selection {
+    MEMBERS, MANAGERS, EVERYONE
+  }
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupMemberIndex.class);
+
+  private static final int DEFAULT_INDEX_MEMBERS = 100000;
+  @Property(intValue = DEFAULT_INDEX_MEMBERS, description = "The most members to keep indexed across all groups.")
+  static final String INDEX_MEMBERS = "index.members";
+
+  @Reference
+  protected Repository repository;
+
+  private volatile int maxMembers = DEFAULT_INDEX_MEMBERS;
+
+  /**
+   * Group ID to index, least recently used first.
+   */
+  private final LinkedHashMap<String, GroupIndex> indexes = new LinkedHashMap<String, GroupIndex>(
+      16, 0.75f, true);
+
+  @Activate
+  protected void activate(Map<String, Object> props) {
+    maxMembers = OsgiUtil.toInteger(props.get(INDEX_MEMBERS), DEFAULT_INDEX_MEMBERS);
+    synchronized (indexes) {
+      indexes.clear();
+    }
+  }
+
+  /**
+   * Get a page of members of a group, in name order. Members on the page that the
+   * requesting user cannot read are left out of it, so a page may be short.
+   *
+   * @param group
+   *          the group as just read by the requesting user.
+   * @param selection
+   *          which of the members to list.
+   * @param descending
+   * @param offset
+   *          the number of members to skip.
+   * @param items
+   *          the most members to return.
+   * @param authorizableManager
+   *          the requesting user's authorizable manager, used to read the members.
+   * @return the members on the page.
+   * @throws StorageClientException
+   * @throws AccessDeniedException
+   */
+  public List<Authorizable> getPage(Group group, Selection selection, boolean descending,
+      long offset, long items, AuthorizableManager authorizableManager)
+      throws StorageClientException, AccessDeniedException {
+    GroupIndex index;
+    synchronized (indexes) {
+      index = indexes.get(group.getId());
+      if (index == null) {
+        index = new GroupIndex();
+        indexes.put(group.getId(), index);
+      }
+    }
+    List<String> ids;
+    synchronized (index) {
+      index.update(group);
+      ids = index.slice(selection, descending, offset, items);
+    }
+    trim(index);
+
+    // members are read outside the index lock, visibility can only be known per member.
+    List<Authorizable> page = Lists.newArrayList();
+    for (String id : ids) {
+      Authorizable au = readVisible(authorizableManager, id);
+      if (au != null) {
+        page.add(au);
+      }
+    }
+    return page;
+  }
+
+  /**
+   * @return the number of members held in all indexes.
+   */
+  int getIndexedMembers() {
+    List<GroupIndex> all;
+    synchronized (indexes) {
+      all = Lists.newArrayList(indexes.values());
+    }
+    int total = 0;
+    for (GroupIndex index : all) {
+      total += index.size;
+    }
+    return total;
+  }
+
+  /**
+   * Drop the least recently used indexes until the members held fit, keeping the index
+   * that is in use.
+   */
+  private void trim(GroupIndex inUse) {
+    synchronized (indexes) {
+      int total = 0;
+      for (GroupIndex index : indexes.values()) {
+        total += index.size;
+      }
+      for (Iterator<GroupIndex> it = indexes.values().iterator(); total > maxMembers
+          && it.hasNext();) {
+        GroupIndex index = it.next();
+        if (index != inUse) {
+          total -= index.size;
+          it.remove();
+        }
+      }
+    }
+  }
+
+  private Authorizable readVisible(AuthorizableManager authorizableManager, String id)
+      throws StorageClientException {
+    try {
+      return authorizableManager.findAuthorizable(id);
+    } catch (AccessDeniedException e) {
+      LOGGER.debug("Leaving out member {}: {}", id, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.osgi.service.event.EventHandler#handleEvent(org.osgi.service.event.Event)
+   */
+  public void handleEvent(Event event) {
+    String id = (String) event.getProperty(StoreListener.PATH_PROPERTY);
+    if (id == null) {
+      return;
+    }
+    if (event.getTopic().endsWith("/DELETE")) {
+      synchronized (indexes) {
+        indexes.remove(id);
+      }
+      return;
+    }
+    // membership changes are picked up when the group is next listed, this only needs
+    // to deal with indexed members that may have been renamed.
+    List<GroupIndex> all;
+    synchronized (indexes) {
+      all = Lists.newArrayList(indexes.values());
+    }
+    List<GroupIndex> containing = Lists.newArrayList();
+    for (GroupIndex index : all) {
+      synchronized (index) {
+        if (index.contains(id)) {
+          containing.add(index);
+        }
+      }
+    }
+    if (containing.isEmpty()) {
+      return;
+    }
+    try {
+      Map<String, String> keys = readSortKeys(Sets.newHashSet(id));
+      String key = keys.get(id);
+      for (GroupIndex index : containing) {
+        synchronized (index) {
+          if (key == null) {
+            index.remove(id);
+          } else {
+            index.rename(id, key);
+          }
+        }
+      }
+    } catch (StorageClientException e) {
+      LOGGER.warn("Failed to update group member indexes for {}: {}", id, e.getMessage());
+    } catch (AccessDeniedException e) {
+      LOGGER.warn("Failed to update group member indexes for {}: {}", id, e.getMessage());
+    }
+  }
+
+  /**
+   * Read the sort keys of a set of authorizables. IDs that do not exist are left out.
+   */
+  private Map<String, String> readSortKeys(Collection<String> ids)
+      throws StorageClientException, AccessDeniedException {
+    Map<String, String> keys = Maps.newHashMap();
+    Session session = repository.loginAdministrative();
+    try {
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      for (String id : ids) {
+        Authorizable au = authorizableManager.findAuthorizable(id);
+        if (au != null) {
+          keys.put(id, getName(au));
+        }
+      }
+    } finally {
+      try {
+        session.logout();
+      } catch (ClientPoolException e) {
+        LOGGER.warn(e.getMessage(), e);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Get's the name for an authorizable on what the list should be sorted.
+   * sakai:group-title for Groups, lastName for Users.
+   *
+   * @param member
+   *          The authorizable to get a name for.
+   * @return The name.
+   */
+  static String getName(Authorizable member) {
+    String name;
+    if (member instanceof Group) {
+      name = (String) member.getProperty("sakai:group-title");
+    } else {
+      name = (String) member.getProperty("lastName");
+    }
+    // We need to add the ID to keep the keys unique.
+    return name + member.getId();
+  }
+
+  /**
+   * The members of a single group, sorted by name. Callers synchronize on the index.
+   */
+  private class GroupIndex {
+    /**
+     * member ID to sort key.
+     */
+    private final Map<String, String> keys = Maps.newHashMap();
+    private final TreeMap<String, String> everyone = new TreeMap<String, String>();
+    private final TreeMap<String, String> members = new TreeMap<String, String>();
+    private final TreeMap<String, String> managers = new TreeMap<String, String>();
+    private Set<String> managerIds = Sets.newHashSet();
+    /**
+     * The IDs of each selection in order, built when first paged after a change.
+     */
+    private final Map<Selection, List<String>> sorted = Maps.newEnumMap(Selection.class);
+    /**
+     * The member and manager lists the index was last brought up to date with.
+     */
+    private String[] lastMembers;
+    private String[] lastManagers;
+    /**
+     * IDs in the member list that could not be found, so they are not looked up again.
+     */
+    private final Set<String> missing = Sets.newHashSet();
+    /**
+     * The number of IDs held, read without the index lock when bounding the indexes.
+     */
+    volatile int size;
+
+    void update(Group group) throws StorageClientException, AccessDeniedException {
+      String[] memberList = group.getMembers();
+      String[] managerList = StorageClientUtils.nonNullStringArray((String[]) group
+          .getProperty(UserConstants.PROP_GROUP_MANAGERS));
+      if (Arrays.equals(memberList, lastMembers) && Arrays.equals(managerList, lastManagers)) {
+        return;
+      }
+      Set<String> current = Sets.newHashSet(memberList);
+      Set<String> currentManagers = Sets.newHashSet(managerList);
+
+      for (Iterator<String> it = Lists.newArrayList(keys.keySet()).iterator(); it.hasNext();) {
+        String id = it.next();
+        if (!current.contains(id)) {
+          remove(id);
+        }
+      }
+      missing.retainAll(current);
+
+      if (!currentManagers.equals(managerIds)) {
+        Set<String> changed = Sets.symmetricDifference(currentManagers, managerIds)
+            .immutableCopy();
+        managerIds = currentManagers;
+        for (String id : changed) {
+          String key = keys.get(id);
+          if (key != null) {
+            rename(id, key);
+          }
+        }
+      }
+
+      Set<String> added = Sets.newHashSet();
+      for (String id : current) {
+        if (!keys.containsKey(id) && !missing.contains(id)) {
+          added.add(id);
+        }
+      }
+      if (!added.isEmpty()) {
+        Map<String, String> addedKeys = readSortKeys(added);
+        for (String id : added) {
+          String key = addedKeys.get(id);
+          if (key == null) {
+            missing.add(id);
+          } else {
+            put(id, key);
+          }
+        }
+      }
+      size = keys.size() + missing.size();
+      lastMembers = memberList;
+      lastManagers = managerList;
+    }
+
+    /**
+     * @return a copy of the selected IDs from offset to offset + items in order, so they
+     *         can be read without the lock.
+     */
+    List<String> slice(Selection selection, boolean descending, long offset, long items) {
+      List<String> ids = sorted.get(selection);
+      if (ids == null) {
+        Map<String, String> view;
+        switch (selection) {
+        case MANAGERS:
+          view = managers;
+          break;
+        case EVERYONE:
+          view = everyone;
+          break;
+        default:
+          view = members;
+        }
+        ids = Lists.newArrayList(view.values());
+        sorted.put(selection, ids);
+      }
+      int count = ids.size();
+      int from = (int) Math.min(count, Math.max(0, offset));
+      int to = (int) Math.min(count, from + Math.max(0, items));
+      List<String> slice = Lists.newArrayListWithCapacity(to - from);
+      for (int i = from; i < to; i++) {
+        slice.add(ids.get(descending ? count - 1 - i : i));
+      }
+      return slice;
+    }
+
+    boolean contains(String id) {
+      return keys.containsKey(id);
+    }
+
+    void rename(String id, String key) {
+      remove(id);
+      put(id, key);
+    }
+
+    void put(String id, String key) {
+      sorted.clear();
+      keys.put(id, key);
+      everyone.put(key, id);
+      if (managerIds.contains(id)) {
+        managers.put(key, id);
+      } else {
+        members.put(key, id);
+      }
+    }
+
+    void remove(String id) {
+      String key = keys.remove(id);
+      if (key != null) {
+        sorted.clear();
+        everyone.remove(key);
+        members.remove(key);
+        managers.remove(key);
+      }
+    }
+  }
+}
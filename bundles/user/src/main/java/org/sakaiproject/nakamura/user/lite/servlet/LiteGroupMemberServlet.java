@@ -43,29 +43,21 @@ import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.lite.authorizable.Group;
 import org.sakaiproject.nakamura.api.user.BasicUserInfoService;
-import org.sakaiproject.nakamura.api.user.UserConstants;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map.Entry;
-import java.util.TreeMap;
 
-import javax.jcr.RepositoryException;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Also, when KERN-949 is fixed, we should change the getManagers() method.
- *
- *
- * Provides a listing for the members and managers of this group.
+ * Provides a listing for the members and managers of this group. The members are paged
+ * through a {@link GroupMemberIndex} so that members after the requested page are not
+ * read.
  */
 @ServiceDocumentation(
   name = "Group Member Servlet", okForVersion = "0.11",
@@ -112,6 +104,9 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
   @Reference
   private BasicUserInfoService basicUserInfoService;
 
+  @Reference
+  protected GroupMemberIndex groupMemberIndex;
+
   /**
    * {@inheritDoc}
    *
@@ -140,28 +135,22 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
     ExtendedJSONWriter writer = new ExtendedJSONWriter(response.getWriter());
     writer.setTidy(selectors.contains("tidy"));
 
-    // Get the sorting order, default is ascending or the natural sorting order (which is
-    // null for a TreeMap.)
-    Comparator<String> comparator = null;
-    String order = "ascending";
+    // Get the sorting order, default is ascending.
+    boolean descending = false;
     if (request.getRequestParameter("sortOrder") != null) {
-      order = request.getRequestParameter("sortOrder").getString();
-      if (order.equals("descending")) {
-        comparator = Collections.reverseOrder();
-      }
+      descending = "descending".equals(request.getRequestParameter("sortOrder").getString());
     }
 
     try {
       response.setContentType("application/json");
-      TreeMap<String, Authorizable> map = null;
+      GroupMemberIndex.Selection selection;
       if (selectors.contains("everyone")) {
-        map = getMembers(request, group, comparator);
-        map.putAll(getManagers(request, group, comparator));
+        selection = GroupMemberIndex.Selection.EVERYONE;
       } else if (selectors.contains("managers")) {
-        map = getManagers(request, group, comparator);
+        selection = GroupMemberIndex.Selection.MANAGERS;
       } else {
         // Members is the default.
-        map = getMembers(request, group, comparator);
+        selection = GroupMemberIndex.Selection.MEMBERS;
       }
 
       // Do some paging.
@@ -175,23 +164,18 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
       if (items < 0) {
         items = 25;
       }
-      Iterator<Entry<String, Authorizable>> iterator = getInPlaceIterator(request, map,
-          items, page);
+      Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
+      AuthorizableManager authorizableManager = session.getAuthorizableManager();
+      // the index gives the members in order, only the members on the page are read and
+      // those this user can't see are left out.
+      List<Authorizable> members = groupMemberIndex.getPage(group, selection, descending,
+          items * page, items, authorizableManager);
 
       // Write the whole lot out.
       writer.array();
-      int i = 0;
-      while (iterator.hasNext() && i < items) {
-        Entry<String, Authorizable> entry = iterator.next();
-        Authorizable au = entry.getValue();
+      for (Authorizable au : members) {
         ValueMap profile = new ValueMapDecorator(basicUserInfoService.getProperties(au));
-        if (profile != null) {
-          writer.valueMap(profile);
-          i++;
-        } /*else {
-          // profile wasn't found.  safe to ignore and not include the group
-          logger.info("Profile not found for " + au.getId());
-        }*/
+        writer.valueMap(profile);
       }
       writer.endArray();
 
@@ -219,114 +203,4 @@ public class LiteGroupMemberServlet extends SlingSafeMethodsServlet {
 
   }
 
-  /**
-   * @param request
-   * @param map
-   * @return
-   */
-  private Iterator<Entry<String, Authorizable>> getInPlaceIterator(
-      SlingHttpServletRequest request, TreeMap<String, Authorizable> map,
-      long items, long page) {
-    Iterator<Entry<String, Authorizable>> iterator = map.entrySet().iterator();
-    long skipNum = items * page;
-
-    while (skipNum > 0) {
-      iterator.next();
-      skipNum--;
-    }
-
-    return iterator;
-  }
-
-  /**
-   * @param request
-   * @param group
-   * @param writer
-   * @throws RepositoryException
-   * @throws JSONException
-   * @throws StorageClientException
-   * @throws AccessDeniedException
-   */
-  protected TreeMap<String, Authorizable> getMembers(SlingHttpServletRequest request,
-      Group group, Comparator<String> comparator) throws
-      JSONException, AccessDeniedException, StorageClientException {
-    TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
-
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-    AuthorizableManager authorizableManager = session.getAuthorizableManager();
-
-    // Only the direct members are required.
-    String[] members = group.getMembers();
-    List<String> managers = Arrays.asList(StorageClientUtils.nonNullStringArray((String[]) group.getProperty(UserConstants.PROP_GROUP_MANAGERS)));
-    for ( String memberName : members) {
-      Authorizable member = authorizableManager.findAuthorizable(memberName);
-      // filter this out if it is a manager member
-      if (!managers.contains(memberName)) {
-        String name = getName(member);
-        map.put(name, member);
-      }
-    }
-    return map;
-  }
-
-  /**
-   * KERN-1026 changed the results of this to be the authz's that are members of the
-   * managers group associated to a group rather than the group managers associated to the
-   * group.
-   * <p>
-   * <del>Get the managers for a group. These should be stored in the
-   * {@link UserConstants#PROP_GROUP_MANAGERS}.</del>
-   *
-   * @param request
-   * @param group
-   * @param writer
-   * @throws RepositoryException
-   * @throws JSONException
-   * @throws StorageClientException
-   * @throws AccessDeniedException
-   */
-  protected TreeMap<String, Authorizable> getManagers(SlingHttpServletRequest request,
-      Group group, Comparator<String> comparator) throws
-      JSONException, StorageClientException, AccessDeniedException {
-    TreeMap<String, Authorizable> map = new TreeMap<String, Authorizable>(comparator);
-
-    // KERN-949 will probably change this.
-    // note above was made before this was changed to retrieving members of the managers
-    // group and may not apply.
-    Session session = StorageClientUtils.adaptToSession(request.getResourceResolver().adaptTo(javax.jcr.Session.class));
-    AuthorizableManager authorizableManager = session.getAuthorizableManager();
-
-    String[] members = group.getMembers();
-    List<String> managers = Arrays.asList(StorageClientUtils.nonNullStringArray((String[]) group.getProperty(UserConstants.PROP_GROUP_MANAGERS)));
-    for  (String memberName : members) {
-      Authorizable mau = authorizableManager.findAuthorizable(memberName);
-      if (managers.contains(memberName)) {
-        String name = getName(mau);
-        map.put(name, mau);
-      }
-    }
-    return map;
-
-  }
-
-  /**
-   * Get's the name for an authorizable on what the list should be sorted.
-   * sakai:group-title for Groups, lastName for Users.
-   *
-   * @param member
-   *          The authorizable to get a name for.
-   * @return The name.
-   * @throws RepositoryException
-   */
-  private String getName(Authorizable member)  {
-    String name = member.getId();
-    if (member instanceof Group) {
-      name = (String) member.getProperty("sakai:group-title");
-    } else {
-      name = (String) member.getProperty("lastName");
-    }
-    // We need to add the ID to keep the keys unique. (ieb, ???? name depends on member, so this does not keep the name unique)
-    return name + member.getId();
-  }
-
 }
@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessControlManager;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *
+ */
+public class BulkAccessEvaluatorImplTest {
+  private static final String PATH = "a:actor/activity/1";
+
+  private Repository repository;
+  private Session session;
+  private BulkAccessEvaluatorImpl evaluator;
+
+  @Before
+  public void before() throws Exception {
+    repository = RepositoryHelper.getRepository(new String[] { "actor", "alice", "bob",
+        "mallory", "eve" }, new String[] { "g-readers" });
+    session = repository.loginAdministrative();
+    session.getContentManager().update(
+        new Content(PATH, ImmutableMap.of("sakai:activity-actor", (Object) "actor")));
+    addMembers("g-readers", "alice", "mallory");
+    // only readers may see it, and mallory may not even though she is one.
+    session.getAccessControlManager().setAcl(
+        Security.ZONE_CONTENT,
+        PATH,
+        new AclModification[] {
+            new AclModification(AclModification.denyKey(Group.EVERYONE),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.grantKey("g-readers"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.grantKey("bob"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE),
+            new AclModification(AclModification.denyKey("mallory"),
+                Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+    evaluator = new BulkAccessEvaluatorImpl();
+  }
+
+  @After
+  public void after() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testMatchesSingleChecks() throws Exception {
+    List<String> users = ImmutableList.of("eve", "mallory", "bob", "alice", "nobody");
+    Set<String> permitted = evaluator.filterPermitted(session, Security.ZONE_CONTENT, PATH,
+        users, Permissions.CAN_READ);
+    assertEquals(ImmutableList.of("bob", "alice"), new ArrayList<String>(permitted));
+    assertEquals(permitted, checkEach(users));
+  }
+
+  @Test
+  public void testMembershipChangeIsSeen() throws Exception {
+    List<String> users = ImmutableList.of("eve");
+    assertEquals(0, evaluator.filterPermitted(session, Security.ZONE_CONTENT, PATH, users,
+        Permissions.CAN_READ).size());
+
+    addMembers("g-readers", "eve");
+    Hashtable<String, Object> properties = new Hashtable<String, Object>();
+    properties.put(StoreListener.PATH_PROPERTY, "g-readers");
+    evaluator.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED",
+        properties));
+
+    assertEquals(users, new ArrayList<String>(evaluator.filterPermitted(session,
+        Security.ZONE_CONTENT, PATH, users, Permissions.CAN_READ)));
+  }
+
+  @Test
+  public void testNestedGroupMembersAreSeen() throws Exception {
+    session.getAuthorizableManager().createGroup("g-staff", "g-staff", null);
+    addMembers("g-staff", "eve");
+    addMembers("g-readers", "g-staff");
+
+    // eve only reaches g-readers through g-staff, she must not share actor's answer.
+    List<String> users = ImmutableList.of("actor", "eve");
+    Set<String> permitted = evaluator.filterPermitted(session, Security.ZONE_CONTENT, PATH,
+        users, Permissions.CAN_READ);
+    assertEquals(ImmutableList.of("eve"), new ArrayList<String>(permitted));
+    assertEquals(permitted, checkEach(users));
+  }
+
+  @Test
+  public void testManyContactsMatchSingleChecks() throws Exception {
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    List<String> contacts = new ArrayList<String>();
+    for (int i = 0; i < 200; i++) {
+      String id = "contact" + i;
+      authorizableManager.createUser(id, id, "test", new HashMap<String, Object>());
+      contacts.add(id);
+      if (i % 10 == 0) {
+        addMembers("g-readers", id);
+      }
+    }
+
+    Set<String> each = checkEach(contacts);
+    assertEquals(20, each.size());
+    // the first bulk call fills the cache, a router sees the same contacts again and again.
+    for (int i = 0; i < 2; i++) {
+      assertEquals(each, evaluator.filterPermitted(session, Security.ZONE_CONTENT, PATH,
+          contacts, Permissions.CAN_READ));
+    }
+  }
+
+  private Set<String> checkEach(List<String> users) throws Exception {
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    AccessControlManager accessControlManager = session.getAccessControlManager();
+    Set<String> permitted = new LinkedHashSet<String>();
+    for (String user : users) {
+      Authorizable authorizable = authorizableManager.findAuthorizable(user);
+      if (authorizable != null
+          && accessControlManager.can(authorizable, Security.ZONE_CONTENT, PATH,
+              Permissions.CAN_READ)) {
+        permitted.add(user);
+      }
+    }
+    return permitted;
+  }
+
+  private void addMembers(String groupId, String... members) throws Exception {
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    Group group = (Group) authorizableManager.findAuthorizable(groupId);
+    for (String member : members) {
+      group.addMember(member);
+    }
+    authorizableManager.updateAuthorizable(group);
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.counts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientException;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ */
+public class CountsRefreshJobTest {
+  private static final int USERS = 2000;
+
+  private Repository repository;
+  private SolrDocumentList results;
+  private RecordingCountProvider countProvider;
+
+  @Before
+  public void before() throws Exception {
+    repository = RepositoryHelper.getRepository(new String[] { "alice" }, new String[] {});
+    Session session = repository.loginAdministrative();
+    AuthorizableManager authorizableManager = session.getAuthorizableManager();
+    results = new SolrDocumentList();
+    for (int i = 0; i < USERS; i++) {
+      String id = "user" + i;
+      authorizableManager.createUser(id, id, "password", new HashMap<String, Object>());
+      SolrDocument doc = new SolrDocument();
+      doc.setField("id", id);
+      results.add(doc);
+    }
+    results.setNumFound(USERS);
+    session.logout();
+    countProvider = new RecordingCountProvider();
+  }
+
+  @Test
+  public void testUpdatesEachAuthorizableOnce() {
+    CountsRefreshJob job = new CountsRefreshJob(repository, null, countProvider);
+    SolrDocument missing = new SolrDocument();
+    missing.setField("id", "nobody");
+    results.add(missing);
+
+    assertEquals(USERS, job.update(results, 4, 0));
+    assertEquals(USERS, countProvider.updated.size());
+    for (AtomicInteger n : countProvider.updated.values()) {
+      assertEquals(1, n.get());
+    }
+  }
+
+  @Test
+  public void testRateLimit() {
+    CountsRefreshJob job = new CountsRefreshJob(repository, null, countProvider);
+    SolrDocumentList some = new SolrDocumentList();
+    some.addAll(results.subList(0, 21));
+    long start = System.currentTimeMillis();
+    assertEquals(21, job.update(some, 4, 100));
+    // 21 updates at 100 a second can not start in less than 200ms.
+    assertTrue(System.currentTimeMillis() - start >= 190);
+  }
+
+  @Test
+  public void testUpdatesQueuedIds() {
+    CountsRefreshJob job = new CountsRefreshJob(repository, null, countProvider);
+    assertEquals(2, job.update(Arrays.asList("user1", "user2", "nobody"), 1, 0));
+    assertEquals(2, countProvider.updated.size());
+    assertTrue(countProvider.updated.containsKey("user2"));
+  }
+
+  private static class RecordingCountProvider implements CountProvider {
+    private final ConcurrentHashMap<String, AtomicInteger> updated = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public void update(Authorizable authorizable, Session session)
+        throws AccessDeniedException, StorageClientException {
+      AtomicInteger n = new AtomicInteger();
+      AtomicInteger existing = updated.putIfAbsent(authorizable.getId(), n);
+      (existing == null ? n : existing).incrementAndGet();
+    }
+
+    public long getUpdateIntervalMinutes() {
+      return 30;
+    }
+  }
+}
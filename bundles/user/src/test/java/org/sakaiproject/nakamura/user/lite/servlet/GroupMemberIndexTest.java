@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.user.lite.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.service.event.Event;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StoreListener;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.AclModification.Operation;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Permissions;
+import org.sakaiproject.nakamura.api.lite.accesscontrol.Security;
+import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
+import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
+import org.sakaiproject.nakamura.api.lite.authorizable.Group;
+import org.sakaiproject.nakamura.api.user.UserConstants;
+import org.sakaiproject.nakamura.user.lite.resource.RepositoryHelper;
+import org.sakaiproject.nakamura.user.lite.servlet.GroupMemberIndex.Selection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class GroupMemberIndexTest {
+  private Repository repository;
+  private Session session;
+  private AuthorizableManager authorizableManager;
+  private GroupMemberIndex index;
+
+  @Before
+  public void before() throws Exception {
+    repository = RepositoryHelper.getRepository(new String[] { "alice", "bob", "carol",
+        "dave" }, new String[] { "g-course" });
+    session = repository.loginAdministrative();
+    authorizableManager = session.getAuthorizableManager();
+    setLastName("alice", "Brown");
+    setLastName("bob", "Zed");
+    setLastName("carol", "Adams");
+    setLastName("dave", "Miller");
+    Group group = (Group) authorizableManager.findAuthorizable("g-course");
+    for (String member : new String[] { "alice", "bob", "carol", "dave" }) {
+      group.addMember(member);
+    }
+    group.setProperty(UserConstants.PROP_GROUP_MANAGERS, new String[] { "alice" });
+    authorizableManager.updateAuthorizable(group);
+
+    index = new GroupMemberIndex();
+    index.repository = repository;
+    index.activate(new HashMap<String, Object>());
+  }
+
+  @After
+  public void after() throws Exception {
+    session.logout();
+  }
+
+  @Test
+  public void testPagesInNameOrder() throws Exception {
+    assertEquals(ImmutableList.of("carol", "dave", "bob"),
+        page(Selection.MEMBERS, false, 0, 25));
+    assertEquals(ImmutableList.of("dave"),
+        page(Selection.MEMBERS, false, 1, 1));
+    assertEquals(ImmutableList.of("bob", "dave", "carol"),
+        page(Selection.MEMBERS, true, 0, 25));
+    assertEquals(ImmutableList.of("alice"),
+        page(Selection.MANAGERS, false, 0, 25));
+    assertEquals(ImmutableList.of("carol", "alice", "dave", "bob"),
+        page(Selection.EVERYONE, false, 0, 25));
+  }
+
+  @Test
+  public void testOnlyThePageIsRead() throws Exception {
+    page(Selection.EVERYONE, false, 0, 25);
+    AuthorizableManager reader = spy(authorizableManager);
+    assertEquals(ImmutableList.of("bob"),
+        ids(index.getPage(group(), Selection.EVERYONE, false, 3, 1, reader)));
+    verify(reader, times(1)).findAuthorizable(anyString());
+  }
+
+  @Test
+  public void testMembershipChangesArePickedUp() throws Exception {
+    page(Selection.MEMBERS, false, 0, 25);
+    Group group = group();
+    group.removeMember("dave");
+    group.setProperty(UserConstants.PROP_GROUP_MANAGERS, new String[] { "alice", "bob" });
+    authorizableManager.updateAuthorizable(group);
+
+    assertEquals(ImmutableList.of("carol"),
+        page(Selection.MEMBERS, false, 0, 25));
+    assertEquals(ImmutableList.of("alice", "bob"),
+        page(Selection.MANAGERS, false, 0, 25));
+  }
+
+  @Test
+  public void testRenamedMemberIsResorted() throws Exception {
+    page(Selection.MEMBERS, false, 0, 25);
+    setLastName("carol", "Zzz");
+    Hashtable<String, Object> props = new Hashtable<String, Object>();
+    props.put(StoreListener.PATH_PROPERTY, "carol");
+    index.handleEvent(new Event("org/sakaiproject/nakamura/lite/authorizables/UPDATED", props));
+
+    assertEquals(ImmutableList.of("dave", "bob", "carol"),
+        page(Selection.MEMBERS, false, 0, 25));
+  }
+
+  @Test
+  public void testHiddenMembersAreLeftOutOfThePage() throws Exception {
+    session.getAccessControlManager().setAcl(
+        Security.ZONE_AUTHORIZABLES,
+        "carol",
+        new AclModification[] { new AclModification(AclModification.denyKey("bob"),
+            Permissions.CAN_READ.getPermission(), Operation.OP_REPLACE) });
+    Session bob = repository.login("bob", "test");
+    try {
+      AuthorizableManager bobManager = bob.getAuthorizableManager();
+      assertEquals(ImmutableList.of("dave"),
+          ids(index.getPage(group(), Selection.MEMBERS, false, 0, 2, bobManager)));
+      assertEquals(ImmutableList.of("bob"),
+          ids(index.getPage(group(), Selection.MEMBERS, false, 2, 2, bobManager)));
+      assertEquals(ImmutableList.of("carol", "dave"),
+          ids(index.getPage(group(), Selection.MEMBERS, false, 0, 2, authorizableManager)));
+    } finally {
+      bob.logout();
+    }
+  }
+
+  @Test
+  public void testIndexesAreBoundedByMembers() throws Exception {
+    Map<String, Object> props = new HashMap<String, Object>();
+    props.put(GroupMemberIndex.INDEX_MEMBERS, 5);
+    index.activate(props);
+    page(Selection.EVERYONE, false, 0, 25);
+    assertEquals(4, index.getIndexedMembers());
+
+    authorizableManager.createGroup("g-other", "g-other", null);
+    Group other = (Group) authorizableManager.findAuthorizable("g-other");
+    other.addMember("alice");
+    other.addMember("bob");
+    authorizableManager.updateAuthorizable(other);
+    index.getPage((Group) authorizableManager.findAuthorizable("g-other"), Selection.MEMBERS,
+        false, 0, 25, authorizableManager);
+
+    // both groups hold 6 members, so the least recently used one goes.
+    assertEquals(2, index.getIndexedMembers());
+  }
+
+  private List<String> page(Selection selection, boolean descending, long offset, long items)
+      throws Exception {
+    return ids(index.getPage(group(), selection, descending, offset, items,
+        authorizableManager));
+  }
+
+  private List<String> ids(List<Authorizable> authorizables) {
+    List<String> ids = new ArrayList<String>();
+    for (Authorizable au : authorizables) {
+      ids.add(au.getId());
+    }
+    return ids;
+  }
+
+  private Group group() throws Exception {
+    return (Group) authorizableManager.findAuthorizable("g-course");
+  }
+
+  private void setLastName(String id, String lastName) throws Exception {
+    Authorizable au = authorizableManager.findAuthorizable(id);
+    au.setProperty("lastName", lastName);
+    authorizableManager.updateAuthorizable(au);
+  }
+}
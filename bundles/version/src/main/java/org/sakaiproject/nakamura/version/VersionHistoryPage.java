@@ -0,0 +1,62 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.version;
+
+import java.util.List;
+
+/**
+ * One page of the version history of a sparse content item, newest version first.
+ */
+public class VersionHistoryPage {
+
+  private final int total;
+
+  private final int offset;
+
+  private final List<String> versionIds;
+
+  public VersionHistoryPage(int total, int offset, List<String> versionIds) {
+    this.total = total;
+    this.offset = offset;
+    this.versionIds = versionIds;
+  }
+
+  /**
+   * @return the number of versions in the whole history.
+   */
+  public int getTotal() {
+    return total;
+  }
+
+  /**
+   * @return the ids of the versions in this page, newest first.
+   */
+  public List<String> getVersionIds() {
+    return versionIds;
+  }
+
+  /**
+   * @param i
+   *          the index of a version in this page.
+   * @return the version number, as used in the 1.n version names, of that version.
+   */
+  public int getVersionNumber(int i) {
+    return total - offset - i - 1;
+  }
+}
@@ -22,6 +22,8 @@ import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 
+import java.util.List;
+
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.version.Version;
@@ -34,4 +36,48 @@ public interface VersionService {
 
   void saveVersion(String path, ContentManager contentManager)
       throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Get one page of the version history of a sparse content item, newest first.
+   *
+   * @param path
+   *          the path of the content item.
+   * @param offset
+   *          the number of versions to skip.
+   * @param nitems
+   *          the maximum number of versions in the page.
+   * @param contentManager
+   * @return the page of version ids along with the size of the whole history.
+   */
+  VersionHistoryPage getVersionHistory(String path, int offset, int nitems,
+      ContentManager contentManager) throws StorageClientException,
+      AccessDeniedException;
+
+  /**
+   * Resolve a version number, as used in the 1.n version names, to a version id.
+   *
+   * @param path
+   *          the path of the content item.
+   * @param versionNumber
+   *          the version number, 0 being the oldest version.
+   * @param contentManager
+   * @return the version id or null if there is no such version.
+   */
+  String getVersionId(String path, int versionNumber, ContentManager contentManager)
+      throws StorageClientException, AccessDeniedException;
+
+  /**
+   * Get summaries of a set of versions of a sparse content item. Versions never change
+   * once saved, so summaries are cached and only versions not seen before are read.
+   *
+   * @param path
+   *          the path of the content item.
+   * @param versionIds
+   *          the ids of the versions.
+   * @param contentManager
+   * @return a summary for each version id, in the same order.
+   */
+  List<VersionSummary> getVersionSummaries(String path, List<String> versionIds,
+      ContentManager contentManager) throws StorageClientException,
+      AccessDeniedException;
 }
@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package org.sakaiproject.nakamura.version;
+
+import org.sakaiproject.nakamura.api.lite.content.Content;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact, immutable record of a saved version of a sparse content item. It holds only
+ * the properties needed to list the version, so a version history can be shown without
+ * loading the full properties of every version.
+ */
+public class VersionSummary implements Serializable {
+
+  private static final long serialVersionUID = -2396542236540532839L;
+
+  /**
+   * The properties of a version that are kept in the summary.
+   */
+  public static final String[] SUMMARY_FIELDS = new String[] {
+      Content.VERSION_SAVEDBY_FIELD, Content.CREATED_FIELD, Content.LASTMODIFIED_FIELD,
+      Content.LASTMODIFIED_BY_FIELD, Content.LENGTH_FIELD, Content.MIMETYPE_FIELD };
+
+  private final String versionId;
+
+  private final Map<String, Object> properties;
+
+  /**
+   * @param versionId
+   *          the id of the version.
+   * @param version
+   *          the version content, only the {@link #SUMMARY_FIELDS} are kept.
+   */
+  public VersionSummary(String versionId, Content version) {
+    this.versionId = versionId;
+    Map<String, Object> summary = new HashMap<String, Object>();
+    if (version != null) {
+      for (String field : SUMMARY_FIELDS) {
+        if (version.hasProperty(field)) {
+          summary.put(field, version.getProperty(field));
+        }
+      }
+    }
+    this.properties = Collections.unmodifiableMap(summary);
+  }
+
+  public String getVersionId() {
+    return versionId;
+  }
+
+  /**
+   * @return the user that saved the version, or null if not known.
+   */
+  public String getSavedBy() {
+    return (String) properties.get(Content.VERSION_SAVEDBY_FIELD);
+  }
+
+  /**
+   * @return the summary properties of the version.
+   */
+  public Map<String, Object> getProperties() {
+    return properties;
+  }
+}
@@ -20,12 +20,21 @@ package org.sakaiproject.nakamura.version.impl;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.jackrabbit.JcrConstants;
 import org.sakaiproject.nakamura.api.lite.StorageClientException;
 import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.Cache;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.version.VersionHistoryPage;
 import org.sakaiproject.nakamura.version.VersionService;
+import org.sakaiproject.nakamura.version.VersionSummary;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -44,6 +53,12 @@ public class VersionServiceImpl implements VersionService {
   @Property(value = "The Sakai Foundation")
   static final String SERVICE_VENDOR = "service.vendor";
 
+  private static final String VERSION_SUMMARY_CACHE = VersionServiceImpl.class.getName()
+      + "-summaries";
+
+  @Reference
+  protected transient CacheManagerService cacheManagerService;
+
   public Version saveNode(Node node, String savingUsername) throws RepositoryException {
     if (node.canAddMixin("sakai:propertiesmix")) {
       node.addMixin("sakai:propertiesmix");
@@ -71,4 +86,49 @@ public class VersionServiceImpl implements VersionService {
     contentManager.saveVersion(path);
   }
 
+  public VersionHistoryPage getVersionHistory(String path, int offset, int nitems,
+      ContentManager contentManager) throws StorageClientException,
+      AccessDeniedException {
+    // the history is a single list of ids, only the versions in the page are read.
+    List<String> versionIds = contentManager.getVersionHistory(path);
+    int total = versionIds.size();
+    int start = Math.max(0, Math.min(offset, total));
+    int end = Math.max(start, Math.min(start + nitems, total));
+    return new VersionHistoryPage(total, start, new ArrayList<String>(versionIds.subList(
+        start, end)));
+  }
+
+  public String getVersionId(String path, int versionNumber,
+      ContentManager contentManager) throws StorageClientException,
+      AccessDeniedException {
+    List<String> versionIds = contentManager.getVersionHistory(path);
+    int i = versionIds.size() - 1 - versionNumber;
+    if (i < 0 || i >= versionIds.size()) {
+      return null;
+    }
+    return versionIds.get(i);
+  }
+
+  public List<VersionSummary> getVersionSummaries(String path, List<String> versionIds,
+      ContentManager contentManager) throws StorageClientException,
+      AccessDeniedException {
+    Cache<VersionSummary> cache = getSummaryCache();
+    List<VersionSummary> summaries = new ArrayList<VersionSummary>(versionIds.size());
+    for (String versionId : versionIds) {
+      // a saved version never changes, so there is nothing to invalidate.
+      String key = path + "@" + versionId;
+      VersionSummary summary = cache.get(key);
+      if (summary == null) {
+        summary = new VersionSummary(versionId, contentManager.getVersion(path,
+            versionId));
+        cache.put(key, summary);
+      }
+      summaries.add(summary);
+    }
+    return summaries;
+  }
+
+  private Cache<VersionSummary> getSummaryCache() {
+    return cacheManagerService.getCache(VERSION_SUMMARY_CACHE, CacheScope.INSTANCE);
+  }
 }
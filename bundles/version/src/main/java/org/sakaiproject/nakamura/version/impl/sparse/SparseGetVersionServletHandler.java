@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -35,13 +36,13 @@ import org.sakaiproject.nakamura.api.lite.content.ContentManager;
 import org.sakaiproject.nakamura.api.resource.AbstractSafeMethodsServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.SafeServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
+import org.sakaiproject.nakamura.version.VersionService;
 import org.sakaiproject.nakamura.version.impl.jcr.VersionRequestPathInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.List;
 import java.util.Map;
 
 import javax.servlet.ServletException;
@@ -59,6 +60,9 @@ public class SparseGetVersionServletHandler extends AbstractSafeMethodsServletRe
 */
   private static final long serialVersionUID = -4838347347796204151L;
 
+  @Reference
+  protected transient VersionService versionService;
+
   /**
    * {@inheritDoc}
    * 
@@ -84,15 +88,14 @@ public class SparseGetVersionServletHandler extends AbstractSafeMethodsServletRe
     try {
       if ( requestVersionName.startsWith("1.")) {
         int versionNumber = Integer.parseInt(requestVersionName.substring(2));
-        List<String> versionIds = contentManager.getVersionHistory(content.getPath());
-        int i = versionIds.size()-1-versionNumber;
-        if ( i < 0 || i >= versionIds.size()) {
+        requestVersionName = versionService.getVersionId(content.getPath(), versionNumber,
+            contentManager);
+        if ( requestVersionName == null ) {
           response
           .sendError(HttpServletResponse.SC_BAD_REQUEST,
               "No version specified, url should of the form nodepath.version.,versionnumber,.json");
           return;          
         }
-        requestVersionName = versionIds.get(versionIds.size()-1-versionNumber);
       }
       versionContentTemp = contentManager.getVersion(content.getPath(), requestVersionName);
     } catch (StorageClientException e1) {
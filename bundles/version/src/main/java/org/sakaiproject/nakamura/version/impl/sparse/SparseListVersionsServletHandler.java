@@ -19,6 +19,7 @@ package org.sakaiproject.nakamura.version.impl.sparse;
 
 import org.apache.felix.scr.annotations.Component;
 import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
 import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
@@ -35,18 +36,25 @@ import org.sakaiproject.nakamura.api.resource.AbstractSafeMethodsServletResource
 import org.sakaiproject.nakamura.api.resource.SafeServletResourceHandler;
 import org.sakaiproject.nakamura.api.resource.lite.SparseContentResource;
 import org.sakaiproject.nakamura.util.ExtendedJSONWriter;
+import org.sakaiproject.nakamura.version.VersionHistoryPage;
+import org.sakaiproject.nakamura.version.VersionService;
+import org.sakaiproject.nakamura.version.VersionSummary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Gets a version
+ * Lists a page of the versions of a content item. With the summary selector only the
+ * compact {@link VersionSummary} of each version is written, which is cached, rather than
+ * the full properties of every version in the page.
  */
 
 @Component(metatype=true, immediate=true)
@@ -83,6 +91,9 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
   private static final long serialVersionUID = 764192946800357626L;
   private static final Logger LOGGER = LoggerFactory.getLogger(SparseListVersionsServletHandler.class);
 
+  @Reference
+  protected transient VersionService versionService;
+
   public void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response)
       throws ServletException, IOException {
     Resource resource = request.getResource();
@@ -101,21 +112,23 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       int nitems = intRequestParameter(request, PARAMS_ITEMS_PER_PAGE, 25);
       int offset = intRequestParameter(request, PARAMS_PAGE, 0) * nitems;
 
-      List<String> versionList = contentManager.getVersionHistory(path);
-      int total = versionList.size();
-      int start = Math.min(offset, total);
-      int end = Math.min(start+nitems, total);
-      nitems = end - start;
+      VersionHistoryPage page = versionService.getVersionHistory(path, offset, nitems,
+          contentManager);
+      List<String> versionIds = page.getVersionIds();
+      int total = page.getTotal();
+      nitems = versionIds.size();
 
       response.setContentType("application/json");
       response.setCharacterEncoding("UTF-8");
 
       boolean tidy = false;
+      boolean summary = false;
       String[] selectors = request.getRequestPathInfo().getSelectors();
       for (String selector : selectors) {
         if ("tidy".equals(selector)) {
           tidy = true;
-          break;
+        } else if ("summary".equals(selector)) {
+          summary = true;
         }
       }
 
@@ -132,16 +145,41 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
       write.key(JSON_VERSIONS);
       write.object();
       
-      for (int j = start; j < end ; j++) {
-        write.key("1."+(versionList.size()-j-1));
-        write.object();
-        write.key("versionId");
-        String versionId = versionList.get(j);
-        write.value(versionId);
-        Content vContent = contentManager.getVersion(path, versionId);
-        writeEditorDetails(vContent, write, authorizableManager);
-        ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
-        write.endObject();
+      // many versions are saved by the same few editors, look each up once.
+      Map<String, Map<String, Object>> editors = new HashMap<String, Map<String, Object>>();
+      if (summary) {
+        List<VersionSummary> summaries = versionService.getVersionSummaries(path,
+            versionIds, contentManager);
+        for (int j = 0; j < nitems; j++) {
+          VersionSummary versionSummary = summaries.get(j);
+          write.key("1." + page.getVersionNumber(j));
+          write.object();
+          write.key("versionId");
+          write.value(versionSummary.getVersionId());
+          writeEditorDetails(versionSummary.getSavedBy(), write, authorizableManager,
+              editors);
+          for (Map.Entry<String, Object> property : versionSummary.getProperties()
+              .entrySet()) {
+            if (!Content.VERSION_SAVEDBY_FIELD.equals(property.getKey())) {
+              write.key(property.getKey());
+              write.value(property.getValue());
+            }
+          }
+          write.endObject();
+        }
+      } else {
+        for (int j = 0; j < nitems; j++) {
+          write.key("1." + page.getVersionNumber(j));
+          write.object();
+          write.key("versionId");
+          String versionId = versionIds.get(j);
+          write.value(versionId);
+          Content vContent = contentManager.getVersion(path, versionId);
+          writeEditorDetails((String) vContent.getProperty(Content.VERSION_SAVEDBY_FIELD),
+              write, authorizableManager, editors);
+          ExtendedJSONWriter.writeNodeContentsToWriter(write, vContent);
+          write.endObject();
+        }
       }
       write.endObject();
       write.endObject();
@@ -163,18 +201,18 @@ public class SparseListVersionsServletHandler extends AbstractSafeMethodsServlet
     }
   }
 
-  private void writeEditorDetails(Content content, ExtendedJSONWriter write, AuthorizableManager authorizableManager)
+  private void writeEditorDetails(String user, ExtendedJSONWriter write,
+      AuthorizableManager authorizableManager, Map<String, Map<String, Object>> editors)
       throws JSONException, AccessDeniedException, StorageClientException {
-    String user = null;
-    if (content.hasProperty(Content.VERSION_SAVEDBY_FIELD)) {
-      user = (String) content.getProperty(Content.VERSION_SAVEDBY_FIELD);
-    }
-    
-
     if (user != null) {
-      org.sakaiproject.nakamura.api.lite.authorizable.Authorizable authorizable = authorizableManager.findAuthorizable(user);
+      Map<String, Object> editor = editors.get(user);
+      if (editor == null) {
+        org.sakaiproject.nakamura.api.lite.authorizable.Authorizable authorizable = authorizableManager.findAuthorizable(user);
+        editor = authorizable.getSafeProperties();
+        editors.put(user, editor);
+      }
       write.key(Content.VERSION_SAVEDBY_FIELD);
-      write.valueMap(authorizable.getSafeProperties());
+      write.valueMap(editor);
     }
   }
 
@@ -0,0 +1,130 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.version.impl;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.sakaiproject.nakamura.api.memory.CacheManagerService;
+import org.sakaiproject.nakamura.api.memory.CacheScope;
+import org.sakaiproject.nakamura.memory.MapCacheImpl;
+import org.sakaiproject.nakamura.version.VersionHistoryPage;
+import org.sakaiproject.nakamura.version.VersionSummary;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class VersionServiceImplTest {
+
+  private static final String PATH = "/p/document";
+
+  private VersionServiceImpl versionService;
+
+  private List<String> history;
+
+  @Before
+  public void setUp() {
+    versionService = new VersionServiceImpl();
+    CacheManagerService cacheManagerService = createMock(CacheManagerService.class);
+    expect(cacheManagerService.getCache(VersionServiceImpl.class.getName() + "-summaries",
+        CacheScope.INSTANCE)).andReturn(new MapCacheImpl<Object>()).anyTimes();
+    replay(cacheManagerService);
+    versionService.cacheManagerService = cacheManagerService;
+
+    // newest version first, as the content manager returns it.
+    history = new ArrayList<String>();
+    for (int i = 4999; i >= 0; i--) {
+      history.add("version" + i);
+    }
+  }
+
+  @Test
+  public void testGetVersionHistoryPage() throws Exception {
+    ContentManager contentManager = createMock(ContentManager.class);
+    expect(contentManager.getVersionHistory(PATH)).andReturn(history);
+    replay(contentManager);
+
+    VersionHistoryPage page = versionService.getVersionHistory(PATH, 50, 25,
+        contentManager);
+    assertEquals(5000, page.getTotal());
+    assertEquals(25, page.getVersionIds().size());
+    assertEquals("version4949", page.getVersionIds().get(0));
+    assertEquals(4949, page.getVersionNumber(0));
+    verify(contentManager);
+  }
+
+  @Test
+  public void testGetVersionHistoryPastTheEnd() throws Exception {
+    ContentManager contentManager = createMock(ContentManager.class);
+    expect(contentManager.getVersionHistory(PATH)).andReturn(history);
+    replay(contentManager);
+
+    VersionHistoryPage page = versionService.getVersionHistory(PATH, 6000, 25,
+        contentManager);
+    assertEquals(5000, page.getTotal());
+    assertEquals(0, page.getVersionIds().size());
+  }
+
+  @Test
+  public void testGetVersionId() throws Exception {
+    ContentManager contentManager = createMock(ContentManager.class);
+    expect(contentManager.getVersionHistory(PATH)).andReturn(history).times(2);
+    replay(contentManager);
+
+    assertEquals("version12", versionService.getVersionId(PATH, 12, contentManager));
+    assertNull(versionService.getVersionId(PATH, 5000, contentManager));
+  }
+
+  @Test
+  public void testSummariesAreCached() throws Exception {
+    List<String> versionIds = history.subList(0, 25);
+    ContentManager contentManager = createMock(ContentManager.class);
+    for (String versionId : versionIds) {
+      Map<String, Object> properties = new HashMap<String, Object>();
+      properties.put(Content.VERSION_SAVEDBY_FIELD, "ieb");
+      properties.put("sakai:body", "a large body that is not part of the summary");
+      // only expected once, the second listing is served from the cache.
+      expect(contentManager.getVersion(PATH, versionId)).andReturn(
+          new Content(PATH, properties));
+    }
+    replay(contentManager);
+
+    versionService.getVersionSummaries(PATH, versionIds, contentManager);
+    List<VersionSummary> summaries = versionService.getVersionSummaries(PATH, versionIds,
+        contentManager);
+
+    verify(contentManager);
+    assertEquals(25, summaries.size());
+    assertEquals("version4999", summaries.get(0).getVersionId());
+    assertEquals("ieb", summaries.get(0).getSavedBy());
+    assertNull(summaries.get(0).getProperties().get("sakai:body"));
+  }
+}
@@ -29,6 +29,8 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.servlets.SlingAllMethodsServlet;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.sakaiproject.nakamura.api.cluster.ClusterTrackingService;
 import org.sakaiproject.nakamura.api.doc.BindingType;
@@ -40,6 +42,7 @@ import org.sakaiproject.nakamura.api.doc.ServiceResponse;
 import org.sakaiproject.nakamura.api.doc.ServiceSelector;
 import org.sakaiproject.nakamura.api.files.FileUtils;
 import org.sakaiproject.nakamura.api.files.FilesConstants;
+import org.sakaiproject.nakamura.importer.SiteArchiveImportJob.Status;
 import org.sakaiproject.nakamura.util.JcrUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,12 +51,26 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
@@ -62,6 +79,7 @@ import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
 import javax.jcr.ValueFactory;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -70,19 +88,28 @@ import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
-@SlingServlet(methods = { "POST" }, resourceTypes = { "sling/servlet/default" }, selectors = { "sitearchive" })
+@SlingServlet(methods = { "GET", "POST" }, resourceTypes = { "sling/servlet/default" }, selectors = { "sitearchive" })
 @Properties(value = {
     @Property(name = "service.description", value = "Imports one or more SiteArchive ZIP files from Sakai 2"),
     @Property(name = "service.vendor", value = "The Sakai Foundation") })
-@ServiceDocumentation(name = "ImportSiteArchiveServlet", shortDescription = "Imports one or more SiteArchive ZIP files from Sakai 2", description = { "Imports one or more SiteArchive ZIP files from Sakai 2" }, bindings = @ServiceBinding(type = BindingType.TYPE, selectors = @ServiceSelector(name = "sitearchive", description = "Upload one or more ZIP files."), bindings = "sling/servlet/default"), methods = { @ServiceMethod(name = "POST", description = { "Upload one or more SiteArchive ZIP files from Sakai 2" }, parameters = {
+@ServiceDocumentation(name = "ImportSiteArchiveServlet", shortDescription = "Imports one or more SiteArchive ZIP files from Sakai 2", description = { "Imports one or more SiteArchive ZIP files from Sakai 2. Each file is imported in the background as a job whose progress can be followed with a GET." }, bindings = @ServiceBinding(type = BindingType.TYPE, selectors = @ServiceSelector(name = "sitearchive", description = "Upload one or more ZIP files."), bindings = "sling/servlet/default"), methods = {
+    @ServiceMethod(name = "POST", description = { "Upload one or more SiteArchive ZIP files from Sakai 2, or resume a failed import." }, parameters = {
     @ServiceParameter(name = "site", description = "Required: A site must be specified, and it must be an absolute path pointing to a site."),
-    @ServiceParameter(name = "Filedata", description = "Required: the parameter that holds the actual data for the file that should be uploaded. This can be multivalued.") }, response = {
-    @ServiceResponse(code = 200, description = "All files were processed without error."),
+    @ServiceParameter(name = "Filedata", description = "Required: the parameter that holds the actual data for the file that should be uploaded. This can be multivalued."),
+    @ServiceParameter(name = "job", description = "Optional: the id of a failed import to resume, instead of uploading files.") }, response = {
+    @ServiceResponse(code = 202, description = "The files were accepted and queued for import. The body lists the import jobs."),
     @ServiceResponse(code = 400, description = "site parameter was not provided"),
     @ServiceResponse(code = 400, description = "site parameter was not absolute"),
     @ServiceResponse(code = 400, description = "Filedata parameter was not provided."),
+    @ServiceResponse(code = 403, description = "Anonymous users can not import."),
+    @ServiceResponse(code = 404, description = "The job to resume does not exist."),
+    @ServiceResponse(code = 409, description = "The job to resume is still running or has completed."),
     @ServiceResponse(code = 415, description = "The uploaded file was not a valid ZIP file."),
-    @ServiceResponse(code = 500, description = "Unexpected error.") }) })
+    @ServiceResponse(code = 500, description = "Unexpected error.") }),
+    @ServiceMethod(name = "GET", description = { "Get the progress of the current user's imports." }, parameters = {
+    @ServiceParameter(name = "job", description = "Optional: the id of a single import job.") }, response = {
+    @ServiceResponse(code = 200, description = "The import jobs, with the number of resources found, imported, skipped and failed."),
+    @ServiceResponse(code = 404, description = "The job does not exist.") }) })
 public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
   private static final long serialVersionUID = 1678771348231033621L;
   public static final Logger LOG = LoggerFactory
@@ -94,11 +121,30 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
   @Reference
   transient ClusterTrackingService clusterTrackingService;
 
+  /** Number of archives imported at the same time. */
+  static final int CONCURRENT_JOBS = 2;
+
+  /** Number of threads writing the resources of one archive. */
+  static final int WORKER_THREADS = 4;
+
+  /** Resources written and saved together by a worker. */
+  static final int BATCH_SIZE = 25;
+
+  /**
+   * Batches waiting for a worker. When this is full the thread reading the manifest
+   * writes the next batch itself, so memory is bounded whatever the size of the archive.
+   */
+  static final int WORKER_QUEUE = 4;
+
+  /** How long finished jobs are kept for status and resume. */
+  static final long JOB_RETENTION = 24L * 60L * 60L * 1000L;
+
   private transient XMLInputFactory xmlInputFactory = null;
   private transient Base64 base64 = new Base64();
   private final String[] supportedVersions = { "Sakai 1.0" };
-  private transient SimpleDateFormat sdf = new SimpleDateFormat(
-      "yyyyMMddHHmmssSSS");
+
+  private transient ExecutorService jobExecutor;
+  private final transient Map<String, SiteArchiveImportJob> jobs = new ConcurrentHashMap<String, SiteArchiveImportJob>();
 
   /**
    * {@inheritDoc}
@@ -112,7 +158,57 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
     xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
     xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
     xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
-    sdf.setTimeZone(TimeZone.getTimeZone("GMT+0"));
+    jobExecutor = Executors.newFixedThreadPool(CONCURRENT_JOBS, new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "SiteArchiveImport-" + threadNumber.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see javax.servlet.GenericServlet#destroy()
+   */
+  @Override
+  public void destroy() {
+    if (jobExecutor != null) {
+      jobExecutor.shutdownNow();
+    }
+    super.destroy();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @see org.apache.sling.api.servlets.SlingSafeMethodsServlet#doGet(org.apache.sling.api.SlingHttpServletRequest,
+   *      org.apache.sling.api.SlingHttpServletResponse)
+   */
+  @Override
+  protected void doGet(SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws ServletException, IOException {
+    final String userId = request.getRemoteUser();
+    final String jobId = request.getParameter("job");
+    List<SiteArchiveImportJob> found = new ArrayList<SiteArchiveImportJob>();
+    if (jobId != null && jobId.length() > 0) {
+      SiteArchiveImportJob job = getJob(jobId, userId);
+      if (job == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "No such import job.");
+        return;
+      }
+      found.add(job);
+    } else {
+      for (SiteArchiveImportJob job : jobs.values()) {
+        if (job.getUserId().equals(userId)) {
+          found.add(job);
+        }
+      }
+    }
+    writeJobs(found, response);
   }
 
   /**
@@ -124,6 +220,13 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
   @Override
   protected void doPost(SlingHttpServletRequest request,
       SlingHttpServletResponse response) throws ServletException {
+    pruneJobs();
+    final String jobId = request.getParameter("job");
+    if (jobId != null && jobId.length() > 0) {
+      resumeJob(jobId, request, response);
+      return;
+    }
+
     final RequestParameter siteParam = request.getRequestParameter("site");
     if (siteParam == null || !siteParam.getString().startsWith("/")) {
       final String errorMessage = "A site must be specified, and it must be an absolute path pointing to a site.";
@@ -140,13 +243,18 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
           new IllegalArgumentException(errorMessage), response);
       return;
     }
-    final Session session = request.getResourceResolver()
-        .adaptTo(Session.class);
+    final String userId = request.getRemoteUser();
+    if (userId == null) {
+      sendError(HttpServletResponse.SC_FORBIDDEN, "Anonymous users can not import.",
+          null, response);
+      return;
+    }
+    List<SiteArchiveImportJob> queued = new ArrayList<SiteArchiveImportJob>();
     for (RequestParameter p : files) {
       LOG.info("Processing file: " + p.getFileName() + ": "
           + p.getContentType() + ": " + p.getSize() + " bytes");
       try {
-        // create temporary local file of zip contents
+        // create temporary local file of zip contents, kept until the import completes.
         final File tempZip = File.createTempFile("siteArchive", ".zip");
         tempZip.deleteOnExit(); // just in case
         final InputStream in = p.getInputStream();
@@ -158,53 +266,171 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
         }
         in.close();
         out.close();
-        // process the zip file
-        ZipFile zip = null;
+        // check it's a zip file before accepting it
         try {
-          zip = new ZipFile(tempZip);
+          new ZipFile(tempZip).close();
         } catch (ZipException e) {
+          deleteTempFile(tempZip);
           sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
               "Invalid zip file: " + p.getFileName() + ": "
                   + p.getContentType() + ": " + p.getSize(), null, response);
+          return;
         }
-        if (zip != null) {
-          for (ZipEntry entry : Collections.list(zip.entries())) {
-            if (entry.getName().startsWith("__MACOSX")
-                || entry.getName().endsWith(".DS_Store")) {
-              ; // skip entry
-            } else {
-              if ("content.xml".equals(entry.getName())) {
-                processContentXml(zip.getInputStream(entry), sitePath, session,
-                    zip);
-              }
-            }
-          }
-          zip.close();
-        }
-        // delete temporary file
-        if (tempZip.delete()) {
-          LOG.debug("{}: temporary zip file deleted.", tempZip
-              .getAbsolutePath());
-        } else {
-          LOG.warn("Could not delete temporary file: {}", tempZip
-              .getAbsolutePath());
-        }
+        SiteArchiveImportJob job = new SiteArchiveImportJob(uniqueId(),
+            userId, sitePath, p.getFileName(), tempZip);
+        jobs.put(job.getId(), job);
+        submit(job);
+        queued.add(job);
       } catch (IOException e) {
         sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e
             .getLocalizedMessage(), e, response);
-      } catch (XMLStreamException e) {
-        sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, e
-            .getLocalizedMessage(), e, response);
+        return;
+      }
+    }
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    try {
+      writeJobs(queued, response);
+    } catch (IOException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  private void resumeJob(String jobId, SlingHttpServletRequest request,
+      SlingHttpServletResponse response) throws ServletException {
+    SiteArchiveImportJob job = getJob(jobId, request.getRemoteUser());
+    if (job == null) {
+      sendError(HttpServletResponse.SC_NOT_FOUND, "No such import job.", null, response);
+      return;
+    }
+    synchronized (job) {
+      if (!job.isResumable()) {
+        sendError(HttpServletResponse.SC_CONFLICT, "Import job is " + job.getStatus()
+            + " and can not be resumed.", null, response);
+        return;
+      }
+      job.queue();
+    }
+    submit(job);
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    try {
+      writeJobs(Collections.singletonList(job), response);
+    } catch (IOException e) {
+      throw new ServletException(e.getMessage(), e);
+    }
+  }
+
+  private SiteArchiveImportJob getJob(String jobId, String userId) {
+    SiteArchiveImportJob job = jobs.get(jobId);
+    if (job == null || userId == null || !job.getUserId().equals(userId)) {
+      // don't let anyone see someone else's imports
+      return null;
+    }
+    return job;
+  }
+
+  private void writeJobs(List<SiteArchiveImportJob> list,
+      SlingHttpServletResponse response) throws IOException {
+    response.setContentType("application/json");
+    response.setCharacterEncoding("UTF-8");
+    try {
+      JSONWriter writer = new JSONWriter(response.getWriter());
+      writer.object();
+      writer.key("jobs").array();
+      for (SiteArchiveImportJob job : list) {
+        job.write(writer);
+      }
+      writer.endArray();
+      writer.endObject();
+    } catch (JSONException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * Forget jobs that finished more than {@link #JOB_RETENTION} ago, along with any archive
+   * kept to resume them.
+   */
+  private void pruneJobs() {
+    long expired = System.currentTimeMillis() - JOB_RETENTION;
+    for (Iterator<SiteArchiveImportJob> i = jobs.values().iterator(); i.hasNext();) {
+      SiteArchiveImportJob job = i.next();
+      Status status = job.getStatus();
+      if ((status == Status.COMPLETE || status == Status.FAILED)
+          && job.getFinished() < expired) {
+        i.remove();
+        deleteTempFile(job.getZipFile());
+      }
+    }
+  }
+
+  private void submit(final SiteArchiveImportJob job) {
+    jobExecutor.execute(new Runnable() {
+      public void run() {
+        runJob(job);
+      }
+    });
+  }
+
+  /**
+   * Import an archive. The manifest is read on this thread and the resources it lists
+   * are handed in batches to a small pool of workers, each writing its batch with one
+   * save.
+   */
+  void runJob(final SiteArchiveImportJob job) {
+    job.start();
+    LOG.info("Starting import job {} of {} into {}", new Object[] { job.getId(),
+        job.getZipFile(), job.getSitePath() });
+    ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS,
+        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(WORKER_QUEUE),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    ZipFile zip = null;
+    try {
+      zip = new ZipFile(job.getZipFile());
+      ZipEntry contentXml = zip.getEntry("content.xml");
+      if (contentXml == null) {
+        job.abort("Archive has no content.xml");
+        return;
+      }
+      processContentXml(zip.getInputStream(contentXml), job, zip, workers);
+      workers.shutdown();
+      while (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+        LOG.debug("Waiting for import job {} to write its last resources", job.getId());
+      }
+      job.finish();
+    } catch (InterruptedException e) {
+      job.abort("Import interrupted");
+    } catch (Exception e) {
+      LOG.error("Import job " + job.getId() + " failed: " + e.getMessage(), e);
+      job.abort(e.getMessage());
+    } finally {
+      workers.shutdownNow();
+      if (zip != null) {
+        try {
+          zip.close();
+        } catch (IOException e) {
+          LOG.debug(e.getMessage(), e);
+        }
+      }
+      if (job.getStatus() == Status.COMPLETE) {
+        deleteTempFile(job.getZipFile());
       }
+      LOG.info("Import job {} finished: {}", job.getId(), job.getStatus());
     }
-    response.setStatus(HttpServletResponse.SC_OK);
-    return;
   }
 
-  private void processContentXml(InputStream in, String sitePath,
-      Session session, ZipFile zip) throws XMLStreamException {
-    Map<String, Resource> resources = new HashMap<String, Resource>();
-    String currentResourceId = null;
+  private void deleteTempFile(File tempZip) {
+    if (!tempZip.exists() || tempZip.delete()) {
+      LOG.debug("{}: temporary zip file deleted.", tempZip.getAbsolutePath());
+    } else {
+      LOG.warn("Could not delete temporary file: {}", tempZip.getAbsolutePath());
+    }
+  }
+
+  private void processContentXml(InputStream in, final SiteArchiveImportJob job,
+      final ZipFile zip, ExecutorService workers) throws XMLStreamException {
+    // collections can nest, only the open elements are held.
+    Deque<Resource> open = new ArrayDeque<Resource>();
+    List<Resource> batch = new ArrayList<Resource>(BATCH_SIZE);
     XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
     for (int event = reader.next(); event != XMLStreamReader.END_DOCUMENT; event = reader
         .next()) {
@@ -221,7 +447,7 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
             }
           }
           if (!supportedVersion) {
-            throw new Error("Not a supported version: " + system);
+            throw new IllegalArgumentException("Not a supported version: " + system);
           }
           break;
         }
@@ -233,17 +459,15 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
             resource.attributes.put(reader.getAttributeLocalName(i)
                 .toLowerCase(), reader.getAttributeValue(i));
           }
-          currentResourceId = resource.getId();
-          resources.put(currentResourceId, resource);
+          open.push(resource);
           break;
         }
         if ("property".equalsIgnoreCase(localName)) {
-          Resource resource = resources.get(currentResourceId);
+          Resource resource = open.peek();
           final String name = reader.getAttributeValue(null, "name");
           String value = reader.getAttributeValue(null, "value");
-          if (value != null && !"".equals(value)) {
-            if (reader.getAttributeValue(null, "enc")
-                .equalsIgnoreCase("BASE64")) {
+          if (resource != null && value != null && !"".equals(value)) {
+            if ("BASE64".equalsIgnoreCase(reader.getAttributeValue(null, "enc"))) {
               value = new String(base64.decode(value));
             }
             resource.properties.put(name, value);
@@ -255,12 +479,91 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
         localName = reader.getLocalName();
         if ("collection".equalsIgnoreCase(localName)
             || "resource".equalsIgnoreCase(localName)) {
-          makeResource(resources.get(currentResourceId), sitePath, session, zip);
+          Resource resource = open.pop();
+          if (job.found(resource.getId())) {
+            batch.add(resource);
+            if (batch.size() == BATCH_SIZE) {
+              submitBatch(job, batch, zip, workers);
+              batch = new ArrayList<Resource>(BATCH_SIZE);
+            }
+          }
         }
         break;
       } // end switch
     } // end for
     reader.close();
+    if (!batch.isEmpty()) {
+      submitBatch(job, batch, zip, workers);
+    }
+  }
+
+  private void submitBatch(final SiteArchiveImportJob job, final List<Resource> batch,
+      final ZipFile zip, ExecutorService workers) {
+    workers.execute(new Runnable() {
+      public void run() {
+        importBatch(job, batch, zip);
+      }
+    });
+  }
+
+  /**
+   * Write a batch of resources, each with its link into the site, as the user who
+   * uploaded the archive and save them all at once. A resource that fails part way has
+   * its nodes taken out of the session again, so only complete resources are saved.
+   */
+  private void importBatch(SiteArchiveImportJob job, List<Resource> batch, ZipFile zip) {
+    Session adminSession = null;
+    Session session = null;
+    List<Resource> written = new ArrayList<Resource>(batch.size());
+    try {
+      adminSession = slingRepository.loginAdministrative(null);
+      session = adminSession.impersonate(new SimpleCredentials(job.getUserId(),
+          new char[0]));
+      for (Resource resource : batch) {
+        List<Node> touched = new ArrayList<Node>(2);
+        try {
+          makeResource(resource, session, zip, job.getSitePath(), touched);
+          written.add(resource);
+        } catch (Exception e) {
+          discard(touched);
+          job.failed(resource.getId(), e.getMessage());
+        }
+      }
+      if (session.hasPendingChanges()) {
+        session.save();
+      }
+      for (Resource resource : written) {
+        job.imported(resource.getId());
+      }
+    } catch (RepositoryException e) {
+      LOG.warn("Failed to write a batch of import job " + job.getId() + ": "
+          + e.getMessage(), e);
+      for (Resource resource : batch) {
+        job.failed(resource.getId(), e.getMessage());
+      }
+    } finally {
+      if (session != null) {
+        session.logout();
+      }
+      if (adminSession != null) {
+        adminSession.logout();
+      }
+    }
+  }
+
+  /**
+   * Drop the unsaved changes a failed resource made, newest first. If that fails the
+   * exception ends the batch before anything is saved.
+   */
+  private void discard(List<Node> touched) throws RepositoryException {
+    for (int i = touched.size() - 1; i >= 0; i--) {
+      Node node = touched.get(i);
+      if (node.isNew()) {
+        node.remove();
+      } else {
+        node.refresh(false);
+      }
+    }
   }
 
   private void sendError(int errorCode, String message, Throwable exception,
@@ -278,8 +581,15 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
     }
   }
 
-  private void makeResource(Resource resource, String sitePath,
-      Session session, ZipFile zip) {
+  /**
+   * Write a resource and its link into the site into the session without saving them.
+   *
+   * @param touched
+   *          collects the nodes written, so they can be discarded if the resource fails.
+   */
+  private void makeResource(Resource resource, Session session, ZipFile zip,
+      String sitePath, List<Node> touched) throws RepositoryException, IOException,
+      ParseException {
     if (resource == null) {
       throw new IllegalArgumentException("Illegal Resource");
     }
@@ -294,18 +604,11 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
             .equalsIgnoreCase(resourceType)
         || "org.sakaiproject.content.types.HtmlDocumentType"
             .equalsIgnoreCase(resourceType)) {
-      final String relativeId = resource.getRelativeId();
-      String fileName = null;
-      if (relativeId.contains("/")) {
-        // folders are not currently supported in K2 - strip the folders.
-        fileName = relativeId.substring(relativeId.lastIndexOf("/") + 1);
-      } else {
-        fileName = relativeId;
-      }
       final Node node = copyFile(resource.attributes.get("body-location"),
-          fileName, sitePath, resource.attributes.get("content-type"), session,
-          zip);
-      applyMetaData(node, resource, session);
+          getFileName(resource), resource.attributes.get("content-type"), session,
+          zip, touched);
+      applyMetaData(node, resource);
+      linkFile(node, sitePath + "/_files/" + getFileName(resource), session, touched);
     } else if ("org.sakaiproject.content.types.urlResource"
         .equalsIgnoreCase(resourceType)) {
       // ignore urlResources for now - until BigStore refactor is complete
@@ -325,129 +628,144 @@ public class ImportSiteArchiveServlet extends SlingAllMethodsServlet {
     }
   }
 
-  private Node makeNode(String path, Session session) {
+  /**
+   * Link a file into the site as {@link FileUtils#createLink(Node, String, SlingRepository)}
+   * does, but without saving so the link is saved along with its file. The file was made
+   * referenceable when it was written, so it already has an identifier.
+   */
+  private void linkFile(Node fileNode, String linkPath, Session session,
+      List<Node> touched) throws RepositoryException {
+    Node linkNode = JcrUtils.deepGetOrCreateNode(session, linkPath);
+    touched.add(linkNode);
+    if (!"sling:Folder".equals(linkNode.getPrimaryNodeType().getName())
+        && linkNode.canAddMixin(FilesConstants.REQUIRED_MIXIN)) {
+      linkNode.addMixin(FilesConstants.REQUIRED_MIXIN);
+    }
+    linkNode.setProperty("sling:resourceType", FilesConstants.RT_SAKAI_LINK);
+    linkNode.setProperty(FilesConstants.SAKAI_LINK, fileNode.getIdentifier());
+  }
+
+  private String getFileName(Resource resource) {
+    final String relativeId = resource.getRelativeId();
+    if (relativeId.contains("/")) {
+      // folders are not currently supported in K2 - strip the folders.
+      return relativeId.substring(relativeId.lastIndexOf("/") + 1);
+    }
+    return relativeId;
+  }
+
+  private Node makeNode(String path, Session session) throws RepositoryException {
     if (!"/".equals(path) && path.endsWith("/")) { // strip trailing slash
       path = path.substring(0, path.lastIndexOf("/"));
     }
-    Node node = null;
-    try {
-      node = JcrUtils.deepGetOrCreateNode(session, path);
-      if (session.hasPendingChanges()) {
-        session.save();
-      }
-    } catch (RepositoryException e) {
-      throw new Error(e);
-    }
-    return node;
+    return JcrUtils.deepGetOrCreateNode(session, path);
   }
 
-  private Node copyFile(String zipEntryName, String fileName, String sitePath,
-      String contentType, Session session, ZipFile zip) {
+  private Node copyFile(String zipEntryName, String fileName,
+      String contentType, Session session, ZipFile zip, List<Node> touched)
+      throws RepositoryException, IOException {
     final String id = uniqueId();
     final String path = FilesConstants.USER_FILESTORE + "/" + id;
-    Node node = null;
+    final InputStream in = zip.getInputStream(zip.getEntry(zipEntryName));
     try {
-      final InputStream in = zip.getInputStream(zip.getEntry(zipEntryName));
-      node = makeNode(path, session);
+      Node node = makeNode(path, session);
+      touched.add(node);
       node.setProperty(JcrConstants.JCR_NAME, fileName);
       node.setProperty(JcrConstants.JCR_MIMETYPE, contentType);
+      // make the node linkable now, rather than after a save as the admin user.
+      if (node.canAddMixin(FilesConstants.REQUIRED_MIXIN)) {
+        node.addMixin(FilesConstants.REQUIRED_MIXIN);
+      }
       ValueFactory valueFactory = session.getValueFactory();
       Binary content = valueFactory.createBinary(in);
       node.setProperty(JcrConstants.JCR_CONTENT, content);
-      final String linkPath = sitePath + "/_files/" + fileName;
-      FileUtils.createLink(node, linkPath, slingRepository);
-    } catch (RepositoryException e) {
-      throw new Error(e);
-    } catch (IOException e) {
-      throw new Error(e);
+      return node;
+    } finally {
+      in.close();
     }
-    return node;
   }
 
-  private void applyMetaData(Node node, Resource resource, Session session) {
+  private void applyMetaData(Node node, Resource resource) throws RepositoryException,
+      ParseException {
     final Calendar calendar = Calendar.getInstance(TimeZone
         .getTimeZone("GMT+0"));
-    try {
-      final boolean isNtFile = JcrConstants.NT_FILE.equals(node.getProperty(
-          JcrConstants.JCR_PRIMARYTYPE).getString());
-      if (!isNtFile) { // only set these properties if not nt:file; i.e. they
-        // will already be set otherwise.
-        // sakai:id
-        // node.setProperty(FilesConstants.SAKAI_ID, uniqueId());
-
-        // sakai:user
-        // node.setProperty(FilesConstants.SAKAI_USER, session.getUserID());
-
-        // jcr:mimeType
-        final String mimeType = resource.attributes.get("content-type");
-        if (mimeType != null && !"".equals(mimeType)) {
-          node.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
-        }
+    // workers run in parallel and SimpleDateFormat isn't thread safe.
+    final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmssSSS");
+    sdf.setTimeZone(TimeZone.getTimeZone("GMT+0"));
+    final boolean isNtFile = JcrConstants.NT_FILE.equals(node.getProperty(
+        JcrConstants.JCR_PRIMARYTYPE).getString());
+    if (!isNtFile) { // only set these properties if not nt:file; i.e. they
+      // will already be set otherwise.
+      // sakai:id
+      // node.setProperty(FilesConstants.SAKAI_ID, uniqueId());
+
+      // sakai:user
+      // node.setProperty(FilesConstants.SAKAI_USER, session.getUserID());
+
+      // jcr:mimeType
+      final String mimeType = resource.attributes.get("content-type");
+      if (mimeType != null && !"".equals(mimeType)) {
+        node.setProperty(JcrConstants.JCR_MIMETYPE, mimeType);
       }
+    }
 
-      // loop through all properties
-      for (String key : resource.properties.keySet()) {
-        final String value = resource.properties.get(key);
-        if (value == null || "".equals(value)) {
-          continue; // ignore empty values
-        }
-        // sakai:filename
-        else if (!isNtFile && "DAV:displayname".equals(key)) {
-          node.setProperty("sakai:filename", value);
-          continue;
-        }
-        // sakai:description
-        else if ("CHEF:description".equals(key)) {
-          node.setProperty("sakai:description", value);
-          continue;
-        }
-        // jcr:created
-        else if ("DAV:creationdate".equals(key)
-            && !node.isNodeType(JcrConstants.NT_FILE)) {
-          // cannot set jcr:created on files; i.e. nt:file
-          calendar.setTime(sdf.parse(value));
-          node.setProperty(JcrConstants.JCR_CREATED, calendar);
-          continue;
-        }
-        // jcr:lastModified
-        else if ("DAV:getlastmodified".equals(key)) {
-          calendar.setTime(sdf.parse(value));
-          node.setProperty(JcrConstants.JCR_LASTMODIFIED, calendar);
-          continue;
-        }
-        // map Dublin Core Metadata
-        else if (key.startsWith("http://purl.org/dc/")) {
-          // remap namespace
-          final String purl = key.replace("http://purl.org/dc/", "purl:");
-          node.setProperty(purl, value);
-          continue;
-        }
-        // map CHEF properties
-        else if (key.startsWith("CHEF:")) {
-          // one-to-one namespace mapping
-          node.setProperty(key, value);
-          continue;
-        }
-        // map SAKAI properties
-        else if (key.startsWith("SAKAI:")) {
-          // map to sakai: namespace (i.e. lowercase)
-          node.setProperty(key.replace("SAKAI:", "sakai:"), value);
-          continue;
-        }
-        // DAV properties
-        else if (key.startsWith("DAV:")) {
-          // all remaining DAV properties will be ignored to avoid conflicts
-          // with WebDAV server
-          continue;
-        }
-        LOG.error("Unknown metadata not imported: {},{}", new String[] { key,
-            value });
+    // loop through all properties
+    for (String key : resource.properties.keySet()) {
+      final String value = resource.properties.get(key);
+      if (value == null || "".equals(value)) {
+        continue; // ignore empty values
       }
-      if (session.hasPendingChanges()) {
-        session.save();
+      // sakai:filename
+      else if (!isNtFile && "DAV:displayname".equals(key)) {
+        node.setProperty("sakai:filename", value);
+        continue;
       }
-    } catch (Exception e) {
-      throw new Error(e);
+      // sakai:description
+      else if ("CHEF:description".equals(key)) {
+        node.setProperty("sakai:description", value);
+        continue;
+      }
+      // jcr:created
+      else if ("DAV:creationdate".equals(key)
+          && !node.isNodeType(JcrConstants.NT_FILE)) {
+        // cannot set jcr:created on files; i.e. nt:file
+        calendar.setTime(sdf.parse(value));
+        node.setProperty(JcrConstants.JCR_CREATED, calendar);
+        continue;
+      }
+      // jcr:lastModified
+      else if ("DAV:getlastmodified".equals(key)) {
+        calendar.setTime(sdf.parse(value));
+        node.setProperty(JcrConstants.JCR_LASTMODIFIED, calendar);
+        continue;
+      }
+      // map Dublin Core Metadata
+      else if (key.startsWith("http://purl.org/dc/")) {
+        // remap namespace
+        final String purl = key.replace("http://purl.org/dc/", "purl:");
+        node.setProperty(purl, value);
+        continue;
+      }
+      // map CHEF properties
+      else if (key.startsWith("CHEF:")) {
+        // one-to-one namespace mapping
+        node.setProperty(key, value);
+        continue;
+      }
+      // map SAKAI properties
+      else if (key.startsWith("SAKAI:")) {
+        // map to sakai: namespace (i.e. lowercase)
+        node.setProperty(key.replace("SAKAI:", "sakai:"), value);
+        continue;
+      }
+      // DAV properties
+      else if (key.startsWith("DAV:")) {
+        // all remaining DAV properties will be ignored to avoid conflicts
+        // with WebDAV server
+        continue;
+      }
+      LOG.error("Unknown metadata not imported: {},{}", new String[] { key,
+          value });
     }
   }
 
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.importer;
+
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.io.JSONWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The state of one site archive being imported in the background. Resources are marked
+ * as imported once they have been saved, so a failed import can be resumed from the same
+ * archive without writing the same resources twice.
+ */
+class SiteArchiveImportJob {
+
+  enum Status {
+    QUEUED, RUNNING, COMPLETE, FAILED
+  }
+
+  /** Only the first errors are kept, an archive of broken entries shouldn't fill the heap. */
+  private static final int MAX_ERRORS = 100;
+
+  private final String id;
+  private final String userId;
+  private final String sitePath;
+  private final String fileName;
+  private final File zipFile;
+  private final long created = System.currentTimeMillis();
+
+  private volatile Status status = Status.QUEUED;
+  private volatile long started;
+  private volatile long finished;
+  private volatile int runs;
+
+  private final AtomicInteger found = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final Set<String> imported = Collections
+      .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final List<String> errors = new ArrayList<String>();
+
+  SiteArchiveImportJob(String id, String userId, String sitePath, String fileName,
+      File zipFile) {
+    this.id = id;
+    this.userId = userId;
+    this.sitePath = sitePath;
+    this.fileName = fileName;
+    this.zipFile = zipFile;
+  }
+
+  String getId() {
+    return id;
+  }
+
+  String getUserId() {
+    return userId;
+  }
+
+  String getSitePath() {
+    return sitePath;
+  }
+
+  File getZipFile() {
+    return zipFile;
+  }
+
+  Status getStatus() {
+    return status;
+  }
+
+  long getFinished() {
+    return finished;
+  }
+
+  /**
+   * @return true if the job can be queued to run again.
+   */
+  boolean isResumable() {
+    return status == Status.FAILED && zipFile.exists();
+  }
+
+  void start() {
+    runs++;
+    started = System.currentTimeMillis();
+    finished = 0;
+    found.set(0);
+    skipped.set(0);
+    failed.set(0);
+    synchronized (errors) {
+      errors.clear();
+    }
+    status = Status.RUNNING;
+  }
+
+  void finish() {
+    finished = System.currentTimeMillis();
+    status = failed.get() == 0 ? Status.COMPLETE : Status.FAILED;
+  }
+
+  /**
+   * Stop the job after an error that affects the whole archive.
+   */
+  void abort(String error) {
+    addError(error);
+    failed.incrementAndGet();
+    finish();
+  }
+
+  void queue() {
+    status = Status.QUEUED;
+  }
+
+  /**
+   * Count a resource read from the manifest.
+   *
+   * @return true if the resource still needs importing, false if it was imported by an
+   *         earlier run.
+   */
+  boolean found(String resourceId) {
+    found.incrementAndGet();
+    if (imported.contains(resourceId)) {
+      skipped.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  void imported(String resourceId) {
+    imported.add(resourceId);
+  }
+
+  void failed(String resourceId, String error) {
+    failed.incrementAndGet();
+    addError(resourceId + ": " + error);
+  }
+
+  private void addError(String error) {
+    synchronized (errors) {
+      if (errors.size() < MAX_ERRORS) {
+        errors.add(error);
+      }
+    }
+  }
+
+  void write(JSONWriter writer) throws JSONException {
+    writer.object();
+    writer.key("id").value(id);
+    writer.key("file").value(fileName);
+    writer.key("site").value(sitePath);
+    writer.key("status").value(status.toString().toLowerCase());
+    writer.key("resources").value(found.get());
+    writer.key("imported").value(imported.size());
+    writer.key("skipped").value(skipped.get());
+    writer.key("failed").value(failed.get());
+    writer.key("runs").value(runs);
+    writer.key("created").value(created);
+    writer.key("started").value(started);
+    writer.key("finished").value(finished);
+    writer.key("resumable").value(isResumable());
+    writer.key("errors").array();
+    synchronized (errors) {
+      for (String error : errors) {
+        writer.value(error);
+      }
+    }
+    writer.endArray();
+    writer.endObject();
+  }
+}
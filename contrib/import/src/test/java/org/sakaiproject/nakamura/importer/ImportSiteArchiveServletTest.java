@@ -17,7 +17,9 @@
  */
 package org.sakaiproject.nakamura.importer;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.RETURNS_SMART_NULLS;
@@ -30,12 +32,20 @@ import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.request.RequestParameter;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONObject;
+import org.apache.sling.commons.json.io.JSONWriter;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringWriter;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
 import javax.jcr.Session;
 import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletResponse;
@@ -120,6 +130,52 @@ public class ImportSiteArchiveServletTest {
     }
   }
 
+  @Test
+  public void testStatusOfUnknownJob() throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getRemoteUser()).thenReturn("joe");
+    when(request.getParameter("job")).thenReturn("nosuchjob");
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    importSiteArchiveServlet.doGet(request, response);
+    verify(response).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+  }
+
+  @Test
+  public void testResumeUnknownJob() throws Exception {
+    SlingHttpServletRequest request = mock(SlingHttpServletRequest.class);
+    when(request.getRemoteUser()).thenReturn("joe");
+    when(request.getParameter("job")).thenReturn("nosuchjob");
+    SlingHttpServletResponse response = mock(SlingHttpServletResponse.class);
+    importSiteArchiveServlet.doPost(request, response);
+    verify(response).sendError(eq(HttpServletResponse.SC_NOT_FOUND), anyString());
+  }
+
+  @Test
+  public void testArchiveWithoutManifestFailsResumably() throws Exception {
+    File zipFile = File.createTempFile("siteArchive", ".zip");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+    out.putNextEntry(new ZipEntry("readme.txt"));
+    out.write("not an archive".getBytes("UTF-8"));
+    out.closeEntry();
+    out.close();
+    try {
+      SiteArchiveImportJob job = new SiteArchiveImportJob("job1", "joe", "/sites/foo",
+          "archive.zip", zipFile);
+      importSiteArchiveServlet.runJob(job);
+
+      assertEquals(SiteArchiveImportJob.Status.FAILED, job.getStatus());
+      assertTrue(job.isResumable());
+      StringWriter status = new StringWriter();
+      job.write(new JSONWriter(status));
+      JSONObject json = new JSONObject(status.toString());
+      assertEquals("failed", json.getString("status"));
+      assertEquals(1, json.getInt("failed"));
+      assertEquals(1, json.getJSONArray("errors").length());
+    } finally {
+      zipFile.delete();
+    }
+  }
+
   // @Test
   // public void testDoPost() throws Exception {
   // // mock RequestParameter which returns a valid siteParam
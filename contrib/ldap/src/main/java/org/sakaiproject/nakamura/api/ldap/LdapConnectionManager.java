@@ -64,6 +64,26 @@ public interface LdapConnectionManager {
    */
   void returnConnection(LDAPConnection conn);
 
+  /**
+   * Retrieve a connected <code>LDAPConnection</code> to be used only for binding as an
+   * end user to check their credentials. These connections are kept apart from those
+   * returned by {@link #getConnection()}, so checking a password never leaves a search
+   * connection bound as someone else.
+   * 
+   * @return a connected, possibly bound, <code>LDAPConnection</code>
+   * @throws LDAPException
+   *           if the <code>LDAPConnection</code> allocation fails
+   */
+  LDAPConnection getBindConnection() throws LDAPException;
+
+  /**
+   * Return an <code>LDAPConnection</code> retrieved with {@link #getBindConnection()}.
+   * 
+   * @param conn
+   *          an <code>LDAPConnection</code> that you no longer need
+   */
+  void returnBindConnection(LDAPConnection conn);
+
   /**
    * Retrieve the currently assigned {@link LdapConnectionManagerConfig}.
    * 
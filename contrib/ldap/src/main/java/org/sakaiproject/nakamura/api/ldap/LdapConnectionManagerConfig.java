@@ -62,6 +62,9 @@ public class LdapConnectionManagerConfig {
   /** Maximum number of connections to allow, if pooling is used. */
   private int poolMaxConns = 10;
 
+  /** Maximum number of connections used for user binds, if pooling is used. */
+  private int poolMaxBindConns = 10;
+
   public LdapConnectionManagerConfig() {
   }
 
@@ -88,6 +91,7 @@ public class LdapConnectionManagerConfig {
     LdapConnectionManagerConfig config = new LdapConnectionManagerConfig(secureConnection, tls,
         keystoreLocation, keystorePassword, operationTimeout, ldapHost, ldapPort, loginUser,
         loginPassword, followReferrals, autoBind, pooling, poolMaxConns);
+    config.setPoolMaxBindConns(poolMaxBindConns);
     return config;
   }
 
@@ -305,4 +309,19 @@ public class LdapConnectionManagerConfig {
   public void setPoolMaxConns(int maxConns) {
     this.poolMaxConns = maxConns;
   }
+
+  /**
+   * @return The maximum number of physical connections in the pool used for user binds
+   */
+  public int getPoolMaxBindConns() {
+    return poolMaxBindConns;
+  }
+
+  /**
+   * @param maxConns
+   *          The maximum number of physical connections in the pool used for user binds
+   */
+  public void setPoolMaxBindConns(int maxConns) {
+    this.poolMaxBindConns = maxConns;
+  }
 }
@@ -55,6 +55,9 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
 
   private List<LdapConnectionLivenessValidator> validators;
 
+  /** connections are only used to bind as end users */
+  private boolean bindOnly;
+
   public PooledLDAPConnectionFactory(LdapConnectionManager connMgr,
       List<LdapConnectionLivenessValidator> validators) {
     setConnectionManager(connMgr);
@@ -65,6 +68,18 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
     this.validators = validators;
   }
 
+  /**
+   * Marks the connections made by this factory as used only to bind as end users. They
+   * are not bound as the auto-bind user, and a bind by the last borrower is expected
+   * rather than undone, so returning one costs no LDAP operations. Liveness is checked
+   * natively since the configured validators may need to search as the system user.
+   *
+   * @param bindOnly
+   */
+  public void setBindOnly(boolean bindOnly) {
+    this.bindOnly = bindOnly;
+  }
+
   /**
    * Constructs a new PooledLDAPConnection object, including: passing it the
    * connection manager so it can return itself to the pool if it falls out of
@@ -92,7 +107,7 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
       conn.startTLS();
       log.debug("makeObject(): successfully initiated TLS");
     }
-    if (mgr.getConfig().isAutoBind()) {
+    if (mgr.getConfig().isAutoBind() && !bindOnly) {
       String binddn = mgr.getConfig().getLdapUser();
       log.debug("makeObject(): binding connection to default bind DN [{}]", binddn);
       byte[] bindpw;
@@ -168,6 +183,17 @@ public class PooledLDAPConnectionFactory implements PoolableObjectFactory {
       PooledLDAPConnection conn = (PooledLDAPConnection) obj;
       log.debug("validateObject(): received PooledLDAPConnection object to validate");
 
+      if (bindOnly) {
+        // whoever bound last doesn't matter, the next borrower binds again.
+        if (!conn.isConnectionAlive()) {
+          log.info("validateObject(): bind connection failed liveness test");
+          conn.setActive(false);
+          return false;
+        }
+        conn.setBindAttempted(false);
+        return true;
+      }
+
       // ensure we're always bound as the system user so the liveness
       // search can succeed (it actually uses the system user's account as
       // the base DN)
@@ -112,6 +112,10 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
   @Property(intValue = DEFAULT_POOLING_MAX_CONNS)
   static final String POOLING_MAX_CONNS = "sakai.ldap.pooling.maxConns";
 
+  static final int DEFAULT_POOLING_MAX_BIND_CONNS = 10;
+  @Property(intValue = DEFAULT_POOLING_MAX_BIND_CONNS)
+  static final String POOLING_MAX_BIND_CONNS = "sakai.ldap.pooling.maxBindConns";
+
   static final boolean DEFAULT_TLS = false;
   @Property(boolValue = DEFAULT_TLS)
   static final String TLS = "sakai.ldap.tls";
@@ -124,6 +128,11 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
 
   private PooledLDAPConnectionFactory factory;
 
+  /** LDAP connection pool used only for binding as end users */
+  private ObjectPool bindPool;
+
+  private PooledLDAPConnectionFactory bindFactory;
+
   /** How long to block waiting for an available connection before throwing an exception */
   private static final int POOL_MAX_WAIT = 60000;
 
@@ -211,6 +220,32 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
     }
   }
 
+  /** {@inheritDoc} */
+  @Override
+  public LDAPConnection getBindConnection() throws LDAPException {
+    log.debug("getBindConnection(): attempting to borrow connection from bind pool");
+    try {
+      return (LDAPConnection) bindPool.borrowObject();
+    } catch (Exception e) {
+      throw new RuntimeException("failed to get pooled bind connection", e);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void returnBindConnection(LDAPConnection conn) {
+    if (conn == null) {
+      log.debug("returnBindConnection() received null connection; nothing to do");
+      return;
+    }
+    try {
+      bindPool.returnObject(conn);
+      log.debug("returnBindConnection(): successfully returned connection to bind pool");
+    } catch (Exception e) {
+      throw new RuntimeException("failed to return pooled bind connection", e);
+    }
+  }
+
   // ---------- SCR integration
   /**
    * Activate/initialize the instance. Normally called by OSGi.
@@ -227,14 +262,17 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
   @Deactivate
   protected void deactivate() {
     try {
-      log.debug("deactivate(): closing connection pool");
+      log.debug("deactivate(): closing connection pools");
       pool.close();
-      log.debug("destroy(): successfully closed connection pool");
+      bindPool.close();
+      log.debug("destroy(): successfully closed connection pools");
     } catch (Exception e) {
       throw new RuntimeException("failed to shutdown connection pool", e);
     } finally {
       pool = null;
       factory = null;
+      bindPool = null;
+      bindFactory = null;
     }
     log.debug("destroy(): delegating to parent destroy() impl");
   }
@@ -257,6 +295,14 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
       }
       pool = null;
     }
+    if (bindPool != null) {
+      try {
+        bindPool.close();
+      } catch (Exception e) {
+        // ignore
+      }
+      bindPool = null;
+    }
 
     factory = newPooledLDAPConnectionFactory(this, livenessValidators);
 
@@ -267,6 +313,18 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
         true, // testOnBorrow
         false // testOnReturn
     );
+
+    // user binds get their own connections, so a burst of logins doesn't take every
+    // search connection and search connections are never left bound as a user.
+    bindFactory = newPooledLDAPConnectionFactory(this, livenessValidators);
+    bindFactory.setBindOnly(true);
+    bindPool = newConnectionPool(bindFactory, getConfig().getPoolMaxBindConns(), // maxActive
+        GenericObjectPool.WHEN_EXHAUSTED_BLOCK, // whenExhaustedAction
+        POOL_MAX_WAIT, // maxWait (millis)
+        getConfig().getPoolMaxBindConns(), // maxIdle
+        true, // testOnBorrow
+        false // testOnReturn
+    );
   }
 
   /**
@@ -338,6 +396,8 @@ public class PoolingLdapConnectionManager extends SimpleLdapConnectionManager {
     config.setPooling(OsgiUtil.toBoolean(props.get(POOLING), DEFAULT_POOLING));
     config.setPoolMaxConns(OsgiUtil.toInteger(props.get(POOLING_MAX_CONNS),
         DEFAULT_POOLING_MAX_CONNS));
+    config.setPoolMaxBindConns(OsgiUtil.toInteger(props.get(POOLING_MAX_BIND_CONNS),
+        DEFAULT_POOLING_MAX_BIND_CONNS));
     config.setTLS(OsgiUtil.toBoolean(props.get(TLS), DEFAULT_TLS));
 
     return config;
@@ -91,6 +91,28 @@ public class SimpleLdapConnectionManager implements LdapConnectionManager {
     return conn;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  public LDAPConnection getBindConnection() throws LDAPException {
+    log.debug("getBindConnection()");
+
+    verifySetup();
+
+    LDAPConnection conn = newLDAPConnection();
+    applyConstraints(conn);
+    connect(conn);
+
+    return conn;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void returnBindConnection(LDAPConnection conn) {
+    returnConnection(conn);
+  }
+
   protected LDAPConnection newLDAPConnection() {
     verifySetup();
 
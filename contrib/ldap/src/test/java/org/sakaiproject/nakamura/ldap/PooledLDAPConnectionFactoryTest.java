@@ -25,6 +25,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.classextension.EasyMock.createMock;
 import static org.easymock.classextension.EasyMock.replay;
+import static org.easymock.classextension.EasyMock.verify;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -293,4 +294,46 @@ public class PooledLDAPConnectionFactoryTest {
 
   }
 
+  /**
+   * Connections used only for user binds are neither bound as the system user when
+   * made nor rebound when returned.
+   */
+  @Test
+  public void testBindOnlyMakeObjectDoesNotAutoBind() throws LDAPException {
+    factory.setBindOnly(true);
+    conn.setConnectionManager(connMgr);
+    conn.setConstraints(isA(LDAPConstraints.class));
+    conn.connect(connMgrConfig.getLdapHost(), connMgrConfig.getLdapPort());
+    // TLS is off and no bind is expected.
+    conn.setBindAttempted(false);
+    replay(conn);
+
+    assertEquals(conn, factory.makeObject());
+    verify(conn);
+  }
+
+  @Test
+  public void testBindOnlyValidateObjectSkipsRebind() throws LDAPException {
+    factory.setBindOnly(true);
+    expect(conn.isConnectionAlive()).andReturn(true);
+    conn.setBindAttempted(false);
+    expectLastCall().once();
+    replay(conn, livenessValidator);
+
+    assertTrue(factory.validateObject(conn));
+    verify(conn, livenessValidator);
+  }
+
+  @Test
+  public void testBindOnlyValidateObjectLowersActiveFlagIfConnectionIsNotAlive() {
+    factory.setBindOnly(true);
+    expect(conn.isConnectionAlive()).andReturn(false);
+    conn.setActive(false);
+    expectLastCall().once();
+    replay(conn, livenessValidator);
+
+    assertFalse(factory.validateObject(conn));
+    verify(conn);
+  }
+
 }
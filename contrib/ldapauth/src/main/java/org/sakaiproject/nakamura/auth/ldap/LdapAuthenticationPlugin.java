@@ -48,6 +48,7 @@ import org.sakaiproject.nakamura.api.lite.accesscontrol.AccessDeniedException;
 import org.sakaiproject.nakamura.api.lite.authorizable.Authorizable;
 import org.sakaiproject.nakamura.api.lite.authorizable.AuthorizableManager;
 import org.sakaiproject.nakamura.api.user.LiteAuthorizablePostProcessService;
+import org.sakaiproject.nakamura.auth.ldap.LdapUserCache.UserEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -89,6 +90,21 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
   static final String CREATE_ACCOUNT = "sakai.auth.ldap.account.create";
   private boolean createAccount;
 
+  public static final int CACHE_SIZE_DEFAULT = 10000;
+  @Property(intValue = CACHE_SIZE_DEFAULT)
+  static final String CACHE_SIZE = "sakai.auth.ldap.cache.size";
+
+  public static final long CACHE_TTL_DEFAULT = 300;
+  @Property(longValue = CACHE_TTL_DEFAULT)
+  static final String CACHE_TTL = "sakai.auth.ldap.cache.ttl";
+
+  public static final long CREDENTIALS_CACHE_TTL_DEFAULT = 0;
+  @Property(longValue = CREDENTIALS_CACHE_TTL_DEFAULT)
+  static final String CREDENTIALS_CACHE_TTL = "sakai.auth.ldap.cache.credentials.ttl";
+
+  private LdapUserCache userCache = new LdapUserCache(CACHE_SIZE_DEFAULT,
+      CACHE_TTL_DEFAULT * 1000L, 0);
+
   @Property(cardinality = 2147483647)
   static final String USER_PROPS = "sakai.auth.ldap.user.props";
   private HashMap<String, String> attrsProps;
@@ -129,6 +145,11 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
     authzFilter = OsgiUtil.toString(props.get(AUTHZ_FILTER), "");
     createAccount = OsgiUtil.toBoolean(props.get(CREATE_ACCOUNT), CREATE_ACCOUNT_DEFAULT);
 
+    // filters may have changed so start over with what we know of users.
+    userCache = new LdapUserCache(OsgiUtil.toInteger(props.get(CACHE_SIZE),
+        CACHE_SIZE_DEFAULT), OsgiUtil.toLong(props.get(CACHE_TTL), CACHE_TTL_DEFAULT) * 1000L,
+        OsgiUtil.toLong(props.get(CREDENTIALS_CACHE_TTL), CREDENTIALS_CACHE_TTL_DEFAULT) * 1000L);
+
     parseUserProps(props);
   }
 
@@ -194,115 +215,192 @@ public class LdapAuthenticationPlugin implements AuthenticationPlugin {
 
   // ---------- AuthenticationPlugin ----------
   public boolean authenticate(Credentials credentials) {
-    boolean auth = false;
-    if (credentials instanceof SimpleCredentials) {
-      // get application user credentials
-      String appUser = connMgr.getConfig().getLdapUser();
-      String appPass = connMgr.getConfig().getLdapPassword();
+    if (!(credentials instanceof SimpleCredentials)) {
+      return false;
+    }
+    // get user credentials
+    SimpleCredentials sc = (SimpleCredentials) credentials;
+    String userId = sc.getUserID();
+    String userPass = new String(sc.getPassword());
 
-      // get user credentials
-      SimpleCredentials sc = (SimpleCredentials) credentials;
+    long timeStart = System.currentTimeMillis();
 
-      long timeStart = System.currentTimeMillis();
+    if (userCache.checkCredentials(userId, userPass)) {
+      log.debug("User [{}] authenticated from the credentials cache", userId);
+      return true;
+    }
 
-      String userDn = LdapUtil.escapeLDAPSearchFilter(userFilter.replace("{}",
-          sc.getUserID()));
-      String userPass = new String(sc.getPassword());
+    String userDn = LdapUtil.escapeLDAPSearchFilter(userFilter.replace("{}", userId));
 
-      LDAPConnection conn = null;
-      Exception ldapTrouble = null;
-      boolean didLdapSucceed = false;
-      for (int i = 0; i < 4; i++) {
-        try {
-          if (i > 0) {
-            log.debug("LDAP error on ldap auth. Retrying. " + ldapTrouble.getMessage());
-          }
-          // 0) Get a connection to the server
-          conn = connMgr.getConnection();
-          log.debug("Connected to LDAP server");
-          bindAppUser(appUser, appPass, conn);
-          // 2) Search for username (not authz).
-          // If search fails, log/report invalid username or password.
-          LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
-              userDn, null, true);
-          if (results.hasMore()) {
-            log.debug("Found user via search");
-          } else {
-            throw new IllegalArgumentException("Can't find user [" + userDn + "]");
-          }
+    Exception ldapTrouble = null;
+    for (int i = 0; i < 4; i++) {
+      try {
+        if (i > 0) {
+          log.debug("LDAP error on ldap auth. Retrying. " + ldapTrouble.getMessage());
+        }
+        // 1) Find the user's DN and authz result, unless we already know them.
+        UserEntry entry = userCache.get(userId);
+        boolean lookedUp = false;
+        if (entry == null) {
+          entry = lookupUser(userId, userDn);
+          lookedUp = true;
+        }
+        if (!entry.isAuthorized()) {
+          log.debug("User not authorized [{}]", userDn);
+          return false;
+        }
 
-          // 3) Bind as user.
-          // If bind fails, log/report invalid username or password.
-
-          // value is set below. define here for use in authz check.
-          String userEntryDn = null;
-          // KERN-776 Resolve the user DN from the search results and check for an aliased
-          // entry
-          LDAPEntry userEntry = results.next();
-          LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
-
-          if ("aliasObject".equals(objectClass.getStringValue())) {
-            LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
-            userEntryDn = aliasDN.getStringValue();
-          } else {
-            userEntryDn = userEntry.getDN();
-          }
+        // 2) Bind as user.
+        // If bind fails, log/report invalid username or password.
+        if (!bindUser(entry.getDn(), userPass)) {
+          log.debug("Invalid credentials for [{}]", userDn);
+          userCache.removeCredentials(userId);
+          return false;
+        }
 
-          conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
-          log.debug("Bound as user");
-
-          if (authzFilter.length() > 0) {
-            // 4) Return to app user
-            conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
-            log.debug("Rebound as application user");
-            // 5) Search user DN with authz filter
-            // If search fails, log/report that user is not authorized
-            String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
-            results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userAuthzFilter,
-                null, true);
-            if (results.hasMore()) {
-              log.debug("Found user + authz filter via search");
-            } else {
-              throw new IllegalArgumentException("User not authorized [" + userDn + "]");
-            }
+        // FINALLY!
+        log.info("User [{}] authenticated with LDAP in {}ms", userDn,
+            System.currentTimeMillis() - timeStart);
+
+        // provision & decorate the user when we've just been to LDAP for their details,
+        // rather than on every login.
+        if (lookedUp) {
+          try {
+            provisionUser(userId, userDn);
+          } catch (Exception e) {
+            // look up again on the retry so provisioning is tried again too.
+            userCache.remove(userId);
+            throw e;
           }
+        }
+        userCache.putCredentials(userId, userPass);
+        return true;
+      } catch (IllegalArgumentException e) {
+        // the user doesn't exist, no point in asking again.
+        log.debug(e.getMessage());
+        return false;
+      } catch (Exception e) {
+        ldapTrouble = e;
+        log.warn(e.getMessage(), e);
+      }
+    }
 
-          // FINALLY!
-          auth = true;
-          log.info("User [{}] authenticated with LDAP in {}ms", userDn,
-              System.currentTimeMillis() - timeStart);
+    log.error("Could not negotiate with LDAP even after retrying. Giving up. {}:{}",
+        ldapTrouble.getClass().getName(), ldapTrouble.getLocalizedMessage());
+    return false;
+  }
 
-          // provision & decorate the user
-          Session session = repository.loginAdministrative();
-          Authorizable authorizable = getJcrUser(session, sc.getUserID());
+  /**
+   * Search for the user's DN and check them against the authz filter, using a search
+   * connection. The result is cached so later logins go straight to the bind.
+   */
+  private UserEntry lookupUser(String userId, String userDn) throws LDAPException,
+      UnsupportedEncodingException {
+    LDAPConnection conn = null;
+    try {
+      // 0) Get a connection to the server
+      conn = connMgr.getConnection();
+      log.debug("Connected to LDAP server");
+      // pooled connections are already bound as the app user when auto bind is on.
+      if (!connMgr.getConfig().isAutoBind()) {
+        bindAppUser(conn);
+      }
+      // Search for username (not authz).
+      // If search fails, log/report invalid username or password.
+      LDAPSearchResults results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userDn,
+          null, true);
+      if (results.hasMore()) {
+        log.debug("Found user via search");
+      } else {
+        userCache.remove(userId);
+        throw new IllegalArgumentException("Can't find user [" + userDn + "]");
+      }
+
+      // value is set below. define here for use in authz check.
+      String userEntryDn = null;
+      // KERN-776 Resolve the user DN from the search results and check for an aliased
+      // entry
+      LDAPEntry userEntry = results.next();
+      LDAPAttribute objectClass = userEntry.getAttribute("objectClass");
+
+      if ("aliasObject".equals(objectClass.getStringValue())) {
+        LDAPAttribute aliasDN = userEntry.getAttribute("aliasedObjectName");
+        userEntryDn = aliasDN.getStringValue();
+      } else {
+        userEntryDn = userEntry.getDN();
+      }
+
+      boolean authorized = true;
+      if (authzFilter.length() > 0) {
+        // Search user DN with authz filter. The search connection is never bound as the
+        // user so there is no need to return to the app user first.
+        // If search fails, log/report that user is not authorized
+        String userAuthzFilter = "(&(" + userEntryDn + ")(" + authzFilter + "))";
+        results = conn.search(baseDn, LDAPConnection.SCOPE_SUB, userAuthzFilter, null,
+            true);
+        authorized = results.hasMore();
+        if (authorized) {
+          log.debug("Found user + authz filter via search");
+        }
+      }
+      return userCache.put(userId, userEntryDn, authorized);
+    } finally {
+      log.debug("Returning LDAP connection to pool.");
+      connMgr.returnConnection(conn);
+    }
+  }
+
+  /**
+   * Bind as the user on a connection from the bind pool.
+   *
+   * @return false if LDAP rejected the password.
+   */
+  private boolean bindUser(String userEntryDn, String userPass) throws LDAPException,
+      UnsupportedEncodingException {
+    LDAPConnection conn = null;
+    try {
+      conn = connMgr.getBindConnection();
+      conn.bind(LDAPConnection.LDAP_V3, userEntryDn, userPass.getBytes(UTF8));
+      log.debug("Bound as user");
+      return true;
+    } catch (LDAPException e) {
+      if (e.getResultCode() == LDAPException.INVALID_CREDENTIALS) {
+        return false;
+      }
+      throw e;
+    } finally {
+      connMgr.returnBindConnection(conn);
+    }
+  }
+
+  private void provisionUser(String userId, String userDn) throws Exception {
+    Session session = repository.loginAdministrative();
+    try {
+      Authorizable authorizable = getJcrUser(session, userId);
 
-          if (authorizable != null && attrsProps != null) {
-            log.debug("Decorating user [{}] with props from {}", userDn, USER_PROPS);
-            decorateUser(session, authorizable, conn);
+      if (authorizable != null && attrsProps != null) {
+        log.debug("Decorating user [{}] with props from {}", userDn, USER_PROPS);
+        LDAPConnection conn = null;
+        try {
+          conn = connMgr.getConnection();
+          if (!connMgr.getConfig().isAutoBind()) {
+            bindAppUser(conn);
           }
-          // if we made it this far, we can exit the retry loop
-          didLdapSucceed = true;
-          break;
-        } catch (Exception e) {
-          ldapTrouble = e;
-          log.warn(e.getMessage(), e);
+          decorateUser(session, authorizable, conn);
         } finally {
-          log.debug("Returning LDAP connection to pool.");
           connMgr.returnConnection(conn);
         }
       }
-      
-      if (!didLdapSucceed) {
-        log.error("Could not negotiate with LDAP even after retrying. Giving up. {}:{}", 
-            ldapTrouble.getClass().getName(), ldapTrouble.getLocalizedMessage());
-        return false;
-      }
+    } finally {
+      session.logout();
     }
-    return auth;
   }
 
-  private void bindAppUser(String appUser, String appPass, LDAPConnection conn)
-      throws LDAPException, UnsupportedEncodingException {
+  private void bindAppUser(LDAPConnection conn) throws LDAPException,
+      UnsupportedEncodingException {
+    // get application user credentials
+    String appUser = connMgr.getConfig().getLdapUser();
+    String appPass = connMgr.getConfig().getLdapPassword();
     conn.bind(LDAPConnection.LDAP_V3, appUser, appPass.getBytes(UTF8));
     log.debug("Bound as application user");
   }
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.auth.ldap;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of what LDAP told us about a user at login: the
+ * DN their user ID resolves to and whether they passed the authorization filter.
+ * <p>
+ * Optionally, a salted hash of the password of the last successful login can be kept for
+ * a short time so repeated logins don't go to LDAP at all. The password itself is never
+ * held, and each hash has its own random salt.
+ * </p>
+ */
+class LdapUserCache {
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  /** Rounds of hashing, to make a hash lifted from a heap dump costly to attack. */
+  private static final int HASH_ROUNDS = 1000;
+
+  private static final int SALT_LENGTH = 16;
+
+  static class UserEntry {
+    private final String dn;
+    private final boolean authorized;
+    private final long expires;
+    private byte[] salt;
+    private byte[] credentialsHash;
+    private long credentialsExpire;
+
+    UserEntry(String dn, boolean authorized, long expires) {
+      this.dn = dn;
+      this.authorized = authorized;
+      this.expires = expires;
+    }
+
+    /**
+     * @return the DN to bind as for this user.
+     */
+    String getDn() {
+      return dn;
+    }
+
+    /**
+     * @return whether the user passed the authorization filter.
+     */
+    boolean isAuthorized() {
+      return authorized;
+    }
+  }
+
+  private final Map<String, UserEntry> entries;
+
+  private final long ttl;
+
+  private final long credentialsTtl;
+
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * @param maxEntries
+   *          the maximum number of users to hold.
+   * @param ttl
+   *          how long, in milliseconds, a looked up DN and authorization result are used.
+   * @param credentialsTtl
+   *          how long, in milliseconds, a successful login is remembered. 0 or less
+   *          disables the credentials cache.
+   */
+  LdapUserCache(final int maxEntries, long ttl, long credentialsTtl) {
+    this.ttl = ttl;
+    this.credentialsTtl = credentialsTtl;
+    entries = new LinkedHashMap<String, UserEntry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, UserEntry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param userId
+   * @return the cached entry for the user or null if there is none or it has expired.
+   */
+  synchronized UserEntry get(String userId) {
+    UserEntry entry = entries.get(userId);
+    if (entry != null && entry.expires <= System.currentTimeMillis()) {
+      entries.remove(userId);
+      return null;
+    }
+    return entry;
+  }
+
+  /**
+   * Remember the DN and authorization result for a user, dropping any remembered login.
+   *
+   * @return the new entry.
+   */
+  synchronized UserEntry put(String userId, String dn, boolean authorized) {
+    UserEntry entry = new UserEntry(dn, authorized, System.currentTimeMillis() + ttl);
+    if (ttl > 0) {
+      entries.put(userId, entry);
+    }
+    return entry;
+  }
+
+  synchronized void remove(String userId) {
+    entries.remove(userId);
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  boolean isCredentialsCacheEnabled() {
+    return credentialsTtl > 0;
+  }
+
+  /**
+   * Remember a successful login so the same password is accepted without going to LDAP
+   * until the credentials time to live passes.
+   */
+  void putCredentials(String userId, String password) {
+    if (!isCredentialsCacheEnabled()) {
+      return;
+    }
+    byte[] salt = new byte[SALT_LENGTH];
+    random.nextBytes(salt);
+    byte[] hash = hash(salt, password);
+    synchronized (this) {
+      UserEntry entry = entries.get(userId);
+      if (entry != null) {
+        entry.salt = salt;
+        entry.credentialsHash = hash;
+        entry.credentialsExpire = Math.min(entry.expires, System.currentTimeMillis()
+            + credentialsTtl);
+      }
+    }
+  }
+
+  /**
+   * @return true if the password matches the remembered login for the user and that
+   *         login has not expired.
+   */
+  boolean checkCredentials(String userId, String password) {
+    if (!isCredentialsCacheEnabled()) {
+      return false;
+    }
+    byte[] salt;
+    byte[] expected;
+    synchronized (this) {
+      UserEntry entry = get(userId);
+      if (entry == null || entry.credentialsHash == null
+          || entry.credentialsExpire <= System.currentTimeMillis()) {
+        return false;
+      }
+      salt = entry.salt;
+      expected = entry.credentialsHash;
+    }
+    // MessageDigest.isEqual takes the same time however many bytes match.
+    return MessageDigest.isEqual(expected, hash(salt, password));
+  }
+
+  /**
+   * Forget any remembered login for the user, used when LDAP rejects a password.
+   */
+  synchronized void removeCredentials(String userId) {
+    UserEntry entry = entries.get(userId);
+    if (entry != null) {
+      entry.salt = null;
+      entry.credentialsHash = null;
+    }
+  }
+
+  private byte[] hash(byte[] salt, String password) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+      digest.update(salt);
+      byte[] hash = digest.digest(password.getBytes("UTF-8"));
+      for (int i = 1; i < HASH_ROUNDS; i++) {
+        digest.update(salt);
+        hash = digest.digest(hash);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -27,9 +27,9 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
 import static org.mockito.Matchers.isNull;
 import static org.mockito.Mockito.atLeastOnce;
-import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -96,6 +96,7 @@ public class LdapAuthenticationPluginTest {
   public void setup() throws Exception {
     when(connMgr.getConfig().getLdapUser()).thenReturn(LDAP_USER);
     when(connMgr.getConfig().getLdapPassword()).thenReturn(LDAP_PASS);
+    when(connMgr.getBindConnection()).thenReturn(conn);
 
     when(repository.loginAdministrative()).thenReturn(session);
 
@@ -302,7 +303,7 @@ public class LdapAuthenticationPluginTest {
   }
 
   @Test
-  public void failBindingAsAppUserAfterUserSearch() throws Exception {
+  public void doesNotRebindAsAppUserAfterUserBind() throws Exception {
     // given
     HashMap<String, Object> props = new HashMap<String, Object>();
     props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
@@ -311,9 +312,9 @@ public class LdapAuthenticationPluginTest {
     props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
     ldapAuthenticationPlugin.activate(props);
 
+    LDAPConnection bindConn = mock(LDAPConnection.class);
+    when(connMgr.getBindConnection()).thenReturn(bindConn);
     when(connMgr.getConnection()).thenReturn(conn);
-    doNothing().doThrow(new LDAPException()).when(conn)
-        .bind(LDAPConnection.LDAP_V3, LDAP_USER, LDAP_PASS.getBytes("UTF-8"));
     when(
         conn.search(isA(String.class), anyInt(), isA(String.class),
             any(String[].class), anyBoolean())).thenReturn(results);
@@ -329,8 +330,16 @@ public class LdapAuthenticationPluginTest {
     when(entry.getAttribute(isA(String.class))).thenReturn(attr);
 
     // then
-    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
         .toCharArray())));
+
+    // the user bind happens on its own connection and the search connection is bound
+    // as the app user just the once.
+    verify(bindConn).bind(LDAPConnection.LDAP_V3, userEntryDn, PASS.getBytes("UTF-8"));
+    verify(connMgr).returnBindConnection(bindConn);
+    verify(conn, times(1)).bind(eq(LDAPConnection.LDAP_V3), isA(String.class),
+        isA(byte[].class));
+    verify(conn).bind(LDAPConnection.LDAP_V3, LDAP_USER, LDAP_PASS.getBytes("UTF-8"));
   }
 
   @Test
@@ -629,4 +638,100 @@ public class LdapAuthenticationPluginTest {
 
     assertFalse(ldapAuthenticationPlugin.canDecorateUser());
   }
+
+  @Test
+  public void secondLoginUsesCachedDn() throws Exception {
+    // given
+    setupValidUser(0);
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    // the user and authz searches happen once, the bind every time.
+    verify(conn, times(2)).search(isA(String.class), anyInt(), isA(String.class),
+        any(String[].class), anyBoolean());
+    verify(connMgr, times(2)).getBindConnection();
+    verify(repository, times(1)).loginAdministrative();
+    verify(session).logout();
+  }
+
+  @Test
+  public void credentialsCacheSkipsLdap() throws Exception {
+    // given
+    String userEntryDn = setupValidUser(60);
+    doThrow(new LDAPException("bad password", LDAPException.INVALID_CREDENTIALS, null))
+        .when(conn).bind(LDAPConnection.LDAP_V3, userEntryDn, "wrong".getBytes("UTF-8"));
+
+    // then
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    verify(connMgr, times(1)).getBindConnection();
+
+    // a different password still goes to LDAP, and isn't retried once rejected.
+    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, "wrong"
+        .toCharArray())));
+    verify(connMgr, times(2)).getBindConnection();
+  }
+
+  @Test
+  public void invalidCredentialsForgetCachedLogin() throws Exception {
+    // given
+    String userEntryDn = setupValidUser(60);
+
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+
+    // the password is changed in LDAP
+    doThrow(new LDAPException("bad password", LDAPException.INVALID_CREDENTIALS, null))
+        .when(conn).bind(LDAPConnection.LDAP_V3, userEntryDn, "wrong".getBytes("UTF-8"));
+    assertFalse(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, "wrong"
+        .toCharArray())));
+
+    // then the old password has to be checked with LDAP again.
+    assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER, PASS
+        .toCharArray())));
+    verify(connMgr, times(3)).getBindConnection();
+  }
+
+  @Test
+  public void searchOncePerUser() throws Exception {
+    setupValidUser(0);
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(ldapAuthenticationPlugin.authenticate(new SimpleCredentials(USER + (i % 100),
+          PASS.toCharArray())));
+    }
+    // with 100 users only the first login of each searches, the rest just bind.
+    verify(connMgr, times(100)).getConnection();
+  }
+
+  private String setupValidUser(long credentialsCacheTtl) throws Exception {
+    HashMap<String, Object> props = new HashMap<String, Object>();
+    props.put(LdapAuthenticationPlugin.LDAP_BASE_DN, LDAP_BASE_DN);
+    props.put(LdapAuthenticationPlugin.USER_FILTER, USER_FILTER);
+    props.put(LdapAuthenticationPlugin.AUTHZ_FILTER, AUTHZ_FILTER);
+    props.put(LdapAuthenticationPlugin.CREATE_ACCOUNT, Boolean.FALSE);
+    props.put(LdapAuthenticationPlugin.CREDENTIALS_CACHE_TTL, credentialsCacheTtl);
+    ldapAuthenticationPlugin.activate(props);
+
+    when(connMgr.getConnection()).thenReturn(conn);
+    when(
+        conn.search(isA(String.class), anyInt(), isA(String.class),
+            any(String[].class), anyBoolean())).thenReturn(results);
+    when(results.hasMore()).thenReturn(true);
+
+    LDAPEntry entry = mock(LDAPEntry.class);
+    when(results.next()).thenReturn(entry);
+
+    String userEntryDn = USER_FILTER.replace("{}", USER) + ", " + LDAP_BASE_DN;
+    when(entry.getDN()).thenReturn(userEntryDn);
+
+    LDAPAttribute attr = mock(LDAPAttribute.class);
+    when(entry.getAttribute(isA(String.class))).thenReturn(attr);
+    return userEntryDn;
+  }
 }
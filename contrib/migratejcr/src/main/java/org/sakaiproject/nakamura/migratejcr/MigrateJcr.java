@@ -30,6 +30,7 @@ import org.apache.felix.scr.annotations.ReferenceCardinality;
 import org.apache.felix.scr.annotations.ReferencePolicy;
 import org.apache.jackrabbit.api.security.user.Group;
 import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.sling.commons.osgi.OsgiUtil;
 import org.apache.sling.jcr.api.SlingRepository;
 import org.apache.sling.jcr.base.util.AccessControlUtil;
 import org.sakaiproject.nakamura.api.lite.Repository;
@@ -57,6 +58,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Dictionary;
 import java.util.GregorianCalendar;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -78,7 +81,6 @@ import javax.jcr.Value;
 import javax.jcr.ValueFormatException;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryManager;
-import javax.jcr.query.QueryResult;
 
 /**
  *
@@ -121,7 +123,19 @@ public class MigrateJcr {
   private Set<String> ignoreProps = ImmutableSet.of("jcr:content", "jcr:data",
       "jcr:mixinTypes", "rep:policy", "jcr:created", "jcr:primaryType");
   private Object visibilityPreference;
-  private boolean shouldAbort = false;
+  private MigrationEngine engine;
+
+  @org.apache.felix.scr.annotations.Property(intValue = 4, description = "The number of partitions migrated in parallel.")
+  static final String MIGRATION_THREADS = "migration.threads";
+
+  @org.apache.felix.scr.annotations.Property(intValue = 500, description = "The number of subtrees in a partition.")
+  static final String MIGRATION_PARTITION_SIZE = "migration.partition.size";
+
+  @org.apache.felix.scr.annotations.Property(intValue = 50, description = "The number of subtrees migrated between checkpoints.")
+  static final String MIGRATION_BATCH_SIZE = "migration.batch.size";
+
+  @org.apache.felix.scr.annotations.Property(longValue = 30, description = "The number of seconds between progress reports.")
+  static final String MIGRATION_REPORT_INTERVAL = "migration.report.interval";
   
   private static final String VISIBILITY_PRIVATE = "private";
   private static final String VISIBILITY_LOGGED_IN = "logged_in";
@@ -134,6 +148,7 @@ public class MigrateJcr {
 
   @Activate
   protected void activate(ComponentContext componentContext) {
+    Dictionary<?, ?> props = componentContext.getProperties();
     try {
       for (Entry<SlingRepository, SlingRepository> repo : repositories.entrySet()) {
         if (!repo.equals(slingRepository)) {
@@ -141,8 +156,15 @@ public class MigrateJcr {
           break;
         }
       }
-      migrateAuthorizables();
-      migrateContentPool();
+      engine = new MigrationEngine(slingRepository, sparseRepository,
+          OsgiUtil.toInteger(props.get(MIGRATION_THREADS), 4),
+          OsgiUtil.toInteger(props.get(MIGRATION_PARTITION_SIZE), 500),
+          OsgiUtil.toInteger(props.get(MIGRATION_BATCH_SIZE), 50),
+          OsgiUtil.toLong(props.get(MIGRATION_REPORT_INTERVAL), 30));
+      if (!migrateAuthorizables() || !migrateContentPool()) {
+        LOGGER.error("Data migration from JCR to Sparse was aborted, the next run resumes from the last checkpoints.");
+        return;
+      }
       migrateTags();
       cleanup();
     } catch (Exception e) {
@@ -178,38 +200,47 @@ public class MigrateJcr {
 
   }
 
-  @SuppressWarnings("deprecation")
-  private void migrateContentPool() throws Exception {
-    LOGGER.info("beginning users and groups migration.");
-    String contentPoolQuery = "//element(*, sakai:pooled-content) order by @jcr:score descending";
+  /**
+   * @return false if the migration was aborted.
+   */
+  private boolean migrateContentPool() throws Exception {
+    LOGGER.info("beginning pooled content migration.");
+    String contentPoolQuery = "//element(*, sakai:pooled-content)";
+    List<String> paths = findPaths(contentPoolQuery);
+    String nodeWord = paths.size() == 1 ? "node" : "nodes";
+    LOGGER.info("found {} pooled content {} in Jackrabbit.", paths.size(), nodeWord);
+    return engine.migrate("pool", paths, new MigrationEngine.NodeMigrator() {
+      public void migrate(Node contentNode, javax.jcr.Session jcrSession,
+          Session sparseSession) throws Exception {
+        LOGGER.info(contentNode.getPath());
+        copyNodeToSparse(contentNode, contentNode.getName(), sparseSession,
+            AccessControlUtil.getAccessControlManager(jcrSession), true, false);
+      }
+    });
+  }
+
+  /**
+   * Run a query against Jackrabbit and collect the paths of the nodes found, so the nodes
+   * can be handed out to the migration workers.
+   */
+  private List<String> findPaths(String xpath) throws RepositoryException {
     javax.jcr.Session jcrSession = null;
-    Session sparseSession = null;
-    javax.jcr.security.AccessControlManager accessManager = null;
     try {
       jcrSession = slingRepository.loginAdministrative("default");
-      sparseSession = sparseRepository.loginAdministrative();
-      accessManager = AccessControlUtil.getAccessControlManager(jcrSession);
       QueryManager qm = jcrSession.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(contentPoolQuery, Query.XPATH);
-      QueryResult result = q.execute();
-      NodeIterator resultNodes = result.getNodes();
-      String nodeWord = resultNodes.getSize() == 1 ? "node" : "nodes";
-      LOGGER.info("found {} pooled content {} in Jackrabbit.", resultNodes.getSize(),
-          nodeWord);
-      while (resultNodes.hasNext() && !shouldAbort) {
-        Node contentNode = resultNodes.nextNode();
-        LOGGER.info(contentNode.getPath());
-        copyNodeToSparse(contentNode, contentNode.getName(), sparseSession, accessManager, true, false);
+      @SuppressWarnings("deprecation")
+      Query q = qm.createQuery(xpath, Query.XPATH);
+      NodeIterator resultNodes = q.execute().getNodes();
+      List<String> paths = new ArrayList<String>();
+      while (resultNodes.hasNext()) {
+        paths.add(resultNodes.nextNode().getPath());
       }
+      return paths;
     } finally {
       if (jcrSession != null) {
         jcrSession.logout();
       }
-      if (sparseSession != null) {
-        sparseSession.logout();
-      }
     }
-
   }
 
   private void copyNodeToSparse(Node contentNode, String path, Session session, 
@@ -302,6 +333,7 @@ public class MigrateJcr {
         InputStream binaryStream = binaryData.getStream();
         contentManager.update(sparseContent);
         contentManager.writeBody(sparseContent.getPath(), binaryStream);
+        engine.nodeWritten();
       } catch (Exception e) {
         contentManager.delete(sparseContent.getPath());
         LOGGER.error("Unable to write binary content from JCR path {} to sparse path {}"
@@ -310,6 +342,7 @@ public class MigrateJcr {
       }
     } else {
       contentManager.update(sparseContent);
+      engine.nodeWritten();
     }
     if (shouldProcessACLs) {
       try {
@@ -401,7 +434,7 @@ public class MigrateJcr {
       } catch (Exception e) {
         LOGGER.error("Failed to set sparse access control on {}", path, e);
         contentManager.delete(sparseContent.getPath());
-        shouldAbort  = true;
+        engine.abort();
         return;
       }
     }
@@ -511,44 +544,39 @@ public class MigrateJcr {
     return contentPath;
   }
 
-  @SuppressWarnings("deprecation")
-  private void migrateAuthorizables() throws Exception {
+  /**
+   * @return false if the migration was aborted.
+   */
+  private boolean migrateAuthorizables() throws Exception {
     LOGGER.info("beginning users and groups migration.");
-    javax.jcr.Session jcrSession = null;
-    Session sparseSession = null;
-    try {
-      sparseSession = sparseRepository.loginAdministrative();
-      jcrSession = slingRepository.loginAdministrative("default");
-      String usersQuery = "//*[@sling:resourceType='sakai/user-home'] order by @jcr:score descending";
-      QueryManager qm = jcrSession.getWorkspace().getQueryManager();
-      Query q = qm.createQuery(usersQuery, Query.XPATH);
-      QueryResult result = q.execute();
-      NodeIterator resultNodes = result.getNodes();
-      String folderWord = resultNodes.getSize() == 1 ? "folder" : "folders";
-      LOGGER.info("found {} user home {} in Jackrabbit.", resultNodes.getSize(),
-          folderWord);
-      while (resultNodes.hasNext()) {
-        Node authHomeNode = resultNodes.nextNode();
+    MigrationEngine.NodeMigrator authorizableMigrator = new MigrationEngine.NodeMigrator() {
+      public void migrate(Node authHomeNode, javax.jcr.Session jcrSession,
+          Session sparseSession) throws Exception {
         LOGGER.debug(authHomeNode.getPath());
         moveAuthorizableToSparse(authHomeNode,
-            AccessControlUtil.getUserManager(jcrSession));
-      }
-      
+            AccessControlUtil.getUserManager(jcrSession), sparseSession);
+      }
+    };
+    String usersQuery = "//*[@sling:resourceType='sakai/user-home']";
+    List<String> paths = findPaths(usersQuery);
+    String folderWord = paths.size() == 1 ? "folder" : "folders";
+    LOGGER.info("found {} user home {} in Jackrabbit.", paths.size(), folderWord);
+    if (!engine.migrate("users", paths, authorizableMigrator)) {
+      return false;
+    }
 
-      String groupsQuery = "//*[@sling:resourceType='sakai/group-home'] order by @jcr:score descending";
-      q = qm.createQuery(groupsQuery, Query.XPATH);
-      result = q.execute();
-      resultNodes = result.getNodes();
-      folderWord = resultNodes.getSize() == 1 ? "folder" : "folders";
-      LOGGER.info("found {} group home {} in Jackrabbit.", resultNodes.getSize(),
-          folderWord);
-      while (resultNodes.hasNext()) {
-        Node groupHomeNode = resultNodes.nextNode();
-        LOGGER.debug(groupHomeNode.getPath());
-        moveAuthorizableToSparse(groupHomeNode,
-            AccessControlUtil.getUserManager(jcrSession));
-      }
-      
+    // groups go after all the users so their members can be found.
+    String groupsQuery = "//*[@sling:resourceType='sakai/group-home']";
+    paths = findPaths(groupsQuery);
+    folderWord = paths.size() == 1 ? "folder" : "folders";
+    LOGGER.info("found {} group home {} in Jackrabbit.", paths.size(), folderWord);
+    if (!engine.migrate("groups", paths, authorizableMigrator)) {
+      return false;
+    }
+
+    Session sparseSession = null;
+    try {
+      sparseSession = sparseRepository.loginAdministrative();
       AuthorizableManager sparseAuthManager = sparseSession.getAuthorizableManager();
       for (String sparseGroupId : groupMemberRetries.keySet()) {
         Authorizable group = sparseAuthManager.findAuthorizable(sparseGroupId);
@@ -567,22 +595,17 @@ public class MigrateJcr {
         }
       }
     } finally {
-      if (jcrSession != null) {
-        jcrSession.logout();
-      }
       if (sparseSession != null) {
         sparseSession.logout();
       }
     }
-
+    return true;
   }
 
-  private void moveAuthorizableToSparse(Node authHomeNode, UserManager userManager)
-      throws Exception {
-    Session sparseSession = null;
+  private void moveAuthorizableToSparse(Node authHomeNode, UserManager userManager,
+      Session sparseSession) throws Exception {
     javax.jcr.security.AccessControlManager accessManager = null;
     try {
-      sparseSession = sparseRepository.loginAdministrative();
       AuthorizableManager authManager = sparseSession.getAuthorizableManager();
       accessManager = AccessControlUtil
       .getAccessControlManager(authHomeNode.getSession());
@@ -668,10 +691,6 @@ public class MigrateJcr {
     } catch (Exception e) {
       LOGGER.error("Failure moving authorizable {} to sparsemap: {}",
           authHomeNode.getPath(), e.getLocalizedMessage());
-    } finally {
-      if (sparseSession != null) {
-        sparseSession.logout();
-      }
     }
 
   }
@@ -854,8 +873,11 @@ public class MigrateJcr {
         ((org.sakaiproject.nakamura.api.lite.authorizable.Group)sparseGroup).addMember(sparseMember.getId());
       } else {
         LOGGER.warn("Wanted to add member {} to group {} but couldn't find member in sparse.", jcrMemberId, sparseGroup.getId());
-        if (!groupMemberRetries.containsKey(sparseGroup.getId())) {
-          groupMemberRetries.put(sparseGroup.getId(), new HashSet<String>());
+        synchronized (groupMemberRetries) {
+          if (!groupMemberRetries.containsKey(sparseGroup.getId())) {
+            groupMemberRetries.put(sparseGroup.getId(),
+                Collections.synchronizedSet(new HashSet<String>()));
+          }
         }
         groupMemberRetries.get(sparseGroup.getId()).add(jcrMemberId);
       }
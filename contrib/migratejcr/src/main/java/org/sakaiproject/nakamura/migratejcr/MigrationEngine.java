@@ -0,0 +1,296 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.StorageClientUtils;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+
+/**
+ * Migrates a list of JCR subtrees into sparse on a bounded pool of workers.
+ * <p>
+ * The paths of a phase are sorted and split into fixed size partitions. Each partition
+ * is migrated by one worker with its own JCR and sparse sessions, as neither is safe to
+ * share between threads. After every batch of paths the worker drops the JCR session
+ * cache and writes a checkpoint for the partition into sparse, so an interrupted run
+ * picks up from the last completed batch rather than from the start. Partitions are
+ * keyed on their content, so a changed source tree results in new partitions, which is
+ * safe as the migration of an existing sparse path is skipped anyway.
+ * </p>
+ * <p>
+ * Progress and throughput are logged periodically while a phase runs and once at the
+ * end of it.
+ * </p>
+ */
+public class MigrationEngine {
+
+  /**
+   * Migrates a single JCR subtree. Called on a worker thread with that worker's sessions.
+   */
+  public interface NodeMigrator {
+    void migrate(Node node, javax.jcr.Session jcrSession, Session sparseSession)
+        throws Exception;
+  }
+
+  /**
+   * Where partition checkpoints are kept in sparse content.
+   */
+  static final String CHECKPOINT_ROOT = "migratejcr/checkpoints";
+
+  private static final String CHECKPOINT_POSITION = "position";
+  private static final String CHECKPOINT_DONE = "done";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MigrationEngine.class);
+
+  private final SlingRepository jcrRepository;
+  private final Repository sparseRepository;
+  private final int threads;
+  private final int partitionSize;
+  private final int batchSize;
+  private final long reportInterval;
+
+  private volatile boolean aborted;
+
+  private final AtomicLong nodes = new AtomicLong();
+
+  /**
+   * @param jcrRepository
+   *          the repository to read from.
+   * @param sparseRepository
+   *          the repository to write to and keep checkpoints in.
+   * @param threads
+   *          the number of partitions migrated at the same time.
+   * @param partitionSize
+   *          the number of paths in a partition.
+   * @param batchSize
+   *          the number of paths migrated between checkpoints.
+   * @param reportInterval
+   *          the number of seconds between progress reports.
+   */
+  public MigrationEngine(SlingRepository jcrRepository, Repository sparseRepository,
+      int threads, int partitionSize, int batchSize, long reportInterval) {
+    this.jcrRepository = jcrRepository;
+    this.sparseRepository = sparseRepository;
+    this.threads = Math.max(1, threads);
+    this.partitionSize = Math.max(1, partitionSize);
+    this.batchSize = Math.max(1, batchSize);
+    this.reportInterval = Math.max(1, reportInterval);
+  }
+
+  /**
+   * Migrate the subtrees at the given paths, blocking until all partitions have finished.
+   *
+   * @param phase
+   *          a name for this set of paths, used for checkpoints and reporting.
+   * @param paths
+   *          the JCR paths of the subtree roots to migrate.
+   * @param migrator
+   *          migrates each subtree.
+   * @return false if the migration was aborted.
+   * @throws InterruptedException
+   */
+  public boolean migrate(final String phase, List<String> paths,
+      final NodeMigrator migrator) throws InterruptedException {
+    List<String> sorted = new ArrayList<String>(paths);
+    Collections.sort(sorted);
+    final Progress progress = new Progress(phase, sorted.size());
+    LOGGER.info("Migrating {} {} paths in partitions of {} on {} threads.", new Object[] {
+        sorted.size(), phase, partitionSize, threads });
+
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+    reporter.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        progress.report();
+      }
+    }, reportInterval, reportInterval, TimeUnit.SECONDS);
+    try {
+      for (int i = 0; i < sorted.size() && !aborted; i += partitionSize) {
+        final List<String> partition = sorted.subList(i,
+            Math.min(i + partitionSize, sorted.size()));
+        executor.execute(new Runnable() {
+          public void run() {
+            migratePartition(phase, partition, migrator, progress);
+          }
+        });
+      }
+    } finally {
+      executor.shutdown();
+      while (!executor.awaitTermination(reportInterval, TimeUnit.SECONDS)) {
+        LOGGER.debug("Waiting for {} partitions to finish.", phase);
+      }
+      reporter.shutdownNow();
+    }
+    progress.report();
+    return !aborted;
+  }
+
+  /**
+   * Stop handing out partitions; the partitions in progress stop at their next path.
+   */
+  public void abort() {
+    aborted = true;
+  }
+
+  public boolean isAborted() {
+    return aborted;
+  }
+
+  /**
+   * Count a node written to sparse, for throughput reporting.
+   */
+  public void nodeWritten() {
+    nodes.incrementAndGet();
+  }
+
+  private void migratePartition(String phase, List<String> partition,
+      NodeMigrator migrator, Progress progress) {
+    String checkpointPath = StorageClientUtils.newPath(CHECKPOINT_ROOT + "/" + phase,
+        StorageClientUtils.insecureHash(partition.get(0) + "|"
+            + partition.get(partition.size() - 1) + "|" + partition.size()));
+    javax.jcr.Session jcrSession = null;
+    Session sparseSession = null;
+    try {
+      jcrSession = jcrRepository.loginAdministrative("default");
+      sparseSession = sparseRepository.loginAdministrative();
+      ContentManager contentManager = sparseSession.getContentManager();
+      int position = 0;
+      Content checkpoint = contentManager.get(checkpointPath);
+      if (checkpoint != null) {
+        if (Boolean.TRUE.equals(checkpoint.getProperty(CHECKPOINT_DONE))) {
+          progress.skipped(partition.size());
+          return;
+        }
+        Object stored = checkpoint.getProperty(CHECKPOINT_POSITION);
+        if (stored instanceof Number) {
+          position = Math.min(((Number) stored).intValue(), partition.size());
+          progress.skipped(position);
+        }
+      }
+      int inBatch = 0;
+      for (int i = position; i < partition.size(); i++) {
+        if (aborted) {
+          return;
+        }
+        String path = partition.get(i);
+        try {
+          if (jcrSession.nodeExists(path)) {
+            migrator.migrate(jcrSession.getNode(path), jcrSession, sparseSession);
+            if (aborted) {
+              // this path gave up, leave it out of the checkpoint so it is run again.
+              progress.failed();
+              return;
+            }
+            progress.migrated();
+          } else {
+            LOGGER.warn("{} no longer exists in Jackrabbit, skipping it.", path);
+            progress.skipped(1);
+          }
+        } catch (Exception e) {
+          LOGGER.error("Failed to migrate {}", path, e);
+          progress.failed();
+        }
+        if (++inBatch == batchSize) {
+          // let go of the nodes read in this batch and remember how far we got.
+          jcrSession.refresh(false);
+          contentManager.update(new Content(checkpointPath, ImmutableMap.of(
+              CHECKPOINT_POSITION, (Object) (i + 1), CHECKPOINT_DONE, false)));
+          inBatch = 0;
+        }
+      }
+      contentManager.update(new Content(checkpointPath, ImmutableMap.of(
+          CHECKPOINT_POSITION, (Object) partition.size(), CHECKPOINT_DONE, true)));
+    } catch (Exception e) {
+      LOGGER.error("Failed to migrate {} partition starting at {}, it will be retried on the next run.",
+          new Object[] { phase, partition.get(0), e });
+    } finally {
+      if (jcrSession != null) {
+        jcrSession.logout();
+      }
+      if (sparseSession != null) {
+        try {
+          sparseSession.logout();
+        } catch (Exception e) {
+          LOGGER.debug(e.getMessage(), e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Counters for a single phase.
+   */
+  private class Progress {
+    private final String phase;
+    private final int total;
+    private final long start = System.currentTimeMillis();
+    private final long startNodes = nodes.get();
+    private final AtomicInteger migrated = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    Progress(String phase, int total) {
+      this.phase = phase;
+      this.total = total;
+    }
+
+    void migrated() {
+      migrated.incrementAndGet();
+    }
+
+    void skipped(int count) {
+      skipped.addAndGet(count);
+    }
+
+    void failed() {
+      failed.incrementAndGet();
+    }
+
+    void report() {
+      long elapsed = Math.max(1, System.currentTimeMillis() - start);
+      long written = nodes.get() - startNodes;
+      int done = migrated.get() + skipped.get() + failed.get();
+      LOGGER.info("{}: {} of {} paths done ({} migrated, {} skipped, {} failed), "
+          + "{} nodes written in {} s, {} nodes/s",
+          new Object[] { phase, done, total, migrated.get(), skipped.get(), failed.get(),
+              written, elapsed / 1000, written * 1000 / elapsed });
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Sakai Foundation (SF) under one
+ * or more contributor license agreements. See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership. The SF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package org.sakaiproject.nakamura.migratejcr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.nakamura.api.lite.Repository;
+import org.sakaiproject.nakamura.api.lite.Session;
+import org.sakaiproject.nakamura.api.lite.content.Content;
+import org.sakaiproject.nakamura.api.lite.content.ContentManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jcr.Node;
+
+/**
+ *
+ */
+public class MigrationEngineTest {
+
+  private SlingRepository jcrRepository;
+  private Repository sparseRepository;
+  /**
+   * The sparse content written by the engine, which is only its checkpoints.
+   */
+  private final Map<String, Content> checkpoints = new ConcurrentHashMap<String, Content>();
+  private final List<String> paths = new ArrayList<String>();
+  private final List<String> migrated = Collections.synchronizedList(new ArrayList<String>());
+
+  @Before
+  public void before() throws Exception {
+    // nodes are made up front, stubbing from the worker threads is not safe.
+    final Map<String, Node> nodes = new HashMap<String, Node>();
+    for (int i = 0; i < 7; i++) {
+      String path = "/_user/u" + i;
+      Node node = mock(Node.class);
+      when(node.getPath()).thenReturn(path);
+      nodes.put(path, node);
+      paths.add(path);
+    }
+    // out of order, the engine sorts them.
+    Collections.reverse(paths);
+
+    javax.jcr.Session jcrSession = mock(javax.jcr.Session.class);
+    when(jcrSession.nodeExists(anyString())).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        return nodes.containsKey(invocation.getArguments()[0]);
+      }
+    });
+    when(jcrSession.getNode(anyString())).thenAnswer(new Answer<Node>() {
+      public Node answer(InvocationOnMock invocation) throws Throwable {
+        return nodes.get(invocation.getArguments()[0]);
+      }
+    });
+    jcrRepository = mock(SlingRepository.class);
+    when(jcrRepository.loginAdministrative("default")).thenReturn(jcrSession);
+
+    ContentManager contentManager = mock(ContentManager.class);
+    when(contentManager.get(anyString())).thenAnswer(new Answer<Content>() {
+      public Content answer(InvocationOnMock invocation) throws Throwable {
+        return checkpoints.get(invocation.getArguments()[0]);
+      }
+    });
+    when(contentManager.update(any(Content.class))).thenAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        Content content = (Content) invocation.getArguments()[0];
+        checkpoints.put(content.getPath(), content);
+        return null;
+      }
+    });
+    Session sparseSession = mock(Session.class);
+    when(sparseSession.getContentManager()).thenReturn(contentManager);
+    sparseRepository = mock(Repository.class);
+    when(sparseRepository.loginAdministrative()).thenReturn(sparseSession);
+  }
+
+  @Test
+  public void testPartitions() throws Exception {
+    MigrationEngine engine = new MigrationEngine(jcrRepository, sparseRepository, 2, 3, 2,
+        30);
+
+    assertTrue(engine.migrate("users", paths, recorder()));
+
+    List<String> expected = new ArrayList<String>(paths);
+    Collections.sort(expected);
+    List<String> actual = new ArrayList<String>(migrated);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+    // 7 paths in partitions of 3, each checkpointed as done.
+    assertEquals(3, checkpoints.size());
+    for (Content checkpoint : checkpoints.values()) {
+      assertTrue(checkpoint.getPath().startsWith(MigrationEngine.CHECKPOINT_ROOT + "/users/"));
+      assertEquals(Boolean.TRUE, checkpoint.getProperty("done"));
+    }
+  }
+
+  @Test
+  public void testAbortStopsThePartition() throws Exception {
+    final MigrationEngine engine = new MigrationEngine(jcrRepository, sparseRepository, 1,
+        10, 2, 30);
+
+    boolean finished = engine.migrate("users", paths, new MigrationEngine.NodeMigrator() {
+      public void migrate(Node node, javax.jcr.Session jcrSession, Session sparseSession)
+          throws Exception {
+        migrated.add(node.getPath());
+        if (migrated.size() == 3) {
+          engine.abort();
+        }
+      }
+    });
+
+    assertFalse(finished);
+    assertTrue(engine.isAborted());
+    assertEquals(3, migrated.size());
+    Content checkpoint = checkpoints.values().iterator().next();
+    assertEquals(Boolean.FALSE, checkpoint.getProperty("done"));
+    assertEquals(2, checkpoint.getProperty("position"));
+  }
+
+  @Test
+  public void testResumesFromCheckpoint() throws Exception {
+    final MigrationEngine first = new MigrationEngine(jcrRepository, sparseRepository, 1,
+        10, 2, 30);
+    first.migrate("users", paths, new MigrationEngine.NodeMigrator() {
+      public void migrate(Node node, javax.jcr.Session jcrSession, Session sparseSession)
+          throws Exception {
+        if (migrated.size() == 3) {
+          first.abort();
+        } else {
+          migrated.add(node.getPath());
+        }
+      }
+    });
+    migrated.clear();
+
+    MigrationEngine second = new MigrationEngine(jcrRepository, sparseRepository, 1, 10, 2,
+        30);
+    assertTrue(second.migrate("users", paths, recorder()));
+
+    // the first batch was checkpointed, the path after it was not.
+    List<String> expected = new ArrayList<String>(paths);
+    Collections.sort(expected);
+    assertEquals(expected.subList(2, expected.size()), migrated);
+
+    // a finished phase is skipped altogether.
+    migrated.clear();
+    assertTrue(new MigrationEngine(jcrRepository, sparseRepository, 1, 10, 2, 30).migrate(
+        "users", paths, recorder()));
+    assertTrue(migrated.isEmpty());
+  }
+
+  private MigrationEngine.NodeMigrator recorder() {
+    return new MigrationEngine.NodeMigrator() {
+      public void migrate(Node node, javax.jcr.Session jcrSession, Session sparseSession)
+          throws Exception {
+        migrated.add(node.getPath());
+      }
+    };
+  }
+}
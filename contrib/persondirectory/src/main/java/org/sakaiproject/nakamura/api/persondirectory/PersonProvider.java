@@ -18,6 +18,7 @@ package org.sakaiproject.nakamura.api.persondirectory;
 
 import org.sakaiproject.nakamura.api.lite.content.Content;
 
+import java.util.Collection;
 import java.util.Map;
 
 /**
@@ -34,4 +35,16 @@ public interface PersonProvider {
    *         found.
    */
   Map<String, Object> getProfileSection(Content parameters) throws PersonProviderException;
+
+  /**
+   * Get the attributes for a number of people at once, for pages that show directory
+   * information for many people.
+   * 
+   * @param uids
+   *          The IDs of the people to look up.
+   * @return A {@link Map} of UID to the attributes found for that person. UIDs that are
+   *         not found are left out.
+   */
+  Map<String, Map<String, Object>> getPeople(Collection<String> uids)
+      throws PersonProviderException;
 }
@@ -9,6 +9,7 @@ import com.novell.ldap.LDAPSearchResults;
 
 import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
 import org.apache.felix.scr.annotations.ConfigurationPolicy;
 import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Reference;
@@ -16,21 +17,41 @@ import org.apache.felix.scr.annotations.Service;
 import org.apache.sling.commons.osgi.OsgiUtil;
 import org.osgi.service.component.ComponentException;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
+import org.sakaiproject.nakamura.api.ldap.LdapUtil;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProvider;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.jcr.RepositoryException;
 
 /**
  * Person provider implementation that gets its information from an LDAP store.
+ * <p>
+ * People are cached for a while, including the ones that aren't found, and a cached
+ * person is refreshed in the background once they have been cached for a time so that
+ * busy profiles don't all wait on LDAP when they expire.
+ * </p>
  */
 @Component(metatype = true, configurationFactory = true, policy = ConfigurationPolicy.REQUIRE)
 @Service
@@ -60,6 +81,58 @@ public class LdapPersonProvider implements PersonProvider {
   protected static final String PROP_ATTRIBUTES_MAP = "sakai.pd.ldap.attributes.map";
   private HashMap<String, String> attrsMap = new HashMap<String, String>();
 
+  @Property(value = "uid")
+  protected static final String PROP_UID_ATTRIBUTE = "sakai.pd.ldap.uid.attribute";
+  private String uidAttribute;
+
+  protected static final int DEFAULT_BATCH_SIZE = 50;
+  @Property(intValue = DEFAULT_BATCH_SIZE)
+  protected static final String PROP_BATCH_SIZE = "sakai.pd.ldap.batch.size";
+  private int batchSize;
+
+  protected static final int DEFAULT_CACHE_SIZE = 5000;
+  @Property(intValue = DEFAULT_CACHE_SIZE)
+  protected static final String PROP_CACHE_SIZE = "sakai.pd.ldap.cache.size";
+
+  protected static final long DEFAULT_CACHE_TTL = 600;
+  @Property(longValue = DEFAULT_CACHE_TTL)
+  protected static final String PROP_CACHE_TTL = "sakai.pd.ldap.cache.ttl";
+  private long ttl;
+
+  protected static final long DEFAULT_CACHE_NEGATIVE_TTL = 60;
+  @Property(longValue = DEFAULT_CACHE_NEGATIVE_TTL)
+  protected static final String PROP_CACHE_NEGATIVE_TTL = "sakai.pd.ldap.cache.negative.ttl";
+  private long negativeTtl;
+
+  /**
+   * Age, in seconds, after which a cached person is still served but is refreshed in the
+   * background. 0 turns off background refresh.
+   */
+  protected static final long DEFAULT_CACHE_REFRESH = 450;
+  @Property(longValue = DEFAULT_CACHE_REFRESH)
+  protected static final String PROP_CACHE_REFRESH = "sakai.pd.ldap.cache.refresh";
+  private long refreshAfter;
+
+  private volatile int cacheSize = DEFAULT_CACHE_SIZE;
+
+  /**
+   * Cached people, most recently used last. The map is never replaced so it can be locked
+   * on, a new configuration clears it.
+   */
+  private final Map<String, CachedPerson> cache = new LinkedHashMap<String, CachedPerson>(
+      16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedPerson> eldest) {
+      return size() > cacheSize;
+    }
+  };
+
+  private final Set<String> pendingRefresh = new LinkedHashSet<String>();
+
+  private ExecutorService refreshExecutor;
+
   @Reference
   private LdapConnectionManager connMgr;
 
@@ -105,10 +178,43 @@ public class LdapPersonProvider implements PersonProvider {
       attrsMap = new HashMap<String, String>();
     }
 
-    // create an attribute array for looking things up
-    Set<String> attrKeys = attrsMap.keySet();
-    String[] attrs = new String[attrKeys.size()];
-    attrKeys.toArray(attrs);
+    uidAttribute = OsgiUtil.toString(props.get(PROP_UID_ATTRIBUTE), "uid");
+    batchSize = Math.max(1, OsgiUtil.toInteger(props.get(PROP_BATCH_SIZE),
+        DEFAULT_BATCH_SIZE));
+    ttl = OsgiUtil.toLong(props.get(PROP_CACHE_TTL), DEFAULT_CACHE_TTL) * 1000L;
+    negativeTtl = OsgiUtil.toLong(props.get(PROP_CACHE_NEGATIVE_TTL),
+        DEFAULT_CACHE_NEGATIVE_TTL) * 1000L;
+    refreshAfter = OsgiUtil.toLong(props.get(PROP_CACHE_REFRESH), DEFAULT_CACHE_REFRESH) * 1000L;
+
+    cacheSize = OsgiUtil.toInteger(props.get(PROP_CACHE_SIZE), DEFAULT_CACHE_SIZE);
+    synchronized (cache) {
+      cache.clear();
+    }
+
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdownNow();
+    }
+    // one refresh at a time with at most one waiting, which picks up every UID that went
+    // stale in the meantime.
+    refreshExecutor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(1), new ThreadFactory() {
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "LdapPersonProvider-refresh");
+            t.setDaemon(true);
+            return t;
+          }
+        }, new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  @Deactivate
+  protected void deactivate(Map<?, ?> props) {
+    if (refreshExecutor != null) {
+      refreshExecutor.shutdownNow();
+      refreshExecutor = null;
+    }
+    synchronized (cache) {
+      cache.clear();
+    }
   }
 
   protected Map<String, String> getAttributesMap() {
@@ -118,52 +224,267 @@ public class LdapPersonProvider implements PersonProvider {
   public Map<String, Object> getProfileSection(Content parameters)
       throws PersonProviderException {
     try {
-      HashMap<String, Object> person = new HashMap<String, Object>();
-
       // get the user ID
       String uid = findUserId(parameters);
 
-      // set the properties
-      String filter = filterPattern.replace("{}", uid);
+      Map<String, Object> person = getPeople(Collections.singleton(uid)).get(uid);
+      if (person == null) {
+        person = new HashMap<String, Object>();
+      }
+      return person;
+    } catch (RepositoryException e) {
+      throw new PersonProviderException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * People are served from the cache where possible. The rest are looked up with one
+   * search per batch of UIDs, OR-ing together the filter for each UID.
+   * </p>
+   *
+   * @see org.sakaiproject.nakamura.api.persondirectory.PersonProvider#getPeople(java.util.Collection)
+   */
+  public Map<String, Map<String, Object>> getPeople(Collection<String> uids)
+      throws PersonProviderException {
+    Map<String, Map<String, Object>> people = new HashMap<String, Map<String, Object>>();
+    Set<String> missing = new LinkedHashSet<String>();
+    Set<String> stale = new LinkedHashSet<String>();
+    long now = System.currentTimeMillis();
+    for (String uid : uids) {
+      CachedPerson cached = getCached(uid);
+      if (cached == null) {
+        missing.add(uid);
+        continue;
+      }
+      long age = now - cached.loaded;
+      if (cached.attributes == null) {
+        if (age < negativeTtl) {
+          // known not to be in the directory.
+          continue;
+        }
+        missing.add(uid);
+      } else if (age < ttl) {
+        people.put(uid, copy(cached.attributes));
+        if (refreshAfter > 0 && age >= refreshAfter) {
+          stale.add(uid);
+        }
+      } else {
+        missing.add(uid);
+      }
+    }
+
+    if (!missing.isEmpty()) {
+      try {
+        Map<String, Map<String, Object>> found = searchDirectory(missing);
+        cacheResults(missing, found);
+        for (Entry<String, Map<String, Object>> person : found.entrySet()) {
+          people.put(person.getKey(), copy(person.getValue()));
+        }
+      } catch (LDAPException e) {
+        throw new PersonProviderException(e.getMessage(), e);
+      }
+    }
+    if (!stale.isEmpty()) {
+      scheduleRefresh(stale);
+    }
+    return people;
+  }
+
+  /**
+   * Look up people in the directory again and update the cache with what is found.
+   *
+   * @param uids
+   * @throws LDAPException
+   */
+  void refresh(Collection<String> uids) throws LDAPException {
+    cacheResults(uids, searchDirectory(uids));
+  }
+
+  private void scheduleRefresh(Collection<String> uids) {
+    ExecutorService executor = refreshExecutor;
+    if (executor == null) {
+      return;
+    }
+    synchronized (pendingRefresh) {
+      pendingRefresh.addAll(uids);
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          List<String> toRefresh;
+          synchronized (pendingRefresh) {
+            toRefresh = new ArrayList<String>(pendingRefresh);
+            pendingRefresh.clear();
+          }
+          if (toRefresh.isEmpty()) {
+            return;
+          }
+          try {
+            refresh(toRefresh);
+          } catch (Exception e) {
+            LOG.warn("Unable to refresh {} people from LDAP: {}", toRefresh.size(),
+                e.getMessage());
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // a refresh is already queued and will pick up these UIDs.
+      LOG.debug("Refresh already queued");
+    }
+  }
+
+  /**
+   * Search the directory for a number of people, a batch of UIDs at a time.
+   */
+  private Map<String, Map<String, Object>> searchDirectory(Collection<String> uids)
+      throws LDAPException {
+    Map<String, Map<String, Object>> found = new HashMap<String, Map<String, Object>>();
+    List<String> batch = new ArrayList<String>(batchSize);
+    for (String uid : uids) {
+      batch.add(uid);
+      if (batch.size() == batchSize) {
+        searchBatch(batch, found);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      searchBatch(batch, found);
+    }
+    return found;
+  }
 
-      String[] attributes = attrsMap.keySet().toArray(new String[]{});
+  private void searchBatch(List<String> uids, Map<String, Map<String, Object>> found)
+      throws LDAPException {
+    String filter;
+    String[] attributes;
+    if (uids.size() == 1) {
+      filter = filterPattern.replace("{}", LdapUtil.escapeLDAPSearchFilter(uids.get(0)));
+      attributes = attrsMap.keySet().toArray(new String[attrsMap.size()]);
+    } else {
+      StringBuilder sb = new StringBuilder("(|");
+      for (String uid : uids) {
+        String uidFilter = filterPattern.replace("{}",
+            LdapUtil.escapeLDAPSearchFilter(uid));
+        if (uidFilter.startsWith("(")) {
+          sb.append(uidFilter);
+        } else {
+          sb.append('(').append(uidFilter).append(')');
+        }
+      }
+      filter = sb.append(')').toString();
+      // the UID attribute is needed to tell which entry belongs to whom.
+      Set<String> attrs = new HashSet<String>(attrsMap.keySet());
+      attrs.add(uidAttribute);
+      attributes = attrs.toArray(new String[attrs.size()]);
+    }
 
-      LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
-          new Object[] { baseDn, filter, attributes });
+    LOG.debug("searchDirectory(): [baseDN = {}][filter = {}][return attribs = {}]",
+        new Object[] { baseDn, filter, attributes });
 
-      // get a connection bound to the application user
-      LDAPConnection conn = connMgr.getBoundConnection(null, null);
+    // get a connection bound to the application user
+    LDAPConnection conn = connMgr.getBoundConnection(null, null);
+    try {
       LDAPSearchResults searchResults = conn.search(baseDn, LDAPConnection.SCOPE_SUB,
           filter, attributes, false);
-      if (searchResults.hasMore()) {
-        // pick off the first result returned
+      if (uids.size() == 1) {
+        if (searchResults.hasMore()) {
+          // pick off the first result returned
+          found.put(uids.get(0), toPerson(searchResults.next()));
+        }
+        return;
+      }
+
+      Map<String, String> byLowerCase = new HashMap<String, String>();
+      for (String uid : uids) {
+        byLowerCase.put(uid.toLowerCase(), uid);
+      }
+      while (searchResults.hasMore()) {
         LDAPEntry entry = searchResults.next();
+        LDAPAttribute uidAttr = entry.getAttribute(uidAttribute);
+        if (uidAttr == null) {
+          LOG.debug("Entry [{}] has no {} attribute", entry.getDN(), uidAttribute);
+          continue;
+        }
+        // directory attributes generally match without regard to case.
+        String uid = byLowerCase.get(uidAttr.getStringValue().toLowerCase());
+        if (uid != null && !found.containsKey(uid)) {
+          found.put(uid, toPerson(entry));
+        }
+      }
+    } finally {
+      connMgr.returnConnection(conn);
+    }
+  }
 
-        // get the attributes from the entry and loop through them
-        LDAPAttributeSet attrs = entry.getAttributeSet();
-        Iterator<?> attrIter = attrs.iterator();
-        while (attrIter.hasNext()) {
-          // get the key and values from the attribute
-          LDAPAttribute attr = (LDAPAttribute) attrIter.next();
-          String name = attr.getName();
-          String[] vals = attr.getStringValueArray();
-
-          // check for an aliased name
-          String mappingName = attrsMap.get(name);
-
-          // add the values under the appropriate key
-          if (vals.length == 1) {
-            person.put(mappingName, vals[0]);
-          } else if (vals.length > 1) {
-            person.put(mappingName, vals);
-          }
+  private Map<String, Object> toPerson(LDAPEntry entry) {
+    Map<String, Object> person = new HashMap<String, Object>();
+    // get the attributes from the entry and loop through them
+    LDAPAttributeSet attrs = entry.getAttributeSet();
+    Iterator<?> attrIter = attrs.iterator();
+    while (attrIter.hasNext()) {
+      // get the key and values from the attribute
+      LDAPAttribute attr = (LDAPAttribute) attrIter.next();
+      String name = attr.getName();
+      String[] vals = attr.getStringValueArray();
+
+      // check for an aliased name
+      String mappingName = attrsMap.get(name);
+      if (mappingName == null) {
+        // only asked for to match the entry to a UID.
+        continue;
+      }
+
+      // add the values under the appropriate key
+      if (vals.length == 1) {
+        person.put(mappingName, vals[0]);
+      } else if (vals.length > 1) {
+        person.put(mappingName, vals);
+      }
+    }
+    return person;
+  }
+
+  /**
+   * @return a copy of a person that can be changed without changing the cache, multiple
+   *         values included.
+   */
+  private static Map<String, Object> copy(Map<String, Object> person) {
+    Map<String, Object> copy = new HashMap<String, Object>(person);
+    for (Entry<String, Object> e : copy.entrySet()) {
+      if (e.getValue() instanceof String[]) {
+        e.setValue(((String[]) e.getValue()).clone());
+      }
+    }
+    return copy;
+  }
+
+  private CachedPerson getCached(String uid) {
+    synchronized (cache) {
+      return cache.get(uid);
+    }
+  }
+
+  /**
+   * Cache the people found, and remember the ones that were not.
+   */
+  private void cacheResults(Collection<String> uids, Map<String, Map<String, Object>> found) {
+    if (ttl <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    synchronized (cache) {
+      for (String uid : uids) {
+        Map<String, Object> person = found.get(uid);
+        if (person != null) {
+          cache.put(uid, new CachedPerson(person, now));
+        } else if (negativeTtl > 0) {
+          cache.put(uid, new CachedPerson(null, now));
+        } else {
+          cache.remove(uid);
         }
       }
-      return person;
-    } catch (LDAPException e) {
-      throw new PersonProviderException(e.getMessage(), e);
-    } catch (RepositoryException e) {
-      throw new PersonProviderException(e.getMessage(), e);
     }
   }
 
@@ -181,4 +502,17 @@ public class LdapPersonProvider implements PersonProvider {
       throw new PersonProviderException("Could not retrieve userid.");
     }
   }
+
+  /**
+   * Attributes of a person as last read from the directory, null if they weren't found.
+   */
+  private static class CachedPerson {
+    private final Map<String, Object> attributes;
+    private final long loaded;
+
+    private CachedPerson(Map<String, Object> attributes, long loaded) {
+      this.attributes = attributes;
+      this.loaded = loaded;
+    }
+  }
 }
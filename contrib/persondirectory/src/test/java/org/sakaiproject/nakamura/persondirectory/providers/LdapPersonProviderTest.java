@@ -17,6 +17,7 @@
 package org.sakaiproject.nakamura.persondirectory.providers;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
@@ -24,8 +25,12 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.novell.ldap.LDAPAttribute;
@@ -40,20 +45,26 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 import org.osgi.service.component.ComponentException;
 import org.sakaiproject.nakamura.api.ldap.LdapConnectionManager;
 import org.sakaiproject.nakamura.api.lite.content.Content;
 import org.sakaiproject.nakamura.api.persondirectory.PersonProviderException;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 @RunWith(MockitoJUnitRunner.class)
 public class LdapPersonProviderTest {
-
   Content content;
 
   @Before
@@ -237,6 +248,157 @@ public class LdapPersonProviderTest {
     fail("Should bubble up exceptions that are thrown internally.");
   }
 
+  @Test
+  public void testGetPeopleSearchesInBatches() throws Exception {
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    LDAPConnection connection = directory(mgr);
+
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(new String[] { "uid", "sn => lastName" }));
+    List<String> uids = uids(120);
+    uids.add("nobody");
+    Map<String, Map<String, Object>> people = provider.getPeople(uids);
+
+    assertEquals(120, people.size());
+    assertEquals("Last user7", people.get("user7").get("lastName"));
+    assertFalse(people.containsKey("nobody"));
+    // 121 people in batches of 50
+    verify(connection, times(3)).search(anyString(), anyInt(), anyString(),
+        any(String[].class), anyBoolean());
+    verify(mgr, times(3)).returnConnection(connection);
+  }
+
+  @Test
+  public void testGetPeopleIsCached() throws Exception {
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    LDAPConnection connection = directory(mgr);
+
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(new String[] { "uid", "sn => lastName" }));
+    provider.getPeople(Arrays.asList("user1", "user2", "nobody"));
+    Map<String, Map<String, Object>> people = provider.getPeople(Arrays.asList("user1",
+        "user2", "nobody"));
+
+    // found and not found people both come from the cache the second time.
+    assertEquals(2, people.size());
+    verify(connection, times(1)).search(anyString(), anyInt(), anyString(),
+        any(String[].class), anyBoolean());
+
+    // only the new person is looked up.
+    people = provider.getPeople(Arrays.asList("user1", "user3"));
+    assertEquals(2, people.size());
+    verify(connection).search(anyString(), anyInt(), eq("uid=user3"),
+        any(String[].class), anyBoolean());
+  }
+
+  @Test
+  public void testRefreshReplacesCachedPerson() throws Exception {
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    LDAPConnection connection = directory(mgr);
+
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(new String[] { "uid", "sn => lastName" }));
+    assertEquals(1, provider.getPeople(Arrays.asList("user1")).size());
+
+    // the person leaves the directory
+    doReturn(results(new ArrayList<LDAPEntry>())).when(connection).search(anyString(),
+        anyInt(), anyString(), any(String[].class), anyBoolean());
+    provider.refresh(Arrays.asList("user1"));
+
+    assertEquals(0, provider.getPeople(Arrays.asList("user1")).size());
+    verify(connection, times(2)).search(anyString(), anyInt(), anyString(),
+        any(String[].class), anyBoolean());
+  }
+
+  @Test
+  public void testActivateClearsCache() throws Exception {
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    LDAPConnection connection = directory(mgr);
+
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(new String[] { "uid", "sn => lastName" }));
+    assertEquals("Last user1", provider.getPeople(Arrays.asList("user1")).get("user1")
+        .get("lastName"));
+
+    // a new mapping must not be answered from what was cached under the old one.
+    provider.activate(buildMap(new String[] { "uid", "sn => surname" }));
+    assertEquals("Last user1", provider.getPeople(Arrays.asList("user1")).get("user1")
+        .get("surname"));
+    verify(connection, times(2)).search(anyString(), anyInt(), anyString(),
+        any(String[].class), anyBoolean());
+  }
+
+  @Test
+  public void testPeopleAreCopies() throws Exception {
+    LdapConnectionManager mgr = mock(LdapConnectionManager.class);
+    directory(mgr);
+
+    LdapPersonProvider provider = new LdapPersonProvider(mgr);
+    provider.activate(buildMap(new String[] { "uid", "mail => email" }));
+    for (int i = 0; i < 2; i++) {
+      // first from the directory, then from the cache.
+      Map<String, Object> person = provider.getPeople(Arrays.asList("user1")).get("user1");
+      String[] email = (String[]) person.get("email");
+      assertEquals("user1@one.org", email[0]);
+      email[0] = "changed";
+      person.put("email", "changed");
+    }
+  }
+
+  private List<String> uids(int count) {
+    List<String> uids = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      uids.add("user" + i);
+    }
+    return uids;
+  }
+
+  /**
+   * Set up a connection that answers uid and OR-ed uid filters for anyone named userN.
+   */
+  private LDAPConnection directory(LdapConnectionManager mgr) throws Exception {
+    LDAPConnection connection = mock(LDAPConnection.class);
+    when(mgr.getBoundConnection(anyString(), anyString())).thenReturn(connection);
+    when(
+        connection.search(anyString(), anyInt(), anyString(), any(String[].class),
+            anyBoolean())).thenAnswer(new Answer<LDAPSearchResults>() {
+      public LDAPSearchResults answer(InvocationOnMock invocation) throws Throwable {
+        String filter = (String) invocation.getArguments()[2];
+        List<LDAPEntry> entries = new ArrayList<LDAPEntry>();
+        Matcher m = Pattern.compile("uid=([^)]*)").matcher(filter);
+        while (m.find()) {
+          String uid = m.group(1);
+          if (uid.startsWith("user")) {
+            LDAPAttributeSet attrs = new LDAPAttributeSet();
+            attrs.add(new LDAPAttribute("uid", uid));
+            attrs.add(new LDAPAttribute("sn", "Last " + uid));
+            attrs.add(new LDAPAttribute("mail", new String[] { uid + "@one.org",
+                uid + "@two.org" }));
+            entries.add(new LDAPEntry("uid=" + uid + ",ou=accounts,dc=sakai", attrs));
+          }
+        }
+        return results(entries);
+      }
+    });
+    return connection;
+  }
+
+  private LDAPSearchResults results(List<LDAPEntry> entries) throws Exception {
+    final Iterator<LDAPEntry> iter = entries.iterator();
+    LDAPSearchResults results = mock(LDAPSearchResults.class);
+    when(results.hasMore()).thenAnswer(new Answer<Boolean>() {
+      public Boolean answer(InvocationOnMock invocation) {
+        return iter.hasNext();
+      }
+    });
+    when(results.next()).thenAnswer(new Answer<LDAPEntry>() {
+      public LDAPEntry answer(InvocationOnMock invocation) {
+        return iter.next();
+      }
+    });
+    return results;
+  }
+
   /**
    * Setup everything needed for a test that follows the most positive path of action.
    *